@@ -0,0 +1,125 @@
+package com.ivanfoong.cache.benchmark;
+
+import com.ivanfoong.cache.ICache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single and multi key get, put and remove benchmarks shared by every {@link ICache} implementation. The cache is
+ * filled with {@link #keyCount} entries of {@link #valueSize} bytes before measuring, and every operation picks
+ * its keys uniformly at random.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractCacheBenchmark {
+
+    static final int BATCH_SIZE = 16;
+
+    @Param({"1000", "10000"})
+    public int keyCount;
+
+    @Param({"128", "4096"})
+    public int valueSize;
+
+    String[] mKeys;
+    byte[] mValue;
+    ICache<String, byte[]> mCache;
+
+    abstract ICache<String, byte[]> createCache() throws IOException;
+
+    void destroyCache() {
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mKeys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            mKeys[i] = String.format("key.%d", i);
+        }
+        mValue = new byte[valueSize];
+        new Random(keyCount).nextBytes(mValue);
+
+        mCache = createCache();
+        for (final String key : mKeys) {
+            mCache.put(key, mValue);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        destroyCache();
+        mCache = null;
+    }
+
+    String randomKey() {
+        return mKeys[ThreadLocalRandom.current().nextInt(keyCount)];
+    }
+
+    @Benchmark
+    public HashMap<String, byte[]> getSingle() {
+        final Set<String> keys = new HashSet<String>();
+        keys.add(randomKey());
+        return mCache.get(keys);
+    }
+
+    @Benchmark
+    public byte[] getIfPresent() {
+        return mCache.getIfPresent(randomKey());
+    }
+
+    @Benchmark
+    public HashMap<String, byte[]> getMulti() {
+        final Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            keys.add(randomKey());
+        }
+        return mCache.get(keys);
+    }
+
+    @Benchmark
+    public ICache<String, byte[]> put() {
+        return mCache.put(randomKey(), mValue);
+    }
+
+    /**
+     * Puts the key back right away so the key count stays stable over the run.
+     */
+    @Benchmark
+    public ICache<String, byte[]> removeAndPut() {
+        final String key = randomKey();
+        final Set<String> keys = new HashSet<String>();
+        keys.add(key);
+        mCache.remove(keys);
+        return mCache.put(key, mValue);
+    }
+
+    static File createTemporaryDirectory(final String aPrefix) throws IOException {
+        final File directory = File.createTempFile(aPrefix, "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create %s", directory));
+        }
+        return directory;
+    }
+
+    static void deleteRecursively(final File aFile) {
+        final File[] children = aFile.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        aFile.delete();
+    }
+}
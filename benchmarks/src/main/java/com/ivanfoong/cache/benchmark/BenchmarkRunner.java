@@ -0,0 +1,34 @@
+package com.ivanfoong.cache.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Runs the selected benchmarks once per thread count, so contention shows up next to the single threaded numbers.
+ *
+ * Accepts the usual JMH command line, e.g. {@code java -Dthreads=1,8,32 -jar target/benchmarks.jar MemoryCache}.
+ * Thread counts default to 1, 4 and the number of available processors.
+ */
+public class BenchmarkRunner {
+
+    public static void main(final String[] aArguments) throws Exception {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions(aArguments);
+        final String defaultThreadCounts = String.format("1,4,%d", Runtime.getRuntime().availableProcessors());
+
+        final Set<Integer> threadCounts = new LinkedHashSet<Integer>();
+        for (final String threadCount : System.getProperty("threads", defaultThreadCounts).split(",")) {
+            threadCounts.add(Integer.parseInt(threadCount.trim()));
+        }
+
+        for (final int threadCount : threadCounts) {
+            new Runner(new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .threads(threadCount)
+                    .build()).run();
+        }
+    }
+}
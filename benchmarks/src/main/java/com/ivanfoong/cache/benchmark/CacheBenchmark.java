@@ -0,0 +1,32 @@
+package com.ivanfoong.cache.benchmark;
+
+import com.ivanfoong.cache.Cache;
+import com.ivanfoong.cache.ICache;
+import org.openjdk.jmh.annotations.Param;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Combined {@link Cache} whose memory tier holds {@link #memoryPercentage} percent of the keys, so that the
+ * remaining gets fall through to the disk tier.
+ */
+public class CacheBenchmark extends AbstractCacheBenchmark {
+
+    @Param({"10", "100"})
+    public int memoryPercentage;
+
+    File mDirectory;
+    Cache<String, byte[]> mCombinedCache;
+
+    ICache<String, byte[]> createCache() throws IOException {
+        mDirectory = createTemporaryDirectory("cache_benchmark");
+        mCombinedCache = new Cache<String, byte[]>(mDirectory, Math.max(1, keyCount * memoryPercentage / 100));
+        return mCombinedCache;
+    }
+
+    void destroyCache() {
+        mCombinedCache.close();
+        deleteRecursively(mDirectory);
+    }
+}
@@ -0,0 +1,27 @@
+package com.ivanfoong.cache.benchmark;
+
+import com.ivanfoong.cache.ICache;
+import com.ivanfoong.cache.disk.DiskCache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link DiskCache} in a fresh temporary directory.
+ */
+public class DiskCacheBenchmark extends AbstractCacheBenchmark {
+
+    File mDirectory;
+    DiskCache<String, byte[]> mDiskCache;
+
+    ICache<String, byte[]> createCache() throws IOException {
+        mDirectory = createTemporaryDirectory("disk_cache_benchmark");
+        mDiskCache = new DiskCache<String, byte[]>(mDirectory);
+        return mDiskCache;
+    }
+
+    void destroyCache() {
+        mDiskCache.close();
+        deleteRecursively(mDirectory);
+    }
+}
@@ -0,0 +1,14 @@
+package com.ivanfoong.cache.benchmark;
+
+import com.ivanfoong.cache.ICache;
+import com.ivanfoong.cache.memory.MemoryCache;
+
+/**
+ * {@link MemoryCache} sized to hold every key, so gets always hit.
+ */
+public class MemoryCacheBenchmark extends AbstractCacheBenchmark {
+
+    ICache<String, byte[]> createCache() {
+        return new MemoryCache<String, byte[]>(keyCount);
+    }
+}
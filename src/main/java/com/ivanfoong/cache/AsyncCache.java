@@ -0,0 +1,379 @@
+package com.ivanfoong.cache;
+
+import com.ivanfoong.cache.memory.MemoryCache;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * View of an {@link ICache} whose operations return {@link CompletableFuture}s instead of blocking the caller.
+ *
+ * Anything which never blocks completes inline: every operation of a {@link MemoryCache}, and the keys a
+ * {@link Cache} finds in its memory tier. Everything else, including every write to a {@link Cache}, runs on the
+ * executor, which defaults to one virtual thread per task where the JVM has them and to a pool of daemon threads
+ * otherwise.
+ *
+ * A write to a {@link Cache} updates its memory tier inline, so the value is read back right away, and writes the
+ * slower tiers on the executor. Writes of the same key run one after the other in the order they were made, each
+ * waiting for the previous writes of any of its keys, so the last write of a key always wins; writes made directly
+ * to the underlying cache meanwhile are not ordered with them.
+ */
+public class AsyncCache<K extends Serializable, V extends Serializable> {
+
+    final ICache<K, V> mCache;
+    final Executor mExecutor;
+    final ConcurrentHashMap<K, CompletableFuture<Void>> mLastWrites = new ConcurrentHashMap<K, CompletableFuture<Void>>();
+
+    public AsyncCache(final ICache<K, V> aCache) {
+        this(aCache, DefaultExecutorHolder.EXECUTOR);
+    }
+
+    public AsyncCache(final ICache<K, V> aCache, final Executor aExecutor) {
+        mCache = aCache;
+        mExecutor = aExecutor;
+    }
+
+    public ICache<K, V> getCache() {
+        return mCache;
+    }
+
+    /**
+     * @return a future of the value of aKey, or of null if it is not cached
+     */
+    public CompletableFuture<V> getAsync(final K aKey) {
+        return getAllAsync(Collections.singleton(aKey)).thenApply(new Function<HashMap<K, V>, V>() {
+            public V apply(final HashMap<K, V> aResults) {
+                return aResults.get(aKey);
+            }
+        });
+    }
+
+    /**
+     * @return a future of the values found for aKeys, which is already complete if they were all found in memory
+     */
+    public CompletableFuture<HashMap<K, V>> getAllAsync(final Set<K> aKeys) {
+        if (mCache instanceof MemoryCache) {
+            return complete(new Supplier<HashMap<K, V>>() {
+                public HashMap<K, V> get() {
+                    return mCache.get(aKeys);
+                }
+            });
+        }
+        if (!(mCache instanceof Cache)) {
+            final HashSet<K> keys = new HashSet<K>(aKeys); // the caller may change aKeys while the lookup runs
+            return supply(new Supplier<HashMap<K, V>>() {
+                public HashMap<K, V> get() {
+                    return mCache.get(keys);
+                }
+            });
+        }
+
+        final Cache<K, V> cache = (Cache<K, V>) mCache;
+        final HashMap<K, V> memoryCacheResults = new HashMap<K, V>();
+        final Set<K> missedKeys;
+        try {
+            missedKeys = cache.getFromMemory(aKeys, memoryCacheResults);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        if (missedKeys.isEmpty()) {
+            return CompletableFuture.completedFuture(memoryCacheResults);
+        }
+
+        return supply(new Supplier<HashMap<K, V>>() {
+            public HashMap<K, V> get() {
+                final HashMap<K, V> results = cache.getFromLowerTiers(missedKeys, true);
+                results.putAll(memoryCacheResults);
+                return results;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> putAsync(final K aKey, final V aValue) {
+        if (mCache instanceof MemoryCache) {
+            return run(new Runnable() {
+                public void run() {
+                    mCache.put(aKey, aValue);
+                }
+            });
+        }
+        if (!(mCache instanceof Cache)) {
+            return schedule(new PendingWrite(Collections.singleton(aKey)) {
+                void write() {
+                    mCache.put(aKey, aValue);
+                }
+            });
+        }
+
+        final Cache<K, V> cache = (Cache<K, V>) mCache;
+        final long timeToLiveMillis = cache.mExpireAfterWriteMillis;
+        final long timeToIdleMillis = cache.mExpireAfterAccessMillis;
+        final ReentrantLock lock = cache.keyLock(aKey);
+        lock.lock();
+        try {
+            cache.invalidateLoads(Collections.singleton(aKey));
+            cache.mMemoryCache.put(aKey, aValue, timeToLiveMillis, timeToIdleMillis);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        finally {
+            lock.unlock();
+        }
+        return schedule(new PendingWrite(Collections.singleton(aKey)) {
+            void write() {
+                lock.lock();
+                try {
+                    cache.putInLowerTiers(aKey, aValue, timeToLiveMillis, timeToIdleMillis);
+                    // a get before the lower tiers were written may have brought the previous value back to memory
+                    if (isLatest(aKey) && cache.mMemoryCache.peek(aKey) != aValue) {
+                        cache.mMemoryCache.put(aKey, aValue, timeToLiveMillis, timeToIdleMillis);
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Void> putAllAsync(final Map<K, V> aEntries) {
+        final HashMap<K, V> entries = new HashMap<K, V>(aEntries);
+        if (mCache instanceof MemoryCache) {
+            return run(new Runnable() {
+                public void run() {
+                    mCache.putAll(entries);
+                }
+            });
+        }
+        if (!(mCache instanceof Cache)) {
+            return schedule(new PendingWrite(entries.keySet()) {
+                void write() {
+                    mCache.putAll(entries);
+                }
+            });
+        }
+
+        final Cache<K, V> cache = (Cache<K, V>) mCache;
+        cache.lockAllKeys();
+        try {
+            cache.invalidateLoads(entries.keySet());
+            cache.mMemoryCache.putAll(entries);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        finally {
+            cache.unlockAllKeys();
+        }
+        return schedule(new PendingWrite(entries.keySet()) {
+            void write() {
+                cache.lockAllKeys();
+                try {
+                    cache.putAllInLowerTiers(entries);
+                    for (final Map.Entry<K, V> entry : entries.entrySet()) {
+                        if (isLatest(entry.getKey()) && cache.mMemoryCache.peek(entry.getKey()) != entry.getValue()) {
+                            cache.mMemoryCache.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                finally {
+                    cache.unlockAllKeys();
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeAsync(final Set<K> aKeys) {
+        final HashSet<K> keys = new HashSet<K>(aKeys);
+        if (mCache instanceof MemoryCache) {
+            return run(new Runnable() {
+                public void run() {
+                    mCache.remove(keys);
+                }
+            });
+        }
+        if (!(mCache instanceof Cache)) {
+            return schedule(new PendingWrite(keys) {
+                void write() {
+                    mCache.remove(keys);
+                }
+            });
+        }
+
+        final Cache<K, V> cache = (Cache<K, V>) mCache;
+        cache.lockAllKeys();
+        try {
+            cache.invalidateLoads(keys);
+            cache.mMemoryCache.remove(keys);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        finally {
+            cache.unlockAllKeys();
+        }
+        return schedule(new PendingWrite(keys) {
+            void write() {
+                cache.lockAllKeys();
+                try {
+                    cache.removeFromLowerTiers(keys);
+                    final HashSet<K> latestKeys = new HashSet<K>();
+                    for (final K key : keys) {
+                        if (isLatest(key)) {
+                            latestKeys.add(key);
+                        }
+                    }
+                    cache.mMemoryCache.remove(latestKeys);
+                }
+                finally {
+                    cache.unlockAllKeys();
+                }
+            }
+        });
+    }
+
+    CompletableFuture<Void> run(final Runnable aRunnable) {
+        return complete(new Supplier<Void>() {
+            public Void get() {
+                aRunnable.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs aWrite on the executor once the writes made before it to any of its keys have finished, whether they
+     * succeeded or not.
+     */
+    CompletableFuture<Void> schedule(final PendingWrite aWrite) {
+        final ArrayList<CompletableFuture<Void>> previousWrites = new ArrayList<CompletableFuture<Void>>();
+        // writes of several keys are queued for all of them at once, so that no two writes wait for each other
+        synchronized (mLastWrites) {
+            for (final K key : aWrite.mKeys) {
+                final CompletableFuture<Void> previousWrite = mLastWrites.put(key, aWrite.mFuture);
+                if (previousWrite != null) {
+                    previousWrites.add(previousWrite);
+                }
+            }
+        }
+
+        if (previousWrites.isEmpty()) {
+            execute(aWrite);
+        }
+        else {
+            CompletableFuture.allOf(previousWrites.toArray(new CompletableFuture<?>[previousWrites.size()])).whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(final Void aResult, final Throwable aFailure) {
+                    execute(aWrite);
+                }
+            });
+        }
+        return aWrite.mFuture;
+    }
+
+    void execute(final PendingWrite aWrite) {
+        try {
+            mExecutor.execute(aWrite);
+        } catch (RejectedExecutionException e) {
+            aWrite.finish(e);
+        }
+    }
+
+    /**
+     * Write of the slower tiers of a cache, queued behind the previous writes of its keys.
+     */
+    abstract class PendingWrite implements Runnable {
+        final Set<K> mKeys;
+        final CompletableFuture<Void> mFuture = new CompletableFuture<Void>();
+
+        PendingWrite(final Set<K> aKeys) {
+            mKeys = aKeys;
+        }
+
+        abstract void write();
+
+        /**
+         * @return true if no write of aKey has been made since this one
+         */
+        boolean isLatest(final K aKey) {
+            return mLastWrites.get(aKey) == mFuture;
+        }
+
+        public void run() {
+            try {
+                write();
+                finish(null);
+            } catch (Throwable e) {
+                finish(e);
+            }
+        }
+
+        void finish(final Throwable aFailure) {
+            for (final K key : mKeys) {
+                mLastWrites.remove(key, mFuture);
+            }
+            if (aFailure != null) {
+                mFuture.completeExceptionally(aFailure);
+            }
+            else {
+                mFuture.complete(null);
+            }
+        }
+    }
+
+    <T> CompletableFuture<T> supply(final Supplier<T> aSupplier) {
+        return CompletableFuture.supplyAsync(aSupplier, mExecutor);
+    }
+
+    static <T> CompletableFuture<T> complete(final Supplier<T> aSupplier) {
+        try {
+            return CompletableFuture.completedFuture(aSupplier.get());
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    static <T> CompletableFuture<T> failed(final Throwable aFailure) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(aFailure);
+        return future;
+    }
+
+    /**
+     * Virtual threads are looked up reflectively so that the library still runs on JVMs without them.
+     */
+    static Executor newDefaultExecutor() {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(final Runnable aRunnable) {
+                    final Thread thread = new Thread(aRunnable, "AsyncCache-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    static final class DefaultExecutorHolder {
+        static final Executor EXECUTOR = newDefaultExecutor();
+    }
+}
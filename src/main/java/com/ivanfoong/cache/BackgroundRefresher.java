@@ -0,0 +1,91 @@
+package com.ivanfoong.cache;
+
+import com.ivanfoong.cache.memory.Refresher;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reloads the entries a {@link Cache} reads from its memory tier once they are due for a refresh, through
+ * {@link CacheLoader#reload(Serializable, Serializable)} on an executor, so that the read itself returns the current
+ * value right away. The reloaded value is put into every tier like any other put.
+ *
+ * Each key has at most one reload in flight. The reloaded value is only written back while the memory cache still
+ * holds the value which was reloaded, checked and written under the key's {@link Cache#keyLock(Serializable)} which
+ * every put and remove holds as well, so a slow backend cannot bring back a value older than one written in the
+ * meantime. A failed reload leaves the current value in place, to be reloaded again on its next read.
+ */
+final class BackgroundRefresher<K extends Serializable, V extends Serializable> implements Refresher<K, V> {
+
+    final Cache<K, V> mCache;
+    final Executor mExecutor;
+    final ConcurrentHashMap<K, Object> mRefreshes = new ConcurrentHashMap<K, Object>(); // key to the token of its reload
+
+    BackgroundRefresher(final Cache<K, V> aCache, final Executor aExecutor) {
+        mCache = aCache;
+        mExecutor = aExecutor;
+    }
+
+    public void refresh(final K aKey, final V aValue) {
+        final SingleFlightLoader<K, V> loader = mCache.mLoader;
+        // checked before claiming the key, as a hot key is read over and over while it reloads
+        if (loader == null || mRefreshes.containsKey(aKey)) {
+            return;
+        }
+        final Object token = new Object();
+        if (mRefreshes.putIfAbsent(aKey, token) != null) {
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    reload(loader.mCacheLoader, aKey, aValue, token);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mRefreshes.remove(aKey, token);
+            e.printStackTrace();
+        }
+    }
+
+    void reload(final CacheLoader<K, V> aCacheLoader, final K aKey, final V aOldValue, final Object aToken) {
+        final long startTime = System.nanoTime();
+        final V value;
+        try {
+            value = aCacheLoader.reload(aKey, aOldValue);
+            mCache.mStats.recordLoadSuccess(System.nanoTime() - startTime);
+        } catch (Exception e) {
+            mCache.mStats.recordLoadFailure(System.nanoTime() - startTime);
+            mRefreshes.remove(aKey, aToken);
+            e.printStackTrace();
+            return;
+        } catch (Error e) {
+            mRefreshes.remove(aKey, aToken);
+            throw e;
+        }
+
+        final ReentrantLock lock = mCache.keyLock(aKey);
+        lock.lock();
+        try {
+            // written back only if the entry has not been put, removed or evicted since it was read
+            if (mCache.mMemoryCache.peek(aKey) == aOldValue) {
+                if (value != null) {
+                    mCache.putInTiers(aKey, value, mCache.mExpireAfterWriteMillis, mCache.mExpireAfterAccessMillis);
+                }
+                else {
+                    mCache.removeFromTiers(Collections.singleton(aKey));
+                }
+            }
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        finally {
+            mRefreshes.remove(aKey, aToken); // once written back, so reads in between do not reload it again
+            lock.unlock();
+        }
+    }
+}
@@ -1,27 +1,86 @@
 package com.ivanfoong.cache;
 
-import com.ivanfoong.cache.disk.DiskCache;
+import com.ivanfoong.cache.codec.Codec;
+import com.ivanfoong.cache.disk.DiskCacheItem;
+import com.ivanfoong.cache.disk.DiskEvictionPolicy;
+import com.ivanfoong.cache.disk.ShardedDiskCache;
+import com.ivanfoong.cache.memory.EvictionPolicy;
 import com.ivanfoong.cache.memory.MemoryCache;
+import com.ivanfoong.cache.memory.Weigher;
+import com.ivanfoong.cache.offheap.OffHeapCache;
+import com.ivanfoong.cache.serializer.BinarySerializer;
+import com.ivanfoong.cache.serializer.Serializer;
+import com.ivanfoong.cache.stats.CacheStats;
 
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 /**
  * Created by ivanfoong on 8/10/15.
  */
 public class Cache<K extends Serializable, V extends Serializable> implements ICache<K, V> {
 
+    static final int KEY_LOCK_COUNT = 64; // a power of two
+
     final MemoryCache<K, V> mMemoryCache;
-    final DiskCache<K, V> mDiskCache;
-    int mLastCacheMissedCount = 0;
+    final ShardedDiskCache<K, V> mDiskCache;
+    final Serializer<V> mValueSerializer;
+    volatile OffHeapCache<K, V> mOffHeapCache;
+    volatile WriteBehindQueue<K, V> mWriteBehindQueue;
+    final CacheStats mStats = new CacheStats();
+    volatile SingleFlightLoader<K, V> mLoader;
+    volatile BackgroundRefresher<K, V> mRefresher;
+    volatile int mLastCacheMissedCount = 0;
     boolean mDebug;
+    volatile long mExpireAfterWriteMillis;
+    volatile long mExpireAfterAccessMillis;
+    volatile Ticker mTicker = Ticker.SYSTEM;
+    final ReentrantLock[] mKeyLocks = new ReentrantLock[KEY_LOCK_COUNT];
 
-    public Cache(final File aCacheDirectory, final int aMemoryCacheCapacity, final boolean aDebug) {
+    /**
+     * Creates a cache whose disk tier is split into aDiskShardCount independently locked shards, spread over
+     * aCacheDirectories, so that disk reads and writes of different keys can run concurrently. See
+     * {@link ShardedDiskCache} for the layout, the shard count cannot be changed once the cache has been created.
+     */
+    public Cache(final File[] aCacheDirectories, final int aDiskShardCount, final int aMemoryCacheCapacity, final Serializer<K> aKeySerializer, final Serializer<V> aValueSerializer) {
+        this(new ShardedDiskCache<K, V>(aCacheDirectories, aDiskShardCount, aKeySerializer, aValueSerializer), aMemoryCacheCapacity, aValueSerializer, false);
+    }
+
+    public Cache(final File aCacheDirectory, final int aMemoryCacheCapacity, final Serializer<K> aKeySerializer, final Serializer<V> aValueSerializer, final boolean aDebug) {
+        this(new ShardedDiskCache<K, V>(new File[] { aCacheDirectory }, 1, aKeySerializer, aValueSerializer), aMemoryCacheCapacity, aValueSerializer, aDebug);
+    }
+
+    Cache(final ShardedDiskCache<K, V> aDiskCache, final int aMemoryCacheCapacity, final Serializer<V> aValueSerializer, final boolean aDebug) {
         mMemoryCache = new MemoryCache<K, V>(aMemoryCacheCapacity);
-        mDiskCache = new DiskCache<K, V>(aCacheDirectory);
+        for (int i = 0; i < mKeyLocks.length; i++) {
+            mKeyLocks[i] = new ReentrantLock();
+        }
+        mDiskCache = aDiskCache;
+        mValueSerializer = aValueSerializer;
         mDebug = aDebug;
+        mMemoryCache.setStats(mStats);
+        mDiskCache.setStats(mStats);
+    }
+
+    public Cache(final File aCacheDirectory, final int aMemoryCacheCapacity, final Serializer<K> aKeySerializer, final Serializer<V> aValueSerializer) {
+        this(aCacheDirectory, aMemoryCacheCapacity, aKeySerializer, aValueSerializer, false);
+    }
+
+    public Cache(final File aCacheDirectory, final int aMemoryCacheCapacity, final boolean aDebug) {
+        this(aCacheDirectory, aMemoryCacheCapacity, new BinarySerializer<K>(), new BinarySerializer<V>(), aDebug);
     }
 
     public Cache(final File aCacheDirectory, final int aMemoryCacheCapacity) {
@@ -32,13 +91,33 @@ public class Cache<K extends Serializable, V extends Serializable> implements IC
         this(aCacheDirectory, 100); // defaults to 100 items in memory
     }
 
-    /*
-    Note: calling all() will cache miss for all items as fetching all items will not use memory cache
+    /**
+     * Note: calling all() will cache miss for all items as fetching all items will not use memory cache
+     *
+     * @deprecated only counts the last get made by any thread and only in debug mode, use {@link #getStats()}
+     * instead, e.g. getStats().snapshot().getMissCount(CacheStats.Tier.MEMORY)
      */
+    @Deprecated
     public int getLastCacheMissedCount() {
         return mLastCacheMissedCount;
     }
 
+    /**
+     * @return the hits, misses, evictions, disk traffic and lookup latencies of the cache and each of its tiers,
+     * counted since the cache was created
+     */
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Exposes {@link #getStats()} over JMX as com.ivanfoong.cache:type=CacheStats,name=aName until the cache is
+     * closed.
+     */
+    public ObjectName registerMBean(final String aName) {
+        return mStats.registerMBean(aName);
+    }
+
     public int getMemoryCacheCapacity() {
         return mMemoryCache.getCapacity();
     }
@@ -47,55 +126,599 @@ public class Cache<K extends Serializable, V extends Serializable> implements IC
         mMemoryCache.setCapacity(capacity);
     }
 
+    /**
+     * Bounds the memory cache by the total weight of its entries, e.g. their approximate size in bytes, on top of
+     * its capacity.
+     */
+    public void setMemoryCacheWeigher(final Weigher<K, V> aWeigher, final long aMaximumWeight) {
+        mMemoryCache.setWeigher(aWeigher, aMaximumWeight);
+    }
+
+    /**
+     * Replaces the policy choosing which entries the memory cache evicts, e.g. with a {@link com.ivanfoong.cache.memory.TinyLfuPolicy} to keep
+     * frequently used entries from being flushed out by scans.
+     */
+    public void setMemoryCacheEvictionPolicy(final EvictionPolicy aEvictionPolicy) {
+        mMemoryCache.setEvictionPolicy(aEvictionPolicy);
+    }
+
+    /**
+     * Bounds the disk cache by the bytes of its records and its number of entries, evicting in the background in the
+     * order of aEvictionPolicy once a put takes it over either.
+     */
+    public void setDiskCacheMaximumSize(final long aMaximumBytes, final int aMaximumEntries, final DiskEvictionPolicy aEvictionPolicy) {
+        mDiskCache.setEvictionPolicy(aEvictionPolicy);
+        mDiskCache.setMaximumSize(aMaximumBytes, aMaximumEntries);
+    }
+
+    /**
+     * Puts a bloom filter in front of the disk cache index, so that gets for keys which were never cached skip the
+     * disk cache without taking its locks. See {@link ShardedDiskCache#enableBloomFilter(int, double)}.
+     */
+    public void enableDiskCacheBloomFilter(final int aExpectedKeys, final double aFalsePositiveRate) {
+        mDiskCache.enableBloomFilter(aExpectedKeys, aFalsePositiveRate);
+    }
+
+    /**
+     * Compresses values written to the disk cache from now on with aCodec once they take at least aThresholdBytes,
+     * e.g. {@link com.ivanfoong.cache.codec.Codecs#LZF}. See {@link ShardedDiskCache#enableCompression(Codec, int)}.
+     */
+    public void enableDiskCacheCompression(final Codec aCodec, final int aThresholdBytes) {
+        mDiskCache.enableCompression(aCodec, aThresholdBytes);
+    }
+
+    public long getExpireAfterWriteMillis() {
+        return mExpireAfterWriteMillis;
+    }
+
+    /**
+     * Makes entries put from now on expire from every tier aMillis after they were put, 0 to keep them until
+     * evicted or removed.
+     */
+    public void setExpireAfterWriteMillis(final long aMillis) {
+        mExpireAfterWriteMillis = aMillis;
+        mMemoryCache.setExpireAfterWriteMillis(aMillis);
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.setExpireAfterWriteMillis(aMillis);
+        }
+        mDiskCache.setExpireAfterWriteMillis(aMillis);
+    }
+
+    public long getExpireAfterAccessMillis() {
+        return mExpireAfterAccessMillis;
+    }
+
+    /**
+     * Makes entries put from now on expire once they have not been read for aMillis, 0 to keep them until evicted
+     * or removed. Each tier tracks reads on its own, so an entry kept hot in memory may still expire from disk.
+     */
+    public void setExpireAfterAccessMillis(final long aMillis) {
+        mExpireAfterAccessMillis = aMillis;
+        mMemoryCache.setExpireAfterAccessMillis(aMillis);
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.setExpireAfterAccessMillis(aMillis);
+        }
+        mDiskCache.setExpireAfterAccessMillis(aMillis);
+    }
+
+    /**
+     * Replaces the source of time used for expiry in every tier, meant to be set before any expiring entry is put.
+     */
+    public void setTicker(final Ticker aTicker) {
+        mTicker = aTicker;
+        mMemoryCache.setTicker(aTicker);
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.setTicker(aTicker);
+        }
+        mDiskCache.setTicker(aTicker);
+    }
+
+    /**
+     * Adds a tier of up to aMaximumBytes of serialized values held outside of the Java heap, which is checked after
+     * the memory cache and before the disk cache. Entries are put into it along with the other tiers, so the memory
+     * cache can be kept small while the off heap tier still serves most reads without touching the disk.
+     */
+    public synchronized void enableOffHeapCache(final long aMaximumBytes) {
+        if (mOffHeapCache != null) {
+            throw new IllegalStateException("Off heap cache is already enabled");
+        }
+        final OffHeapCache<K, V> offHeapCache = new OffHeapCache<K, V>(aMaximumBytes, mValueSerializer);
+        offHeapCache.setTicker(mTicker);
+        offHeapCache.setExpireAfterWriteMillis(mExpireAfterWriteMillis);
+        offHeapCache.setExpireAfterAccessMillis(mExpireAfterAccessMillis);
+        offHeapCache.setStats(mStats);
+        mOffHeapCache = offHeapCache;
+    }
+
+    public boolean isOffHeapCacheEnabled() {
+        return mOffHeapCache != null;
+    }
+
+    /**
+     * Makes get read through to aCacheLoader for the keys missing from every tier, putting whatever it loads into
+     * the cache. Concurrent gets missing the same key share a single load, and the keys missed by one get are
+     * loaded with a single {@link CacheLoader#loadAll(Set)}. Pass null to stop loading.
+     */
+    public void setCacheLoader(final CacheLoader<K, V> aCacheLoader) {
+        mLoader = aCacheLoader != null ? new SingleFlightLoader<K, V>(this, aCacheLoader) : null;
+    }
+
+    public CacheLoader<K, V> getCacheLoader() {
+        final SingleFlightLoader<K, V> loader = mLoader;
+        return loader != null ? loader.mCacheLoader : null;
+    }
+
+    public long getRefreshAfterWriteMillis() {
+        return mMemoryCache.getRefreshAfterWriteMillis();
+    }
+
+    /**
+     * Same as {@link #setRefreshAfterWriteMillis(long, Executor)}, reloading on the executor {@link AsyncCache} uses
+     * by default.
+     */
+    public void setRefreshAfterWriteMillis(final long aMillis) {
+        setRefreshAfterWriteMillis(aMillis, AsyncCache.DefaultExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * Makes a read of an entry put into the memory cache aMillis or more ago return it as is and reload it on
+     * aExecutor through {@link CacheLoader#reload(Serializable, Serializable)}, putting the new value into every
+     * tier, so that hot keys never wait for the backend. Each key has at most one reload in flight, and nothing is
+     * reloaded while no cache loader is set. Pass 0 to stop refreshing.
+     *
+     * An entry's age counts from when it was put into or promoted to the memory cache, so entries read from the
+     * lower tiers start over. Keep aMillis below the expiry times for entries to be refreshed before they expire.
+     */
+    public void setRefreshAfterWriteMillis(final long aMillis, final Executor aExecutor) {
+        if (aMillis < 0) {
+            throw new IllegalArgumentException(String.format("Invalid refresh interval %d", aMillis));
+        }
+        if (aMillis == 0) {
+            mMemoryCache.setRefreshAfterWrite(0, null);
+            mRefresher = null;
+            return;
+        }
+        final BackgroundRefresher<K, V> refresher = new BackgroundRefresher<K, V>(this, aExecutor);
+        mRefresher = refresher;
+        mMemoryCache.setRefreshAfterWrite(aMillis, refresher);
+    }
+
+    /**
+     * Switches put and remove to write behind: the memory cache is still updated right away, but the disk cache is
+     * updated in coalesced batches by a background thread. Once aMaxPendingWrites keys are waiting to be written,
+     * further writes block until the background thread has caught up.
+     *
+     * Use {@link #flush()} to wait for pending writes, and {@link #close()} to flush and stop the background thread.
+     */
+    public synchronized void enableWriteBehind(final int aMaxPendingWrites, final long aFlushIntervalMillis) {
+        if (mWriteBehindQueue != null) {
+            throw new IllegalStateException("Write behind is already enabled");
+        }
+        mWriteBehindQueue = new WriteBehindQueue<K, V>(mDiskCache, aMaxPendingWrites, aFlushIntervalMillis);
+    }
+
+    public boolean isWriteBehindEnabled() {
+        return mWriteBehindQueue != null;
+    }
+
+    /**
+     * Blocks until every write made so far has reached the disk cache, a no-op unless write behind is enabled. If the
+     * disk cache fails its exception is rethrown and the writes it failed stay queued for the next flush.
+     */
+    public void flush() {
+        final WriteBehindQueue<K, V> writeBehindQueue = mWriteBehindQueue;
+        if (writeBehindQueue != null) {
+            writeBehindQueue.flush();
+        }
+    }
+
     public HashMap<K, V> all() {
+        flush();
         mLastCacheMissedCount = 0;
         return mDiskCache.all(); // memory cache will not help in this usage, so retrieving all items from disk
     }
 
+    /**
+     * Streams every entry from the disk cache, which holds them all, reading a few values at a time rather than
+     * materializing them like {@link #all()}. Pending writes are flushed first.
+     */
+    public Stream<Map.Entry<K, V>> stream() {
+        flush();
+        return mDiskCache.stream();
+    }
+
+    /**
+     * Same as {@link #stream()}, with the segments of the disk cache scanned in parallel.
+     */
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        flush();
+        return mDiskCache.parallelStream();
+    }
+
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        flush();
+        return mDiskCache.spliterator();
+    }
+
+    public void forEach(final BiConsumer<? super K, ? super V> aAction) {
+        flush();
+        mDiskCache.forEach(aAction);
+    }
+
+    /**
+     * @throws IllegalStateException if a cache loader is set and failed to load one of the missing keys
+     */
     public HashMap<K, V> get(Set<K> aKeys) {
         final HashMap<K, V> results = new HashMap<K, V>();
-        final HashMap<K, V> memoryCacheResults = mMemoryCache.get(aKeys);
+        getAll(aKeys, results);
+        return results;
+    }
+
+    /**
+     * Looks aKey up in every tier but never loads it. A memory cache hit makes no allocations.
+     */
+    public V getIfPresent(final K aKey) {
+        return get(aKey, false);
+    }
+
+    /**
+     * Same as {@link #getIfPresent(Serializable)}, but loads aKey if it is missing from every tier and a cache
+     * loader is set. A memory cache hit makes no allocations.
+     *
+     * @throws IllegalStateException if a cache loader is set and failed to load aKey
+     */
+    public V get(final K aKey) {
+        return get(aKey, true);
+    }
 
-        aKeys.removeAll(memoryCacheResults.keySet());
+    V get(final K aKey, final boolean aLoading) {
+        final V value = mMemoryCache.getIfPresent(aKey);
+        // only written in debug mode, as a shared write on every read would make concurrent reads contend
         if (mDebug) {
-            mLastCacheMissedCount = aKeys.size();
+            mLastCacheMissedCount = value != null ? 0 : 1;
         }
-        else {
-            mLastCacheMissedCount = 0;
+        if (value != null) {
+            mStats.recordHits(1);
+            return value;
         }
 
-        final HashMap<K, V> diskCacheResults = mDiskCache.get(aKeys);
+        final HashSet<K> keys = new HashSet<K>();
+        keys.add(aKey);
+        return getFromLowerTiers(keys, aLoading).get(aKey);
+    }
+
+    /**
+     * @throws IllegalStateException if a cache loader is set and failed to load one of the missing keys
+     */
+    public Map<K, V> getAll(final Collection<K> aKeys, final Map<K, V> aResults) {
+        final Set<K> missedKeys = getFromMemory(aKeys, aResults);
+        if (!missedKeys.isEmpty()) {
+            aResults.putAll(getFromLowerTiers(missedKeys, true));
+        }
+        return aResults;
+    }
+
+    /**
+     * Looks aKeys up in the memory cache only, putting the values it found into aResults.
+     *
+     * @return the keys it did not find, which are for the caller to use
+     */
+    Set<K> getFromMemory(final Collection<K> aKeys, final Map<K, V> aResults) {
+        Set<K> missedKeys = Collections.emptySet();
+        int hitCount = 0;
+        for (final K key : aKeys) {
+            final V value = mMemoryCache.getIfPresent(key);
+            if (value != null) {
+                aResults.put(key, value);
+                hitCount++;
+            }
+            else {
+                if (missedKeys.isEmpty()) {
+                    missedKeys = new HashSet<K>();
+                }
+                missedKeys.add(key);
+            }
+        }
+        if (mDebug) {
+            mLastCacheMissedCount = missedKeys.size();
+        }
+        mStats.recordHits(hitCount);
+        return missedKeys;
+    }
+
+    /**
+     * Looks up the keys missed by {@link #getFromMemory(Collection, Map)} in the tiers below it, then in the cache
+     * loader if one is set and aLoading. Blocks on disk reads and loads, unlike
+     * {@link #getFromMemory(Collection, Map)}. Consumes aKeys.
+     */
+    HashMap<K, V> getFromLowerTiers(final Set<K> aKeys, final boolean aLoading) {
+        final int requestedCount = aKeys.size();
+        final SingleFlightLoader<K, V> loader = aLoading ? mLoader : null;
+        final Set<K> requestedKeys = loader != null ? new HashSet<K>(aKeys) : null;
+        final HashMap<K, V> results = new HashMap<K, V>();
+
+        final long now = mTicker.currentTimeMillis();
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null && !aKeys.isEmpty()) {
+            for (final Map.Entry<K, DiskCacheItem<V>> entry : offHeapCache.getItems(aKeys).entrySet()) {
+                promote(entry.getKey(), entry.getValue(), now);
+                results.put(entry.getKey(), entry.getValue().getItem());
+                aKeys.remove(entry.getKey());
+            }
+        }
+
+        final HashMap<K, DiskCacheItem<V>> diskCacheResults = new HashMap<K, DiskCacheItem<V>>();
+        final WriteBehindQueue<K, V> writeBehindQueue = mWriteBehindQueue;
+        if (writeBehindQueue != null) {
+            // writes which have been evicted from memory but not flushed yet must win over the disk cache
+            final Iterator<K> iterator = aKeys.iterator();
+            while (iterator.hasNext()) {
+                final K key = iterator.next();
+                final WriteBehindQueue.Write<V> write = writeBehindQueue.get(key);
+                if (write != null) {
+                    if (!write.isRemoval() && !isExpired(write.getItem(), now)) {
+                        diskCacheResults.put(key, write.getItem());
+                    }
+                    iterator.remove();
+                }
+            }
+        }
+        diskCacheResults.putAll(mDiskCache.getItems(aKeys));
 
         // add memory cache missed items into memory cache
-        for (final K key : diskCacheResults.keySet()) {
-            mMemoryCache.put(key, diskCacheResults.get(key));
+        for (final Map.Entry<K, DiskCacheItem<V>> entry : diskCacheResults.entrySet()) {
+            promote(entry.getKey(), entry.getValue(), now);
+            if (offHeapCache != null) {
+                offHeapCache.putItem(entry.getKey(), entry.getValue());
+            }
+            results.put(entry.getKey(), entry.getValue().getItem());
         }
 
-        results.putAll(memoryCacheResults);
-        results.putAll(diskCacheResults);
+        mStats.recordHits(results.size());
+        mStats.recordMisses(requestedCount - results.size());
 
+        if (loader != null && results.size() < requestedCount) {
+            requestedKeys.removeAll(results.keySet());
+            results.putAll(loader.load(requestedKeys));
+        }
         return results;
     }
 
+    /**
+     * Puts a value read from a lower tier into the memory cache, keeping whatever is left of its time to live.
+     */
+    void promote(final K aKey, final DiskCacheItem<V> aItem, final long aNow) {
+        final long timeToLiveMillis = aItem.getExpiryTime() != 0 ? Math.max(1, aItem.getExpiryTime() - aNow) : 0;
+        mMemoryCache.put(aKey, aItem.getItem(), timeToLiveMillis, aItem.getTimeToIdle());
+    }
+
     public ICache<K, V> remove(Set<K> aKeys) {
-        mMemoryCache.remove(aKeys);
-        mDiskCache.remove(aKeys);
+        lockAllKeys();
+        try {
+            removeFromTiers(aKeys);
+        }
+        finally {
+            unlockAllKeys();
+        }
         return this;
     }
 
+    void removeFromTiers(final Set<K> aKeys) {
+        invalidateLoads(aKeys);
+        mMemoryCache.remove(aKeys);
+        removeFromLowerTiers(aKeys);
+    }
+
+    void removeFromLowerTiers(final Set<K> aKeys) {
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.remove(aKeys);
+        }
+        final WriteBehindQueue<K, V> writeBehindQueue = mWriteBehindQueue;
+        if (writeBehindQueue != null) {
+            writeBehindQueue.remove(aKeys);
+        }
+        else {
+            mDiskCache.remove(aKeys);
+        }
+    }
+
     public ICache<K, V> clear() {
+        lockAllKeys();
+        try {
+            clearTiers();
+        }
+        finally {
+            unlockAllKeys();
+        }
+        return this;
+    }
+
+    void clearTiers() {
+        final SingleFlightLoader<K, V> loader = mLoader;
+        if (loader != null) {
+            loader.invalidateAll();
+        }
         mMemoryCache.clear();
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.clear();
+        }
+        final WriteBehindQueue<K, V> writeBehindQueue = mWriteBehindQueue;
+        if (writeBehindQueue != null) {
+            writeBehindQueue.clear();
+        }
         mDiskCache.clear();
-        return this;
     }
 
     public ICache<K, V> put(K aKey, V aValue) {
-        mMemoryCache.put(aKey, aValue);
-        mDiskCache.put(aKey, aValue);
+        return put(aKey, aValue, mExpireAfterWriteMillis, mExpireAfterAccessMillis);
+    }
+
+    public ICache<K, V> put(final K aKey, final V aValue, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
+        final ReentrantLock lock = keyLock(aKey);
+        lock.lock();
+        try {
+            putInTiers(aKey, aValue, aTimeToLiveMillis, aTimeToIdleMillis);
+        }
+        finally {
+            lock.unlock();
+        }
         return this;
     }
 
+    void putInTiers(final K aKey, final V aValue, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
+        invalidateLoads(Collections.singleton(aKey));
+        mMemoryCache.put(aKey, aValue, aTimeToLiveMillis, aTimeToIdleMillis);
+        putInLowerTiers(aKey, aValue, aTimeToLiveMillis, aTimeToIdleMillis);
+    }
+
+    /**
+     * Writes every tier but the memory cache, which {@link AsyncCache} writes right away.
+     */
+    void putInLowerTiers(final K aKey, final V aValue, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.put(aKey, aValue, aTimeToLiveMillis, aTimeToIdleMillis);
+        }
+        final WriteBehindQueue<K, V> writeBehindQueue = mWriteBehindQueue;
+        if (writeBehindQueue != null) {
+            writeBehindQueue.put(aKey, DiskCacheItem.expiringAfter(aValue, mTicker.currentTimeMillis(), aTimeToLiveMillis, aTimeToIdleMillis));
+        }
+        else {
+            try {
+                mDiskCache.put(aKey, aValue, aTimeToLiveMillis, aTimeToIdleMillis);
+            } catch (IllegalStateException e) {
+                evictFromUpperTiers(Collections.singleton(aKey));
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops the loads of aKeys in flight from writing back a value older than the write being made, must be called
+     * under the keys' {@link #keyLock(Serializable)}.
+     */
+    void invalidateLoads(final Collection<K> aKeys) {
+        final SingleFlightLoader<K, V> loader = mLoader;
+        if (loader != null) {
+            loader.invalidate(aKeys);
+        }
+    }
+
+    /**
+     * Drops keys whose value could not be written to disk from the tiers above it, rather than serving a value the
+     * cache would lose once they are evicted or it is reopened.
+     */
+    void evictFromUpperTiers(final Set<K> aKeys) {
+        mMemoryCache.remove(aKeys);
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.remove(aKeys);
+        }
+    }
+
+    public ICache<K, V> putAll(final Map<K, V> aEntries) {
+        lockAllKeys();
+        try {
+            putAllInTiers(aEntries);
+        }
+        finally {
+            unlockAllKeys();
+        }
+        return this;
+    }
+
+    void putAllInTiers(final Map<K, V> aEntries) {
+        invalidateLoads(aEntries.keySet());
+        mMemoryCache.putAll(aEntries);
+        putAllInLowerTiers(aEntries);
+    }
+
+    void putAllInLowerTiers(final Map<K, V> aEntries) {
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.putAll(aEntries);
+        }
+        final WriteBehindQueue<K, V> writeBehindQueue = mWriteBehindQueue;
+        if (writeBehindQueue != null) {
+            final long now = mTicker.currentTimeMillis();
+            for (final Map.Entry<K, V> entry : aEntries.entrySet()) {
+                writeBehindQueue.put(entry.getKey(), DiskCacheItem.expiringAfter(entry.getValue(), now, mExpireAfterWriteMillis, mExpireAfterAccessMillis));
+            }
+        }
+        else {
+            try {
+                mDiskCache.putAll(aEntries);
+            } catch (IllegalStateException e) {
+                evictFromUpperTiers(aEntries.keySet());
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the lock held while aKey is written to the tiers, so that a background refresh can check that the
+     * entry it reloaded has not been replaced and write the new value back without a put slipping in between
+     */
+    ReentrantLock keyLock(final K aKey) {
+        final int hash = aKey.hashCode();
+        return mKeyLocks[(hash ^ (hash >>> 16)) & (mKeyLocks.length - 1)];
+    }
+
+    void lockAllKeys() {
+        for (final ReentrantLock lock : mKeyLocks) {
+            lock.lock();
+        }
+    }
+
+    void unlockAllKeys() {
+        for (int i = mKeyLocks.length - 1; i >= 0; i--) {
+            mKeyLocks[i].unlock();
+        }
+    }
+
     public int size() {
+        flush();
         return mDiskCache.size();
     }
+
+    /**
+     * Removes every entry which has expired by now from every tier, which otherwise happens on writes and every so
+     * often in the background.
+     */
+    public void cleanUp() {
+        mMemoryCache.cleanUp();
+        final OffHeapCache<K, V> offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.cleanUp();
+        }
+        mDiskCache.cleanUp();
+    }
+
+    static boolean isExpired(final DiskCacheItem<?> aItem, final long aNow) {
+        return aItem.getExpiryTime() != 0 && aNow >= aItem.getExpiryTime();
+    }
+
+    /**
+     * Flushes any pending writes and releases the files held open by the disk cache, the cache should not be used
+     * afterwards. If the pending writes cannot be flushed the files are still released and the failure is rethrown.
+     */
+    public synchronized void close() {
+        try {
+            if (mWriteBehindQueue != null) {
+                mWriteBehindQueue.close();
+            }
+        }
+        finally {
+            if (mOffHeapCache != null) {
+                mOffHeapCache.close();
+            }
+            mDiskCache.close();
+            mStats.unregisterMBean();
+        }
+    }
 }
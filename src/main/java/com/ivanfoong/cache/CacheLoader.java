@@ -0,0 +1,45 @@
+package com.ivanfoong.cache;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Source of the values missing from a {@link Cache}, set with {@link Cache#setCacheLoader(CacheLoader)}.
+ */
+public abstract class CacheLoader<K extends Serializable, V extends Serializable> {
+
+    /**
+     * @return the value of aKey, or null if there is none
+     */
+    public abstract V load(K aKey) throws Exception;
+
+    /**
+     * Loads a new value for aKey, which currently has aOldValue, when it is refreshed in the background after
+     * {@link Cache#setRefreshAfterWriteMillis(long)}. Loads it like a missing key by default, override it to check
+     * whether aOldValue is still current for instance.
+     *
+     * @return the new value of aKey, or null if it no longer has one
+     */
+    public V reload(final K aKey, final V aOldValue) throws Exception {
+        return load(aKey);
+    }
+
+    /**
+     * Loads every key missed by one get. Loads the keys one at a time by default, override it to fetch them in a
+     * single request to the backend instead.
+     *
+     * @return the values found, keys without a value may be left out
+     */
+    public Map<K, V> loadAll(final Set<K> aKeys) throws Exception {
+        final HashMap<K, V> results = new HashMap<K, V>();
+        for (final K key : aKeys) {
+            final V value = load(key);
+            if (value != null) {
+                results.put(key, value);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,77 @@
+package com.ivanfoong.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shared daemon thread which periodically asks caches holding expiring entries to advance their {@link TimerWheel}
+ * and drop what has expired, and to which caches hand off other background clean up. Caches are only weakly
+ * referenced, so an abandoned cache is not kept alive by its sweep task, which cancels itself once the cache has
+ * been collected.
+ */
+public final class ExpirySweeper {
+
+    public interface Sweepable {
+        void cleanUp();
+    }
+
+    static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    static final class ExecutorHolder {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable aRunnable) {
+                final Thread thread = new Thread(aRunnable, "IFCacheKit-expiry-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private ExpirySweeper() {
+    }
+
+    /**
+     * Runs the clean up of aSweepable once, as soon as the sweeper thread is free, for work which should not hold up
+     * the caller such as evicting from a cache which has grown too big.
+     */
+    public static void sweepSoon(final Sweepable aSweepable) {
+        ExecutorHolder.EXECUTOR.execute(new Runnable() {
+            public void run() {
+                try {
+                    aSweepable.cleanUp();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    public static ScheduledFuture<?> schedule(final Sweepable aSweepable) {
+        final WeakReference<Sweepable> reference = new WeakReference<Sweepable>(aSweepable);
+        final AtomicReference<ScheduledFuture<?>> futureReference = new AtomicReference<ScheduledFuture<?>>();
+        final ScheduledFuture<?> future = ExecutorHolder.EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                final Sweepable sweepable = reference.get();
+                if (sweepable == null) {
+                    final ScheduledFuture<?> future = futureReference.get();
+                    if (future != null) {
+                        future.cancel(false);
+                    }
+                    return;
+                }
+                try {
+                    sweepable.cleanUp();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        futureReference.set(future);
+        return future;
+    }
+}
@@ -1,7 +1,9 @@
 package com.ivanfoong.cache;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -10,8 +12,35 @@ import java.util.Set;
 public interface ICache<K extends Serializable, V extends Serializable> {
     HashMap<K, V> all();
     HashMap<K, V> get(final Set<K> aKeys);
+
+    /**
+     * @return the value of aKey, or null if it is not cached. Unlike {@link #get(Serializable)}, never loads it.
+     */
+    V getIfPresent(final K aKey);
+
+    /**
+     * @return the value of aKey, or null if it is not cached and the cache has no loader which could load it
+     */
+    V get(final K aKey);
+
+    /**
+     * Puts the values found for aKeys into aResults, leaving aKeys untouched, so that lookups can reuse their
+     * collections rather than allocate new ones.
+     *
+     * @return aResults
+     */
+    Map<K, V> getAll(final Collection<K> aKeys, final Map<K, V> aResults);
     ICache<K, V> remove(final Set<K> aKeys);
     ICache<K, V> clear();
     ICache<K, V> put(final K aKey, V aValue);
+
+    /**
+     * Puts aValue with its own expiry instead of the cache's defaults, where a time of 0 means no limit.
+     *
+     * @param aTimeToLiveMillis time after the put at which the entry expires
+     * @param aTimeToIdleMillis time without a read after which the entry expires
+     */
+    ICache<K, V> put(final K aKey, V aValue, long aTimeToLiveMillis, long aTimeToIdleMillis);
+    ICache<K, V> putAll(final Map<K, V> aEntries);
     int size();
 }
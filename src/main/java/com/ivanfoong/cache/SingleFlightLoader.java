@@ -0,0 +1,178 @@
+package com.ivanfoong.cache;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Loads the keys a {@link Cache} missed through its {@link CacheLoader}, such that concurrent misses of the same key
+ * share one load instead of each going to the backend.
+ *
+ * A get claims every missed key nobody is loading yet and loads all of them with a single
+ * {@link CacheLoader#loadAll(Set)}, then waits for the keys other gets had already claimed. Loaded values are put into
+ * the cache before the keys are released, so gets arriving afterwards find them there.
+ *
+ * Each loaded value is written back under its key's {@link Cache#keyLock(Serializable)}, and only if no put or remove
+ * of the key happened while it was loading: every write to the cache invalidates the load of its keys under the same
+ * lock, so a slow backend can neither overwrite a newer value nor bring back a removed one.
+ */
+final class SingleFlightLoader<K extends Serializable, V extends Serializable> {
+
+    final Cache<K, V> mCache;
+    final CacheLoader<K, V> mCacheLoader;
+    final ConcurrentHashMap<K, Load<V>> mLoads = new ConcurrentHashMap<K, Load<V>>();
+
+    SingleFlightLoader(final Cache<K, V> aCache, final CacheLoader<K, V> aCacheLoader) {
+        mCache = aCache;
+        mCacheLoader = aCacheLoader;
+    }
+
+    /**
+     * @return the values of aKeys which the loader found
+     * @throws IllegalStateException if a load needed for aKeys failed, with the loader's exception as its cause
+     */
+    HashMap<K, V> load(final Set<K> aKeys) {
+        final HashMap<K, V> results = new HashMap<K, V>();
+        final HashMap<K, Load<V>> ownLoads = new HashMap<K, Load<V>>();
+        final HashMap<K, Load<V>> otherLoads = new HashMap<K, Load<V>>();
+        for (final K key : aKeys) {
+            final Load<V> load = new Load<V>();
+            final Load<V> existingLoad = mLoads.putIfAbsent(key, load);
+            if (existingLoad == null) {
+                ownLoads.put(key, load);
+            }
+            else {
+                otherLoads.put(key, existingLoad);
+            }
+        }
+
+        if (!ownLoads.isEmpty()) {
+            Throwable failure = null;
+            try {
+                // a load which finished after our lookup has already put its value into the cache
+                final HashMap<K, V> cachedValues = mCache.mMemoryCache.get(ownLoads.keySet());
+                results.putAll(cachedValues);
+
+                final HashSet<K> missingKeys = new HashSet<K>(ownLoads.keySet());
+                missingKeys.removeAll(cachedValues.keySet());
+                if (!missingKeys.isEmpty()) {
+                    final HashMap<K, V> loadedValues = loadAll(missingKeys);
+                    results.putAll(loadedValues);
+                    for (final Map.Entry<K, V> entry : loadedValues.entrySet()) {
+                        writeBack(entry.getKey(), entry.getValue(), ownLoads.get(entry.getKey()));
+                    }
+                }
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                for (final Map.Entry<K, Load<V>> entry : ownLoads.entrySet()) {
+                    entry.getValue().complete(results.get(entry.getKey()), failure);
+                    mLoads.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                throw new IllegalStateException(String.format("Unable to load %s", ownLoads.keySet()), failure);
+            }
+        }
+
+        for (final Map.Entry<K, Load<V>> entry : otherLoads.entrySet()) {
+            final V value = entry.getValue().await(entry.getKey());
+            if (value != null) {
+                results.put(entry.getKey(), value);
+            }
+        }
+        return results;
+    }
+
+    void writeBack(final K aKey, final V aValue, final Load<V> aLoad) {
+        final ReentrantLock lock = mCache.keyLock(aKey);
+        lock.lock();
+        try {
+            if (!aLoad.mInvalidated && mCache.mMemoryCache.peek(aKey) == null) {
+                mCache.putInTiers(aKey, aValue, mCache.mExpireAfterWriteMillis, mCache.mExpireAfterAccessMillis);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the loads of aKeys which are in flight from writing their values back, must hold the keys' locks.
+     */
+    void invalidate(final Collection<K> aKeys) {
+        if (mLoads.isEmpty()) {
+            return;
+        }
+        for (final K key : aKeys) {
+            final Load<V> load = mLoads.get(key);
+            if (load != null) {
+                load.mInvalidated = true;
+            }
+        }
+    }
+
+    /**
+     * Keeps every load in flight from writing its values back, must hold all the key locks.
+     */
+    void invalidateAll() {
+        for (final Load<V> load : mLoads.values()) {
+            load.mInvalidated = true;
+        }
+    }
+
+    HashMap<K, V> loadAll(final Set<K> aKeys) throws Exception {
+        final long startTime = System.nanoTime();
+        final Map<K, V> loadedValues;
+        try {
+            loadedValues = mCacheLoader.loadAll(Collections.unmodifiableSet(aKeys));
+        } catch (Exception e) {
+            mCache.mStats.recordLoadFailure(System.nanoTime() - startTime);
+            throw e;
+        }
+        mCache.mStats.recordLoadSuccess(System.nanoTime() - startTime);
+
+        // values the loader returned for keys nobody asked for are left out, as they were never claimed
+        final HashMap<K, V> results = new HashMap<K, V>();
+        if (loadedValues != null) {
+            for (final K key : aKeys) {
+                final V value = loadedValues.get(key);
+                if (value != null) {
+                    results.put(key, value);
+                }
+            }
+        }
+        return results;
+    }
+
+    static final class Load<V> {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        boolean mInvalidated; // guarded by the key lock
+        V mValue;
+        Throwable mFailure;
+
+        void complete(final V aValue, final Throwable aFailure) {
+            mValue = aValue;
+            mFailure = aFailure;
+            mDone.countDown();
+        }
+
+        V await(final Object aKey) {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("Interrupted while waiting for %s to load", aKey), e);
+            }
+            if (mFailure != null) {
+                throw new IllegalStateException(String.format("Unable to load %s", aKey), mFailure);
+            }
+            return mValue;
+        }
+    }
+}
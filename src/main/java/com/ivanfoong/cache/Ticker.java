@@ -0,0 +1,14 @@
+package com.ivanfoong.cache;
+
+/**
+ * Source of the current time used for expiry, replaceable so that expiry can be tested without sleeping.
+ */
+public interface Ticker {
+    Ticker SYSTEM = new Ticker() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+}
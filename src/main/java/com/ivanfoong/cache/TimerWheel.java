@@ -0,0 +1,163 @@
+package com.ivanfoong.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding the expiry times of cache entries, so that expired entries can be found in time
+ * proportional to their number rather than by scanning the whole cache.
+ *
+ * Each level is a ring of buckets covering a coarser span of time than the one below it; a timer is placed in the
+ * finest level whose range covers its expiry, and is cascaded down a level whenever the bucket it is in comes due
+ * before the timer itself has.
+ *
+ * Not thread safe, callers are expected to synchronize.
+ */
+public final class TimerWheel<T> {
+
+    static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+    static final int[] SHIFTS = { 10, 16, 22, 27, 29 }; // bucket spans of ~1s, ~1m, ~1h, ~1.5d and ~6d in millis
+
+    public static final class Timer<T> {
+        final T mItem;
+        long mTime;
+        Timer<T> mPrevious;
+        Timer<T> mNext;
+
+        Timer(final T aItem) {
+            mItem = aItem;
+        }
+
+        public T getItem() {
+            return mItem;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public boolean isScheduled() {
+            return mNext != null;
+        }
+    }
+
+    final Timer<T>[][] mWheel;
+    long mTime;
+
+    @SuppressWarnings("unchecked") // the array is empty, so it holds nothing but the Timer<T> put in it later
+    static <T> Timer<T>[] newTimerArray(final int aLength) {
+        return (Timer<T>[]) new Timer<?>[aLength];
+    }
+
+    @SuppressWarnings("unchecked") // as newTimerArray, one level up
+    public TimerWheel(final long aTime) {
+        mTime = aTime;
+        mWheel = (Timer<T>[][]) new Timer<?>[BUCKETS.length][];
+        for (int i = 0; i < BUCKETS.length; i++) {
+            mWheel[i] = TimerWheel.<T>newTimerArray(BUCKETS[i]);
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                final Timer<T> sentinel = new Timer<T>(null);
+                sentinel.mPrevious = sentinel;
+                sentinel.mNext = sentinel;
+                mWheel[i][j] = sentinel;
+            }
+        }
+    }
+
+    public Timer<T> schedule(final T aItem, final long aTime) {
+        final Timer<T> timer = new Timer<T>(aItem);
+        reschedule(timer, aTime);
+        return timer;
+    }
+
+    public void reschedule(final Timer<T> aTimer, final long aTime) {
+        deschedule(aTimer);
+        aTimer.mTime = aTime;
+        link(aTimer);
+    }
+
+    public void deschedule(final Timer<?> aTimer) {
+        if (aTimer.isScheduled()) {
+            unlink(aTimer);
+        }
+    }
+
+    /**
+     * Moves the wheel forward to aTime.
+     *
+     * @return the items whose timers have expired by aTime, which are no longer scheduled
+     */
+    public List<T> advance(final long aTime) {
+        final List<T> expired = new ArrayList<T>();
+        final long previousTime = mTime;
+        if (aTime <= previousTime) {
+            return expired;
+        }
+        mTime = aTime;
+
+        for (int i = 0; i < SHIFTS.length; i++) {
+            final long previousTicks = previousTime >>> SHIFTS[i];
+            final long currentTicks = aTime >>> SHIFTS[i];
+            if (currentTicks == previousTicks) {
+                break; // coarser levels cannot have moved either
+            }
+            expire(i, previousTicks, currentTicks, expired);
+        }
+        return expired;
+    }
+
+    void expire(final int aLevel, final long aPreviousTicks, final long aCurrentTicks, final List<T> aExpired) {
+        final Timer<T>[] buckets = mWheel[aLevel];
+        final int mask = buckets.length - 1;
+        final int steps = (int) Math.min(aCurrentTicks - aPreviousTicks + 1, buckets.length);
+        final int start = (int) (aPreviousTicks & mask);
+
+        for (int i = start; i < start + steps; i++) {
+            final Timer<T> sentinel = buckets[i & mask];
+            Timer<T> timer = sentinel.mNext;
+            sentinel.mPrevious = sentinel;
+            sentinel.mNext = sentinel;
+
+            while (timer != sentinel) {
+                final Timer<T> next = timer.mNext;
+                timer.mPrevious = null;
+                timer.mNext = null;
+                if (timer.mTime <= mTime) {
+                    aExpired.add(timer.mItem);
+                }
+                else {
+                    link(timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    void link(final Timer<T> aTimer) {
+        // a timer which is already due goes into the current bucket, which is visited as soon as the wheel ticks
+        final Timer<T> sentinel = findBucket(Math.max(aTimer.mTime, mTime));
+        aTimer.mNext = sentinel;
+        aTimer.mPrevious = sentinel.mPrevious;
+        sentinel.mPrevious.mNext = aTimer;
+        sentinel.mPrevious = aTimer;
+    }
+
+    static <T> void unlink(final Timer<T> aTimer) {
+        aTimer.mPrevious.mNext = aTimer.mNext;
+        aTimer.mNext.mPrevious = aTimer.mPrevious;
+        aTimer.mPrevious = null;
+        aTimer.mNext = null;
+    }
+
+    Timer<T> findBucket(final long aTime) {
+        final long duration = aTime - mTime;
+        final int last = BUCKETS.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (duration < (1L << SHIFTS[i + 1])) {
+                final long ticks = aTime >>> SHIFTS[i];
+                return mWheel[i][(int) (ticks & (BUCKETS[i] - 1))];
+            }
+        }
+        return mWheel[last][0];
+    }
+}
@@ -0,0 +1,321 @@
+package com.ivanfoong.cache;
+
+import com.ivanfoong.cache.disk.ShardedDiskCache;
+import com.ivanfoong.cache.disk.DiskCacheItem;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded buffer of writes which {@link Cache} has applied to its memory tier but not yet to its {@link ShardedDiskCache}.
+ *
+ * Writes to the same key are coalesced, so only the latest value or removal of a key is ever flushed. A background
+ * thread flushes the buffer in batches once it is half full or the flush interval has passed, and callers block
+ * once it is completely full until the flusher has caught up.
+ *
+ * A batch the disk cache fails to write is put back in the buffer, except for keys written again since, so the next
+ * flush retries it instead of losing it.
+ */
+final class WriteBehindQueue<K extends Serializable, V extends Serializable> {
+
+    static final long MIN_RETRY_DELAY_MILLIS = 1000;
+
+    static final class Write<V> {
+        final DiskCacheItem<V> mItem;
+        final boolean mRemoval;
+
+        Write(final DiskCacheItem<V> aItem, final boolean aRemoval) {
+            mItem = aItem;
+            mRemoval = aRemoval;
+        }
+
+        DiskCacheItem<V> getItem() {
+            return mItem;
+        }
+
+        V getValue() {
+            return mItem != null ? mItem.getItem() : null;
+        }
+
+        boolean isRemoval() {
+            return mRemoval;
+        }
+    }
+
+    final ShardedDiskCache<K, V> mDiskCache;
+    final int mMaxPendingWrites;
+    final int mBatchSize;
+    final long mFlushIntervalMillis;
+
+    final ReentrantLock mLock = new ReentrantLock();
+    final Condition mNotEmpty = mLock.newCondition();
+    final Condition mNotFull = mLock.newCondition();
+    final ReentrantLock mFlushLock = new ReentrantLock(); // keeps batches reaching the disk in the order they were taken
+
+    LinkedHashMap<K, Write<V>> mPendingWrites = new LinkedHashMap<K, Write<V>>(); // guarded by mLock
+    Map<K, Write<V>> mFlushingWrites = new HashMap<K, Write<V>>(); // guarded by mLock
+    boolean mClosed; // guarded by mLock
+    final Thread mFlushThread;
+
+    WriteBehindQueue(final ShardedDiskCache<K, V> aDiskCache, final int aMaxPendingWrites, final long aFlushIntervalMillis) {
+        if (aMaxPendingWrites < 1) {
+            throw new IllegalArgumentException("aMaxPendingWrites must be at least 1");
+        }
+        mDiskCache = aDiskCache;
+        mMaxPendingWrites = aMaxPendingWrites;
+        mBatchSize = Math.max(1, aMaxPendingWrites / 2);
+        mFlushIntervalMillis = aFlushIntervalMillis;
+
+        mFlushThread = new Thread(new Runnable() {
+            public void run() {
+                runFlushLoop();
+            }
+        }, String.format("IFCacheKit-write-behind-%s", aDiskCache.getCacheDirectory().getName()));
+        mFlushThread.setDaemon(true);
+        mFlushThread.start();
+    }
+
+    /**
+     * @param aItem the value along with the time at which it expires, which is fixed when it is enqueued
+     */
+    void put(final K aKey, final DiskCacheItem<V> aItem) {
+        enqueue(aKey, new Write<V>(aItem, false));
+    }
+
+    void remove(final Set<K> aKeys) {
+        for (final K key : aKeys) {
+            enqueue(key, new Write<V>(null, true));
+        }
+    }
+
+    void enqueue(final K aKey, final Write<V> aWrite) {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                throw new IllegalStateException("Write behind queue is closed");
+            }
+            while (mPendingWrites.size() >= mMaxPendingWrites && !mPendingWrites.containsKey(aKey)) {
+                mNotEmpty.signal();
+                mNotFull.awaitUninterruptibly();
+            }
+            mPendingWrites.remove(aKey); // re-insert so batch order follows the latest write
+            mPendingWrites.put(aKey, aWrite);
+            if (mPendingWrites.size() == 1 || mPendingWrites.size() >= mBatchSize) {
+                mNotEmpty.signal();
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the write still waiting to reach the disk cache for aKey, or null if there is none
+     */
+    Write<V> get(final K aKey) {
+        mLock.lock();
+        try {
+            final Write<V> write = mPendingWrites.get(aKey);
+            return write != null ? write : mFlushingWrites.get(aKey);
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    int getPendingCount() {
+        mLock.lock();
+        try {
+            return mPendingWrites.size() + mFlushingWrites.size();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Writes everything enqueued so far to the disk cache before returning.
+     *
+     * @throws RuntimeException the failure of the disk cache, the writes it failed stay queued for the next flush
+     */
+    void flush() {
+        mFlushLock.lock();
+        try {
+            flushBatch();
+        }
+        finally {
+            mFlushLock.unlock();
+        }
+    }
+
+    /**
+     * Drops every pending write, e.g. because the disk cache is about to be cleared anyway.
+     */
+    void clear() {
+        mFlushLock.lock();
+        try {
+            mLock.lock();
+            try {
+                mPendingWrites.clear();
+                mNotFull.signalAll();
+            }
+            finally {
+                mLock.unlock();
+            }
+        }
+        finally {
+            mFlushLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the flush thread after writing everything still pending.
+     *
+     * @throws RuntimeException the failure of the disk cache if the pending writes could not be written
+     */
+    void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mNotEmpty.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+
+        boolean interrupted = false;
+        while (mFlushThread.isAlive()) {
+            try {
+                mFlushThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        flush();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void runFlushLoop() {
+        while (true) {
+            mLock.lock();
+            try {
+                while (mPendingWrites.isEmpty() && !mClosed) {
+                    mNotEmpty.awaitUninterruptibly();
+                }
+                if (mClosed) {
+                    return;
+                }
+                if (mPendingWrites.size() < mBatchSize) {
+                    // give further writes a chance to coalesce into this batch
+                    mNotEmpty.await(mFlushIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            finally {
+                mLock.unlock();
+            }
+
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                awaitRetry();
+            }
+        }
+    }
+
+    // backs off after a failed flush so a failing disk cache is not retried in a tight loop, close() cuts it short
+    void awaitRetry() {
+        mLock.lock();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(mFlushIntervalMillis, MIN_RETRY_DELAY_MILLIS));
+            while (remainingNanos > 0 && !mClosed) {
+                remainingNanos = mNotEmpty.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    // must hold mFlushLock
+    void flushBatch() {
+        final Map<K, Write<V>> batch;
+        mLock.lock();
+        try {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            batch = mPendingWrites;
+            mFlushingWrites = batch;
+            mPendingWrites = new LinkedHashMap<K, Write<V>>();
+            mNotFull.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+
+        final Set<K> removals = new HashSet<K>();
+        final Map<K, DiskCacheItem<V>> puts = new LinkedHashMap<K, DiskCacheItem<V>>();
+        for (final Map.Entry<K, Write<V>> entry : batch.entrySet()) {
+            if (entry.getValue().isRemoval()) {
+                removals.add(entry.getKey());
+            }
+            else {
+                puts.put(entry.getKey(), entry.getValue().getItem());
+            }
+        }
+        boolean putsWritten = puts.isEmpty();
+        boolean removalsWritten = removals.isEmpty();
+        try {
+            if (!putsWritten) {
+                mDiskCache.putItems(puts);
+                putsWritten = true;
+            }
+            if (!removalsWritten) {
+                mDiskCache.remove(removals);
+                removalsWritten = true;
+            }
+        }
+        finally {
+            mLock.lock();
+            try {
+                if (!putsWritten || !removalsWritten) {
+                    // requeue in the same critical section that empties mFlushingWrites, so get() never misses a key
+                    requeue(batch, putsWritten);
+                }
+                mFlushingWrites = new HashMap<K, Write<V>>();
+            }
+            finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    // must hold mLock, puts the writes of a failed batch back ahead of the pending ones unless a key has been written since
+    void requeue(final Map<K, Write<V>> aBatch, final boolean aPutsWritten) {
+        final LinkedHashMap<K, Write<V>> pendingWrites = new LinkedHashMap<K, Write<V>>();
+        for (final Map.Entry<K, Write<V>> entry : aBatch.entrySet()) {
+            if (aPutsWritten && !entry.getValue().isRemoval()) {
+                continue;
+            }
+            if (!mPendingWrites.containsKey(entry.getKey())) {
+                pendingWrites.put(entry.getKey(), entry.getValue());
+            }
+        }
+        pendingWrites.putAll(mPendingWrites);
+        mPendingWrites = pendingWrites;
+    }
+}
@@ -0,0 +1,18 @@
+package com.ivanfoong.cache.codec;
+
+import java.io.IOException;
+
+/**
+ * Compresses the values stored by the disk tier.
+ *
+ * The id of the codec is recorded with every value it compressed, so it must never change once values have been
+ * written with it. Ids 1 to 15 are reserved for the codecs in {@link Codecs}. Implementations must be thread safe.
+ */
+public interface Codec {
+    /**
+     * @return the id recorded with every value compressed by this codec, from 1 to 255
+     */
+    int getId();
+    byte[] compress(final byte[] aBytes) throws IOException;
+    byte[] decompress(final byte[] aBytes) throws IOException;
+}
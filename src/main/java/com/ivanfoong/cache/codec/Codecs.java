@@ -0,0 +1,27 @@
+package com.ivanfoong.cache.codec;
+
+/**
+ * The built in codecs, which values compressed with can always be read back.
+ */
+public final class Codecs {
+
+    public static final Codec DEFLATE = new DeflateCodec();
+    public static final Codec LZF = new LzfCodec();
+
+    private Codecs() {
+    }
+
+    /**
+     * @return the built in codec with id aId, or null if there is none
+     */
+    public static Codec forId(final int aId) {
+        switch (aId) {
+            case DeflateCodec.ID:
+                return DEFLATE;
+            case LzfCodec.ID:
+                return LZF;
+            default:
+                return null;
+        }
+    }
+}
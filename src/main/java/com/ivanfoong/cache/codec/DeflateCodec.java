@@ -0,0 +1,90 @@
+package com.ivanfoong.cache.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Codec} backed by {@link Deflater}, which compresses text best but is several times slower than
+ * {@link LzfCodec}. Compressed values are the uncompressed length as an int followed by the zlib stream.
+ */
+public class DeflateCodec implements Codec {
+
+    static final int ID = 1;
+
+    final int mLevel;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param aLevel from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public DeflateCodec(final int aLevel) {
+        if (aLevel != Deflater.DEFAULT_COMPRESSION && (aLevel < Deflater.NO_COMPRESSION || aLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException(String.format("Invalid compression level %d", aLevel));
+        }
+        mLevel = aLevel;
+    }
+
+    public int getId() {
+        return ID;
+    }
+
+    public byte[] compress(final byte[] aBytes) throws IOException {
+        final Deflater deflater = new Deflater(mLevel);
+        try {
+            deflater.setInput(aBytes);
+            deflater.finish();
+            byte[] compressed = new byte[4 + aBytes.length / 2 + 64];
+            ByteBuffer.wrap(compressed).putInt(aBytes.length);
+            int length = 4;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            return Arrays.copyOf(compressed, length);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] decompress(final byte[] aBytes) throws IOException {
+        if (aBytes.length < 4) {
+            throw new IOException("Truncated deflate value");
+        }
+        final int length = ByteBuffer.wrap(aBytes).getInt();
+        if (length < 0) {
+            throw new IOException(String.format("Invalid deflate value length %d", length));
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(aBytes, 4, aBytes.length - 4);
+            final byte[] bytes = new byte[length];
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                final int read = inflater.inflate(bytes, inflated, length - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += read;
+            }
+            if (inflated != length) {
+                throw new IOException("Deflate value does not match its length");
+            }
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged deflate value", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
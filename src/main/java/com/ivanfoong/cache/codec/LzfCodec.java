@@ -0,0 +1,156 @@
+package com.ivanfoong.cache.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * {@link Codec} using the LZF format, an LZ77 variant which compresses less than {@link DeflateCodec} but is fast
+ * enough to be cheaper than the disk bandwidth it saves.
+ *
+ * Compressed values are the uncompressed length as an int followed by runs, each starting with a control byte:
+ * below 32 it is followed by that many plus one literal bytes, otherwise its top 3 bits are the length of a back
+ * reference minus 2 (7 meaning a further length byte follows) and its low 5 bits and the next byte are the distance
+ * of the reference minus 1.
+ */
+public class LzfCodec implements Codec {
+
+    static final int ID = 2;
+    static final int HASH_BITS = 14;
+    static final int MAX_LITERAL = 32;
+    static final int MAX_DISTANCE = 1 << 13;
+    static final int MAX_REFERENCE = (1 << 8) + (1 << 3); // 7 + 255 + 2
+
+    public int getId() {
+        return ID;
+    }
+
+    public byte[] compress(final byte[] aBytes) throws IOException {
+        final int length = aBytes.length;
+        // at worst every 32 literals take one more control byte, and one is reserved ahead of the next run
+        final byte[] compressed = new byte[4 + length + length / MAX_LITERAL + 1];
+        putInt(compressed, length);
+        final int[] table = new int[1 << HASH_BITS]; // last position + 1 of every hashed 3 bytes, 0 when none
+        int output = 4;
+        int control = output++;
+        int literals = 0;
+        int input = 0;
+
+        while (input + 2 < length) {
+            final int hash = (((aBytes[input] & 0xff) << 16 | (aBytes[input + 1] & 0xff) << 8 | (aBytes[input + 2] & 0xff)) * 0x9e3779b1) >>> (32 - HASH_BITS);
+            final int reference = table[hash] - 1;
+            table[hash] = input + 1;
+            final int distance = input - reference - 1;
+
+            if (reference >= 0 && distance < MAX_DISTANCE && aBytes[reference] == aBytes[input]
+                    && aBytes[reference + 1] == aBytes[input + 1] && aBytes[reference + 2] == aBytes[input + 2]) {
+                final int maxMatch = Math.min(MAX_REFERENCE, length - input);
+                int match = 3;
+                while (match < maxMatch && aBytes[reference + match] == aBytes[input + match]) {
+                    match++;
+                }
+
+                if (literals == 0) {
+                    output--; // drop the control byte reserved for literals
+                }
+                else {
+                    compressed[control] = (byte) (literals - 1);
+                    literals = 0;
+                }
+                final int encodedLength = match - 2;
+                if (encodedLength < 7) {
+                    compressed[output++] = (byte) ((encodedLength << 5) | (distance >>> 8));
+                }
+                else {
+                    compressed[output++] = (byte) ((7 << 5) | (distance >>> 8));
+                    compressed[output++] = (byte) (encodedLength - 7);
+                }
+                compressed[output++] = (byte) distance;
+                input += match;
+                control = output++;
+            }
+            else {
+                compressed[output++] = aBytes[input++];
+                if (++literals == MAX_LITERAL) {
+                    compressed[control] = (byte) (MAX_LITERAL - 1);
+                    literals = 0;
+                    control = output++;
+                }
+            }
+        }
+
+        while (input < length) {
+            compressed[output++] = aBytes[input++];
+            if (++literals == MAX_LITERAL) {
+                compressed[control] = (byte) (MAX_LITERAL - 1);
+                literals = 0;
+                control = output++;
+            }
+        }
+        if (literals == 0) {
+            output--;
+        }
+        else {
+            compressed[control] = (byte) (literals - 1);
+        }
+        return Arrays.copyOf(compressed, output);
+    }
+
+    public byte[] decompress(final byte[] aBytes) throws IOException {
+        if (aBytes.length < 4) {
+            throw new IOException("Truncated LZF value");
+        }
+        final int length = (aBytes[0] & 0xff) << 24 | (aBytes[1] & 0xff) << 16 | (aBytes[2] & 0xff) << 8 | (aBytes[3] & 0xff);
+        if (length < 0) {
+            throw new IOException(String.format("Invalid LZF value length %d", length));
+        }
+        final byte[] bytes = new byte[length];
+        int input = 4;
+        int output = 0;
+
+        while (input < aBytes.length) {
+            final int control = aBytes[input++] & 0xff;
+            if (control < MAX_LITERAL) {
+                final int literals = control + 1;
+                if (input + literals > aBytes.length || output + literals > length) {
+                    throw new IOException("Damaged LZF value");
+                }
+                System.arraycopy(aBytes, input, bytes, output, literals);
+                input += literals;
+                output += literals;
+            }
+            else {
+                int match = control >>> 5;
+                if (match == 7) {
+                    if (input >= aBytes.length) {
+                        throw new IOException("Damaged LZF value");
+                    }
+                    match += aBytes[input++] & 0xff;
+                }
+                if (input >= aBytes.length) {
+                    throw new IOException("Damaged LZF value");
+                }
+                int reference = output - ((control & 0x1f) << 8) - (aBytes[input++] & 0xff) - 1;
+                match += 2;
+                if (reference < 0 || output + match > length) {
+                    throw new IOException("Damaged LZF value");
+                }
+                // byte by byte, as the reference may overlap the bytes it produces
+                for (int i = 0; i < match; i++) {
+                    bytes[output++] = bytes[reference++];
+                }
+            }
+        }
+
+        if (output != length) {
+            throw new IOException("LZF value does not match its length");
+        }
+        return bytes;
+    }
+
+    static void putInt(final byte[] aBytes, final int aValue) {
+        aBytes[0] = (byte) (aValue >>> 24);
+        aBytes[1] = (byte) (aValue >>> 16);
+        aBytes[2] = (byte) (aValue >>> 8);
+        aBytes[3] = (byte) aValue;
+    }
+}
@@ -1,117 +1,1333 @@
 package com.ivanfoong.cache.disk;
 
+import com.ivanfoong.cache.ExpirySweeper;
 import com.ivanfoong.cache.ICache;
+import com.ivanfoong.cache.Ticker;
+import com.ivanfoong.cache.TimerWheel;
+import com.ivanfoong.cache.codec.Codec;
+import com.ivanfoong.cache.serializer.BinarySerializer;
+import com.ivanfoong.cache.serializer.ByteBufferInput;
+import com.ivanfoong.cache.serializer.Serializer;
+import com.ivanfoong.cache.serializer.Serializers;
+import com.ivanfoong.cache.stats.CacheStats;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by ivanfoong on 8/10/15.
+ *
+ * Values are appended to segment files through {@link DiskCacheLog}, and {@link #mFileIndexes} maps each key to
+ * the segment, offset and length of its latest value, so a put is a single sequential append and a get a single
+ * positioned read.
+ *
+ * The index itself is checkpointed to {@link #CHECKPOINT_FILENAME} only once every so often, with the mutations in
+ * between appended to a {@link DiskCacheJournal}. On opening, only the journal is replayed before the cache can be
+ * used: the checkpoint is memory mapped as a {@link DiskCacheCheckpoint}, answering lookups for keys not loaded yet,
+ * while it is loaded into the index by several threads in the background.
+ *
+ * Keys and values are converted to bytes by the given {@link Serializer}s, {@link BinarySerializer} by default.
+ *
+ * Values may expire a fixed time after they were put or last read. Their expiry is kept in the index as well as in
+ * the record, so expired values are found through a {@link TimerWheel} without reading them back.
+ *
+ * Puts, removes and clears which cannot be written to disk throw an IllegalStateException and leave the key as it
+ * was, and the journal is only truncated once a checkpoint has been written, so nothing is reported as stored
+ * which would not be found again after reopening the cache.
+ *
+ * A key which is not in the index is a miss, never an error. With {@link #enableBloomFilter(int, double)}, most
+ * misses are answered by a {@link DiskCacheBloomFilter} before the cache's lock is taken.
  */
-public class DiskCache<K extends Serializable, V extends Serializable> implements ICache<K, V> {
+public class DiskCache<K extends Serializable, V extends Serializable> implements ICache<K, V>, ExpirySweeper.Sweepable {
+
+    static final String CHECKPOINT_FILENAME = "index.checkpoint";
+    static final String LEGACY_INDEX_FILENAME = "index.ser";
+    static final String BLOOM_FILTER_FILENAME = "index.bloom";
+    static final double COMPACTION_LIVE_RATIO = 0.5;
+    static final int MIN_CHECKPOINT_RECORDS = 1024;
+    static final double EVICTION_HEADROOM = 0.05; // evict down to 95% of the maximum size
 
     File mCacheDirectory;
     HashMap<K, DiskCacheIndex> mFileIndexes;
+    DiskCacheLog mLog;
+    DiskCacheJournal mJournal;
+    final Serializer<K> mKeySerializer;
+    final Serializer<V> mValueSerializer;
+    long mExpireAfterWriteMillis;
+    long mExpireAfterAccessMillis;
+    Ticker mTicker = Ticker.SYSTEM;
+    TimerWheel<K> mTimerWheel;
+    ScheduledFuture<?> mSweeper;
+    volatile CacheStats mStats = new CacheStats();
+    long mMaximumBytes = Long.MAX_VALUE;
+    int mMaximumEntries = Integer.MAX_VALUE;
+    DiskEvictionPolicy mEvictionPolicy = DiskEvictionPolicy.LRU;
+    boolean mEvictionScheduled;
+    boolean mClosed;
+    boolean mRecovering; // the checkpoint is damaged, so the index is rebuilt from the segments
+    volatile DiskCacheBloomFilter mBloomFilter;
+    DiskCacheBloomFilter mStaleBloomFilter; // read back with a different checkpoint, rebuilt once the index is loaded
+    volatile DiskCacheCheckpoint mCheckpoint; // while the index is being loaded from it, null once loaded
+    HashSet<K> mRemovedKeys; // removed while the index is being loaded, so not to be loaded from the checkpoint
+    final AtomicInteger mNextChunk = new AtomicInteger();
+    int mLoadedChunkCount;
 
     public DiskCache(final File aCacheDirectory) {
+        this(aCacheDirectory, DiskCacheLog.DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    public DiskCache(final File aCacheDirectory, final long aMaxSegmentSize) {
+        this(aCacheDirectory, aMaxSegmentSize, new BinarySerializer<K>(), new BinarySerializer<V>());
+    }
+
+    public DiskCache(final File aCacheDirectory, final Serializer<K> aKeySerializer, final Serializer<V> aValueSerializer) {
+        this(aCacheDirectory, DiskCacheLog.DEFAULT_MAX_SEGMENT_SIZE, aKeySerializer, aValueSerializer);
+    }
+
+    public DiskCache(final File aCacheDirectory, final long aMaxSegmentSize, final Serializer<K> aKeySerializer, final Serializer<V> aValueSerializer) {
         mCacheDirectory = aCacheDirectory;
         mCacheDirectory.mkdirs();
-        mFileIndexes = deserializeFileIndex();
+        mKeySerializer = aKeySerializer;
+        mValueSerializer = aValueSerializer;
+        mLog = openLog(aMaxSegmentSize);
+        final DiskCacheCheckpoint checkpoint = openCheckpoint();
+        if (checkpoint != null) {
+            mFileIndexes = new HashMap<K, DiskCacheIndex>();
+            if (checkpoint.getEntryCount() > 0) {
+                mRemovedKeys = new HashSet<K>();
+                mCheckpoint = checkpoint;
+            }
+        }
+        else if (!mRecovering) {
+            mFileIndexes = deserializeFileIndex();
+        }
+        if (mRecovering) {
+            mFileIndexes = recoverFileIndex();
+        }
+        mBloomFilter = readBloomFilter(mRecovering ? -1 : checkpoint != null ? checkpoint.getEntryCount() : mFileIndexes.size());
+        mJournal = openJournal();
+        mTimerWheel = new TimerWheel<K>(mTicker.currentTimeMillis());
+        addLiveBytes();
+        if (isLoading()) {
+            loadCheckpointInBackground();
+        }
+        else {
+            migrateBucketFiles();
+            migrateLegacyIndex();
+            scheduleExpiringEntries();
+            if (mRecovering) {
+                checkpoint();
+            }
+        }
+        mRecovering = false;
     }
 
     public File getCacheDirectory() {
         return mCacheDirectory;
     }
 
+    /**
+     * Reads every value into a single map, prefer {@link #stream()} or {@link #forEach(BiConsumer)} for caches which
+     * may not fit in memory.
+     */
     public synchronized HashMap all() {
+        awaitLoaded();
         return get(mFileIndexes.keySet());
     }
 
-    public synchronized HashMap get(Set<K> aKeys) {
+    /**
+     * @return a spliterator reading the entries a few at a time, see {@link DiskCacheSpliterator} for what it sees
+     * of concurrent writes
+     */
+    public synchronized Spliterator<Map.Entry<K, V>> spliterator() {
+        awaitLoaded();
+        final ArrayList<Map.Entry<K, DiskCacheIndex>> fileIndexes = new ArrayList<Map.Entry<K, DiskCacheIndex>>(mFileIndexes.entrySet());
+        Collections.sort(fileIndexes, new Comparator<Map.Entry<K, DiskCacheIndex>>() {
+            public int compare(final Map.Entry<K, DiskCacheIndex> aEntry, final Map.Entry<K, DiskCacheIndex> aOtherEntry) {
+                final int result = aEntry.getValue().getFilename().compareTo(aOtherEntry.getValue().getFilename());
+                return result != 0 ? result : Long.compare(aEntry.getValue().getOffset(), aOtherEntry.getValue().getOffset());
+            }
+        });
+
+        final ArrayList<K> keys = new ArrayList<K>(fileIndexes.size());
+        final ArrayList<Integer> segmentStarts = new ArrayList<Integer>();
+        String filename = null;
+        for (final Map.Entry<K, DiskCacheIndex> entry : fileIndexes) {
+            if (!entry.getValue().getFilename().equals(filename)) {
+                filename = entry.getValue().getFilename();
+                segmentStarts.add(keys.size());
+            }
+            keys.add(entry.getKey());
+        }
+
+        final int[] starts = new int[segmentStarts.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = segmentStarts.get(i);
+        }
+        return new DiskCacheSpliterator<K, V>(this, keys, starts, 0, keys.size());
+    }
+
+    /**
+     * Streams the entries with bounded memory. As a parallel stream, different threads read different segments.
+     */
+    public Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    public void forEach(final BiConsumer<? super K, ? super V> aAction) {
+        spliterator().forEachRemaining(new Consumer<Map.Entry<K, V>>() {
+            public void accept(final Map.Entry<K, V> aEntry) {
+                aAction.accept(aEntry.getKey(), aEntry.getValue());
+            }
+        });
+    }
+
+    /**
+     * Reads the current values of aKeys into aEntries, skipping keys which have been removed or have expired. Unlike
+     * {@link #getItems(Set)} this does not count as reading the values, so iterating does not keep entries alive.
+     */
+    synchronized void readEntries(final List<K> aKeys, final Collection<Map.Entry<K, V>> aEntries) {
+        final long now = mTicker.currentTimeMillis();
+        for (final K key : aKeys) {
+            final DiskCacheIndex fileIndex = mFileIndexes.get(key);
+            if (fileIndex == null || fileIndex.isExpired(now)) {
+                continue;
+            }
+            final DiskCacheItem<V> diskCacheItem = readItem(fileIndex);
+            if (diskCacheItem != null) {
+                aEntries.add(new AbstractMap.SimpleImmutableEntry<K, V>(key, diskCacheItem.getItem()));
+            }
+        }
+    }
+
+    public HashMap get(Set<K> aKeys) {
         final HashMap<K, V> results = new HashMap<K, V>();
+        getAll(aKeys, results);
+        return results;
+    }
+
+    public V getIfPresent(final K aKey) {
+        final DiskCacheItem<V> diskCacheItem = getItem(aKey);
+        return diskCacheItem != null ? diskCacheItem.getItem() : null;
+    }
+
+    public V get(final K aKey) {
+        return getIfPresent(aKey);
+    }
+
+    public Map<K, V> getAll(final Collection<K> aKeys, final Map<K, V> aResults) {
+        for (final Map.Entry<K, DiskCacheItem<V>> entry : getItems(aKeys).entrySet()) {
+            aResults.put(entry.getKey(), entry.getValue().getItem());
+        }
+        return aResults;
+    }
+
+    /**
+     * Same as {@link #getIfPresent(Serializable)}, but keeps the expiry of the value along with it.
+     */
+    public DiskCacheItem<V> getItem(final K aKey) {
+        final DiskCacheBloomFilter bloomFilter = mBloomFilter;
+        if (bloomFilter != null && !mightContain(bloomFilter, aKey)) {
+            mStats.recordMisses(CacheStats.Tier.DISK, 1);
+            return null;
+        }
+        return readItems(Collections.singleton(aKey)).get(aKey);
+    }
+
+    /**
+     * Same as {@link #get(Set)}, but keeps the expiry of each value along with it.
+     */
+    public HashMap<K, DiskCacheItem<V>> getItems(final Collection<K> aKeys) {
+        final DiskCacheBloomFilter bloomFilter = mBloomFilter;
+        if (bloomFilter == null) {
+            return readItems(aKeys);
+        }
+
+        final HashSet<K> keys = new HashSet<K>();
+        for (final K key : aKeys) {
+            if (mightContain(bloomFilter, key)) {
+                keys.add(key);
+            }
+        }
+        mStats.recordMisses(CacheStats.Tier.DISK, aKeys.size() - keys.size());
+        return keys.isEmpty() ? new HashMap<K, DiskCacheItem<V>>() : readItems(keys);
+    }
+
+    synchronized HashMap<K, DiskCacheItem<V>> readItems(final Collection<K> aKeys) {
+        final long startTime = System.nanoTime();
+        final HashMap<K, DiskCacheItem<V>> results = new HashMap<K, DiskCacheItem<V>>();
         if (getCacheDirectory() != null) {
             final HashSet<K> expiredKeys = new HashSet<K>();
+            final HashSet<K> damagedKeys = new HashSet<K>();
+            final long now = mTicker.currentTimeMillis();
 
             for (K key : aKeys) {
-                final DiskCacheIndex fileIndex = mFileIndexes.get(key);
-                final File file = new File(getCacheDirectory(), fileIndex.getFilename());
+                final DiskCacheIndex fileIndex = lookup(key);
+                if (fileIndex == null) {
+                    continue;
+                }
+                if (fileIndex.isExpired(now)) {
+                    expiredKeys.add(key);
+                    continue;
+                }
 
-                if (file.canRead() && file.isFile()) {
-                    final HashMap<K, DiskCacheItem<V>> serializedObject = deserializeFromFile(file);
-                    final DiskCacheItem<V> diskCacheItem = serializedObject.get(key);
-                    results.put(key, diskCacheItem.getItem()); // ignoring expiry date from DiskCacheItem as expiry has already been checked
+                final DiskCacheItem<V> diskCacheItem = readItem(fileIndex);
+                if (diskCacheItem != null) {
+                    results.put(key, diskCacheItem);
+                    fileIndex.mAccessTime = now;
+                    if (fileIndex.mAccessCount < Integer.MAX_VALUE) {
+                        fileIndex.mAccessCount++;
+                    }
+                }
+                else {
+                    damagedKeys.add(key);
                 }
             }
 
-            // remove expired item
-            remove(expiredKeys);
+            // remove expired and damaged items
+            try {
+                removeKeys(damagedKeys);
+                removeKeys(expiredKeys);
+            } catch (IOException e) {
+                e.printStackTrace(); // left to be removed by a later read or write
+            }
+            mStats.recordEvictions(CacheStats.Tier.DISK, expiredKeys.size());
         }
+
+        final CacheStats stats = mStats;
+        stats.recordHits(CacheStats.Tier.DISK, results.size());
+        stats.recordMisses(CacheStats.Tier.DISK, aKeys.size() - results.size());
+        stats.recordLatency(CacheStats.Tier.DISK, System.nanoTime() - startTime);
         return results;
     }
 
     public synchronized ICache<K, V> clear() {
-        return remove(mFileIndexes.keySet());
+        if (getCacheDirectory() != null) {
+            stopLoading();
+            mFileIndexes.clear();
+            if (mBloomFilter != null) {
+                mBloomFilter = new DiskCacheBloomFilter(mBloomFilter.getExpectedKeys(), mBloomFilter.getFalsePositiveRate());
+            }
+            mTimerWheel = new TimerWheel<K>(mTicker.currentTimeMillis());
+            try {
+                mLog.clear();
+                writeCheckpoint();
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("Unable to clear disk cache at %s", getCacheDirectory()), e);
+            }
+        }
+        return this;
     }
 
+    /**
+     * @throws IllegalStateException if a removal cannot be journaled, in which case that key and the keys after it
+     * are left in the cache
+     */
     public synchronized ICache remove(Set<K> aKeys) {
-        if (getCacheDirectory() != null) {
-            HashSet<K> keysToRemove = new HashSet<K>();
-            for (K key : aKeys) {
-                final DiskCacheIndex diskCacheIndex = mFileIndexes.get(key);
-                final File file = new File(getCacheDirectory(), diskCacheIndex.getFilename());
-
-                if (file.canWrite() && file.isFile()) {
-                    final HashMap<K, DiskCacheItem<V>> serializedObject = deserializeFromFile(file);
-                    if (serializedObject.containsKey(key)) {
-                        if (serializedObject.size() > 1) {
-                            // remove this key and save the remaining hashmap
-                            serializedObject.remove(key);
-                            serializeToFile(file, serializedObject);
-                        } else {
-                            // remove this file
-                            file.delete();
-                        }
-                    }
-                }
+        try {
+            removeKeys(aKeys);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to remove keys from disk cache at %s", getCacheDirectory()), e);
+        }
+        return this;
+    }
 
-                keysToRemove.add(key);
+    /**
+     * Appends a tombstone for every key held with a single write, then journals the removal of each key before
+     * taking it out of the index, so that a key whose removal could not be journaled is still in the cache, rather
+     * than coming back once the cache is reopened. The tombstones keep removed values from coming back when the
+     * index has to be rebuilt from the segments.
+     */
+    synchronized void removeKeys(final Set<K> aKeys) throws IOException {
+        if (getCacheDirectory() == null || aKeys.isEmpty()) {
+            return;
+        }
+        final List<K> keys = new ArrayList<K>(aKeys.size());
+        final List<byte[]> keyBytes = new ArrayList<byte[]>(aKeys.size());
+        for (final K key : aKeys) {
+            if (lookup(key) != null) {
+                keys.add(key);
+                keyBytes.add(encodeKey(key));
             }
+        }
+        if (!keys.isEmpty()) {
+            mLog.appendTombstones(keyBytes);
+        }
 
-            for (K key : keysToRemove) {
-                mFileIndexes.remove(key);
-            }
-            this.serializeFileIndex(mFileIndexes);
+        for (int i = 0; i < keys.size(); i++) {
+            mJournal.logRemove(keyBytes.get(i));
+            final DiskCacheIndex diskCacheIndex = mFileIndexes.remove(keys.get(i));
+            descheduleExpiry(diskCacheIndex);
+            mLog.release(diskCacheIndex);
         }
-        return this;
+        if (mRemovedKeys != null) {
+            mRemovedKeys.addAll(aKeys);
+        }
+        compactLog();
+        checkpointIfNeeded();
     }
 
     public synchronized ICache<K, V> put(K aKey, V aValue) {
+        return put(aKey, aValue, mExpireAfterWriteMillis, mExpireAfterAccessMillis);
+    }
+
+    /**
+     * @throws IllegalStateException if the value cannot be written, in which case the cache still holds the previous
+     * value of aKey, if any
+     */
+    public synchronized ICache<K, V> put(final K aKey, final V aValue, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
         if (getCacheDirectory() != null) {
-            final String filename = generateFilename(aKey);
-            final File valueFile = new File(getCacheDirectory(), filename);
-            HashMap<K, DiskCacheItem<V>> value = deserializeFromFile(valueFile);
-            if (value == null) {
-                value = new HashMap<K, DiskCacheItem<V>>();
+            final long now = mTicker.currentTimeMillis();
+            expireEntries(now);
+            DiskCacheIndex fileIndex = null;
+            try {
+                final byte[] keyBytes = encodeKey(aKey);
+                final DiskCacheItem<V> diskCacheItem = DiskCacheItem.expiringAfter(aValue, now, aTimeToLiveMillis, aTimeToIdleMillis);
+                fileIndex = mLog.append(keyBytes, encodeItem(diskCacheItem));
+                fileIndex.setExpiry(diskCacheItem.getExpiryTime(), diskCacheItem.getTimeToIdle(), now);
+                mJournal.logPut(keyBytes, fileIndex);
+                final DiskCacheIndex previousFileIndex = mFileIndexes.put(aKey, fileIndex);
+                addToBloomFilter(keyBytes);
+                mStats.recordDiskWrites(1, fileIndex.getRecordSize());
+                if (previousFileIndex != null) {
+                    descheduleExpiry(previousFileIndex);
+                    mLog.release(previousFileIndex);
+                }
+                scheduleExpiry(aKey, fileIndex);
+            } catch (IOException e) {
+                if (fileIndex != null) {
+                    mLog.release(fileIndex); // appended but never journaled
+                }
+                throw new IllegalStateException(String.format("Unable to write %s to disk cache at %s", aKey, getCacheDirectory()), e);
+            }
+
+            compactLog();
+            checkpointIfNeeded();
+            scheduleEvictionIfOverQuota();
+        }
+        return this;
+    }
+
+    /**
+     * Appends every entry to the log with as few writes as the segment size allows, and journals the whole batch
+     * with a single write.
+     */
+    public synchronized ICache<K, V> putAll(final Map<K, V> aEntries) {
+        final long now = mTicker.currentTimeMillis();
+        final LinkedHashMap<K, DiskCacheItem<V>> items = new LinkedHashMap<K, DiskCacheItem<V>>(aEntries.size() * 4 / 3 + 1);
+        for (final Map.Entry<K, V> entry : aEntries.entrySet()) {
+            items.put(entry.getKey(), DiskCacheItem.expiringAfter(entry.getValue(), now, mExpireAfterWriteMillis, mExpireAfterAccessMillis));
+        }
+        return putItems(items);
+    }
+
+    /**
+     * Same as {@link #putAll(Map)}, but with the expiry of each value given by its {@link DiskCacheItem} rather than
+     * by the defaults.
+     *
+     * @throws IllegalStateException if the values cannot be written, in which case none of them is
+     */
+    public synchronized ICache<K, V> putItems(final Map<K, DiskCacheItem<V>> aItems) {
+        if (getCacheDirectory() != null && !aItems.isEmpty()) {
+            final long now = mTicker.currentTimeMillis();
+            expireEntries(now);
+            final List<K> keys = new ArrayList<K>(aItems.size());
+            final List<byte[]> keyBytes = new ArrayList<byte[]>(aItems.size());
+            final List<byte[]> valueBytes = new ArrayList<byte[]>(aItems.size());
+            final List<DiskCacheItem<V>> items = new ArrayList<DiskCacheItem<V>>(aItems.size());
+            try {
+                for (final Map.Entry<K, DiskCacheItem<V>> entry : aItems.entrySet()) {
+                    keys.add(entry.getKey());
+                    keyBytes.add(encodeKey(entry.getKey()));
+                    valueBytes.add(encodeItem(entry.getValue()));
+                    items.add(entry.getValue());
+                }
+
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("Unable to serialize values for disk cache at %s", getCacheDirectory()), e);
             }
-            value.put(aKey, new DiskCacheItem(aValue));
-            serializeToFile(valueFile, value);
 
-            final DiskCacheIndex fileIndex = new DiskCacheIndex(filename);
+            List<DiskCacheIndex> fileIndexes = null;
+            try {
+                fileIndexes = mLog.appendAll(keyBytes, valueBytes);
+                for (int i = 0; i < keys.size(); i++) {
+                    fileIndexes.get(i).setExpiry(items.get(i).getExpiryTime(), items.get(i).getTimeToIdle(), now);
+                }
+                mJournal.logPutAll(keyBytes, fileIndexes);
+            } catch (IOException e) {
+                if (fileIndexes != null) {
+                    for (final DiskCacheIndex fileIndex : fileIndexes) {
+                        mLog.release(fileIndex); // appended but never journaled
+                    }
+                }
+                throw new IllegalStateException(String.format("Unable to write %d values to disk cache at %s", keys.size(), getCacheDirectory()), e);
+            }
 
-            mFileIndexes.put(aKey, fileIndex);
+            long bytesWritten = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                final DiskCacheIndex fileIndex = fileIndexes.get(i);
+                bytesWritten += fileIndex.getRecordSize();
+                final DiskCacheIndex previousFileIndex = mFileIndexes.put(keys.get(i), fileIndex);
+                addToBloomFilter(keyBytes.get(i));
+                if (previousFileIndex != null) {
+                    descheduleExpiry(previousFileIndex);
+                    mLog.release(previousFileIndex);
+                }
+                scheduleExpiry(keys.get(i), fileIndex);
+            }
+            mStats.recordDiskWrites(keys.size(), bytesWritten);
 
-            this.serializeFileIndex(mFileIndexes);
+            compactLog();
+            checkpointIfNeeded();
+            scheduleEvictionIfOverQuota();
         }
         return this;
     }
 
+    /**
+     * @return the number of values, which may include expired values that have not been removed yet
+     */
     public int size() {
+        if (isLoading()) {
+            synchronized (this) {
+                awaitLoaded();
+            }
+        }
         return mFileIndexes.size();
     }
 
-    String generateFilename(final Serializable aSerializable) {
-        final String filename = String.format("%d.ser", aSerializable.hashCode());
-        return filename;
+    /**
+     * Removes every value which has expired by now, which otherwise happens on writes and every so often in the
+     * background.
+     */
+    public synchronized void cleanUp() {
+        if (getCacheDirectory() != null && !mClosed) {
+            expireEntries(mTicker.currentTimeMillis());
+            evictToQuota();
+        }
+    }
+
+    public synchronized long getMaximumBytes() {
+        return mMaximumBytes;
+    }
+
+    public synchronized int getMaximumEntries() {
+        return mMaximumEntries;
+    }
+
+    /**
+     * Bounds the cache by the bytes of its live records and by its number of values. Puts are never held up by
+     * eviction: once a put takes the cache over either bound, values are evicted in the background until it is back
+     * a little below both. The segment files may take up to as much again in dead records until they are compacted.
+     */
+    public synchronized void setMaximumSize(final long aMaximumBytes, final int aMaximumEntries) {
+        mMaximumBytes = aMaximumBytes;
+        mMaximumEntries = aMaximumEntries;
+        scheduleEvictionIfOverQuota();
+    }
+
+    /**
+     * @return the bytes of the live records
+     */
+    public synchronized long getSizeInBytes() {
+        awaitLoaded();
+        return mLog.getLiveBytes();
+    }
+
+    public synchronized DiskEvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    public synchronized void setEvictionPolicy(final DiskEvictionPolicy aEvictionPolicy) {
+        mEvictionPolicy = aEvictionPolicy;
+    }
+
+    public synchronized long getExpireAfterWriteMillis() {
+        return mExpireAfterWriteMillis;
+    }
+
+    /**
+     * Makes values put from now on expire aMillis after they were put, 0 to keep them until removed.
+     */
+    public synchronized void setExpireAfterWriteMillis(final long aMillis) {
+        mExpireAfterWriteMillis = aMillis;
+    }
+
+    public synchronized long getExpireAfterAccessMillis() {
+        return mExpireAfterAccessMillis;
+    }
+
+    /**
+     * Makes values put from now on expire once they have not been read for aMillis, 0 to keep them until removed.
+     */
+    public synchronized void setExpireAfterAccessMillis(final long aMillis) {
+        mExpireAfterAccessMillis = aMillis;
+    }
+
+    /**
+     * Replaces the source of time used for expiry, meant to be set before any expiring value is put.
+     */
+    public synchronized void setTicker(final Ticker aTicker) {
+        mTicker = aTicker;
+        scheduleExpiringEntries();
+    }
+
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Makes the cache record into aStats from now on, so that several caches can share one set of stats. Reads and
+     * writes made to compact segments are recorded along with those made for gets and puts.
+     */
+    public void setStats(final CacheStats aStats) {
+        mStats = aStats;
+    }
+
+    public synchronized boolean isBloomFilterEnabled() {
+        return mBloomFilter != null || mStaleBloomFilter != null;
+    }
+
+    /**
+     * Puts a bloom filter sized for aExpectedKeys keys in front of the index, so that lookups for keys which were
+     * never put are answered without taking the cache's lock. The filter is kept next to the checkpoint and stays
+     * enabled when the cache is reopened. It is rebuilt from the index at every checkpoint, which drops the keys
+     * removed since, and twice as large once the cache holds more keys than it was sized for.
+     */
+    public synchronized void enableBloomFilter(final int aExpectedKeys, final double aFalsePositiveRate) {
+        mBloomFilter = new DiskCacheBloomFilter(aExpectedKeys, aFalsePositiveRate);
+        mStaleBloomFilter = null;
+        checkpoint();
+    }
+
+    public synchronized void disableBloomFilter() {
+        mBloomFilter = null;
+        mStaleBloomFilter = null;
+        new File(getCacheDirectory(), BLOOM_FILTER_FILENAME).delete();
+    }
+
+    /**
+     * @return false only when aKey is definitely not in the cache, which is always true without a bloom filter.
+     * Does not take the cache's lock.
+     */
+    public boolean mightContain(final K aKey) {
+        final DiskCacheBloomFilter bloomFilter = mBloomFilter;
+        return bloomFilter == null || mightContain(bloomFilter, aKey);
+    }
+
+    boolean mightContain(final DiskCacheBloomFilter aBloomFilter, final K aKey) {
+        try {
+            return aBloomFilter.mightContain(encodeKey(aKey));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+    synchronized void addToBloomFilter(final byte[] aKeyBytes) {
+        if (mBloomFilter != null) {
+            mBloomFilter.add(aKeyBytes);
+        }
+    }
+
+    synchronized DiskCacheBloomFilter buildBloomFilter(final int aExpectedKeys, final double aFalsePositiveRate) {
+        final DiskCacheBloomFilter bloomFilter = new DiskCacheBloomFilter(aExpectedKeys, aFalsePositiveRate);
+        for (final K key : mFileIndexes.keySet()) {
+            try {
+                bloomFilter.add(encodeKey(key));
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("Unable to serialize key %s", key), e);
+            }
+        }
+        return bloomFilter;
+    }
+
+    /**
+     * Reads back the bloom filter written with the checkpoint, or rebuilds it from the index when it was written
+     * with a different checkpoint, once the index is loaded. Must be called before the journal is replayed, which
+     * adds the keys put since.
+     */
+    synchronized DiskCacheBloomFilter readBloomFilter(final int aCheckpointKeyCount) {
+        final File bloomFilterFile = new File(getCacheDirectory(), BLOOM_FILTER_FILENAME);
+        try {
+            final DiskCacheBloomFilter bloomFilter = DiskCacheBloomFilter.read(bloomFilterFile);
+            if (bloomFilter == null || bloomFilter.mCheckpointKeyCount == aCheckpointKeyCount) {
+                return bloomFilter;
+            }
+            if (isLoading()) {
+                mStaleBloomFilter = bloomFilter;
+                return null;
+            }
+            return buildBloomFilter(Math.max(bloomFilter.getExpectedKeys(), mFileIndexes.size()), bloomFilter.getFalsePositiveRate());
+        } catch (IOException e) {
+            e.printStackTrace();
+            bloomFilterFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Written before the checkpoint, so that the filter on disk always holds at least the keys of the checkpoint
+     * on disk. When it cannot be written it is deleted rather than left behind stale.
+     */
+    synchronized void writeBloomFilter() {
+        if (mBloomFilter == null) {
+            return;
+        }
+        final int expectedKeys = mBloomFilter.getExpectedKeys();
+        mBloomFilter = buildBloomFilter(mFileIndexes.size() > expectedKeys ? mFileIndexes.size() * 2 : expectedKeys, mBloomFilter.getFalsePositiveRate());
+        final File bloomFilterFile = new File(getCacheDirectory(), BLOOM_FILTER_FILENAME);
+        try {
+            mBloomFilter.write(bloomFilterFile, mFileIndexes.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+            bloomFilterFile.delete();
+        }
+    }
+
+    public synchronized boolean isCompressionEnabled() {
+        return mLog.mCodec != null;
+    }
+
+    /**
+     * Compresses values put from now on with aCodec when their serialized form takes at least aThresholdBytes and
+     * compressing makes it smaller, which trades CPU for fewer bytes written and read. The codec is recorded with
+     * every compressed value, so values written with or without compression stay readable, but compression has to
+     * be enabled again when the cache is reopened. Values compacted into new segments are compressed too.
+     */
+    public synchronized void enableCompression(final Codec aCodec, final int aThresholdBytes) {
+        if (aCodec == null || aThresholdBytes < 0) {
+            throw new IllegalArgumentException(String.format("Invalid codec %s or threshold %d", aCodec, aThresholdBytes));
+        }
+        mLog.setCompression(aCodec, aThresholdBytes);
+    }
+
+    public synchronized void disableCompression() {
+        mLog.setCompression(null, 0);
+    }
+
+    public synchronized boolean isMemoryMapped() {
+        return mLog.mMemoryMapped;
+    }
+
+    /**
+     * When enabled, values in segments which are no longer being appended to are read from memory mapped files,
+     * which serves hot reads from the page cache without a system call per lookup.
+     */
+    public synchronized void setMemoryMapped(final boolean aMemoryMapped) {
+        mLog.setMemoryMapped(aMemoryMapped);
+    }
+
+    /**
+     * Releases the open segment and journal files, the cache should not be used afterwards.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        stopLoading();
+        if (mSweeper != null) {
+            mSweeper.cancel(false);
+            mSweeper = null;
+        }
+        mLog.close();
+        mJournal.close();
+    }
+
+    public boolean isIndexLoaded() {
+        return !isLoading();
+    }
+
+    /**
+     * Blocks until the checkpoint has been loaded into the index, which the cache does not need to serve gets and
+     * puts, but does to iterate, to evict or to write the next checkpoint.
+     */
+    public synchronized void awaitIndexLoaded() {
+        awaitLoaded();
+    }
+
+    boolean isLoading() {
+        return mCheckpoint != null;
+    }
+
+    /**
+     * @return the checkpoint to load the index from in the background, or null when there is none, in which case
+     * {@link #deserializeFileIndex()} reads the index written by older versions if there is one, or when it cannot
+     * be read, in which case the index is rebuilt from the segments
+     */
+    DiskCacheCheckpoint openCheckpoint() {
+        final File checkpointFile = new File(getCacheDirectory(), CHECKPOINT_FILENAME);
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+        try {
+            return DiskCacheCheckpoint.open(checkpointFile);
+        } catch (Exception e) {
+            e.printStackTrace();
+            mRecovering = true;
+            return null;
+        }
+    }
+
+    void loadCheckpointInBackground() {
+        final int parallelism = Math.min(mCheckpoint.getChunkCount(), Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < parallelism; i++) {
+            ForkJoinPool.commonPool().execute(new Runnable() {
+                public void run() {
+                    loadChunks();
+                }
+            });
+        }
+    }
+
+    void loadChunks() {
+        DiskCacheCheckpoint checkpoint;
+        while ((checkpoint = mCheckpoint) != null) {
+            final int chunk = mNextChunk.getAndIncrement();
+            if (chunk >= checkpoint.getChunkCount()) {
+                return;
+            }
+            mergeChunk(checkpoint, loadChunk(checkpoint, chunk));
+        }
+    }
+
+    /**
+     * Deserializes a chunk of the checkpoint without holding the cache's lock.
+     *
+     * @return the entries of the chunk, or null when it is damaged
+     */
+    HashMap<K, DiskCacheIndex> loadChunk(final DiskCacheCheckpoint aCheckpoint, final int aChunk) {
+        final HashMap<K, DiskCacheIndex> fileIndexes = new HashMap<K, DiskCacheIndex>();
+        try {
+            aCheckpoint.load(aChunk, mKeySerializer, fileIndexes);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+        return fileIndexes;
+    }
+
+    /**
+     * Adds the entries of a loaded chunk to the index, except for the keys which have been put or removed since the
+     * checkpoint was written, or looked up and so loaded already.
+     */
+    synchronized void mergeChunk(final DiskCacheCheckpoint aCheckpoint, final HashMap<K, DiskCacheIndex> aFileIndexes) {
+        if (mCheckpoint != aCheckpoint) {
+            return; // closed or cleared meanwhile
+        }
+        if (aFileIndexes == null) {
+            abandonLoading();
+            return;
+        }
+        final long now = mTicker.currentTimeMillis();
+        for (final Map.Entry<K, DiskCacheIndex> entry : aFileIndexes.entrySet()) {
+            final DiskCacheIndex fileIndex = entry.getValue();
+            if (!mFileIndexes.containsKey(entry.getKey()) && !mRemovedKeys.contains(entry.getKey())) {
+                fileIndex.mAccessTime = now;
+                mFileIndexes.put(entry.getKey(), fileIndex);
+                if (fileIndex.isSegment()) {
+                    mLog.addLiveBytes(fileIndex.getFilename(), fileIndex.getRecordSize());
+                }
+            }
+        }
+        if (++mLoadedChunkCount == aCheckpoint.getChunkCount()) {
+            finishLoading();
+        }
+        notifyAll();
+    }
+
+    synchronized void finishLoading() {
+        stopLoading();
+        mLog.deleteDeadSegments();
+        scheduleExpiringEntries();
+        if (mStaleBloomFilter != null) {
+            mBloomFilter = buildBloomFilter(Math.max(mStaleBloomFilter.getExpectedKeys(), mFileIndexes.size()), mStaleBloomFilter.getFalsePositiveRate());
+            mStaleBloomFilter = null;
+        }
+        compactLog();
+        checkpointIfNeeded();
+        scheduleEvictionIfOverQuota();
+    }
+
+    /**
+     * Gives up on a checkpoint found damaged while loading it, and rebuilds the index from the segments instead,
+     * keeping what has been put or removed since the checkpoint was written. No segment is deleted until then, as
+     * the live bytes of the entries which were never loaded have not been counted.
+     */
+    synchronized void abandonLoading() {
+        final HashSet<K> removedKeys = mRemovedKeys;
+        mCheckpoint = null;
+        mRemovedKeys = null;
+        mRecovering = true;
+
+        final HashMap<K, DiskCacheIndex> fileIndexes = recoverFileIndex();
+        fileIndexes.keySet().removeAll(removedKeys);
+        fileIndexes.putAll(mFileIndexes);
+        mFileIndexes = fileIndexes;
+        mLog.resetLiveBytes();
+        addLiveBytes();
+        scheduleExpiringEntries();
+        if (mStaleBloomFilter != null) {
+            mBloomFilter = new DiskCacheBloomFilter(mStaleBloomFilter.getExpectedKeys(), mStaleBloomFilter.getFalsePositiveRate());
+            mStaleBloomFilter = null;
+        }
+        checkpoint(); // which rebuilds the bloom filter from the recovered index
+        mRecovering = false;
+        notifyAll();
+        scheduleEvictionIfOverQuota();
+    }
+
+    synchronized void stopLoading() {
+        mCheckpoint = null;
+        mRemovedKeys = null;
+        mLog.mKeepingDeadSegments = false;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the index to be loaded, loading chunks no other thread has started on. Waiting releases the
+     * cache's lock for the chunks being loaded by other threads to be merged, so this must come before anything
+     * else a synchronized method does.
+     */
+    synchronized void awaitLoaded() {
+        boolean interrupted = false;
+        DiskCacheCheckpoint checkpoint;
+        while ((checkpoint = mCheckpoint) != null) {
+            final int chunk = mNextChunk.getAndIncrement();
+            if (chunk < checkpoint.getChunkCount()) {
+                mergeChunk(checkpoint, loadChunk(checkpoint, chunk));
+            }
+            else {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the index of aKey, looking it up in the checkpoint and adding it to the index when it has not been
+     * loaded yet, or null when the cache does not hold it
+     */
+    synchronized DiskCacheIndex lookup(final K aKey) {
+        final DiskCacheIndex fileIndex = mFileIndexes.get(aKey);
+        final DiskCacheCheckpoint checkpoint = mCheckpoint;
+        if (fileIndex != null || checkpoint == null || mRemovedKeys.contains(aKey)) {
+            return fileIndex;
+        }
+
+        final byte[] keyBytes;
+        try {
+            keyBytes = encodeKey(aKey);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        try {
+            final DiskCacheIndex checkpointFileIndex = checkpoint.find(keyBytes);
+            if (checkpointFileIndex != null) {
+                checkpointFileIndex.mAccessTime = mTicker.currentTimeMillis();
+                mFileIndexes.put(aKey, checkpointFileIndex);
+                if (checkpointFileIndex.isSegment()) {
+                    mLog.addLiveBytes(checkpointFileIndex.getFilename(), checkpointFileIndex.getRecordSize());
+                }
+                scheduleExpiry(aKey, checkpointFileIndex);
+            }
+            return checkpointFileIndex;
+        } catch (IOException e) {
+            e.printStackTrace();
+            abandonLoading();
+            return mFileIndexes.get(aKey);
+        }
+    }
+
+    DiskCacheJournal openJournal() {
+        final DiskCacheJournal journal = new DiskCacheJournal(getCacheDirectory());
+        try {
+            journal.replay(mFileIndexes, mRemovedKeys, mKeySerializer, mBloomFilter);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to open disk cache journal at %s", getCacheDirectory()), e);
+        }
+        return journal;
+    }
+
+    /**
+     * Writes a checkpoint once the journal holds as many records as the index has keys, which keeps the amortized
+     * cost of a mutation constant.
+     */
+    synchronized void checkpointIfNeeded() {
+        if (!isLoading() && mJournal.getRecordCount() >= Math.max(MIN_CHECKPOINT_RECORDS, mFileIndexes.size())) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes a checkpoint, keeping the journal when it cannot be written so that no mutation is lost and the next
+     * {@link #checkpointIfNeeded()} tries again.
+     */
+    synchronized void checkpoint() {
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Forces the segments to disk before the checkpoint referring to them is written, and only then truncates the
+     * journal.
+     */
+    synchronized void writeCheckpoint() throws IOException {
+        awaitLoaded();
+        mLog.sync();
+        writeBloomFilter();
+        serializeFileIndex(mFileIndexes);
+        mJournal.reset();
+    }
+
+    /**
+     * Rebuilds the timer wheel from the index, counting every value as read just now.
+     */
+    synchronized void scheduleExpiringEntries() {
+        final long now = mTicker.currentTimeMillis();
+        mTimerWheel = new TimerWheel<K>(now);
+        for (final Map.Entry<K, DiskCacheIndex> entry : mFileIndexes.entrySet()) {
+            final DiskCacheIndex fileIndex = entry.getValue();
+            fileIndex.mAccessTime = now;
+            fileIndex.mTimer = null;
+            scheduleExpiry(entry.getKey(), fileIndex);
+        }
+    }
+
+    synchronized void scheduleExpiry(final K aKey, final DiskCacheIndex aFileIndex) {
+        if (aFileIndex.isExpiring()) {
+            aFileIndex.mTimer = mTimerWheel.schedule(aKey, aFileIndex.getNextExpiryTime());
+            if (mSweeper == null) {
+                mSweeper = ExpirySweeper.schedule(this);
+            }
+        }
+    }
+
+    synchronized void descheduleExpiry(final DiskCacheIndex aFileIndex) {
+        if (aFileIndex.mTimer != null) {
+            mTimerWheel.deschedule(aFileIndex.mTimer);
+            aFileIndex.mTimer = null;
+        }
+    }
+
+    synchronized void expireEntries(final long aNow) {
+        final HashSet<K> expiredKeys = new HashSet<K>();
+        for (final K key : mTimerWheel.advance(aNow)) {
+            final DiskCacheIndex fileIndex = mFileIndexes.get(key);
+            if (fileIndex == null || !fileIndex.isExpiring()) {
+                continue;
+            }
+            if (fileIndex.isExpired(aNow)) {
+                expiredKeys.add(key);
+            }
+            else {
+                scheduleExpiry(key, fileIndex); // read since it was scheduled
+            }
+        }
+        try {
+            removeKeys(expiredKeys);
+        } catch (IOException e) {
+            e.printStackTrace(); // left to be removed once they are read or expire again
+            return;
+        }
+        mStats.recordEvictions(CacheStats.Tier.DISK, expiredKeys.size());
+    }
+
+    synchronized boolean isOverQuota() {
+        return mFileIndexes.size() > mMaximumEntries || mLog.getLiveBytes() > mMaximumBytes;
+    }
+
+    synchronized void scheduleEvictionIfOverQuota() {
+        if (!mEvictionScheduled && !mClosed && !isLoading() && isOverQuota()) {
+            mEvictionScheduled = true;
+            ExpirySweeper.sweepSoon(this);
+        }
+    }
+
+    /**
+     * Evicts values in the order of the eviction policy until the cache is {@link #EVICTION_HEADROOM} below its
+     * maximum size, so that the next few puts do not have to evict again.
+     */
+    synchronized void evictToQuota() {
+        mEvictionScheduled = false;
+        if (isLoading() || !isOverQuota()) {
+            return;
+        }
+
+        final long targetBytes = mMaximumBytes - (long) (mMaximumBytes * EVICTION_HEADROOM);
+        final long targetEntries = mMaximumEntries - (long) (mMaximumEntries * EVICTION_HEADROOM);
+        final Comparator<DiskCacheIndex> evictionOrder = mEvictionPolicy.evictionOrder();
+        int evictedCount = 0;
+        while (!mFileIndexes.isEmpty() && (mFileIndexes.size() > targetEntries || mLog.getLiveBytes() > targetBytes)) {
+            // guess how many values have to go from the average record size, and go round again if that was too few
+            final long averageRecordSize = Math.max(1, mLog.getLiveBytes() / mFileIndexes.size());
+            final long excessBytes = Math.max(0, mLog.getLiveBytes() - targetBytes);
+            final long excess = Math.max(mFileIndexes.size() - targetEntries, (excessBytes + averageRecordSize - 1) / averageRecordSize);
+            final Set<K> victims = selectVictims((int) Math.max(1, Math.min(mFileIndexes.size(), excess)), evictionOrder);
+            try {
+                removeKeys(victims);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            evictedCount += victims.size();
+        }
+
+        if (mEvictionPolicy == DiskEvictionPolicy.LFU) {
+            for (final DiskCacheIndex fileIndex : mFileIndexes.values()) {
+                fileIndex.mAccessCount >>>= 1;
+            }
+        }
+        mStats.recordEvictions(CacheStats.Tier.DISK, evictedCount);
+    }
+
+    /**
+     * @return the aCount keys which come first in aEvictionOrder, found with a single pass over the index
+     */
+    synchronized Set<K> selectVictims(final int aCount, final Comparator<DiskCacheIndex> aEvictionOrder) {
+        // max heap holding the aCount entries to evict first seen so far, the last of them on top
+        final PriorityQueue<Map.Entry<K, DiskCacheIndex>> victims = new PriorityQueue<Map.Entry<K, DiskCacheIndex>>(aCount, new Comparator<Map.Entry<K, DiskCacheIndex>>() {
+            public int compare(final Map.Entry<K, DiskCacheIndex> aEntry, final Map.Entry<K, DiskCacheIndex> aOtherEntry) {
+                return aEvictionOrder.compare(aOtherEntry.getValue(), aEntry.getValue());
+            }
+        });
+        for (final Map.Entry<K, DiskCacheIndex> entry : mFileIndexes.entrySet()) {
+            if (victims.size() < aCount) {
+                victims.add(entry);
+            }
+            else if (aEvictionOrder.compare(entry.getValue(), victims.peek().getValue()) < 0) {
+                victims.poll();
+                victims.add(entry);
+            }
+        }
+
+        final HashSet<K> keys = new HashSet<K>(victims.size() * 4 / 3 + 1);
+        for (final Map.Entry<K, DiskCacheIndex> entry : victims) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    DiskCacheLog openLog(final long aMaxSegmentSize) {
+        try {
+            return new DiskCacheLog(getCacheDirectory(), aMaxSegmentSize);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to open disk cache at %s", getCacheDirectory()), e);
+        }
+    }
+
+    /**
+     * Counts the records referenced by the index as live, deleting the segments left without any unless the rest
+     * of the index is still to be loaded.
+     */
+    synchronized void addLiveBytes() {
+        for (final DiskCacheIndex fileIndex : mFileIndexes.values()) {
+            if (fileIndex.isSegment()) {
+                mLog.addLiveBytes(fileIndex.getFilename(), fileIndex.getRecordSize());
+            }
+        }
+        mLog.mKeepingDeadSegments = isLoading();
+        if (!isLoading()) {
+            mLog.deleteDeadSegments();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the records in the segments, for when the checkpoint is damaged, keeping the latest
+     * intact record of each key unless it is a tombstone. The journal is replayed on top as usual.
+     */
+    HashMap<K, DiskCacheIndex> recoverFileIndex() {
+        final HashMap<K, DiskCacheIndex> fileIndexes = new HashMap<K, DiskCacheIndex>();
+        for (final String filename : mLog.sortedSegmentFilenames()) {
+            try {
+                mLog.scan(filename, new DiskCacheLog.RecordVisitor() {
+                    public void visit(final byte[] aKey, final byte[] aValue, final DiskCacheIndex aIndex) throws IOException {
+                        if (aValue == null) {
+                            fileIndexes.remove(Serializers.fromBytes(mKeySerializer, aKey));
+                            return;
+                        }
+                        final ByteBufferInput input = new ByteBufferInput(ByteBuffer.wrap(aValue));
+                        aIndex.setExpiry(BinarySerializer.readVarLong(input), BinarySerializer.readVarLong(input), 0);
+                        fileIndexes.put(Serializers.fromBytes(mKeySerializer, aKey), aIndex);
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return fileIndexes;
+    }
+
+    synchronized DiskCacheItem<V> readItem(final DiskCacheIndex aFileIndex) {
+        try {
+            final ByteBuffer buffer = mLog.readBuffer(aFileIndex);
+            if (buffer != null) {
+                mStats.recordDiskRead(aFileIndex.getLength());
+                return decodeItem(buffer);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Moves the live values out of the oldest segments once the log is mostly dead, so that the segment files can be
+     * deleted. Segments are compacted and deleted oldest first, which keeps every tombstone at least as long as the
+     * records it hides.
+     */
+    synchronized void compactLog() {
+        if (isLoading()) {
+            return; // live bytes are not known yet
+        }
+        final List<String> segments = mLog.segmentsToCompact(COMPACTION_LIVE_RATIO);
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        final HashSet<String> filenames = new HashSet<String>(segments);
+        final HashSet<String> failedFilenames = new HashSet<String>(); // still holding values which could not be moved
+        final List<DiskCacheIndex> movedFileIndexes = new ArrayList<DiskCacheIndex>();
+        for (final Map.Entry<K, DiskCacheIndex> entry : mFileIndexes.entrySet()) {
+            final DiskCacheIndex fileIndex = entry.getValue();
+            if (filenames.contains(fileIndex.getFilename())) {
+                DiskCacheIndex relocatedFileIndex = null;
+                try {
+                    final byte[] value = mLog.read(fileIndex);
+                    if (value != null) {
+                        final byte[] keyBytes = encodeKey(entry.getKey());
+                        relocatedFileIndex = mLog.append(keyBytes, value);
+                        relocatedFileIndex.copyExpiry(fileIndex);
+                        mJournal.logPut(keyBytes, relocatedFileIndex);
+                        entry.setValue(relocatedFileIndex);
+                        movedFileIndexes.add(fileIndex);
+                        mStats.recordDiskRead(fileIndex.getLength());
+                        mStats.recordDiskWrites(1, relocatedFileIndex.getRecordSize());
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    if (relocatedFileIndex != null && entry.getValue() != relocatedFileIndex) {
+                        mLog.release(relocatedFileIndex);
+                    }
+                    failedFilenames.add(fileIndex.getFilename());
+                }
+            }
+        }
+
+        for (final String filename : segments) {
+            if (failedFilenames.contains(filename)) {
+                break; // and the newer ones kept along with it
+            }
+            mLog.deleteSegment(filename);
+        }
+        for (final DiskCacheIndex fileIndex : movedFileIndexes) {
+            mLog.release(fileIndex); // out of the segments which were kept
+        }
+    }
+
+    /**
+     * Appends the values of the per hash code bucket files written by older versions into the log and deletes the
+     * bucket files.
+     */
+    synchronized void migrateBucketFiles() {
+        final HashMap<String, HashMap<K, DiskCacheItem<V>>> buckets = new HashMap<String, HashMap<K, DiskCacheItem<V>>>();
+        final Iterator<Map.Entry<K, DiskCacheIndex>> iterator = mFileIndexes.entrySet().iterator();
+        boolean migrated = false;
+
+        while (iterator.hasNext()) {
+            final Map.Entry<K, DiskCacheIndex> entry = iterator.next();
+            final String filename = entry.getValue().getFilename();
+            if (entry.getValue().isSegment()) {
+                continue;
+            }
+            migrated = true;
+
+            if (!buckets.containsKey(filename)) {
+                buckets.put(filename, deserializeFromFile(new File(getCacheDirectory(), filename)));
+            }
+            final HashMap<K, DiskCacheItem<V>> bucket = buckets.get(filename);
+            final DiskCacheItem<V> diskCacheItem = bucket != null ? bucket.get(entry.getKey()) : null;
+            if (diskCacheItem == null) {
+                iterator.remove();
+                continue;
+            }
+
+            try {
+                final DiskCacheIndex fileIndex = mLog.append(encodeKey(entry.getKey()), encodeItem(diskCacheItem));
+                fileIndex.setExpiry(diskCacheItem.getExpiryTime(), diskCacheItem.getTimeToIdle(), 0);
+                entry.setValue(fileIndex);
+            } catch (IOException e) {
+                e.printStackTrace();
+                iterator.remove();
+            }
+        }
+
+        if (migrated) {
+            checkpoint();
+            for (final String filename : buckets.keySet()) {
+                new File(getCacheDirectory(), filename).delete();
+            }
+        }
+    }
+
+    /**
+     * Index files written by older versions are plain Java serialization, once loaded they are replaced by a
+     * checkpoint in the current format.
+     */
+    synchronized void migrateLegacyIndex() {
+        final File legacyIndexFile = new File(getCacheDirectory(), LEGACY_INDEX_FILENAME);
+        if (legacyIndexFile.exists()) {
+            checkpoint();
+            legacyIndexFile.delete();
+        }
+    }
+
+    byte[] encodeKey(final K aKey) throws IOException {
+        return Serializers.toBytes(mKeySerializer, aKey);
+    }
+
+    /**
+     * A record's value is the expiry time and time to idle of the item followed by the item itself.
+     */
+    byte[] encodeItem(final DiskCacheItem<V> aDiskCacheItem) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        BinarySerializer.writeVarLong(output, aDiskCacheItem.getExpiryTime());
+        BinarySerializer.writeVarLong(output, aDiskCacheItem.getTimeToIdle());
+        mValueSerializer.serialize(aDiskCacheItem.getItem(), output);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    DiskCacheItem<V> decodeItem(final byte[] aBytes) throws IOException {
+        return decodeItem(ByteBuffer.wrap(aBytes));
+    }
+
+    DiskCacheItem<V> decodeItem(final ByteBuffer aBuffer) throws IOException {
+        final ByteBufferInput input = new ByteBufferInput(aBuffer);
+        final long expiryTime = BinarySerializer.readVarLong(input);
+        final long timeToIdle = BinarySerializer.readVarLong(input);
+        return new DiskCacheItem<V>(mValueSerializer.deserialize(input), expiryTime, timeToIdle);
     }
 
     synchronized HashMap<K, DiskCacheItem<V>> deserializeFromFile(final File aFile) {
@@ -136,38 +1352,13 @@ public class DiskCache<K extends Serializable, V extends Serializable> implement
         return serializedObject;
     }
 
-    synchronized void serializeToFile(final File aFile, final HashMap<K, DiskCacheItem<V>> aObject) {
-        try {
-            OutputStream file = new FileOutputStream(aFile);
-            OutputStream buffer = new BufferedOutputStream(file);
-            ObjectOutput output = new ObjectOutputStream(buffer);
-
-            output.writeObject(aObject);
-
-            output.flush();
-            buffer.flush();
-            file.flush();
-            output.close();
-            buffer.close();
-            file.close();
-        }
-        catch (NullPointerException e) {
-            e.printStackTrace();
-            // TODO
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            // TODO
-        }
-    }
-
     synchronized HashMap<K, DiskCacheIndex> deserializeFileIndex() {
-        final File indexFile = new File(getCacheDirectory(), "index.ser");
+        final File legacyIndexFile = new File(getCacheDirectory(), LEGACY_INDEX_FILENAME);
         HashMap<K, DiskCacheIndex> serializedObject = null;
 
-        if (indexFile.exists() && indexFile.canRead()) {
+        if (legacyIndexFile.exists() && legacyIndexFile.canRead()) {
             try {
-                final InputStream file = new FileInputStream(indexFile);
+                final InputStream file = new FileInputStream(legacyIndexFile);
                 final InputStream buffer = new BufferedInputStream(file);
                 final ObjectInput input = new ObjectInputStream(buffer);
 
@@ -180,36 +1371,15 @@ public class DiskCache<K extends Serializable, V extends Serializable> implement
                 e.printStackTrace();
             }
         }
-        else {
+
+        if (serializedObject == null) {
             serializedObject = new HashMap<K, DiskCacheIndex>();
         }
 
         return serializedObject;
     }
 
-    synchronized void serializeFileIndex(final HashMap<K, DiskCacheIndex> aObject) {
-        final File indexFile = new File(getCacheDirectory(), "index.ser");
-        try {
-            OutputStream file = new FileOutputStream(indexFile);
-            OutputStream buffer = new BufferedOutputStream(file);
-            ObjectOutput output = new ObjectOutputStream(buffer);
-
-            output.writeObject(aObject);
-
-            output.flush();
-            buffer.flush();
-            file.flush();
-            output.close();
-            buffer.close();
-            file.close();
-        }
-        catch (NullPointerException e) {
-            e.printStackTrace();
-            // TODO
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            // TODO
-        }
+    synchronized void serializeFileIndex(final HashMap<K, DiskCacheIndex> aObject) throws IOException {
+        DiskCacheCheckpoint.write(new File(getCacheDirectory(), CHECKPOINT_FILENAME), aObject, mKeySerializer);
     }
 }
@@ -0,0 +1,181 @@
+package com.ivanfoong.cache.disk;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the serialized bytes of the keys of a {@link DiskCache}, which answers most lookups for keys
+ * that were never put without touching the index or taking the cache's lock.
+ *
+ * Bits are only ever set, so it may claim to contain keys which have since been removed, but never misses a key
+ * which was added. Bits are set while holding the cache's lock and may be tested concurrently.
+ *
+ * It is written next to the checkpoint together with the number of keys the checkpoint holds, so that it can be
+ * read back instead of rebuilt when the cache is reopened.
+ */
+final class DiskCacheBloomFilter {
+
+    static final int VERSION = 1;
+    static final int MINIMUM_EXPECTED_KEYS = 64;
+    static final int MAXIMUM_HASHES = 16;
+
+    final AtomicLongArray mBits;
+    final long mBitCount;
+    final int mHashCount;
+    final int mExpectedKeys;
+    final double mFalsePositiveRate;
+    int mCheckpointKeyCount; // when read back, the number of keys of the checkpoint it was written with
+
+    DiskCacheBloomFilter(final int aExpectedKeys, final double aFalsePositiveRate) {
+        if (aFalsePositiveRate <= 0 || aFalsePositiveRate >= 1) {
+            throw new IllegalArgumentException(String.format("False positive rate %f must be between 0 and 1", aFalsePositiveRate));
+        }
+        mExpectedKeys = Math.max(aExpectedKeys, MINIMUM_EXPECTED_KEYS);
+        mFalsePositiveRate = aFalsePositiveRate;
+
+        // m = -n ln(p) / ln(2)^2 bits and k = m / n ln(2) hashes minimize the false positive rate for n keys
+        final double bits = -mExpectedKeys * Math.log(aFalsePositiveRate) / (Math.log(2) * Math.log(2));
+        final int words = (int) Math.min(Integer.MAX_VALUE - 8, ((long) Math.ceil(bits) + 63) / 64);
+        mBits = new AtomicLongArray(words);
+        mBitCount = (long) words * 64;
+        mHashCount = (int) Math.min(MAXIMUM_HASHES, Math.max(1, Math.round(mBitCount / (double) mExpectedKeys * Math.log(2))));
+    }
+
+    DiskCacheBloomFilter(final int aExpectedKeys, final double aFalsePositiveRate, final int aHashCount, final long[] aBits) {
+        mExpectedKeys = aExpectedKeys;
+        mFalsePositiveRate = aFalsePositiveRate;
+        mHashCount = aHashCount;
+        mBits = new AtomicLongArray(aBits);
+        mBitCount = (long) aBits.length * 64;
+    }
+
+    void add(final byte[] aKeyBytes) {
+        final long hash = hash(aKeyBytes);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < mHashCount; i++) {
+            final long bit = indexOf(hash1, hash2, i);
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            long value = mBits.get(word);
+            while ((value & mask) == 0 && !mBits.compareAndSet(word, value, value | mask)) {
+                value = mBits.get(word);
+            }
+        }
+    }
+
+    boolean mightContain(final byte[] aKeyBytes) {
+        final long hash = hash(aKeyBytes);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < mHashCount; i++) {
+            final long bit = indexOf(hash1, hash2, i);
+            if ((mBits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getExpectedKeys() {
+        return mExpectedKeys;
+    }
+
+    double getFalsePositiveRate() {
+        return mFalsePositiveRate;
+    }
+
+    /**
+     * The i-th of k indexes derived from two hashes as h1 + i * h2, which is as good as k independent hashes.
+     */
+    long indexOf(final int aHash1, final int aHash2, final int aIndex) {
+        final long combined = (aHash1 + (long) aIndex * aHash2) & Long.MAX_VALUE;
+        return combined % mBitCount;
+    }
+
+    /**
+     * 64 bit FNV-1a of the bytes, finished with the MurmurHash3 mix so that both halves are well distributed.
+     */
+    static long hash(final byte[] aBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : aBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Writes the filter to a temporary file renamed over aFile, so a crash never leaves a partly written filter.
+     *
+     * @param aKeyCount the number of keys in the checkpoint the filter is written along with
+     */
+    void write(final File aFile, final int aKeyCount) throws IOException {
+        final File temporaryFile = new File(aFile.getPath() + ".tmp");
+        final FileOutputStream file = new FileOutputStream(temporaryFile);
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            output.writeInt(VERSION);
+            output.writeInt(aKeyCount);
+            output.writeInt(mExpectedKeys);
+            output.writeDouble(mFalsePositiveRate);
+            output.writeInt(mHashCount);
+            output.writeInt(mBits.length());
+            for (int i = 0; i < mBits.length(); i++) {
+                output.writeLong(mBits.get(i));
+            }
+            output.flush();
+            file.getFD().sync(); // durable before it is renamed into place
+        }
+        finally {
+            output.close();
+        }
+        if (!temporaryFile.renameTo(aFile)) {
+            aFile.delete();
+            if (!temporaryFile.renameTo(aFile)) {
+                temporaryFile.delete();
+                throw new IOException(String.format("Unable to rename %s to %s", temporaryFile, aFile));
+            }
+        }
+    }
+
+    /**
+     * @return the filter in aFile, or null when there is none. A filter which was not written along with the
+     * checkpoint the cache was opened from may be missing keys, and has to be rebuilt.
+     */
+    static DiskCacheBloomFilter read(final File aFile) throws IOException {
+        if (!aFile.exists()) {
+            return null;
+        }
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(aFile)));
+        try {
+            final int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported bloom filter version %d", version));
+            }
+            final int checkpointKeyCount = input.readInt();
+            final int expectedKeys = input.readInt();
+            final double falsePositiveRate = input.readDouble();
+            final int hashCount = input.readInt();
+            final int words = input.readInt();
+            if (hashCount < 1 || hashCount > MAXIMUM_HASHES || words < 1 || words > aFile.length() / 8) {
+                throw new IOException(String.format("Corrupt bloom filter %s", aFile));
+            }
+            final long[] bits = new long[words];
+            for (int i = 0; i < words; i++) {
+                bits[i] = input.readLong();
+            }
+            final DiskCacheBloomFilter bloomFilter = new DiskCacheBloomFilter(expectedKeys, falsePositiveRate, hashCount, bits);
+            bloomFilter.mCheckpointKeyCount = checkpointKeyCount;
+            return bloomFilter;
+        }
+        finally {
+            input.close();
+        }
+    }
+}
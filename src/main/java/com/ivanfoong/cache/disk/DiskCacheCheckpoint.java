@@ -0,0 +1,309 @@
+package com.ivanfoong.cache.disk;
+
+import com.ivanfoong.cache.serializer.ByteBufferInput;
+import com.ivanfoong.cache.serializer.Serializer;
+import com.ivanfoong.cache.serializer.Serializers;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Memory mapped checkpoint of a {@link DiskCache} index, which can be queried for a single key before it has been
+ * loaded, and loaded a chunk at a time by several threads.
+ *
+ * Entries are grouped into buckets of about {@link #ENTRIES_PER_BUCKET} by the hash of their serialized key, and a
+ * table of bucket offsets follows the header, so a lookup reads a single bucket. Segment filenames are written once
+ * in the header and referred to by their position. The layout is
+ *
+ * <pre>
+ * int version, int entry count, int bucket count, int filename count, UTF filename...
+ * long bucket offset... (bucket count + 1 of them, the last being the offset of the bucket CRCs)
+ * entry... (int key length, key bytes, int filename, long offset, int length, int record key length,
+ *           long expiry time, long time to idle)
+ * int bucket CRC... (CRC32 of the entries of each bucket)
+ * int CRC32 of the header, the bucket offsets and the bucket CRCs
+ * </pre>
+ *
+ * The header is checked when the checkpoint is opened, and a bucket before any of its entries is used, so damage
+ * anywhere in the file is reported as an IOException rather than loaded as a wrong index.
+ *
+ * Only reads the mapped buffer with absolute gets, so it is safe to use from any number of threads.
+ */
+final class DiskCacheCheckpoint {
+
+    static final int VERSION = 5;
+    static final int ENTRIES_PER_BUCKET = 16;
+    static final int BUCKETS_PER_CHUNK = 1024;
+    static final int ENTRY_HEADER_SIZE = 40; // every field of an entry but the key bytes
+
+    final ByteBuffer mBuffer;
+    final int mEntryCount;
+    final int mBucketCount;
+    final String[] mFilenames;
+    final int mBucketTableOffset;
+    final int mBucketCrcOffset;
+
+    DiskCacheCheckpoint(final ByteBuffer aBuffer) throws IOException {
+        mBuffer = aBuffer;
+        final ByteBuffer header = aBuffer.duplicate();
+        final ByteBufferInput input = new ByteBufferInput(header);
+        input.readInt(); // version
+        mEntryCount = input.readInt();
+        mBucketCount = input.readInt();
+        final int filenameCount = input.readInt();
+        if (mEntryCount < 0 || mBucketCount < 1 || filenameCount < 0 || filenameCount > aBuffer.capacity() / 2) {
+            throw new IOException("Corrupt checkpoint header");
+        }
+        mFilenames = new String[filenameCount];
+        for (int i = 0; i < filenameCount; i++) {
+            mFilenames[i] = input.readUTF();
+        }
+        mBucketTableOffset = header.position();
+        final long bucketTableEnd = (long) mBucketTableOffset + 8L * (mBucketCount + 1);
+        if (bucketTableEnd > aBuffer.capacity()) {
+            throw new IOException("Corrupt checkpoint bucket table");
+        }
+        final long bucketCrcOffset = bucketOffset(mBucketCount);
+        if (bucketCrcOffset < bucketTableEnd || bucketCrcOffset + 4L * mBucketCount + 4 != aBuffer.capacity()) {
+            throw new IOException("Corrupt checkpoint bucket table");
+        }
+        mBucketCrcOffset = (int) bucketCrcOffset;
+
+        final CRC32 crc = new CRC32();
+        crc.update(slice(0, (int) bucketTableEnd));
+        crc.update(slice(mBucketCrcOffset, aBuffer.capacity() - 4));
+        if (aBuffer.getInt(aBuffer.capacity() - 4) != (int) crc.getValue()) {
+            throw new IOException("Checkpoint header does not match its checksum");
+        }
+    }
+
+    /**
+     * @throws IOException if aFile is not a checkpoint of this version, or is damaged
+     */
+    static DiskCacheCheckpoint open(final File aFile) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(aFile, "r");
+        try {
+            final int version = file.length() < 4 ? -1 : file.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported checkpoint version %d", version));
+            }
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Checkpoint %s is too large to be mapped", aFile));
+            }
+            return new DiskCacheCheckpoint(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    int getEntryCount() {
+        return mEntryCount;
+    }
+
+    int getChunkCount() {
+        return (mBucketCount + BUCKETS_PER_CHUNK - 1) / BUCKETS_PER_CHUNK;
+    }
+
+    /**
+     * @return the index of the key serialized as aKeyBytes, or null when it is not in the checkpoint
+     */
+    DiskCacheIndex find(final byte[] aKeyBytes) throws IOException {
+        final int bucket = bucketOf(aKeyBytes, mBucketCount);
+        checkBucket(bucket);
+        final int end = (int) bucketOffset(bucket + 1);
+        int position = (int) bucketOffset(bucket);
+        while (position < end) {
+            final int keyLength = mBuffer.getInt(position);
+            if (keyLength == aKeyBytes.length && keyEquals(position + 4, aKeyBytes)) {
+                return readIndex(position + 4 + keyLength);
+            }
+            position += ENTRY_HEADER_SIZE + keyLength;
+        }
+        return null;
+    }
+
+    /**
+     * Deserializes the entries of the aChunk-th run of {@link #BUCKETS_PER_CHUNK} buckets into aFileIndexes.
+     */
+    <K> void load(final int aChunk, final Serializer<K> aKeySerializer, final Map<K, DiskCacheIndex> aFileIndexes) throws IOException {
+        final int firstBucket = aChunk * BUCKETS_PER_CHUNK;
+        final int lastBucket = Math.min(mBucketCount, firstBucket + BUCKETS_PER_CHUNK);
+        for (int bucket = firstBucket; bucket < lastBucket; bucket++) {
+            checkBucket(bucket);
+        }
+        final int start = (int) bucketOffset(firstBucket);
+        final int end = (int) bucketOffset(lastBucket);
+        int position = start;
+        while (position < end) {
+            final int keyLength = mBuffer.getInt(position);
+            if (keyLength < 0 || (long) position + ENTRY_HEADER_SIZE + keyLength > end) {
+                throw new IOException(String.format("Corrupt checkpoint entry at %d", position));
+            }
+            final byte[] keyBytes = new byte[keyLength];
+            final ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(position + 4);
+            buffer.get(keyBytes);
+            aFileIndexes.put(Serializers.fromBytes(aKeySerializer, keyBytes), readIndex(position + 4 + keyLength));
+            position += ENTRY_HEADER_SIZE + keyLength;
+        }
+    }
+
+    long bucketOffset(final int aBucket) {
+        return mBuffer.getLong(mBucketTableOffset + 8 * aBucket);
+    }
+
+    void checkBucket(final int aBucket) throws IOException {
+        final long start = bucketOffset(aBucket);
+        final long end = bucketOffset(aBucket + 1);
+        if (start > end || end > mBucketCrcOffset) {
+            throw new IOException(String.format("Corrupt checkpoint bucket %d", aBucket));
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(slice((int) start, (int) end));
+        if (mBuffer.getInt(mBucketCrcOffset + 4 * aBucket) != (int) crc.getValue()) {
+            throw new IOException(String.format("Checkpoint bucket %d does not match its checksum", aBucket));
+        }
+    }
+
+    ByteBuffer slice(final int aStart, final int aEnd) {
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.limit(aEnd);
+        buffer.position(aStart);
+        return buffer;
+    }
+
+    boolean keyEquals(final int aPosition, final byte[] aKeyBytes) {
+        for (int i = 0; i < aKeyBytes.length; i++) {
+            if (mBuffer.get(aPosition + i) != aKeyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    DiskCacheIndex readIndex(final int aPosition) throws IOException {
+        final int filename = mBuffer.getInt(aPosition);
+        if (filename < 0 || filename >= mFilenames.length) {
+            throw new IOException(String.format("Corrupt checkpoint entry at %d", aPosition));
+        }
+        final DiskCacheIndex fileIndex = new DiskCacheIndex(mFilenames[filename], mBuffer.getLong(aPosition + 4),
+                mBuffer.getInt(aPosition + 12), mBuffer.getInt(aPosition + 16));
+        fileIndex.setExpiry(mBuffer.getLong(aPosition + 20), mBuffer.getLong(aPosition + 28), 0);
+        return fileIndex;
+    }
+
+    static int bucketOf(final byte[] aKeyBytes, final int aBucketCount) {
+        return (int) ((DiskCacheBloomFilter.hash(aKeyBytes) & Long.MAX_VALUE) % aBucketCount);
+    }
+
+    /**
+     * Writes aFileIndexes to a temporary file renamed over aFile, so that a crash never leaves a partly written
+     * checkpoint, and so that a checkpoint still mapped is never truncated underneath its readers.
+     */
+    static <K> void write(final File aFile, final Map<K, DiskCacheIndex> aFileIndexes, final Serializer<K> aKeySerializer) throws IOException {
+        final int size = aFileIndexes.size();
+        final int bucketCount = Math.max(1, (size + ENTRIES_PER_BUCKET - 1) / ENTRIES_PER_BUCKET);
+        final byte[][] keys = new byte[size][];
+        final DiskCacheIndex[] fileIndexes = new DiskCacheIndex[size];
+        final int[] buckets = new int[size];
+        final int[] bucketStarts = new int[bucketCount + 1];
+        final long[] bucketSizes = new long[bucketCount];
+        final LinkedHashMap<String, Integer> filenames = new LinkedHashMap<String, Integer>();
+
+        int count = 0;
+        for (final Map.Entry<K, DiskCacheIndex> entry : aFileIndexes.entrySet()) {
+            keys[count] = Serializers.toBytes(aKeySerializer, entry.getKey());
+            fileIndexes[count] = entry.getValue();
+            buckets[count] = bucketOf(keys[count], bucketCount);
+            bucketStarts[buckets[count] + 1]++;
+            bucketSizes[buckets[count]] += ENTRY_HEADER_SIZE + keys[count].length;
+            if (!filenames.containsKey(entry.getValue().getFilename())) {
+                filenames.put(entry.getValue().getFilename(), filenames.size());
+            }
+            count++;
+        }
+
+        // counting sort of the entries by bucket
+        for (int i = 0; i < bucketCount; i++) {
+            bucketStarts[i + 1] += bucketStarts[i];
+        }
+        final int[] order = new int[size];
+        final int[] next = bucketStarts.clone();
+        for (int i = 0; i < size; i++) {
+            order[next[buckets[i]]++] = i;
+        }
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final DataOutputStream headerOutput = new DataOutputStream(header);
+        headerOutput.writeInt(VERSION);
+        headerOutput.writeInt(size);
+        headerOutput.writeInt(bucketCount);
+        headerOutput.writeInt(filenames.size());
+        for (final String filename : filenames.keySet()) {
+            headerOutput.writeUTF(filename);
+        }
+        headerOutput.flush();
+
+        final ByteBuffer bucketOffsets = ByteBuffer.allocate(8 * (bucketCount + 1));
+        long offset = header.size() + bucketOffsets.capacity();
+        for (int i = 0; i < bucketCount; i++) {
+            bucketOffsets.putLong(offset);
+            offset += bucketSizes[i];
+        }
+        bucketOffsets.putLong(offset);
+
+        final File temporaryFile = new File(aFile.getPath() + ".tmp");
+        final FileOutputStream file = new FileOutputStream(temporaryFile);
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            output.write(header.toByteArray());
+            output.write(bucketOffsets.array());
+
+            final ByteBuffer bucketCrcs = ByteBuffer.allocate(4 * bucketCount);
+            final CRC32 crc = new CRC32();
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                crc.reset();
+                for (int j = bucketStarts[bucket]; j < bucketStarts[bucket + 1]; j++) {
+                    final int i = order[j];
+                    final DiskCacheIndex fileIndex = fileIndexes[i];
+                    final ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE + keys[i].length);
+                    entry.putInt(keys[i].length);
+                    entry.put(keys[i]);
+                    entry.putInt(filenames.get(fileIndex.getFilename()));
+                    entry.putLong(fileIndex.getOffset());
+                    entry.putInt(fileIndex.getLength());
+                    entry.putInt(fileIndex.getKeyLength());
+                    entry.putLong(fileIndex.getExpiryTime());
+                    entry.putLong(fileIndex.getTimeToIdle());
+                    crc.update(entry.array());
+                    output.write(entry.array());
+                }
+                bucketCrcs.putInt((int) crc.getValue());
+            }
+            output.write(bucketCrcs.array());
+
+            crc.reset();
+            crc.update(header.toByteArray());
+            crc.update(bucketOffsets.array());
+            crc.update(bucketCrcs.array());
+            output.writeInt((int) crc.getValue());
+            output.flush();
+            file.getFD().sync(); // durable before it is renamed into place
+        }
+        finally {
+            output.close();
+        }
+        if (!temporaryFile.renameTo(aFile)) {
+            aFile.delete();
+            if (!temporaryFile.renameTo(aFile)) {
+                temporaryFile.delete();
+                throw new IOException(String.format("Unable to rename %s to %s", temporaryFile, aFile));
+            }
+        }
+    }
+}
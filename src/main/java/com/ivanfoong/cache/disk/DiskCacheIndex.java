@@ -1,19 +1,104 @@
 package com.ivanfoong.cache.disk;
 
+import com.ivanfoong.cache.TimerWheel;
+
 import java.io.Serializable;
-import java.util.Date;
 
 /**
  * Created by ivanfoong on 8/10/15.
  */
 public class DiskCacheIndex implements Serializable {
+    // pinned to the value computed before offsets were added, so older index files can still be migrated
+    private static final long serialVersionUID = -1907825631957470176L;
+
     String mFilename;
+    long mOffset;
+    int mLength;
+    int mKeyLength;
+    long mExpiryTime; // 0 if the value does not expire a fixed time after it was put
+    long mTimeToIdle; // 0 if the value does not expire once it has not been read for a while
+    transient long mAccessTime; // not persisted, entries count as read when the cache is opened
+    transient int mAccessCount; // not persisted, reads since the value was put, halved whenever the cache evicts
+    transient TimerWheel.Timer<?> mTimer;
 
-    public DiskCacheIndex(final String aFilename) {
+    public DiskCacheIndex(final String aFilename, final long aOffset, final int aLength, final int aKeyLength) {
         mFilename = aFilename;
+        mOffset = aOffset;
+        mLength = aLength;
+        mKeyLength = aKeyLength;
     }
 
     public String getFilename() {
         return mFilename;
     }
+
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getKeyLength() {
+        return mKeyLength;
+    }
+
+    public long getExpiryTime() {
+        return mExpiryTime;
+    }
+
+    public long getTimeToIdle() {
+        return mTimeToIdle;
+    }
+
+    void setExpiry(final long aExpiryTime, final long aTimeToIdle, final long aAccessTime) {
+        mExpiryTime = aExpiryTime;
+        mTimeToIdle = aTimeToIdle;
+        mAccessTime = aAccessTime;
+    }
+
+    /**
+     * Carries the expiry and access count of aFileIndex over to this index, for a value which has been moved to
+     * another segment.
+     */
+    void copyExpiry(final DiskCacheIndex aFileIndex) {
+        setExpiry(aFileIndex.mExpiryTime, aFileIndex.mTimeToIdle, aFileIndex.mAccessTime);
+        mAccessCount = aFileIndex.mAccessCount;
+        mTimer = aFileIndex.mTimer;
+    }
+
+    public boolean isExpiring() {
+        return mExpiryTime != 0 || mTimeToIdle != 0;
+    }
+
+    public boolean isExpired(final long aNow) {
+        return (mExpiryTime != 0 && aNow >= mExpiryTime) || (mTimeToIdle != 0 && aNow - mAccessTime >= mTimeToIdle);
+    }
+
+    /**
+     * @return the time at which the value expires unless it is read again, Long.MAX_VALUE if it never expires
+     */
+    public long getNextExpiryTime() {
+        long expiryTime = mExpiryTime != 0 ? mExpiryTime : Long.MAX_VALUE;
+        if (mTimeToIdle != 0) {
+            expiryTime = Math.min(expiryTime, mAccessTime + mTimeToIdle);
+        }
+        return expiryTime;
+    }
+
+    /**
+     * @return the size of the whole record in the segment, including its header and key
+     */
+    public int getRecordSize() {
+        return DiskCacheLog.RECORD_HEADER_SIZE + mKeyLength + mLength;
+    }
+
+    /**
+     * @return true if this index points into a segment file rather than a per hash code bucket file written by
+     * older versions
+     */
+    public boolean isSegment() {
+        return DiskCacheLog.isSegmentFilename(mFilename);
+    }
 }
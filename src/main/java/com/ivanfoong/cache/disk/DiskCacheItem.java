@@ -7,16 +7,42 @@ import java.util.Date;
  * Created by ivanfoong on 8/10/15.
  */
 public class DiskCacheItem<T> implements Serializable {
+    // pinned to the value computed before expiry was added, so older bucket files can still be migrated
+    private static final long serialVersionUID = 7262793013284173960L;
+
     T mItem;
+    long mExpiryTime; // 0 if the item does not expire a fixed time after it was put
+    long mTimeToIdle; // 0 if the item does not expire once it has not been read for a while
 
     public DiskCacheItem(final T aItem) {
+        this(aItem, 0, 0);
+    }
+
+    public DiskCacheItem(final T aItem, final long aExpiryTime, final long aTimeToIdle) {
         mItem = aItem;
+        mExpiryTime = aExpiryTime;
+        mTimeToIdle = aTimeToIdle;
+    }
+
+    /**
+     * @return an item put at aNow which expires after the given times, where 0 means no limit
+     */
+    public static <T> DiskCacheItem<T> expiringAfter(final T aItem, final long aNow, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
+        return new DiskCacheItem<T>(aItem, aTimeToLiveMillis > 0 ? aNow + aTimeToLiveMillis : 0, Math.max(0, aTimeToIdleMillis));
     }
 
     public T getItem() {
         return mItem;
     }
 
+    public long getExpiryTime() {
+        return mExpiryTime;
+    }
+
+    public long getTimeToIdle() {
+        return mTimeToIdle;
+    }
+
     @Override public boolean equals(Object o) {
         if (o == null) {
             return false;
@@ -26,7 +52,7 @@ public class DiskCacheItem<T> implements Serializable {
             return false;
         }
 
-        DiskCacheItem<T> other = (DiskCacheItem<T>) o;
+        DiskCacheItem<?> other = (DiskCacheItem<?>) o;
         return getItem().equals(other.getItem());
     }
 
@@ -0,0 +1,249 @@
+package com.ivanfoong.cache.disk;
+
+import com.ivanfoong.cache.serializer.Serializer;
+import com.ivanfoong.cache.serializer.Serializers;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the index mutations made since the last checkpoint of {@link DiskCache#mFileIndexes}.
+ *
+ * Every put or remove costs one small record instead of a rewrite of the whole index, and opening the cache loads
+ * the checkpoint and replays the journal on top of it. Replaying is idempotent, so a journal that survived a crash
+ * right after a newer checkpoint was written still yields the right index.
+ *
+ * Records are written in {@link #RECORD_CHECKED} frames, one per write, so a frame torn or damaged by a crash is
+ * noticed by its CRC and dropped along with everything after it, and a batch of puts is applied entirely or not at
+ * all.
+ *
+ * Not thread safe, callers are expected to synchronize.
+ */
+final class DiskCacheJournal {
+
+    static final String JOURNAL_FILENAME = "index.journal";
+    static final byte RECORD_PUT = 1;
+    static final byte RECORD_REMOVE = 2;
+    static final byte RECORD_PUT_EXPIRING = 3; // a put followed by the expiry time and time to idle of the value
+    static final byte RECORD_CHECKED = 4; // length and CRC32 of the records which follow
+
+    final File mJournalFile;
+    FileChannel mChannel;
+    long mPosition;
+    int mRecordCount;
+
+    DiskCacheJournal(final File aDirectory) {
+        mJournalFile = new File(aDirectory, JOURNAL_FILENAME);
+    }
+
+    /**
+     * Applies the journaled mutations to aFileIndexes and opens the journal for appending, dropping any torn
+     * record left at the tail by a crash. Removed keys are also added to aRemovedKeys unless it is null, for when
+     * aFileIndexes holds only the mutations made since a checkpoint which has not been loaded yet.
+     */
+    <K> void replay(final Map<K, DiskCacheIndex> aFileIndexes, final Set<K> aRemovedKeys, final Serializer<K> aKeySerializer, final DiskCacheBloomFilter aBloomFilter) throws IOException {
+        long validLength = 0;
+        int recordCount = 0;
+
+        if (mJournalFile.exists()) {
+            final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            final DataInputStream input = new DataInputStream(counter);
+            try {
+                while (true) {
+                    final int type = input.read();
+                    if (type != RECORD_CHECKED) {
+                        break;
+                    }
+                    final int length = input.readInt();
+                    final int checksum = input.readInt();
+                    if (length < 0 || length > mJournalFile.length()) {
+                        break;
+                    }
+                    final byte[] records = new byte[length];
+                    input.readFully(records);
+                    final CRC32 crc = new CRC32();
+                    crc.update(records);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    final DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(records));
+                    int recordType;
+                    while ((recordType = recordInput.read()) >= 0) {
+                        if (!replayRecord(recordType, recordInput, length, aFileIndexes, aRemovedKeys, aKeySerializer, aBloomFilter)) {
+                            throw new IOException(String.format("Unknown journal record type %d", recordType));
+                        }
+                        recordCount++;
+                    }
+
+                    validLength = counter.getCount();
+                }
+            } catch (EOFException e) {
+                // torn record at the tail, everything before it is still valid
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                input.close();
+            }
+        }
+
+        mChannel = new RandomAccessFile(mJournalFile, "rw").getChannel();
+        mChannel.truncate(validLength);
+        mPosition = validLength;
+        mRecordCount = recordCount;
+    }
+
+    /**
+     * @return false if the record is not one of the known types, or is implausibly long
+     */
+    static <K> boolean replayRecord(final int aType, final DataInput aInput, final long aMaxLength, final Map<K, DiskCacheIndex> aFileIndexes, final Set<K> aRemovedKeys, final Serializer<K> aKeySerializer, final DiskCacheBloomFilter aBloomFilter) throws IOException {
+        if (aType != RECORD_PUT && aType != RECORD_PUT_EXPIRING && aType != RECORD_REMOVE) {
+            return false;
+        }
+        final int keyLength = aInput.readInt();
+        if (keyLength < 0 || keyLength > aMaxLength) {
+            return false;
+        }
+        final byte[] keyBytes = new byte[keyLength];
+        aInput.readFully(keyBytes);
+        final K key = Serializers.fromBytes(aKeySerializer, keyBytes);
+
+        if (aType == RECORD_REMOVE) {
+            aFileIndexes.remove(key);
+            if (aRemovedKeys != null) {
+                aRemovedKeys.add(key);
+            }
+            return true;
+        }
+
+        final String filename = aInput.readUTF();
+        final long offset = aInput.readLong();
+        final int length = aInput.readInt();
+        final DiskCacheIndex fileIndex = new DiskCacheIndex(filename, offset, length, keyLength);
+        if (aType == RECORD_PUT_EXPIRING) {
+            fileIndex.setExpiry(aInput.readLong(), aInput.readLong(), 0);
+        }
+        aFileIndexes.put(key, fileIndex);
+        if (aBloomFilter != null) {
+            aBloomFilter.add(keyBytes);
+        }
+        return true;
+    }
+
+    void logPut(final byte[] aKey, final DiskCacheIndex aFileIndex) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(aKey.length + 64);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        writePut(output, aKey, aFileIndex);
+        output.flush();
+        append(bytes.toByteArray(), 1);
+    }
+
+    /**
+     * Journals a whole batch of puts with a single write.
+     */
+    void logPutAll(final List<byte[]> aKeys, final List<DiskCacheIndex> aFileIndexes) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(aKeys.size() * 64);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        for (int i = 0; i < aKeys.size(); i++) {
+            writePut(output, aKeys.get(i), aFileIndexes.get(i));
+        }
+        output.flush();
+        append(bytes.toByteArray(), aKeys.size());
+    }
+
+    static void writePut(final DataOutputStream aOutput, final byte[] aKey, final DiskCacheIndex aFileIndex) throws IOException {
+        aOutput.writeByte(aFileIndex.isExpiring() ? RECORD_PUT_EXPIRING : RECORD_PUT);
+        aOutput.writeInt(aKey.length);
+        aOutput.write(aKey);
+        aOutput.writeUTF(aFileIndex.getFilename());
+        aOutput.writeLong(aFileIndex.getOffset());
+        aOutput.writeInt(aFileIndex.getLength());
+        if (aFileIndex.isExpiring()) {
+            aOutput.writeLong(aFileIndex.getExpiryTime());
+            aOutput.writeLong(aFileIndex.getTimeToIdle());
+        }
+    }
+
+    void logRemove(final byte[] aKey) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + aKey.length);
+        buffer.put(RECORD_REMOVE);
+        buffer.putInt(aKey.length);
+        buffer.put(aKey);
+        append(buffer.array(), 1);
+    }
+
+    void append(final byte[] aRecords, final int aRecordCount) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(aRecords);
+        final ByteBuffer frame = ByteBuffer.allocate(1 + 4 + 4 + aRecords.length);
+        frame.put(RECORD_CHECKED);
+        frame.putInt(aRecords.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(aRecords);
+        frame.flip();
+        DiskCacheLog.writeFully(mChannel, frame, mPosition);
+        mPosition += frame.limit();
+        mRecordCount += aRecordCount;
+    }
+
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Discards every record, to be called once a checkpoint containing them has been written.
+     */
+    void reset() throws IOException {
+        mChannel.truncate(0);
+        mPosition = 0;
+        mRecordCount = 0;
+    }
+
+    void close() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static final class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(final InputStream aInputStream) {
+            super(aInputStream);
+        }
+
+        @Override public int read() throws IOException {
+            final int result = super.read();
+            if (result >= 0) {
+                mCount++;
+            }
+            return result;
+        }
+
+        @Override public int read(final byte[] aBuffer, final int aOffset, final int aLength) throws IOException {
+            final int result = super.read(aBuffer, aOffset, aLength);
+            if (result > 0) {
+                mCount += result;
+            }
+            return result;
+        }
+
+        @Override public long skip(final long aCount) throws IOException {
+            final long result = super.skip(aCount);
+            mCount += result;
+            return result;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
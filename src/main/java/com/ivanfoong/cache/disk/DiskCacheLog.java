@@ -0,0 +1,590 @@
+package com.ivanfoong.cache.disk;
+
+import com.ivanfoong.cache.codec.Codec;
+import com.ivanfoong.cache.codec.Codecs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segment files backing {@link DiskCache}.
+ *
+ * Every record is laid out as {@code [int keyLength][int valueLength][int crc][key][value]}, the CRC32 being that
+ * of the key and value, and is only ever appended to the active segment, which is rolled over once it reaches the
+ * maximum segment size. Overwritten and removed values are released back so that dead segments can be deleted and
+ * the log compacted.
+ *
+ * Removing a key appends a tombstone, a record with a value length of {@link #TOMBSTONE_LENGTH} and no value, so
+ * that a scan of the segments does not bring back a removed value. Segments are only ever deleted oldest first, so
+ * a tombstone is never deleted before the older records of its key.
+ *
+ * When compression is enabled, values of at least the compression threshold are stored compressed when that makes
+ * them smaller, with the id of the {@link Codec} in the top byte of the key length, so keys are limited to
+ * {@link #MAX_KEY_LENGTH} bytes. Records written without compression have a 0 there, so compressed and uncompressed
+ * records mix freely and are read back as the bytes they were appended with.
+ *
+ * Segments start with {@link #SEGMENT_MAGIC}. Records are checked against their CRC whenever they are read, so a
+ * damaged record reads as missing. Every time the log is opened a new segment is started, so a record torn by a
+ * crash is only ever at the tail of a segment, where {@link #scan(String, RecordVisitor)} stops.
+ *
+ * Appends are left to the page cache until {@link #sync()}, which {@link DiskCache} calls before every checkpoint.
+ *
+ * Segments other than the active one never change, so when memory mapping is enabled they are mapped read only on
+ * first use and values are sliced straight out of the page cache.
+ *
+ * Not thread safe, callers are expected to synchronize.
+ */
+final class DiskCacheLog {
+
+    static final String SEGMENT_EXTENSION = ".log";
+    static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final int SEGMENT_MAGIC = 0x49464c32; // "IFL2"
+    static final int SEGMENT_HEADER_SIZE = 4;
+    static final int MAX_WRITE_SIZE = 1024 * 1024;
+    static final int MAX_KEY_LENGTH = 0xffffff;
+    static final int CODEC_SHIFT = 24;
+    static final int TOMBSTONE_LENGTH = -1;
+
+    final File mDirectory;
+    final long mMaxSegmentSize;
+    final HashMap<String, FileChannel> mChannels;
+    final HashMap<String, Long> mLiveBytes;
+    long mTotalLiveBytes; // sum of mLiveBytes
+    final HashMap<String, Long> mSegmentSizes;
+    final HashMap<String, MappedByteBuffer> mMappedSegments;
+    final HashSet<String> mUnsyncedSegments; // written to since the last sync
+    boolean mMemoryMapped;
+    boolean mKeepingDeadSegments; // while live bytes are still being added, when no segment can be told dead
+    Codec mCodec; // null when values are stored as they are
+    int mCompressionThreshold;
+    int mActiveSegmentId;
+    String mActiveFilename;
+    long mActivePosition;
+
+    DiskCacheLog(final File aDirectory, final long aMaxSegmentSize) throws IOException {
+        mDirectory = aDirectory;
+        mMaxSegmentSize = aMaxSegmentSize;
+        mChannels = new HashMap<String, FileChannel>();
+        mLiveBytes = new HashMap<String, Long>();
+        mSegmentSizes = new HashMap<String, Long>();
+        mMappedSegments = new HashMap<String, MappedByteBuffer>();
+        mUnsyncedSegments = new HashSet<String>();
+
+        int lastSegmentId = -1;
+        long lastSegmentSize = 0;
+        for (final String filename : listSegmentFilenames()) {
+            final long size = new File(mDirectory, filename).length();
+            if (segmentId(filename) > lastSegmentId) {
+                lastSegmentId = segmentId(filename);
+                lastSegmentSize = size;
+            }
+            mLiveBytes.put(filename, 0L);
+            mSegmentSizes.put(filename, size);
+        }
+        // never append after what may be a torn record
+        openActiveSegment(lastSegmentId < 0 ? 0 : lastSegmentSize > SEGMENT_HEADER_SIZE ? lastSegmentId + 1 : lastSegmentId);
+    }
+
+    String generateFilename(final int aSegmentId) {
+        return String.format("%d%s", aSegmentId, SEGMENT_EXTENSION);
+    }
+
+    static int segmentId(final String aFilename) {
+        return Integer.parseInt(aFilename.substring(0, aFilename.length() - SEGMENT_EXTENSION.length()));
+    }
+
+    static boolean isSegmentFilename(final String aFilename) {
+        if (!aFilename.endsWith(SEGMENT_EXTENSION) || aFilename.length() == SEGMENT_EXTENSION.length()) {
+            return false;
+        }
+        for (int i = 0; i < aFilename.length() - SEGMENT_EXTENSION.length(); i++) {
+            if (!Character.isDigit(aFilename.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the segment filenames in the order they were written
+     */
+    List<String> sortedSegmentFilenames() {
+        final List<String> filenames = new ArrayList<String>(mLiveBytes.keySet());
+        Collections.sort(filenames, new Comparator<String>() {
+            public int compare(final String aFilename, final String aOtherFilename) {
+                return Integer.compare(segmentId(aFilename), segmentId(aOtherFilename));
+            }
+        });
+        return filenames;
+    }
+
+    List<String> listSegmentFilenames() {
+        final List<String> filenames = new ArrayList<String>();
+        final String[] names = mDirectory.list(new FilenameFilter() {
+            public boolean accept(final File aDirectory, final String aName) {
+                return isSegmentFilename(aName);
+            }
+        });
+        if (names != null) {
+            for (final String name : names) {
+                filenames.add(name);
+            }
+        }
+        return filenames;
+    }
+
+    /**
+     * @return the location of the value bytes inside the segment, suitable for {@link #read(DiskCacheIndex)}
+     */
+    DiskCacheIndex append(final byte[] aKey, final byte[] aValue) throws IOException {
+        return appendAll(Collections.singletonList(aKey), Collections.singletonList(aValue)).get(0);
+    }
+
+    /**
+     * Appends a tombstone for each key, which are never live, with as few writes as {@link #appendAll(List, List)}.
+     */
+    void appendTombstones(final List<byte[]> aKeys) throws IOException {
+        appendAll(aKeys, Collections.<byte[]>nCopies(aKeys.size(), null));
+    }
+
+    /**
+     * Appends one record per key and value pair, writing as many records as fit into the active segment (up to
+     * {@link #MAX_WRITE_SIZE}) with a single write. A null value appends a tombstone.
+     *
+     * @return the location of each value, in the same order as the given keys, null for a tombstone
+     */
+    List<DiskCacheIndex> appendAll(final List<byte[]> aKeys, final List<byte[]> aValues) throws IOException {
+        final List<DiskCacheIndex> fileIndexes = new ArrayList<DiskCacheIndex>(aKeys.size());
+        final List<byte[]> values = new ArrayList<byte[]>(aValues.size());
+        final int[] codecIds = new int[aValues.size()];
+        for (int i = 0; i < aKeys.size(); i++) {
+            if (aKeys.get(i).length > MAX_KEY_LENGTH) {
+                throw new IOException(String.format("Key of %d bytes is longer than %d bytes", aKeys.get(i).length, MAX_KEY_LENGTH));
+            }
+            byte[] value = aValues.get(i);
+            if (value != null && mCodec != null && value.length >= mCompressionThreshold) {
+                final byte[] compressed = mCodec.compress(value);
+                if (compressed.length < value.length) {
+                    value = compressed;
+                    codecIds[i] = mCodec.getId();
+                }
+            }
+            values.add(value);
+        }
+
+        int start = 0;
+        while (start < aKeys.size()) {
+            int end = start;
+            int writeSize = 0;
+            while (end < aKeys.size()) {
+                final int recordSize = RECORD_HEADER_SIZE + aKeys.get(end).length + (values.get(end) != null ? values.get(end).length : 0);
+                final boolean segmentFull = mActivePosition + writeSize > SEGMENT_HEADER_SIZE && mActivePosition + writeSize + recordSize > mMaxSegmentSize;
+                if (segmentFull || (writeSize > 0 && writeSize + recordSize > MAX_WRITE_SIZE)) {
+                    break;
+                }
+                writeSize += recordSize;
+                end++;
+            }
+            if (end == start) {
+                openActiveSegment(mActiveSegmentId + 1);
+                continue;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(writeSize);
+            for (int i = start; i < end; i++) {
+                final byte[] key = aKeys.get(i);
+                final byte[] value = values.get(i);
+                final long valuePosition = mActivePosition + buffer.position() + RECORD_HEADER_SIZE + key.length;
+                final CRC32 crc = new CRC32();
+                crc.update(key);
+                if (value == null) {
+                    buffer.putInt(key.length);
+                    buffer.putInt(TOMBSTONE_LENGTH);
+                    buffer.putInt((int) crc.getValue());
+                    buffer.put(key);
+                    fileIndexes.add(null);
+                    continue;
+                }
+                crc.update(value);
+                buffer.putInt(codecIds[i] << CODEC_SHIFT | key.length);
+                buffer.putInt(value.length);
+                buffer.putInt((int) crc.getValue());
+                buffer.put(key);
+                buffer.put(value);
+                final DiskCacheIndex fileIndex = new DiskCacheIndex(mActiveFilename, valuePosition, value.length, key.length);
+                fileIndexes.add(fileIndex);
+                addLiveBytes(mActiveFilename, fileIndex.getRecordSize());
+            }
+            buffer.flip();
+
+            mUnsyncedSegments.add(mActiveFilename);
+            writeFully(channel(mActiveFilename), buffer, mActivePosition);
+            mActivePosition += writeSize;
+            mSegmentSizes.put(mActiveFilename, mActivePosition);
+            start = end;
+        }
+        return fileIndexes;
+    }
+
+    /**
+     * @return the value bytes as they were appended, or null if the segment no longer exists
+     */
+    byte[] read(final DiskCacheIndex aIndex) throws IOException {
+        final ByteBuffer buffer = readBuffer(aIndex);
+        if (buffer == null) {
+            return null;
+        }
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.remaining()) {
+            return buffer.array();
+        }
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return a buffer positioned over the value bytes as they were appended, which is a slice of the mapped segment
+     * if memory mapping is enabled and the value is not compressed, or null if the segment no longer exists
+     * @throws IOException if the record does not match its CRC, or was compressed with an unknown codec
+     */
+    ByteBuffer readBuffer(final DiskCacheIndex aIndex) throws IOException {
+        if (!mLiveBytes.containsKey(aIndex.getFilename())) {
+            return null;
+        }
+
+        // the whole record is read to check it against its CRC
+        final long start = aIndex.getOffset() - aIndex.getKeyLength() - RECORD_HEADER_SIZE;
+        final int length = aIndex.getRecordSize();
+        if (start < 0) {
+            throw new IOException(String.format("Damaged record at %d in segment %s", aIndex.getOffset(), aIndex.getFilename()));
+        }
+
+        ByteBuffer buffer = null;
+        if (mMemoryMapped && !aIndex.getFilename().equals(mActiveFilename)) {
+            final MappedByteBuffer mappedSegment = mappedSegment(aIndex.getFilename());
+            if (mappedSegment != null) {
+                if (start + length > mappedSegment.capacity()) {
+                    throw new IOException(String.format("Unexpected end of segment %s", aIndex.getFilename()));
+                }
+                buffer = mappedSegment.duplicate();
+                buffer.position((int) start);
+                buffer.limit((int) start + length);
+            }
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(length);
+            final FileChannel channel = channel(aIndex.getFilename());
+            long position = start;
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException(String.format("Unexpected end of segment %s", aIndex.getFilename()));
+                }
+                position += read;
+            }
+            buffer.flip();
+        }
+
+        final int codecId = checkRecord(buffer, aIndex);
+        buffer.position(buffer.position() + RECORD_HEADER_SIZE + aIndex.getKeyLength());
+        if (codecId != 0) {
+            final byte[] value = new byte[buffer.remaining()];
+            buffer.get(value);
+            return ByteBuffer.wrap(decompress(codecId, value));
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the id of the codec the value was compressed with, 0 if it was not
+     */
+    static int checkRecord(final ByteBuffer aRecord, final DiskCacheIndex aIndex) throws IOException {
+        final int start = aRecord.position();
+        final ByteBuffer body = aRecord.duplicate();
+        body.position(start + RECORD_HEADER_SIZE);
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        final int keyLength = aRecord.getInt(start);
+        if ((keyLength & MAX_KEY_LENGTH) != aIndex.getKeyLength() || aRecord.getInt(start + 4) != aIndex.getLength()
+                || aRecord.getInt(start + 8) != (int) crc.getValue()) {
+            throw new IOException(String.format("Damaged record at %d in segment %s", aIndex.getOffset(), aIndex.getFilename()));
+        }
+        return keyLength >>> CODEC_SHIFT;
+    }
+
+    byte[] decompress(final int aCodecId, final byte[] aValue) throws IOException {
+        final Codec codec = mCodec != null && mCodec.getId() == aCodecId ? mCodec : Codecs.forId(aCodecId);
+        if (codec == null) {
+            throw new IOException(String.format("Value compressed with unknown codec %d", aCodecId));
+        }
+        return codec.decompress(aValue);
+    }
+
+    /**
+     * Compresses values of at least aThreshold bytes appended from now on with aCodec, or stops compressing them
+     * when aCodec is null. Values compressed with the built in codecs can be read whichever codec is set, those
+     * compressed with any other only while it is set.
+     */
+    void setCompression(final Codec aCodec, final int aThreshold) {
+        if (aCodec != null && (aCodec.getId() < 1 || aCodec.getId() > 255)) {
+            throw new IllegalArgumentException(String.format("Codec id %d must be between 1 and 255", aCodec.getId()));
+        }
+        mCodec = aCodec;
+        mCompressionThreshold = aThreshold;
+    }
+
+    interface RecordVisitor {
+        /**
+         * @param aValue the value, null for a tombstone
+         * @param aIndex the index of the value, null for a tombstone
+         */
+        void visit(byte[] aKey, byte[] aValue, DiskCacheIndex aIndex) throws IOException;
+    }
+
+    /**
+     * Reads the records of a segment in the order they were written, stopping at the first one which is damaged or
+     * torn. Values are visited decompressed, along with the index of their bytes as stored, and tombstones with a
+     * null value.
+     */
+    void scan(final String aFilename, final RecordVisitor aVisitor) throws IOException {
+        final File file = new File(mDirectory, aFilename);
+        final long size = file.length();
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (size < SEGMENT_HEADER_SIZE || input.readInt() != SEGMENT_MAGIC) {
+                return;
+            }
+            long position = SEGMENT_HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= size) {
+                final int header = input.readInt();
+                final int keyLength = header & MAX_KEY_LENGTH;
+                final int codecId = header >>> CODEC_SHIFT;
+                final int valueLength = input.readInt();
+                final int checksum = input.readInt();
+                final boolean tombstone = valueLength == TOMBSTONE_LENGTH;
+                final int storedLength = tombstone ? 0 : valueLength;
+                if (storedLength < 0 || position + RECORD_HEADER_SIZE + keyLength + storedLength > size) {
+                    return;
+                }
+                final byte[] key = new byte[keyLength];
+                final byte[] value = new byte[storedLength];
+                input.readFully(key);
+                input.readFully(value);
+                final CRC32 crc = new CRC32();
+                crc.update(key);
+                crc.update(value);
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+                if (tombstone) {
+                    aVisitor.visit(key, null, null);
+                }
+                else {
+                    aVisitor.visit(key, codecId != 0 ? decompress(codecId, value) : value, new DiskCacheIndex(aFilename, position + RECORD_HEADER_SIZE + keyLength, valueLength, keyLength));
+                }
+                position += RECORD_HEADER_SIZE + keyLength + storedLength;
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return the whole segment mapped read only, or null if it is too large to be mapped in one piece
+     */
+    MappedByteBuffer mappedSegment(final String aFilename) throws IOException {
+        MappedByteBuffer mappedSegment = mMappedSegments.get(aFilename);
+        if (mappedSegment == null) {
+            final long size = mSegmentSizes.get(aFilename);
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            mappedSegment = channel(aFilename).map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mMappedSegments.put(aFilename, mappedSegment);
+            closeChannel(aFilename); // the mapping stays valid without it
+        }
+        return mappedSegment;
+    }
+
+    void setMemoryMapped(final boolean aMemoryMapped) {
+        mMemoryMapped = aMemoryMapped;
+        if (!aMemoryMapped) {
+            mMappedSegments.clear();
+        }
+    }
+
+    /**
+     * Marks the record referenced by aIndex as dead, deleting its segment once nothing in it or in any older segment
+     * is live anymore.
+     */
+    void release(final DiskCacheIndex aIndex) {
+        final String filename = aIndex.getFilename();
+        final Long liveBytes = mLiveBytes.get(filename);
+        if (liveBytes == null) {
+            return;
+        }
+        final long remainingBytes = liveBytes - aIndex.getRecordSize();
+        mLiveBytes.put(filename, remainingBytes);
+        mTotalLiveBytes -= aIndex.getRecordSize();
+        if (remainingBytes <= 0 && !mKeepingDeadSegments) {
+            deleteDeadSegments();
+        }
+    }
+
+    void addLiveBytes(final String aFilename, final long aBytes) {
+        final Long liveBytes = mLiveBytes.get(aFilename);
+        mLiveBytes.put(aFilename, (liveBytes == null ? 0L : liveBytes) + aBytes);
+        mTotalLiveBytes += aBytes;
+    }
+
+    /**
+     * Forgets the live bytes of every segment, for them to be counted again from a rebuilt index.
+     */
+    void resetLiveBytes() {
+        for (final Map.Entry<String, Long> entry : mLiveBytes.entrySet()) {
+            entry.setValue(0L);
+        }
+        mTotalLiveBytes = 0;
+    }
+
+    /**
+     * @return the bytes taken by live records, which the segment files exceed by the dead records not compacted yet
+     */
+    long getLiveBytes() {
+        return mTotalLiveBytes;
+    }
+
+    /**
+     * @return the oldest inactive segments, oldest first, whose live records have to be moved to the active segment
+     * for the live bytes to make up at least aLiveRatio of the size of the log
+     */
+    List<String> segmentsToCompact(final double aLiveRatio) {
+        long size = 0;
+        for (final long segmentSize : mSegmentSizes.values()) {
+            size += segmentSize;
+        }
+        final List<String> filenames = new ArrayList<String>();
+        if (mTotalLiveBytes >= size * aLiveRatio) {
+            return filenames;
+        }
+        for (final String filename : sortedSegmentFilenames()) {
+            if (filename.equals(mActiveFilename) || mTotalLiveBytes >= size * aLiveRatio) {
+                break;
+            }
+            filenames.add(filename);
+            size -= mSegmentSizes.get(filename) - mLiveBytes.get(filename); // its live records are appended again
+        }
+        return filenames;
+    }
+
+    /**
+     * Deletes the oldest segments as long as they have no live bytes left, e.g. after the live bytes have been
+     * rebuilt from an index. A dead segment newer than a live one is kept, as its tombstones may still hide records
+     * in the live one, until the live one has been compacted.
+     */
+    void deleteDeadSegments() {
+        for (final String filename : sortedSegmentFilenames()) {
+            if (mLiveBytes.get(filename) > 0 || filename.equals(mActiveFilename)) {
+                return;
+            }
+            deleteSegment(filename);
+        }
+    }
+
+    void deleteSegment(final String aFilename) {
+        closeChannel(aFilename);
+        mMappedSegments.remove(aFilename);
+        final Long liveBytes = mLiveBytes.remove(aFilename);
+        if (liveBytes != null) {
+            mTotalLiveBytes -= liveBytes;
+        }
+        mSegmentSizes.remove(aFilename);
+        mUnsyncedSegments.remove(aFilename);
+        new File(mDirectory, aFilename).delete();
+    }
+
+    void clear() throws IOException {
+        for (final String filename : new ArrayList<String>(mLiveBytes.keySet())) {
+            deleteSegment(filename);
+        }
+        openActiveSegment(0);
+    }
+
+    void close() {
+        for (final String filename : new ArrayList<String>(mChannels.keySet())) {
+            closeChannel(filename);
+        }
+        mMappedSegments.clear();
+    }
+
+    void openActiveSegment(final int aSegmentId) throws IOException {
+        mActiveSegmentId = aSegmentId;
+        mActiveFilename = generateFilename(aSegmentId);
+        if (!mLiveBytes.containsKey(mActiveFilename)) {
+            mLiveBytes.put(mActiveFilename, 0L);
+        }
+        final FileChannel channel = channel(mActiveFilename);
+        if (channel.size() < SEGMENT_HEADER_SIZE) {
+            // too short to hold a record
+            final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt(SEGMENT_MAGIC);
+            header.flip();
+            channel.truncate(0);
+            mUnsyncedSegments.add(mActiveFilename);
+            writeFully(channel, header, 0);
+        }
+        mActivePosition = channel.size();
+        mSegmentSizes.put(mActiveFilename, mActivePosition);
+    }
+
+    /**
+     * Forces every segment written to since the last sync to disk, so that a checkpoint written afterwards never
+     * refers to records which a power loss could still take away.
+     */
+    void sync() throws IOException {
+        for (final String filename : new ArrayList<String>(mUnsyncedSegments)) {
+            channel(filename).force(true); // with the metadata, as appends change the file size
+            mUnsyncedSegments.remove(filename);
+        }
+    }
+
+    FileChannel channel(final String aFilename) throws IOException {
+        FileChannel channel = mChannels.get(aFilename);
+        if (channel == null) {
+            channel = new RandomAccessFile(new File(mDirectory, aFilename), "rw").getChannel();
+            mChannels.put(aFilename, channel);
+        }
+        return channel;
+    }
+
+    void closeChannel(final String aFilename) {
+        final FileChannel channel = mChannels.remove(aFilename);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static void writeFully(final FileChannel aChannel, final ByteBuffer aBuffer, final long aPosition) throws IOException {
+        long position = aPosition;
+        while (aBuffer.hasRemaining()) {
+            position += aChannel.write(aBuffer, position);
+        }
+    }
+}
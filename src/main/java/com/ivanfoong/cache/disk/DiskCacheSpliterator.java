@@ -0,0 +1,87 @@
+package com.ivanfoong.cache.disk;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the entries of a {@link DiskCache}, reading the values a few at a time instead of all at once.
+ *
+ * The keys are snapshotted when the spliterator is created, ordered by segment and offset so that each segment is
+ * read sequentially, and splits fall on segment boundaries so that parallel streams read different files. Values
+ * are read from whatever the index holds for their key when it is reached, so entries removed or expired since the
+ * snapshot are skipped, and entries put since are not seen.
+ */
+final class DiskCacheSpliterator<K extends Serializable, V extends Serializable> implements Spliterator<Map.Entry<K, V>> {
+
+    static final int BATCH_SIZE = 64;
+    static final int MIN_SPLIT_SIZE = 1024; // fewer keys than this within one segment are not worth splitting
+
+    final DiskCache<K, V> mDiskCache;
+    final List<K> mKeys;
+    final int[] mSegmentStarts; // index into mKeys of the first key of each segment, ascending
+    int mPosition;
+    final int mEnd;
+    final ArrayDeque<Map.Entry<K, V>> mBatch = new ArrayDeque<Map.Entry<K, V>>(BATCH_SIZE);
+
+    DiskCacheSpliterator(final DiskCache<K, V> aDiskCache, final List<K> aKeys, final int[] aSegmentStarts,
+                         final int aPosition, final int aEnd) {
+        mDiskCache = aDiskCache;
+        mKeys = aKeys;
+        mSegmentStarts = aSegmentStarts;
+        mPosition = aPosition;
+        mEnd = aEnd;
+    }
+
+    public boolean tryAdvance(final Consumer<? super Map.Entry<K, V>> aAction) {
+        while (mBatch.isEmpty()) {
+            if (mPosition >= mEnd) {
+                return false;
+            }
+            final int batchEnd = Math.min(mEnd, mPosition + BATCH_SIZE);
+            mDiskCache.readEntries(mKeys.subList(mPosition, batchEnd), mBatch);
+            mPosition = batchEnd;
+        }
+        aAction.accept(mBatch.poll());
+        return true;
+    }
+
+    public Spliterator<Map.Entry<K, V>> trySplit() {
+        if (!mBatch.isEmpty()) {
+            return null;
+        }
+
+        // split at the segment boundary closest to the middle, or within a segment if it is large enough
+        final int middle = mPosition + (mEnd - mPosition) / 2;
+        int split = -1;
+        int position = Arrays.binarySearch(mSegmentStarts, middle);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        for (int i = Math.max(0, position - 1); i <= Math.min(mSegmentStarts.length - 1, position); i++) {
+            final int segmentStart = mSegmentStarts[i];
+            if (segmentStart > mPosition && segmentStart < mEnd
+                    && (split < 0 || Math.abs(segmentStart - middle) < Math.abs(split - middle))) {
+                split = segmentStart;
+            }
+        }
+        if (split < 0) {
+            if (mEnd - mPosition < MIN_SPLIT_SIZE) {
+                return null;
+            }
+            split = middle;
+        }
+
+        final DiskCacheSpliterator<K, V> prefix = new DiskCacheSpliterator<K, V>(mDiskCache, mKeys, mSegmentStarts, mPosition, split);
+        mPosition = split;
+        return prefix;
+    }
+
+    public long estimateSize() {
+        return mEnd - mPosition + mBatch.size();
+    }
+
+    public int characteristics() {
+        return DISTINCT | NONNULL | CONCURRENT;
+    }
+}
@@ -0,0 +1,49 @@
+package com.ivanfoong.cache.disk;
+
+import java.util.Comparator;
+
+/**
+ * Order in which a {@link DiskCache} over its maximum size evicts values, from the access time and count kept in
+ * its index. Neither is persisted, so after reopening the cache values are evicted in the order they were written.
+ */
+public enum DiskEvictionPolicy {
+
+    /**
+     * Evicts the least recently read or written values first.
+     */
+    LRU,
+
+    /**
+     * Evicts the least frequently read values first, the least recently used among equally frequent ones. Counts
+     * are halved every time the cache evicts, so values which used to be popular do not stay forever.
+     */
+    LFU;
+
+    /**
+     * @return a comparator ordering the values to evict first before the others
+     */
+    Comparator<DiskCacheIndex> evictionOrder() {
+        return this == LFU ? LFU_ORDER : LRU_ORDER;
+    }
+
+    static final Comparator<DiskCacheIndex> LRU_ORDER = new Comparator<DiskCacheIndex>() {
+        public int compare(final DiskCacheIndex aFileIndex, final DiskCacheIndex aOtherFileIndex) {
+            final int result = Long.compare(aFileIndex.mAccessTime, aOtherFileIndex.mAccessTime);
+            return result != 0 ? result : compareWriteOrder(aFileIndex, aOtherFileIndex);
+        }
+    };
+
+    static final Comparator<DiskCacheIndex> LFU_ORDER = new Comparator<DiskCacheIndex>() {
+        public int compare(final DiskCacheIndex aFileIndex, final DiskCacheIndex aOtherFileIndex) {
+            final int result = Integer.compare(aFileIndex.mAccessCount, aOtherFileIndex.mAccessCount);
+            return result != 0 ? result : LRU_ORDER.compare(aFileIndex, aOtherFileIndex);
+        }
+    };
+
+    static int compareWriteOrder(final DiskCacheIndex aFileIndex, final DiskCacheIndex aOtherFileIndex) {
+        final int segmentId = aFileIndex.isSegment() ? DiskCacheLog.segmentId(aFileIndex.getFilename()) : -1;
+        final int otherSegmentId = aOtherFileIndex.isSegment() ? DiskCacheLog.segmentId(aOtherFileIndex.getFilename()) : -1;
+        final int result = Integer.compare(segmentId, otherSegmentId);
+        return result != 0 ? result : Long.compare(aFileIndex.getOffset(), aOtherFileIndex.getOffset());
+    }
+}
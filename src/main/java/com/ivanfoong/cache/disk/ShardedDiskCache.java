@@ -0,0 +1,489 @@
+package com.ivanfoong.cache.disk;
+
+import com.ivanfoong.cache.ICache;
+import com.ivanfoong.cache.Ticker;
+import com.ivanfoong.cache.codec.Codec;
+import com.ivanfoong.cache.serializer.BinarySerializer;
+import com.ivanfoong.cache.serializer.Serializer;
+import com.ivanfoong.cache.stats.CacheStats;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Disk store split into independent {@link DiskCache} shards, each with its own index, segment files and lock, and
+ * the shard of a key chosen by its hash. Operations on keys of different shards run concurrently, so disk throughput
+ * grows with the number of threads, and with the number of devices when the shards are spread over several
+ * directories.
+ *
+ * A single shard is stored right in the cache directory, laid out exactly like a plain {@link DiskCache}. Otherwise
+ * shard i is stored in a shard-i subdirectory of directory i modulo the number of directories. The shard count is
+ * recorded in every directory, since a store cannot be reopened with a different one.
+ */
+public class ShardedDiskCache<K extends Serializable, V extends Serializable> implements ICache<K, V> {
+
+    static final String SHARD_COUNT_FILENAME = "shards";
+
+    final File[] mCacheDirectories;
+    final DiskCache<K, V>[] mShards;
+
+    public ShardedDiskCache(final File aCacheDirectory) {
+        this(new File[] { aCacheDirectory }, 1);
+    }
+
+    public ShardedDiskCache(final File[] aCacheDirectories, final int aShardCount) {
+        this(aCacheDirectories, aShardCount, new BinarySerializer<K>(), new BinarySerializer<V>());
+    }
+
+    public ShardedDiskCache(final File[] aCacheDirectories, final int aShardCount, final Serializer<K> aKeySerializer, final Serializer<V> aValueSerializer) {
+        this(aCacheDirectories, aShardCount, DiskCacheLog.DEFAULT_MAX_SEGMENT_SIZE, aKeySerializer, aValueSerializer);
+    }
+
+    public ShardedDiskCache(final File[] aCacheDirectories, final int aShardCount, final long aMaxSegmentSize, final Serializer<K> aKeySerializer, final Serializer<V> aValueSerializer) {
+        if (aCacheDirectories.length == 0) {
+            throw new IllegalArgumentException("aCacheDirectories must not be empty");
+        }
+        if (aShardCount < 1) {
+            throw new IllegalArgumentException("aShardCount must be at least 1");
+        }
+        mCacheDirectories = aCacheDirectories.clone();
+        for (final File cacheDirectory : mCacheDirectories) {
+            cacheDirectory.mkdirs();
+            checkShardCount(cacheDirectory, aShardCount);
+        }
+
+        mShards = newShardArray(aShardCount);
+        for (int i = 0; i < aShardCount; i++) {
+            mShards[i] = new DiskCache<K, V>(shardDirectory(i), aMaxSegmentSize, aKeySerializer, aValueSerializer);
+        }
+    }
+
+    @SuppressWarnings("unchecked") // the array is empty, so it holds nothing but the DiskCache<K, V> put in it later
+    static <K extends Serializable, V extends Serializable> DiskCache<K, V>[] newShardArray(final int aLength) {
+        return (DiskCache<K, V>[]) new DiskCache<?, ?>[aLength];
+    }
+
+    File shardDirectory(final int aShard) {
+        if (mShards.length == 1) {
+            return mCacheDirectories[0];
+        }
+        return new File(mCacheDirectories[aShard % mCacheDirectories.length], String.format("shard-%d", aShard));
+    }
+
+    static void checkShardCount(final File aCacheDirectory, final int aShardCount) {
+        final File file = new File(aCacheDirectory, SHARD_COUNT_FILENAME);
+        try {
+            if (file.exists()) {
+                final int shardCount = readShardCount(file);
+                if (shardCount != aShardCount) {
+                    throw new IllegalStateException(String.format("Disk cache at %s was created with %d shards, not %d", aCacheDirectory, shardCount, aShardCount));
+                }
+            }
+            else {
+                final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                try {
+                    writer.write(Integer.toString(aShardCount));
+                } finally {
+                    writer.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to open disk cache at %s", aCacheDirectory), e);
+        }
+    }
+
+    static int readShardCount(final File aFile) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(aFile), "UTF-8"));
+        try {
+            final String line = reader.readLine();
+            return Integer.parseInt(line != null ? line.trim() : "");
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Unreadable shard count in %s", aFile), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public File getCacheDirectory() {
+        return mCacheDirectories[0];
+    }
+
+    public File[] getCacheDirectories() {
+        return mCacheDirectories.clone();
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    DiskCache<K, V> shardFor(final K aKey) {
+        final int hash = aKey.hashCode();
+        return mShards[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % mShards.length];
+    }
+
+    /**
+     * @return aKeys grouped by shard, with an entry only for the shards having some of them
+     */
+    LinkedHashMap<DiskCache<K, V>, Set<K>> groupByShard(final Collection<K> aKeys) {
+        final LinkedHashMap<DiskCache<K, V>, Set<K>> shardKeys = new LinkedHashMap<DiskCache<K, V>, Set<K>>();
+        if (mShards.length == 1) {
+            shardKeys.put(mShards[0], aKeys instanceof Set ? (Set<K>) aKeys : new HashSet<K>(aKeys));
+            return shardKeys;
+        }
+        for (final K key : aKeys) {
+            final DiskCache<K, V> shard = shardFor(key);
+            Set<K> keys = shardKeys.get(shard);
+            if (keys == null) {
+                keys = new HashSet<K>();
+                shardKeys.put(shard, keys);
+            }
+            keys.add(key);
+        }
+        return shardKeys;
+    }
+
+    <T> LinkedHashMap<DiskCache<K, V>, Map<K, T>> groupByShard(final Map<K, T> aEntries) {
+        final LinkedHashMap<DiskCache<K, V>, Map<K, T>> shardEntries = new LinkedHashMap<DiskCache<K, V>, Map<K, T>>();
+        if (mShards.length == 1) {
+            shardEntries.put(mShards[0], aEntries);
+            return shardEntries;
+        }
+        for (final Map.Entry<K, T> entry : aEntries.entrySet()) {
+            final DiskCache<K, V> shard = shardFor(entry.getKey());
+            Map<K, T> entries = shardEntries.get(shard);
+            if (entries == null) {
+                entries = new LinkedHashMap<K, T>();
+                shardEntries.put(shard, entries);
+            }
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        return shardEntries;
+    }
+
+    @SuppressWarnings("unchecked")
+    public HashMap<K, V> all() {
+        final HashMap<K, V> results = new HashMap<K, V>();
+        for (final DiskCache<K, V> shard : mShards) {
+            results.putAll(shard.all());
+        }
+        return results;
+    }
+
+    @SuppressWarnings("unchecked")
+    public HashMap<K, V> get(final Set<K> aKeys) {
+        final HashMap<K, V> results = new HashMap<K, V>();
+        for (final Map.Entry<DiskCache<K, V>, Set<K>> entry : groupByShard(aKeys).entrySet()) {
+            results.putAll(entry.getKey().get(entry.getValue()));
+        }
+        return results;
+    }
+
+    public V getIfPresent(final K aKey) {
+        return shardFor(aKey).getIfPresent(aKey);
+    }
+
+    public V get(final K aKey) {
+        return shardFor(aKey).get(aKey);
+    }
+
+    public Map<K, V> getAll(final Collection<K> aKeys, final Map<K, V> aResults) {
+        for (final Map.Entry<DiskCache<K, V>, Set<K>> entry : groupByShard(aKeys).entrySet()) {
+            entry.getKey().getAll(entry.getValue(), aResults);
+        }
+        return aResults;
+    }
+
+    /**
+     * Same as {@link #getIfPresent(Serializable)}, but keeps the expiry of the value along with it.
+     */
+    public DiskCacheItem<V> getItem(final K aKey) {
+        return shardFor(aKey).getItem(aKey);
+    }
+
+    /**
+     * Same as {@link #get(Set)}, but keeps the expiry of each value along with it.
+     */
+    public HashMap<K, DiskCacheItem<V>> getItems(final Collection<K> aKeys) {
+        final HashMap<K, DiskCacheItem<V>> results = new HashMap<K, DiskCacheItem<V>>();
+        for (final Map.Entry<DiskCache<K, V>, Set<K>> entry : groupByShard(aKeys).entrySet()) {
+            results.putAll(entry.getKey().getItems(entry.getValue()));
+        }
+        return results;
+    }
+
+    public ICache<K, V> remove(final Set<K> aKeys) {
+        for (final Map.Entry<DiskCache<K, V>, Set<K>> entry : groupByShard(aKeys).entrySet()) {
+            entry.getKey().remove(entry.getValue());
+        }
+        return this;
+    }
+
+    public ICache<K, V> clear() {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.clear();
+        }
+        return this;
+    }
+
+    public ICache<K, V> put(final K aKey, final V aValue) {
+        shardFor(aKey).put(aKey, aValue);
+        return this;
+    }
+
+    public ICache<K, V> put(final K aKey, final V aValue, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
+        shardFor(aKey).put(aKey, aValue, aTimeToLiveMillis, aTimeToIdleMillis);
+        return this;
+    }
+
+    public ICache<K, V> putAll(final Map<K, V> aEntries) {
+        for (final Map.Entry<DiskCache<K, V>, Map<K, V>> entry : groupByShard(aEntries).entrySet()) {
+            entry.getKey().putAll(entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Same as {@link #putAll(Map)}, but with the expiry of each value given by its {@link DiskCacheItem} rather than
+     * by the defaults.
+     */
+    public ICache<K, V> putItems(final Map<K, DiskCacheItem<V>> aItems) {
+        for (final Map.Entry<DiskCache<K, V>, Map<K, DiskCacheItem<V>>> entry : groupByShard(aItems).entrySet()) {
+            entry.getKey().putItems(entry.getValue());
+        }
+        return this;
+    }
+
+    public int size() {
+        int size = 0;
+        for (final DiskCache<K, V> shard : mShards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return a spliterator over every shard, which splits between shards before splitting any one of them
+     */
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        final List<Spliterator<Map.Entry<K, V>>> spliterators = new ArrayList<Spliterator<Map.Entry<K, V>>>(mShards.length);
+        for (final DiskCache<K, V> shard : mShards) {
+            spliterators.add(shard.spliterator());
+        }
+        return new ShardSpliterator<Map.Entry<K, V>>(spliterators, 0, spliterators.size());
+    }
+
+    public Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    public void forEach(final BiConsumer<? super K, ? super V> aAction) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.forEach(aAction);
+        }
+    }
+
+    public void cleanUp() {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.cleanUp();
+        }
+    }
+
+    public long getExpireAfterWriteMillis() {
+        return mShards[0].getExpireAfterWriteMillis();
+    }
+
+    public void setExpireAfterWriteMillis(final long aMillis) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.setExpireAfterWriteMillis(aMillis);
+        }
+    }
+
+    public long getExpireAfterAccessMillis() {
+        return mShards[0].getExpireAfterAccessMillis();
+    }
+
+    public void setExpireAfterAccessMillis(final long aMillis) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.setExpireAfterAccessMillis(aMillis);
+        }
+    }
+
+    public void setTicker(final Ticker aTicker) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.setTicker(aTicker);
+        }
+    }
+
+    /**
+     * Splits aMaximumBytes and aMaximumEntries evenly between the shards, which keys are spread over evenly enough
+     * for the whole to stay close to the bounds. See {@link DiskCache#setMaximumSize(long, int)}.
+     */
+    public void setMaximumSize(final long aMaximumBytes, final int aMaximumEntries) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.setMaximumSize(Math.max(1, aMaximumBytes / mShards.length), Math.max(1, aMaximumEntries / mShards.length));
+        }
+    }
+
+    /**
+     * @return the bytes of the live records of every shard
+     */
+    public long getSizeInBytes() {
+        long sizeInBytes = 0;
+        for (final DiskCache<K, V> shard : mShards) {
+            sizeInBytes += shard.getSizeInBytes();
+        }
+        return sizeInBytes;
+    }
+
+    public DiskEvictionPolicy getEvictionPolicy() {
+        return mShards[0].getEvictionPolicy();
+    }
+
+    public void setEvictionPolicy(final DiskEvictionPolicy aEvictionPolicy) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.setEvictionPolicy(aEvictionPolicy);
+        }
+    }
+
+    public CacheStats getStats() {
+        return mShards[0].getStats();
+    }
+
+    public void setStats(final CacheStats aStats) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.setStats(aStats);
+        }
+    }
+
+    public boolean isIndexLoaded() {
+        for (final DiskCache<K, V> shard : mShards) {
+            if (!shard.isIndexLoaded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until every shard has loaded its index, see {@link DiskCache#awaitIndexLoaded()}.
+     */
+    public void awaitIndexLoaded() {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.awaitIndexLoaded();
+        }
+    }
+
+    public boolean isBloomFilterEnabled() {
+        return mShards[0].isBloomFilterEnabled();
+    }
+
+    /**
+     * Gives every shard a bloom filter sized for its share of aExpectedKeys, see
+     * {@link DiskCache#enableBloomFilter(int, double)}.
+     */
+    public void enableBloomFilter(final int aExpectedKeys, final double aFalsePositiveRate) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.enableBloomFilter(aExpectedKeys / mShards.length, aFalsePositiveRate);
+        }
+    }
+
+    public void disableBloomFilter() {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.disableBloomFilter();
+        }
+    }
+
+    public boolean mightContain(final K aKey) {
+        return shardFor(aKey).mightContain(aKey);
+    }
+
+    public boolean isCompressionEnabled() {
+        return mShards[0].isCompressionEnabled();
+    }
+
+    /**
+     * See {@link DiskCache#enableCompression(Codec, int)}.
+     */
+    public void enableCompression(final Codec aCodec, final int aThresholdBytes) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.enableCompression(aCodec, aThresholdBytes);
+        }
+    }
+
+    public void disableCompression() {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.disableCompression();
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return mShards[0].isMemoryMapped();
+    }
+
+    public void setMemoryMapped(final boolean aMemoryMapped) {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.setMemoryMapped(aMemoryMapped);
+        }
+    }
+
+    public void close() {
+        for (final DiskCache<K, V> shard : mShards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Concatenation of the spliterators of a range of shards.
+     */
+    static final class ShardSpliterator<T> implements Spliterator<T> {
+        final List<Spliterator<T>> mSpliterators;
+        int mPosition;
+        final int mEnd;
+
+        ShardSpliterator(final List<Spliterator<T>> aSpliterators, final int aPosition, final int aEnd) {
+            mSpliterators = aSpliterators;
+            mPosition = aPosition;
+            mEnd = aEnd;
+        }
+
+        public boolean tryAdvance(final Consumer<? super T> aAction) {
+            while (mPosition < mEnd) {
+                if (mSpliterators.get(mPosition).tryAdvance(aAction)) {
+                    return true;
+                }
+                mPosition++;
+            }
+            return false;
+        }
+
+        public Spliterator<T> trySplit() {
+            if (mEnd - mPosition > 1) {
+                final int middle = mPosition + (mEnd - mPosition) / 2;
+                final ShardSpliterator<T> prefix = new ShardSpliterator<T>(mSpliterators, mPosition, middle);
+                mPosition = middle;
+                return prefix;
+            }
+            return mPosition < mEnd ? mSpliterators.get(mPosition).trySplit() : null;
+        }
+
+        public long estimateSize() {
+            long size = 0;
+            for (int i = mPosition; i < mEnd; i++) {
+                size += mSpliterators.get(i).estimateSize();
+            }
+            return size;
+        }
+
+        public int characteristics() {
+            return DISTINCT | NONNULL | CONCURRENT;
+        }
+    }
+}
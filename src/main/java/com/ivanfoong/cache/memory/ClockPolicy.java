@@ -0,0 +1,37 @@
+package com.ivanfoong.cache.memory;
+
+/**
+ * Approximates LRU with a reference bit per entry: a read only sets the bit, and the clock hand sweeping over the
+ * entries in insertion order gives every entry whose bit is set a second chance before evicting the first one whose
+ * bit is clear. Reads never reorder anything, which makes them cheaper to apply than under {@link LruPolicy}.
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    static final int REFERENCED = 1;
+
+    final NodeDeque mDeque = new NodeDeque(); // first is where the hand points
+
+    public void onInsert(final Node aNode) {
+        aNode.mPolicyState = 0;
+        mDeque.addLast(aNode);
+    }
+
+    public void onAccess(final Node aNode) {
+        aNode.mPolicyState = REFERENCED;
+    }
+
+    public void onRemove(final Node aNode) {
+        mDeque.remove(aNode);
+    }
+
+    public Node selectVictim() {
+        while (true) {
+            final Node node = mDeque.peekFirst();
+            if (node == null || node.mPolicyState != REFERENCED) {
+                return node;
+            }
+            node.mPolicyState = 0;
+            mDeque.moveToBack(node);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.ivanfoong.cache.memory;
+
+/**
+ * Decides which entry a {@link MemoryCache} evicts once it is over its capacity or maximum weight.
+ *
+ * A policy instance belongs to a single cache and is only ever called while that cache holds its eviction lock, so
+ * implementations need no synchronization of their own. Reads reach the policy in batches and may be dropped under
+ * heavy contention, so {@link #onAccess(Node)} is a hint rather than an exact access history.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Entry of the cache as seen by a policy, with links and a spare field the policy may use for its own
+     * bookkeeping.
+     */
+    abstract class Node {
+        Node mPrevious;
+        Node mNext;
+        int mPolicyState;
+
+        public abstract Object getKey();
+
+        public Node getPrevious() {
+            return mPrevious;
+        }
+
+        public void setPrevious(final Node aPrevious) {
+            mPrevious = aPrevious;
+        }
+
+        public Node getNext() {
+            return mNext;
+        }
+
+        public void setNext(final Node aNext) {
+            mNext = aNext;
+        }
+
+        public int getPolicyState() {
+            return mPolicyState;
+        }
+
+        public void setPolicyState(final int aPolicyState) {
+            mPolicyState = aPolicyState;
+        }
+    }
+
+    void onInsert(Node aNode);
+
+    void onAccess(Node aNode);
+
+    void onRemove(Node aNode);
+
+    /**
+     * @return the node to evict next, which the cache then removes through {@link #onRemove(Node)}, or null if the
+     * policy holds no nodes
+     */
+    Node selectVictim();
+}
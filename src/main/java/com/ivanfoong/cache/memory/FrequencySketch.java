@@ -0,0 +1,104 @@
+package com.ivanfoong.cache.memory;
+
+/**
+ * Count-min sketch estimating how often each key has been seen recently, with four 4-bit counters per key packed
+ * sixteen to a long.
+ *
+ * Once as many increments have been recorded as ten times the table size, every counter is halved, so the estimates
+ * favour recent popularity and keys which were only popular long ago fade out.
+ */
+final class FrequencySketch {
+
+    static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    static final long RESET_MASK = 0x7777777777777777L;
+    static final long ONE_MASK = 0x1111111111111111L;
+    static final int MINIMUM_TABLE_SIZE = 16;
+    static final int MAXIMUM_TABLE_SIZE = 1 << 24;
+    static final int MAXIMUM_FREQUENCY = 15;
+
+    long[] mTable;
+    int mTableMask;
+    int mSampleSize;
+    int mSize;
+
+    FrequencySketch() {
+        ensureCapacity(MINIMUM_TABLE_SIZE);
+    }
+
+    /**
+     * Grows the table to keep estimates accurate for aExpectedKeys distinct keys.
+     */
+    void ensureCapacity(final int aExpectedKeys) {
+        final int maximum = Math.min(Math.max(aExpectedKeys, MINIMUM_TABLE_SIZE), MAXIMUM_TABLE_SIZE);
+        if (mTable != null && mTable.length >= maximum) {
+            return;
+        }
+
+        final long[] table = new long[Integer.highestOneBit(maximum - 1) << 1];
+        if (mTable != null) {
+            // a key's index in the larger table keeps the low bits of its old index, so tiling the old table
+            // carries every count over
+            for (int i = 0; i < table.length; i += mTable.length) {
+                System.arraycopy(mTable, 0, table, i, mTable.length);
+            }
+        }
+        mTable = table;
+        mTableMask = table.length - 1;
+        mSampleSize = 10 * table.length;
+    }
+
+    int frequency(final Object aKey) {
+        final int hash = spread(aKey.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(final Object aKey) {
+        final int hash = spread(aKey.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++mSize >= mSampleSize) {
+            reset();
+        }
+    }
+
+    boolean incrementAt(final int aIndex, final int aCounter) {
+        final int offset = aCounter << 2;
+        final long mask = 0xfL << offset;
+        if ((mTable[aIndex] & mask) != mask) {
+            mTable[aIndex] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    void reset() {
+        int oddCounters = 0;
+        for (int i = 0; i < mTable.length; i++) {
+            oddCounters += Long.bitCount(mTable[i] & ONE_MASK);
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize = (mSize >>> 1) - (oddCounters >>> 2);
+    }
+
+    int indexOf(final int aHash, final int aDepth) {
+        long hash = (aHash + SEEDS[aDepth]) * SEEDS[aDepth];
+        hash += hash >>> 32;
+        return ((int) hash) & mTableMask;
+    }
+
+    static int spread(final int aHash) {
+        int hash = ((aHash >>> 16) ^ aHash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
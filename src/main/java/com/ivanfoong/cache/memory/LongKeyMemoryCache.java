@@ -0,0 +1,248 @@
+package com.ivanfoong.cache.memory;
+
+import com.ivanfoong.cache.stats.CacheStats;
+
+import java.util.Arrays;
+
+/**
+ * Least recently used cache of values keyed by primitive longs, which unlike a {@code MemoryCache<Long, V>} boxes
+ * no key and allocates nothing per entry or per lookup.
+ *
+ * Entries live in parallel arrays sized for the capacity up front: the key, the value, and the indexes of the
+ * previous and next entries in recency order, the next index also chaining free entries together. An open
+ * addressing table with linear probing maps keys to entries, and removals shift the following slots back rather
+ * than leaving tombstones, so lookups never slow down as entries come and go. All this takes about 24 bytes an
+ * entry besides the value, instead of a hash map node, a cache node and a boxed key.
+ *
+ * Entries do not expire. Every operation, reads included as they reorder entries, holds the cache's lock.
+ *
+ * @see IntKeyMemoryCache
+ */
+public class LongKeyMemoryCache<V> {
+
+    static final int NONE = -1;
+
+    final int mCapacity;
+    final long[] mKeys;
+    final Object[] mValues;
+    final int[] mPrevious; // towards the least recently used entry
+    final int[] mNext; // towards the most recently used entry, or the next free entry
+    final int[] mTable; // index + 1 of the entry in each slot, 0 for an empty slot
+    final int mShift;
+    int mLeastRecent = NONE;
+    int mMostRecent = NONE;
+    int mFree;
+    int mSize;
+    volatile CacheStats mStats = new CacheStats();
+
+    public LongKeyMemoryCache(final int aCapacity) {
+        if (aCapacity < 1 || aCapacity > 1 << 29) {
+            throw new IllegalArgumentException(String.format("Invalid capacity %d", aCapacity));
+        }
+        mCapacity = aCapacity;
+        mKeys = new long[aCapacity];
+        mValues = new Object[aCapacity];
+        mPrevious = new int[aCapacity];
+        mNext = new int[aCapacity];
+
+        // at most three quarters full
+        int tableSize = 2;
+        while (tableSize < aCapacity + aCapacity / 3 + 1) {
+            tableSize <<= 1;
+        }
+        mTable = new int[tableSize];
+        mShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+        resetFreeEntries();
+    }
+
+    /**
+     * @return the value of aKey, which becomes the most recently used entry, or null if there is none
+     */
+    public synchronized V get(final long aKey) {
+        final int slot = findSlot(aKey);
+        if (mTable[slot] == 0) {
+            mStats.recordMisses(CacheStats.Tier.MEMORY, 1);
+            return null;
+        }
+        final int entry = mTable[slot] - 1;
+        moveToMostRecent(entry);
+        mStats.recordHits(CacheStats.Tier.MEMORY, 1);
+        return value(entry);
+    }
+
+    /**
+     * @return true if aKey has a value, without making it more recently used
+     */
+    public synchronized boolean containsKey(final long aKey) {
+        return mTable[findSlot(aKey)] != 0;
+    }
+
+    /**
+     * Sets the value of aKey, evicting the least recently used entry if the cache is full.
+     */
+    public synchronized void put(final long aKey, final V aValue) {
+        if (aValue == null) {
+            throw new IllegalArgumentException("Values cannot be null");
+        }
+        int slot = findSlot(aKey);
+        if (mTable[slot] != 0) {
+            final int entry = mTable[slot] - 1;
+            mValues[entry] = aValue;
+            moveToMostRecent(entry);
+            return;
+        }
+
+        if (mSize == mCapacity) {
+            removeEntry(mLeastRecent);
+            mStats.recordEvictions(CacheStats.Tier.MEMORY, 1);
+            slot = findSlot(aKey); // the eviction may have shifted another entry into the slot
+        }
+        final int entry = mFree;
+        mFree = mNext[entry];
+        mKeys[entry] = aKey;
+        mValues[entry] = aValue;
+        mTable[slot] = entry + 1;
+        linkMostRecent(entry);
+        mSize++;
+    }
+
+    /**
+     * @return the value aKey had, or null if there was none
+     */
+    public synchronized V remove(final long aKey) {
+        final int slot = findSlot(aKey);
+        if (mTable[slot] == 0) {
+            return null;
+        }
+        final int entry = mTable[slot] - 1;
+        final V value = value(entry);
+        removeEntry(entry);
+        return value;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mTable, 0);
+        Arrays.fill(mValues, null);
+        mLeastRecent = NONE;
+        mMostRecent = NONE;
+        mSize = 0;
+        resetFreeEntries();
+    }
+
+    /**
+     * @return the keys from the least to the most recently used
+     */
+    public synchronized long[] keys() {
+        final long[] keys = new long[mSize];
+        int count = 0;
+        for (int entry = mLeastRecent; entry != NONE; entry = mNext[entry]) {
+            keys[count++] = mKeys[entry];
+        }
+        return keys;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Makes the cache record into aStats from now on, so that several caches can share one set of stats.
+     */
+    public void setStats(final CacheStats aStats) {
+        mStats = aStats;
+    }
+
+    @SuppressWarnings("unchecked")
+    V value(final int aEntry) {
+        return (V) mValues[aEntry];
+    }
+
+    int homeSlot(final long aKey) {
+        return (int) ((aKey * 0x9e3779b97f4a7c15L) >>> mShift);
+    }
+
+    /**
+     * @return the slot holding aKey, or the empty slot where it would go
+     */
+    int findSlot(final long aKey) {
+        final int mask = mTable.length - 1;
+        int slot = homeSlot(aKey);
+        while (mTable[slot] != 0 && mKeys[mTable[slot] - 1] != aKey) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    void removeEntry(final int aEntry) {
+        final int mask = mTable.length - 1;
+        int hole = findSlot(mKeys[aEntry]);
+        int slot = (hole + 1) & mask;
+        // shift back every following entry which would otherwise no longer be found past the hole
+        while (mTable[slot] != 0) {
+            final int home = homeSlot(mKeys[mTable[slot] - 1]);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                mTable[hole] = mTable[slot];
+                hole = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mTable[hole] = 0;
+
+        unlink(aEntry);
+        mValues[aEntry] = null;
+        mNext[aEntry] = mFree;
+        mFree = aEntry;
+        mSize--;
+    }
+
+    void moveToMostRecent(final int aEntry) {
+        if (aEntry != mMostRecent) {
+            unlink(aEntry);
+            linkMostRecent(aEntry);
+        }
+    }
+
+    void linkMostRecent(final int aEntry) {
+        mPrevious[aEntry] = mMostRecent;
+        mNext[aEntry] = NONE;
+        if (mMostRecent != NONE) {
+            mNext[mMostRecent] = aEntry;
+        }
+        else {
+            mLeastRecent = aEntry;
+        }
+        mMostRecent = aEntry;
+    }
+
+    void unlink(final int aEntry) {
+        final int previous = mPrevious[aEntry];
+        final int next = mNext[aEntry];
+        if (previous != NONE) {
+            mNext[previous] = next;
+        }
+        else {
+            mLeastRecent = next;
+        }
+        if (next != NONE) {
+            mPrevious[next] = previous;
+        }
+        else {
+            mMostRecent = previous;
+        }
+    }
+
+    void resetFreeEntries() {
+        for (int i = 0; i < mCapacity; i++) {
+            mNext[i] = i + 1 < mCapacity ? i + 1 : NONE;
+        }
+        mFree = 0;
+    }
+}
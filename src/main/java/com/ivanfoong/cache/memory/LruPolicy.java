@@ -0,0 +1,25 @@
+package com.ivanfoong.cache.memory;
+
+/**
+ * Evicts the least recently used entry, the default policy of {@link MemoryCache}.
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    final NodeDeque mDeque = new NodeDeque();
+
+    public void onInsert(final Node aNode) {
+        mDeque.addFirst(aNode);
+    }
+
+    public void onAccess(final Node aNode) {
+        mDeque.moveToFront(aNode);
+    }
+
+    public void onRemove(final Node aNode) {
+        mDeque.remove(aNode);
+    }
+
+    public Node selectVictim() {
+        return mDeque.peekLast();
+    }
+}
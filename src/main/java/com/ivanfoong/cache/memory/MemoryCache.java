@@ -1,190 +1,598 @@
 package com.ivanfoong.cache.memory;
 
+import com.ivanfoong.cache.ExpirySweeper;
 import com.ivanfoong.cache.ICache;
+import com.ivanfoong.cache.Ticker;
+import com.ivanfoong.cache.TimerWheel;
+import com.ivanfoong.cache.stats.CacheStats;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by ivanfoong on 8/10/15.
+ *
+ * Lookups go straight to a concurrent hash table and never take a lock; the reads are recorded in a striped
+ * {@link ReadBuffer} and replayed to the {@link EvictionPolicy} in batches under {@link #mEvictionLock}, which is
+ * otherwise only held by writes.
+ *
+ * The cache is bounded by its entry capacity and, when a {@link Weigher} is set, by the total weight of its
+ * entries; entries chosen by the eviction policy, least recently used by default, are evicted until both bounds
+ * hold.
+ *
+ * Entries may also expire a fixed time after they were put or last read. Lookups never return an expired entry,
+ * and expired entries are removed through a {@link TimerWheel} by writes and by the {@link ExpirySweeper}.
  */
-public class MemoryCache<K extends Serializable, V extends Serializable> implements ICache<K, V> {
-
-    int mCapacity;
-    HashMap<K, MemoryCacheNode> mHashMap;
-    MemoryCacheNode mHeadNode, mTailNode;
+public class MemoryCache<K extends Serializable, V extends Serializable> implements ICache<K, V>, ExpirySweeper.Sweepable {
+
+    volatile int mCapacity;
+    volatile long mMaximumWeight = Long.MAX_VALUE;
+    volatile Weigher<K, V> mWeigher;
+    long mTotalWeight; // guarded by mEvictionLock
+    final ConcurrentHashMap<K, MemoryCacheNode> mHashMap;
+    final ReentrantLock mEvictionLock;
+    final ReadBuffer<MemoryCacheNode> mReadBuffer;
+    final ReadBuffer.Consumer<MemoryCacheNode> mReadBufferConsumer;
+    EvictionPolicy mEvictionPolicy; // guarded by mEvictionLock
+    volatile long mExpireAfterWriteMillis;
+    volatile long mExpireAfterAccessMillis;
+    volatile Ticker mTicker = Ticker.SYSTEM;
+    volatile long mRefreshAfterWriteMillis;
+    volatile Refresher<K, V> mRefresher;
+    TimerWheel<MemoryCacheNode> mTimerWheel; // guarded by mEvictionLock
+    ScheduledFuture<?> mSweeper; // guarded by mEvictionLock
+    volatile CacheStats mStats = new CacheStats();
+
+    /**
+     * Creates a cache bounded only by the total weight of its entries, as calculated by aWeigher.
+     */
+    public MemoryCache(final long aMaximumWeight, final Weigher<K, V> aWeigher) {
+        this(Integer.MAX_VALUE);
+        mMaximumWeight = aMaximumWeight;
+        mWeigher = aWeigher;
+    }
 
     public MemoryCache(final int aCapacity) {
-        mHashMap = new HashMap<K, MemoryCacheNode>();
-        mCapacity = aCapacity;
+        this(aCapacity, new LruPolicy());
     }
 
-    public synchronized HashMap<K, V> all() {
-        return get(mHashMap.keySet());
+    public MemoryCache(final int aCapacity, final EvictionPolicy aEvictionPolicy) {
+        mEvictionPolicy = aEvictionPolicy;
+        mHashMap = new ConcurrentHashMap<K, MemoryCacheNode>();
+        mCapacity = aCapacity;
+        mEvictionLock = new ReentrantLock();
+        mReadBuffer = new ReadBuffer<MemoryCacheNode>();
+        mTimerWheel = new TimerWheel<MemoryCacheNode>(mTicker.currentTimeMillis());
+        mReadBufferConsumer = new ReadBuffer.Consumer<MemoryCacheNode>() {
+            public void accept(final MemoryCacheNode aNode) {
+                if (aNode.isLinked()) {
+                    mEvictionPolicy.onAccess(aNode);
+                }
+            }
+        };
     }
 
-    public synchronized HashMap<K, V> get(Set<K> aKeys) {
+    public HashMap<K, V> all() {
         final HashMap<K, V> results = new HashMap<K, V>();
-        for (final K key : aKeys) {
-            final MemoryCacheNode node = getNode(key);
-            if (node != null) {
-                results.put(key, node.getValue());
+        final long now = mTicker.currentTimeMillis();
+        for (final MemoryCacheNode node : mHashMap.values()) {
+            if (!node.isExpired(now)) {
+                results.put(node.getKey(), node.getValue());
             }
         }
         return results;
     }
 
-    public synchronized ICache<K, V> remove(Set<K> aKeys) {
+    public HashMap<K, V> get(Set<K> aKeys) {
+        final HashMap<K, V> results = new HashMap<K, V>();
+        getAll(aKeys, results);
+        return results;
+    }
+
+    /**
+     * Looks a single key up without allocating anything, the fastest way to read the cache.
+     */
+    public V getIfPresent(final K aKey) {
+        final long startTime = System.nanoTime();
+        final MemoryCacheNode node = getNode(aKey);
+
+        final CacheStats stats = mStats;
+        if (node != null) {
+            stats.recordHits(CacheStats.Tier.MEMORY, 1);
+        }
+        else {
+            stats.recordMisses(CacheStats.Tier.MEMORY, 1);
+        }
+        stats.recordLatency(CacheStats.Tier.MEMORY, System.nanoTime() - startTime);
+        return node != null ? node.getValue() : null;
+    }
+
+    public V get(final K aKey) {
+        return getIfPresent(aKey);
+    }
+
+    /**
+     * @return the value of aKey, or null if there is none, without counting it as read
+     */
+    public V peek(final K aKey) {
+        final MemoryCacheNode node = mHashMap.get(aKey);
+        if (node == null || (node.isExpiring() && node.isExpired(mTicker.currentTimeMillis()))) {
+            return null;
+        }
+        return node.getValue();
+    }
+
+    public Map<K, V> getAll(final Collection<K> aKeys, final Map<K, V> aResults) {
+        final long startTime = System.nanoTime();
+        int hitCount = 0;
         for (final K key : aKeys) {
             final MemoryCacheNode node = getNode(key);
             if (node != null) {
-                removeNode(node);
+                aResults.put(key, node.getValue());
+                hitCount++;
             }
         }
 
-        return this;
+        final CacheStats stats = mStats;
+        stats.recordHits(CacheStats.Tier.MEMORY, hitCount);
+        stats.recordMisses(CacheStats.Tier.MEMORY, aKeys.size() - hitCount);
+        stats.recordLatency(CacheStats.Tier.MEMORY, System.nanoTime() - startTime);
+        return aResults;
     }
 
-    public synchronized ICache<K, V> clear() {
-        final HashSet<K> keys = new HashSet<K>();
-        for (final K key : mHashMap.keySet()) {
-            keys.add(key);
+    public ICache<K, V> remove(Set<K> aKeys) {
+        mEvictionLock.lock();
+        try {
+            for (final K key : aKeys) {
+                final MemoryCacheNode node = mHashMap.get(key);
+                if (node != null) {
+                    removeNode(node);
+                }
+            }
         }
-        return remove(keys);
+        finally {
+            mEvictionLock.unlock();
+        }
+
+        return this;
     }
 
-    public synchronized ICache<K, V> put(K aKey, V aValue) {
-        setNode(aKey, aValue);
+    public ICache<K, V> clear() {
+        mEvictionLock.lock();
+        try {
+            drainReadBuffer();
+            for (final MemoryCacheNode node : mHashMap.values()) {
+                removeNode(node);
+            }
+        }
+        finally {
+            mEvictionLock.unlock();
+        }
         return this;
     }
 
-    public synchronized int size() {
-        return all().size();
+    public ICache<K, V> put(K aKey, V aValue) {
+        return put(aKey, aValue, mExpireAfterWriteMillis, mExpireAfterAccessMillis);
     }
 
-    synchronized MemoryCacheNode getNode(final K aKey) {
-        if (mHashMap.containsKey(aKey)) {
-            final MemoryCacheNode node = mHashMap.get(aKey);
-            setHeadNode(node);
-            return node;
+    public ICache<K, V> put(final K aKey, final V aValue, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
+        mEvictionLock.lock();
+        try {
+            final long now = mTicker.currentTimeMillis();
+            drainReadBuffer();
+            expireEntries(now);
+            setNode(aKey, aValue, now, aTimeToLiveMillis, aTimeToIdleMillis);
+        }
+        finally {
+            mEvictionLock.unlock();
         }
-        return null;
+        return this;
     }
 
-    synchronized void removeNode(final MemoryCacheNode aNode) {
-        if (mHashMap.containsKey(aNode.getKey())) {
-            mHashMap.remove(aNode.getKey());
+    public ICache<K, V> putAll(final Map<K, V> aEntries) {
+        mEvictionLock.lock();
+        try {
+            final long now = mTicker.currentTimeMillis();
+            final long timeToLiveMillis = mExpireAfterWriteMillis;
+            final long timeToIdleMillis = mExpireAfterAccessMillis;
+            drainReadBuffer();
+            expireEntries(now);
+            for (final Map.Entry<K, V> entry : aEntries.entrySet()) {
+                setNode(entry.getKey(), entry.getValue(), now, timeToLiveMillis, timeToIdleMillis);
+            }
         }
+        finally {
+            mEvictionLock.unlock();
+        }
+        return this;
+    }
 
-        final MemoryCacheNode previousNode = aNode.getPrevious();
-        final MemoryCacheNode nextNode = aNode.getNext();
+    /**
+     * @return the number of entries, which may include expired entries that have not been removed yet
+     */
+    public int size() {
+        return mHashMap.size();
+    }
 
-        if (previousNode != null) {
-            previousNode.setNext(nextNode);
+    /**
+     * Removes every entry which has expired by now, which otherwise happens on writes and every so often in the
+     * background.
+     */
+    public void cleanUp() {
+        mEvictionLock.lock();
+        try {
+            drainReadBuffer();
+            expireEntries(mTicker.currentTimeMillis());
         }
-        else {
-            mHeadNode = nextNode;
+        finally {
+            mEvictionLock.unlock();
         }
+    }
 
-        if (nextNode != null) {
-            nextNode.setPrevious(previousNode);
+    MemoryCacheNode getNode(final K aKey) {
+        final MemoryCacheNode node = mHashMap.get(aKey);
+        if (node == null) {
+            return null;
         }
-        else {
-            mTailNode = previousNode;
+        long now = 0;
+        if (node.isExpiring()) {
+            now = mTicker.currentTimeMillis();
+            if (node.isExpired(now)) {
+                return null; // left for the timer wheel to remove
+            }
+            if (node.getTimeToIdle() != 0) {
+                node.setAccessTime(now);
+            }
+        }
+        final Refresher<K, V> refresher = mRefresher;
+        if (refresher != null) {
+            if (now == 0) {
+                now = mTicker.currentTimeMillis();
+            }
+            if (now - node.mWriteTime >= mRefreshAfterWriteMillis) {
+                refresher.refresh(aKey, node.mValue);
+            }
         }
+        if (mReadBuffer.offer(node)) {
+            tryDrainReadBuffer();
+        }
+        return node;
     }
 
-    synchronized void setHeadNode(final MemoryCacheNode aNode) {
-        if (!mHashMap.containsKey(aNode.getKey())) {
-            mHashMap.put(aNode.getKey(), aNode);
+    void tryDrainReadBuffer() {
+        if (mEvictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            }
+            finally {
+                mEvictionLock.unlock();
+            }
         }
+    }
 
-        final MemoryCacheNode previousNode = aNode.getPrevious();
-        final MemoryCacheNode nextNode = aNode.getNext();
+    // must hold mEvictionLock
+    void drainReadBuffer() {
+        mReadBuffer.drainTo(mReadBufferConsumer);
+    }
+
+    // must hold mEvictionLock
+    void removeNode(final MemoryCacheNode aNode) {
+        mHashMap.remove(aNode.getKey(), aNode);
+        unlinkNode(aNode);
+    }
 
-        if (nextNode != null && previousNode != null) {
-            previousNode.setNext(nextNode);
-            nextNode.setPrevious(previousNode);
+    // must hold mEvictionLock, and aNode must be out of mHashMap already
+    void unlinkNode(final MemoryCacheNode aNode) {
+        mEvictionPolicy.onRemove(aNode);
+        aNode.setLinked(false);
+        mTotalWeight -= aNode.getWeight();
+        if (aNode.getTimer() != null) {
+            mTimerWheel.deschedule(aNode.getTimer());
         }
-        else if (previousNode != null) {
-            previousNode.setNext(null);
+    }
+
+    // must hold mEvictionLock
+    void expireEntries(final long aNow) {
+        int expiredCount = 0;
+        for (final MemoryCacheNode node : mTimerWheel.advance(aNow)) {
+            if (!node.isLinked()) {
+                continue;
+            }
+            if (node.isExpired(aNow)) {
+                removeNode(node);
+                expiredCount++;
+            }
+            else {
+                mTimerWheel.reschedule(node.getTimer(), node.getExpiryTime()); // read since it was scheduled
+            }
         }
-        else if (nextNode != null) {
-            nextNode.setPrevious(null);
+        mStats.recordEvictions(CacheStats.Tier.MEMORY, expiredCount);
+    }
+
+    // must hold mEvictionLock
+    void setNode(final K aKey, final V aValue, final long aNow, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
+        final Weigher<K, V> weigher = mWeigher;
+        final int weight = weigher != null ? weigher.weigh(aKey, aValue) : 0;
+        if (weight > mMaximumWeight) {
+            final MemoryCacheNode existingNode = mHashMap.get(aKey);
+            if (existingNode != null) {
+                removeNode(existingNode);
+            }
+            return; // would evict everything and still not fit
         }
 
-        if (mTailNode == aNode) {
-            mTailNode = previousNode;
+        final MemoryCacheNode node = new MemoryCacheNode(aKey, aValue, weight, aNow,
+                aTimeToLiveMillis > 0 ? aNow + aTimeToLiveMillis : 0, Math.max(0, aTimeToIdleMillis));
+        // swapped in one step, so a concurrent get sees either the old or the new value but never a miss
+        final MemoryCacheNode existingNode = mHashMap.put(aKey, node);
+        if (existingNode != null) {
+            unlinkNode(existingNode);
+        }
+        node.setLinked(true);
+        mEvictionPolicy.onInsert(node);
+        mTotalWeight += weight;
+        evictToBounds(); // the policy may turn away the new entry itself
+        if (!node.isLinked()) {
+            return;
         }
 
-        aNode.setNext(mHeadNode);
-        aNode.setPrevious(null);
+        if (node.isExpiring()) {
+            node.setTimer(mTimerWheel.schedule(node, node.getExpiryTime()));
+            if (mSweeper == null) {
+                mSweeper = ExpirySweeper.schedule(this);
+            }
+        }
+    }
 
-        if (mHeadNode != null) {
-            mHeadNode.setPrevious(aNode);
+    // must hold mEvictionLock
+    void evictToBounds() {
+        int evictedCount = 0;
+        while (mHashMap.size() > mCapacity || mTotalWeight > mMaximumWeight) {
+            @SuppressWarnings("unchecked") // the policy only holds the nodes this cache inserted
+            final MemoryCacheNode victim = (MemoryCacheNode) mEvictionPolicy.selectVictim();
+            if (victim == null) {
+                break;
+            }
+            removeNode(victim);
+            evictedCount++;
         }
+        mStats.recordEvictions(CacheStats.Tier.MEMORY, evictedCount);
+    }
 
-        mHeadNode = aNode;
+    public int getCapacity() {
+        return mCapacity;
+    }
 
-        if (mTailNode == null) {
-            mTailNode = mHeadNode;
+    /**
+     * Evicts least recently used entries right away if the cache holds more than aCapacity entries.
+     */
+    public void setCapacity(final int aCapacity) {
+        mEvictionLock.lock();
+        try {
+            mCapacity = aCapacity;
+            drainReadBuffer();
+            evictToBounds();
         }
+        finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    public long getMaximumWeight() {
+        return mMaximumWeight;
     }
 
-    synchronized void setNode(final K aKey, final V aValue) {
-        if (mHashMap.containsKey(aKey)) {
-            final MemoryCacheNode node = getNode(aKey);
-            removeNode(node);
+    public long getTotalWeight() {
+        mEvictionLock.lock();
+        try {
+            return mTotalWeight;
+        }
+        finally {
+            mEvictionLock.unlock();
         }
+    }
 
-        MemoryCacheNode node = new MemoryCacheNode(aKey, aValue);
-        if (mHashMap.size() >= mCapacity) {
-            removeNode(mTailNode);
+    /**
+     * Bounds the cache by the total weight of its entries in addition to its capacity, evicting least recently used
+     * entries right away until it fits. Passing a null weigher removes the weight bound.
+     */
+    public void setWeigher(final Weigher<K, V> aWeigher, final long aMaximumWeight) {
+        mEvictionLock.lock();
+        try {
+            mWeigher = aWeigher;
+            mMaximumWeight = aWeigher != null ? aMaximumWeight : Long.MAX_VALUE;
+
+            // reweigh what is already cached with the new weigher
+            mTotalWeight = 0;
+            for (final MemoryCacheNode node : mHashMap.values()) {
+                node.setWeight(aWeigher != null ? aWeigher.weigh(node.getKey(), node.getValue()) : 0);
+                mTotalWeight += node.getWeight();
+            }
+            drainReadBuffer();
+            evictToBounds();
+        }
+        finally {
+            mEvictionLock.unlock();
         }
-        setHeadNode(node);
     }
 
-    public synchronized int getCapacity() {
-        return mCapacity;
+    public long getExpireAfterWriteMillis() {
+        return mExpireAfterWriteMillis;
     }
 
-    public synchronized void setCapacity(final int aCapacity) {
-        mCapacity = aCapacity;
+    /**
+     * Makes entries put from now on expire aMillis after they were put, 0 to keep them until evicted.
+     */
+    public void setExpireAfterWriteMillis(final long aMillis) {
+        mExpireAfterWriteMillis = aMillis;
+    }
+
+    public long getExpireAfterAccessMillis() {
+        return mExpireAfterAccessMillis;
+    }
+
+    /**
+     * Makes entries put from now on expire once they have not been read for aMillis, 0 to keep them until evicted.
+     */
+    public void setExpireAfterAccessMillis(final long aMillis) {
+        mExpireAfterAccessMillis = aMillis;
+    }
+
+    public long getRefreshAfterWriteMillis() {
+        return mRefresher != null ? mRefreshAfterWriteMillis : 0;
+    }
+
+    /**
+     * Hands every entry read aMillis or more after it was put to aRefresher, which is called on the reading thread
+     * on every such read until the entry is replaced, so it must return quickly. The entry is still returned as
+     * is. Pass a null aRefresher to stop.
+     */
+    public void setRefreshAfterWrite(final long aMillis, final Refresher<K, V> aRefresher) {
+        if (aRefresher != null && aMillis <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid refresh interval %d", aMillis));
+        }
+        mRefreshAfterWriteMillis = aMillis;
+        mRefresher = aRefresher;
+    }
+
+    /**
+     * Replaces the source of time used for expiry, meant to be set before any expiring entry is put.
+     */
+    public void setTicker(final Ticker aTicker) {
+        mEvictionLock.lock();
+        try {
+            mTicker = aTicker;
+            mTimerWheel = new TimerWheel<MemoryCacheNode>(aTicker.currentTimeMillis());
+            for (final MemoryCacheNode node : mHashMap.values()) {
+                if (node.getTimer() != null) {
+                    mTimerWheel.reschedule(node.getTimer(), node.getExpiryTime());
+                }
+            }
+        }
+        finally {
+            mEvictionLock.unlock();
+        }
     }
 
-    class MemoryCacheNode {
-        K mKey;
-        V mValue;
-        MemoryCacheNode mPrevious;
-        MemoryCacheNode mNext;
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Makes the cache record into aStats from now on, so that several caches can share one set of stats.
+     */
+    public void setStats(final CacheStats aStats) {
+        mStats = aStats;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    /**
+     * Hands every entry over to aEvictionPolicy, which decides what is evicted from now on. What the previous
+     * policy learnt about the entries, such as their recency, is not carried over.
+     */
+    public void setEvictionPolicy(final EvictionPolicy aEvictionPolicy) {
+        mEvictionLock.lock();
+        try {
+            drainReadBuffer();
+            mEvictionPolicy = aEvictionPolicy;
+            for (final MemoryCacheNode node : mHashMap.values()) {
+                aEvictionPolicy.onInsert(node);
+            }
+            evictToBounds();
+        }
+        finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    class MemoryCacheNode extends EvictionPolicy.Node {
+        final K mKey;
+        final V mValue;
+        boolean mLinked; // guarded by mEvictionLock
+        int mWeight; // guarded by mEvictionLock
+        final long mWriteTime;
+        final long mWriteExpiryTime; // 0 if the entry does not expire a fixed time after it was put
+        final long mTimeToIdle; // 0 if the entry does not expire once it has not been read for a while
+        volatile long mAccessTime;
+        TimerWheel.Timer<MemoryCacheNode> mTimer; // guarded by mEvictionLock
 
         MemoryCacheNode(final K aKey, final V aValue) {
+            this(aKey, aValue, 0, 0, 0, 0);
+        }
+
+        MemoryCacheNode(final K aKey, final V aValue, final int aWeight, final long aWriteTime, final long aWriteExpiryTime, final long aTimeToIdle) {
             mKey = aKey;
             mValue = aValue;
+            mWeight = aWeight;
+            mWriteTime = aWriteTime;
+            mWriteExpiryTime = aWriteExpiryTime;
+            mTimeToIdle = aTimeToIdle;
+            mAccessTime = aWriteTime;
         }
 
         public K getKey() {
             return mKey;
         }
 
-        public MemoryCacheNode getNext() {
-            return mNext;
+        public V getValue() {
+            return mValue;
         }
 
-        public MemoryCacheNode getPrevious() {
-            return mPrevious;
+        public boolean isLinked() {
+            return mLinked;
         }
 
-        public void setNext(MemoryCacheNode aNext) {
-            mNext = aNext;
+        public void setLinked(final boolean aLinked) {
+            mLinked = aLinked;
         }
 
-        public void setPrevious(MemoryCacheNode aPrevious) {
-            mPrevious = aPrevious;
+        public int getWeight() {
+            return mWeight;
         }
 
-        public V getValue() {
-            return mValue;
+        public void setWeight(final int aWeight) {
+            mWeight = aWeight;
+        }
+
+        public long getTimeToIdle() {
+            return mTimeToIdle;
+        }
+
+        public void setAccessTime(final long aAccessTime) {
+            mAccessTime = aAccessTime;
+        }
+
+        public TimerWheel.Timer<MemoryCacheNode> getTimer() {
+            return mTimer;
+        }
+
+        public void setTimer(final TimerWheel.Timer<MemoryCacheNode> aTimer) {
+            mTimer = aTimer;
+        }
+
+        public boolean isExpiring() {
+            return mWriteExpiryTime != 0 || mTimeToIdle != 0;
+        }
+
+        public boolean isExpired(final long aNow) {
+            return (mWriteExpiryTime != 0 && aNow >= mWriteExpiryTime) || (mTimeToIdle != 0 && aNow - mAccessTime >= mTimeToIdle);
+        }
+
+        /**
+         * @return the time at which the entry expires unless it is read again, Long.MAX_VALUE if it never expires
+         */
+        public long getExpiryTime() {
+            long expiryTime = mWriteExpiryTime != 0 ? mWriteExpiryTime : Long.MAX_VALUE;
+            if (mTimeToIdle != 0) {
+                expiryTime = Math.min(expiryTime, mAccessTime + mTimeToIdle);
+            }
+            return expiryTime;
         }
     }
 }
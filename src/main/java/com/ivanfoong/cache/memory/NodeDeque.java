@@ -0,0 +1,91 @@
+package com.ivanfoong.cache.memory;
+
+/**
+ * Doubly linked list threaded through the links of {@link EvictionPolicy.Node}s, so that a node can be in at most
+ * one deque at a time.
+ */
+final class NodeDeque {
+
+    EvictionPolicy.Node mFirst;
+    EvictionPolicy.Node mLast;
+    int mSize;
+
+    boolean isEmpty() {
+        return mFirst == null;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    EvictionPolicy.Node peekFirst() {
+        return mFirst;
+    }
+
+    EvictionPolicy.Node peekLast() {
+        return mLast;
+    }
+
+    void addFirst(final EvictionPolicy.Node aNode) {
+        aNode.mPrevious = null;
+        aNode.mNext = mFirst;
+        if (mFirst != null) {
+            mFirst.mPrevious = aNode;
+        }
+        else {
+            mLast = aNode;
+        }
+        mFirst = aNode;
+        mSize++;
+    }
+
+    void addLast(final EvictionPolicy.Node aNode) {
+        aNode.mNext = null;
+        aNode.mPrevious = mLast;
+        if (mLast != null) {
+            mLast.mNext = aNode;
+        }
+        else {
+            mFirst = aNode;
+        }
+        mLast = aNode;
+        mSize++;
+    }
+
+    void remove(final EvictionPolicy.Node aNode) {
+        final EvictionPolicy.Node previous = aNode.mPrevious;
+        final EvictionPolicy.Node next = aNode.mNext;
+
+        if (previous != null) {
+            previous.mNext = next;
+        }
+        else {
+            mFirst = next;
+        }
+
+        if (next != null) {
+            next.mPrevious = previous;
+        }
+        else {
+            mLast = previous;
+        }
+
+        aNode.mPrevious = null;
+        aNode.mNext = null;
+        mSize--;
+    }
+
+    void moveToFront(final EvictionPolicy.Node aNode) {
+        if (mFirst != aNode) {
+            remove(aNode);
+            addFirst(aNode);
+        }
+    }
+
+    void moveToBack(final EvictionPolicy.Node aNode) {
+        if (mLast != aNode) {
+            remove(aNode);
+            addLast(aNode);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.ivanfoong.cache.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Striped, lossy, multiple producer / single consumer buffer of read events.
+ *
+ * Readers record the node they touched without taking the eviction lock; the recency updates are replayed in
+ * batch by whichever thread holds the lock next. When a stripe is full the event is simply dropped, losing a
+ * little LRU precision instead of blocking the reader.
+ */
+final class ReadBuffer<E> {
+
+    interface Consumer<E> {
+        void accept(E aElement);
+    }
+
+    static final int STRIPE_SIZE = 16;
+    static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+    final Stripe<E>[] mStripes;
+    final int mStripeMask;
+
+    ReadBuffer() {
+        int stripeCount = 1;
+        while (stripeCount < Runtime.getRuntime().availableProcessors()) {
+            stripeCount <<= 1;
+        }
+        mStripes = newStripeArray(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            mStripes[i] = new Stripe<E>();
+        }
+        mStripeMask = stripeCount - 1;
+    }
+
+    @SuppressWarnings("unchecked") // the array is empty, so it holds nothing but the Stripe<E> put in it later
+    static <E> Stripe<E>[] newStripeArray(final int aLength) {
+        return (Stripe<E>[]) new Stripe<?>[aLength];
+    }
+
+    /**
+     * @return true if the stripe used by the calling thread is full and the buffer should be drained
+     */
+    boolean offer(final E aElement) {
+        return mStripes[probe() & mStripeMask].offer(aElement);
+    }
+
+    /**
+     * Must only be called by one thread at a time, i.e. while holding the eviction lock.
+     */
+    void drainTo(final Consumer<E> aConsumer) {
+        for (final Stripe<E> stripe : mStripes) {
+            stripe.drainTo(aConsumer);
+        }
+    }
+
+    static int probe() {
+        final long id = Thread.currentThread().getId();
+        final int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    static final class Stripe<E> {
+        final AtomicReferenceArray<E> mSlots = new AtomicReferenceArray<E>(STRIPE_SIZE);
+        final AtomicLong mWriteCounter = new AtomicLong();
+        volatile long mReadCounter;
+
+        boolean offer(final E aElement) {
+            final long head = mReadCounter;
+            final long tail = mWriteCounter.get();
+            final long size = tail - head;
+            if (size >= STRIPE_SIZE) {
+                return true;
+            }
+            if (mWriteCounter.compareAndSet(tail, tail + 1)) {
+                mSlots.lazySet((int) (tail & STRIPE_MASK), aElement);
+                return size + 1 >= STRIPE_SIZE;
+            }
+            return false;
+        }
+
+        void drainTo(final Consumer<E> aConsumer) {
+            long head = mReadCounter;
+            final long tail = mWriteCounter.get();
+            for (; head < tail; head++) {
+                final int index = (int) (head & STRIPE_MASK);
+                final E element = mSlots.get(index);
+                if (element == null) {
+                    break; // producer has claimed the slot but not published into it yet
+                }
+                mSlots.lazySet(index, null);
+                aConsumer.accept(element);
+            }
+            mReadCounter = head;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.ivanfoong.cache.memory;
+
+/**
+ * Told about the entries read from a {@link MemoryCache} once they are older than its refresh interval, see
+ * {@link MemoryCache#setRefreshAfterWrite(long, Refresher)}. Called on the reading thread, so it must be cheap.
+ */
+public interface Refresher<K, V> {
+    void refresh(final K aKey, final V aValue);
+}
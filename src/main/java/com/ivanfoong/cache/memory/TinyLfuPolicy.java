@@ -0,0 +1,105 @@
+package com.ivanfoong.cache.memory;
+
+/**
+ * Window TinyLFU: new entries enter a small LRU window, and an entry leaving the window is only admitted into the
+ * main space if a {@link FrequencySketch} says it is used more often than the entry it would push out.
+ *
+ * The main space is a segmented LRU, where entries read while on probation are promoted to a protected segment
+ * holding most of the space. One-off reads such as a large scan therefore churn through the window and probation
+ * without displacing the frequently used entries in the protected segment.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+    static final double WINDOW_RATIO = 0.01;
+    static final double PROTECTED_RATIO = 0.8;
+
+    final NodeDeque mWindow = new NodeDeque();
+    final NodeDeque mProbation = new NodeDeque();
+    final NodeDeque mProtected = new NodeDeque();
+    final FrequencySketch mSketch = new FrequencySketch();
+
+    public void onInsert(final Node aNode) {
+        mSketch.ensureCapacity(size() + 1);
+        mSketch.increment(aNode.getKey());
+        aNode.mPolicyState = WINDOW;
+        mWindow.addFirst(aNode);
+
+        // entries overflowing the window wait on probation as candidates for the main space
+        final int maximumWindowSize = Math.max(1, (int) (size() * WINDOW_RATIO));
+        while (mWindow.size() > maximumWindowSize) {
+            final Node candidate = mWindow.peekLast();
+            mWindow.remove(candidate);
+            candidate.mPolicyState = PROBATION;
+            mProbation.addFirst(candidate);
+        }
+    }
+
+    public void onAccess(final Node aNode) {
+        mSketch.increment(aNode.getKey());
+        switch (aNode.mPolicyState) {
+            case WINDOW:
+                mWindow.moveToFront(aNode);
+                break;
+            case PROBATION:
+                mProbation.remove(aNode);
+                aNode.mPolicyState = PROTECTED;
+                mProtected.addFirst(aNode);
+                demoteProtected();
+                break;
+            default:
+                mProtected.moveToFront(aNode);
+                break;
+        }
+    }
+
+    public void onRemove(final Node aNode) {
+        dequeOf(aNode).remove(aNode);
+    }
+
+    /**
+     * Weighs the newest entry on probation against the oldest and picks whichever has been used less often.
+     */
+    public Node selectVictim() {
+        Node victim = mProbation.peekLast();
+        if (victim == null) {
+            victim = mProtected.peekLast();
+        }
+        if (victim == null) {
+            return mWindow.peekLast();
+        }
+
+        final Node candidate = mProbation.peekFirst();
+        if (candidate == null || candidate == victim) {
+            return victim;
+        }
+        return mSketch.frequency(candidate.getKey()) > mSketch.frequency(victim.getKey()) ? victim : candidate;
+    }
+
+    int size() {
+        return mWindow.size() + mProbation.size() + mProtected.size();
+    }
+
+    void demoteProtected() {
+        final int maximumProtectedSize = Math.max(1, (int) ((mProbation.size() + mProtected.size()) * PROTECTED_RATIO));
+        while (mProtected.size() > maximumProtectedSize) {
+            final Node node = mProtected.peekLast();
+            mProtected.remove(node);
+            node.mPolicyState = PROBATION;
+            mProbation.addFirst(node);
+        }
+    }
+
+    NodeDeque dequeOf(final Node aNode) {
+        switch (aNode.mPolicyState) {
+            case WINDOW:
+                return mWindow;
+            case PROBATION:
+                return mProbation;
+            default:
+                return mProtected;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.ivanfoong.cache.memory;
+
+/**
+ * Calculates how much of a {@link MemoryCache}'s maximum weight an entry takes up, typically its approximate size
+ * in bytes. Must be cheap and always return the same non-negative weight for the same entry.
+ */
+public interface Weigher<K, V> {
+    int weigh(final K aKey, final V aValue);
+}
@@ -0,0 +1,575 @@
+package com.ivanfoong.cache.offheap;
+
+import com.ivanfoong.cache.ExpirySweeper;
+import com.ivanfoong.cache.ICache;
+import com.ivanfoong.cache.Ticker;
+import com.ivanfoong.cache.TimerWheel;
+import com.ivanfoong.cache.disk.DiskCacheItem;
+import com.ivanfoong.cache.serializer.BinarySerializer;
+import com.ivanfoong.cache.serializer.ByteBufferInput;
+import com.ivanfoong.cache.serializer.Serializer;
+import com.ivanfoong.cache.serializer.Serializers;
+import com.ivanfoong.cache.stats.CacheStats;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Cache holding serialized values in direct {@link ByteBuffer}s outside of the garbage collected heap, so that it can
+ * grow to gigabytes without adding to GC pauses. Only the keys and a small entry per key stay on the heap.
+ *
+ * Memory is handed out by a slab allocator: the budget is split into equally sized slabs, each slab is carved into
+ * chunks of one size class, and a value is stored in a chunk of the smallest class it fits. Every class evicts its
+ * own least recently used entries once no slab is left to give it, and a class which has no entries to evict takes
+ * a slab over from the class holding the most.
+ */
+public class OffHeapCache<K extends Serializable, V extends Serializable> implements ICache<K, V>, ExpirySweeper.Sweepable {
+
+    static final int DEFAULT_SLAB_SIZE = 1 << 20;
+    static final int MIN_CHUNK_SIZE = 64;
+    static final double CHUNK_GROWTH_FACTOR = 1.25;
+
+    final long mMaximumBytes;
+    final int mSlabSize;
+    final int mMaximumSlabs;
+    final Serializer<V> mValueSerializer;
+    final List<SlabClass<K>> mSlabClasses;
+    final HashMap<K, OffHeapEntry<K>> mEntries = new HashMap<K, OffHeapEntry<K>>();
+    int mSlabCount;
+    long mUsedBytes;
+    long mExpireAfterWriteMillis;
+    long mExpireAfterAccessMillis;
+    Ticker mTicker = Ticker.SYSTEM;
+    TimerWheel<K> mTimerWheel;
+    ScheduledFuture<?> mSweeper;
+    volatile CacheStats mStats = new CacheStats();
+
+    public OffHeapCache(final long aMaximumBytes) {
+        this(aMaximumBytes, new BinarySerializer<V>());
+    }
+
+    public OffHeapCache(final long aMaximumBytes, final Serializer<V> aValueSerializer) {
+        this(aMaximumBytes, DEFAULT_SLAB_SIZE, aValueSerializer);
+    }
+
+    public OffHeapCache(final long aMaximumBytes, final int aSlabSize, final Serializer<V> aValueSerializer) {
+        if (aSlabSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException(String.format("aSlabSize must be at least %d", MIN_CHUNK_SIZE));
+        }
+        mMaximumBytes = aMaximumBytes;
+        mSlabSize = (int) Math.min(aSlabSize, Math.max(MIN_CHUNK_SIZE, aMaximumBytes)); // a single slab never exceeds the budget
+        mMaximumSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE, aMaximumBytes / mSlabSize));
+        mValueSerializer = aValueSerializer;
+        mTimerWheel = new TimerWheel<K>(mTicker.currentTimeMillis());
+
+        mSlabClasses = new ArrayList<SlabClass<K>>();
+        int chunkSize = MIN_CHUNK_SIZE;
+        while (chunkSize < mSlabSize / 2) {
+            mSlabClasses.add(new SlabClass<K>(chunkSize, mSlabSize));
+            chunkSize = Math.max(chunkSize + 8, (int) (chunkSize * CHUNK_GROWTH_FACTOR) & ~7);
+        }
+        mSlabClasses.add(new SlabClass<K>(mSlabSize, mSlabSize));
+    }
+
+    public synchronized HashMap<K, V> all() {
+        return get(new HashSet<K>(mEntries.keySet()));
+    }
+
+    public synchronized HashMap<K, V> get(final Set<K> aKeys) {
+        final HashMap<K, V> results = new HashMap<K, V>();
+        getAll(aKeys, results);
+        return results;
+    }
+
+    public synchronized V getIfPresent(final K aKey) {
+        final DiskCacheItem<V> item = getItem(aKey);
+        return item != null ? item.getItem() : null;
+    }
+
+    public V get(final K aKey) {
+        return getIfPresent(aKey);
+    }
+
+    public synchronized Map<K, V> getAll(final Collection<K> aKeys, final Map<K, V> aResults) {
+        for (final Map.Entry<K, DiskCacheItem<V>> entry : getItems(aKeys).entrySet()) {
+            aResults.put(entry.getKey(), entry.getValue().getItem());
+        }
+        return aResults;
+    }
+
+    /**
+     * Same as {@link #getIfPresent(Serializable)}, but keeps the expiry of the value along with it.
+     */
+    public synchronized DiskCacheItem<V> getItem(final K aKey) {
+        final long startTime = System.nanoTime();
+        final DiskCacheItem<V> item = readItem(aKey, mTicker.currentTimeMillis());
+
+        final CacheStats stats = mStats;
+        if (item != null) {
+            stats.recordHits(CacheStats.Tier.OFF_HEAP, 1);
+        }
+        else {
+            stats.recordMisses(CacheStats.Tier.OFF_HEAP, 1);
+        }
+        stats.recordLatency(CacheStats.Tier.OFF_HEAP, System.nanoTime() - startTime);
+        return item;
+    }
+
+    /**
+     * Same as {@link #get(Set)}, but keeps the expiry of each value along with it.
+     */
+    public synchronized HashMap<K, DiskCacheItem<V>> getItems(final Collection<K> aKeys) {
+        final long startTime = System.nanoTime();
+        final HashMap<K, DiskCacheItem<V>> results = new HashMap<K, DiskCacheItem<V>>();
+        final long now = mTicker.currentTimeMillis();
+        for (final K key : aKeys) {
+            final DiskCacheItem<V> item = readItem(key, now);
+            if (item != null) {
+                results.put(key, item);
+            }
+        }
+
+        final CacheStats stats = mStats;
+        stats.recordHits(CacheStats.Tier.OFF_HEAP, results.size());
+        stats.recordMisses(CacheStats.Tier.OFF_HEAP, aKeys.size() - results.size());
+        stats.recordLatency(CacheStats.Tier.OFF_HEAP, System.nanoTime() - startTime);
+        return results;
+    }
+
+    /**
+     * @return the value of aKey, which becomes the most recently used in its slab class, or null if there is none
+     * or it has expired
+     */
+    DiskCacheItem<V> readItem(final K aKey, final long aNow) {
+        final OffHeapEntry<K> entry = mEntries.get(aKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(aNow)) {
+            removeEntry(entry);
+            mStats.recordEvictions(CacheStats.Tier.OFF_HEAP, 1);
+            return null;
+        }
+
+        try {
+            final V value = mValueSerializer.deserialize(new ByteBufferInput(slice(entry)));
+            entry.mAccessTime = aNow;
+            mSlabClasses.get(entry.mSlabClass).mEntries.moveToFront(entry);
+            return new DiskCacheItem<V>(value, entry.mExpiryTime, entry.mTimeToIdle);
+        } catch (IOException e) {
+            e.printStackTrace();
+            removeEntry(entry);
+            return null;
+        }
+    }
+
+    public synchronized ICache<K, V> remove(final Set<K> aKeys) {
+        for (final K key : aKeys) {
+            final OffHeapEntry<K> entry = mEntries.get(key);
+            if (entry != null) {
+                removeEntry(entry);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Drops every entry and hands all slabs back, so that their memory can be reclaimed.
+     */
+    public synchronized ICache<K, V> clear() {
+        mEntries.clear();
+        for (int i = 0; i < mSlabClasses.size(); i++) {
+            mSlabClasses.set(i, new SlabClass<K>(mSlabClasses.get(i).mChunkSize, mSlabSize));
+        }
+        mSlabCount = 0;
+        mUsedBytes = 0;
+        mTimerWheel = new TimerWheel<K>(mTicker.currentTimeMillis());
+        return this;
+    }
+
+    public synchronized ICache<K, V> put(final K aKey, final V aValue) {
+        return put(aKey, aValue, mExpireAfterWriteMillis, mExpireAfterAccessMillis);
+    }
+
+    public synchronized ICache<K, V> put(final K aKey, final V aValue, final long aTimeToLiveMillis, final long aTimeToIdleMillis) {
+        final long now = mTicker.currentTimeMillis();
+        putItem(aKey, DiskCacheItem.expiringAfter(aValue, now, aTimeToLiveMillis, aTimeToIdleMillis), now);
+        return this;
+    }
+
+    public synchronized ICache<K, V> putAll(final Map<K, V> aEntries) {
+        final long now = mTicker.currentTimeMillis();
+        for (final Map.Entry<K, V> entry : aEntries.entrySet()) {
+            putItem(entry.getKey(), DiskCacheItem.expiringAfter(entry.getValue(), now, mExpireAfterWriteMillis, mExpireAfterAccessMillis), now);
+        }
+        return this;
+    }
+
+    /**
+     * Puts the value of aItem with the absolute expiry it already carries, e.g. one read back from a disk cache.
+     */
+    public synchronized ICache<K, V> putItem(final K aKey, final DiskCacheItem<V> aItem) {
+        putItem(aKey, aItem, mTicker.currentTimeMillis());
+        return this;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public long getMaximumBytes() {
+        return mMaximumBytes;
+    }
+
+    /**
+     * @return the bytes taken by slabs handed out so far, which never exceeds the maximum
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) mSlabCount * mSlabSize;
+    }
+
+    /**
+     * @return the bytes taken by the serialized values themselves, excluding the unused tail of their chunks
+     */
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Makes the cache record into aStats from now on, so that several caches can share one set of stats.
+     */
+    public void setStats(final CacheStats aStats) {
+        mStats = aStats;
+    }
+
+    public synchronized void cleanUp() {
+        expireEntries(mTicker.currentTimeMillis());
+    }
+
+    public synchronized long getExpireAfterWriteMillis() {
+        return mExpireAfterWriteMillis;
+    }
+
+    public synchronized void setExpireAfterWriteMillis(final long aMillis) {
+        mExpireAfterWriteMillis = aMillis;
+    }
+
+    public synchronized long getExpireAfterAccessMillis() {
+        return mExpireAfterAccessMillis;
+    }
+
+    public synchronized void setExpireAfterAccessMillis(final long aMillis) {
+        mExpireAfterAccessMillis = aMillis;
+    }
+
+    /**
+     * Replaces the source of time used for expiry, meant to be set before any expiring entry is put.
+     */
+    public synchronized void setTicker(final Ticker aTicker) {
+        mTicker = aTicker;
+        mTimerWheel = new TimerWheel<K>(aTicker.currentTimeMillis());
+        for (final OffHeapEntry<K> entry : mEntries.values()) {
+            if (entry.mTimer != null) {
+                entry.mTimer = mTimerWheel.schedule(entry.mKey, entry.getNextExpiryTime());
+            }
+        }
+    }
+
+    /**
+     * Drops every entry and stops the background expiry, the cache should not be used afterwards.
+     */
+    public synchronized void close() {
+        if (mSweeper != null) {
+            mSweeper.cancel(false);
+            mSweeper = null;
+        }
+        clear();
+    }
+
+    void putItem(final K aKey, final DiskCacheItem<V> aItem, final long aNow) {
+        expireEntries(aNow);
+
+        final OffHeapEntry<K> existingEntry = mEntries.get(aKey);
+        if (existingEntry != null) {
+            removeEntry(existingEntry);
+        }
+
+        final byte[] bytes;
+        try {
+            bytes = Serializers.toBytes(mValueSerializer, aItem.getItem());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        final int slabClassIndex = slabClassFor(bytes.length);
+        if (slabClassIndex < 0) {
+            return; // larger than a slab, left to the other tiers
+        }
+        final SlabClass<K> slabClass = mSlabClasses.get(slabClassIndex);
+        final int chunk = allocate(slabClassIndex);
+        if (chunk < 0) {
+            return;
+        }
+
+        final ByteBuffer slab = slabClass.mSlabs.get(chunk / slabClass.mChunksPerSlab).duplicate();
+        slab.position((chunk % slabClass.mChunksPerSlab) * slabClass.mChunkSize);
+        slab.put(bytes);
+
+        final OffHeapEntry<K> entry = new OffHeapEntry<K>(aKey, slabClassIndex, chunk, bytes.length);
+        entry.mExpiryTime = aItem.getExpiryTime();
+        entry.mTimeToIdle = aItem.getTimeToIdle();
+        entry.mAccessTime = aNow;
+        mEntries.put(aKey, entry);
+        slabClass.mEntries.addFirst(entry);
+        mUsedBytes += bytes.length;
+
+        if (entry.isExpiring()) {
+            entry.mTimer = mTimerWheel.schedule(aKey, entry.getNextExpiryTime());
+            if (mSweeper == null) {
+                mSweeper = ExpirySweeper.schedule(this);
+            }
+        }
+    }
+
+    /**
+     * @return a free chunk of the given class, evicting if need be, or -1 if none could be found
+     */
+    int allocate(final int aSlabClassIndex) {
+        final SlabClass<K> slabClass = mSlabClasses.get(aSlabClassIndex);
+        while (true) {
+            if (slabClass.mFreeCount > 0) {
+                return slabClass.mFreeChunks[--slabClass.mFreeCount];
+            }
+            if (mSlabCount < mMaximumSlabs) {
+                slabClass.addSlab(ByteBuffer.allocateDirect(mSlabSize));
+                mSlabCount++;
+                continue;
+            }
+            final OffHeapEntry<K> victim = slabClass.mEntries.mLast;
+            if (victim != null) {
+                removeEntry(victim);
+                mStats.recordEvictions(CacheStats.Tier.OFF_HEAP, 1);
+                continue;
+            }
+            if (!reassignSlab(aSlabClassIndex)) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Moves the last slab of the class holding the most slabs over to the given class, evicting whatever is stored
+     * in it.
+     */
+    boolean reassignSlab(final int aSlabClassIndex) {
+        SlabClass<K> donor = null;
+        for (int i = 0; i < mSlabClasses.size(); i++) {
+            if (i != aSlabClassIndex && (donor == null || mSlabClasses.get(i).mSlabs.size() > donor.mSlabs.size())) {
+                donor = mSlabClasses.get(i);
+            }
+        }
+        if (donor == null || donor.mSlabs.isEmpty()) {
+            return false;
+        }
+
+        final int lastSlab = donor.mSlabs.size() - 1;
+        OffHeapEntry<K> entry = donor.mEntries.mFirst;
+        while (entry != null) {
+            final OffHeapEntry<K> next = entry.mNext;
+            if (entry.mChunk / donor.mChunksPerSlab == lastSlab) {
+                removeEntry(entry);
+                mStats.recordEvictions(CacheStats.Tier.OFF_HEAP, 1);
+            }
+            entry = next;
+        }
+
+        // every chunk of the last slab is free now, keep only the free chunks of the other slabs
+        int freeCount = 0;
+        for (int i = 0; i < donor.mFreeCount; i++) {
+            if (donor.mFreeChunks[i] / donor.mChunksPerSlab != lastSlab) {
+                donor.mFreeChunks[freeCount++] = donor.mFreeChunks[i];
+            }
+        }
+        donor.mFreeCount = freeCount;
+        final ByteBuffer slab = donor.mSlabs.remove(lastSlab);
+        slab.clear();
+        mSlabClasses.get(aSlabClassIndex).addSlab(slab);
+        return true;
+    }
+
+    void removeEntry(final OffHeapEntry<K> aEntry) {
+        mEntries.remove(aEntry.mKey);
+        final SlabClass<K> slabClass = mSlabClasses.get(aEntry.mSlabClass);
+        slabClass.mEntries.remove(aEntry);
+        slabClass.free(aEntry.mChunk);
+        mUsedBytes -= aEntry.mLength;
+        if (aEntry.mTimer != null) {
+            mTimerWheel.deschedule(aEntry.mTimer);
+            aEntry.mTimer = null;
+        }
+    }
+
+    void expireEntries(final long aNow) {
+        for (final K key : mTimerWheel.advance(aNow)) {
+            final OffHeapEntry<K> entry = mEntries.get(key);
+            if (entry == null || entry.mTimer == null) {
+                continue;
+            }
+            if (entry.isExpired(aNow)) {
+                removeEntry(entry);
+                mStats.recordEvictions(CacheStats.Tier.OFF_HEAP, 1);
+            }
+            else {
+                entry.mTimer = mTimerWheel.schedule(key, entry.getNextExpiryTime()); // read since it was scheduled
+            }
+        }
+    }
+
+    ByteBuffer slice(final OffHeapEntry<K> aEntry) {
+        final SlabClass<K> slabClass = mSlabClasses.get(aEntry.mSlabClass);
+        final ByteBuffer slab = slabClass.mSlabs.get(aEntry.mChunk / slabClass.mChunksPerSlab).duplicate();
+        final int offset = (aEntry.mChunk % slabClass.mChunksPerSlab) * slabClass.mChunkSize;
+        slab.limit(offset + aEntry.mLength);
+        slab.position(offset);
+        return slab.slice();
+    }
+
+    /**
+     * @return the index of the smallest slab class whose chunks fit aLength bytes, or -1 if none does
+     */
+    int slabClassFor(final int aLength) {
+        int low = 0;
+        int high = mSlabClasses.size() - 1;
+        if (aLength > mSlabClasses.get(high).mChunkSize) {
+            return -1;
+        }
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mSlabClasses.get(middle).mChunkSize < aLength) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    static final class SlabClass<K> {
+        final int mChunkSize;
+        final int mChunksPerSlab;
+        final List<ByteBuffer> mSlabs = new ArrayList<ByteBuffer>();
+        final EntryDeque<K> mEntries = new EntryDeque<K>(); // most recently used first
+        int[] mFreeChunks = new int[0];
+        int mFreeCount;
+
+        SlabClass(final int aChunkSize, final int aSlabSize) {
+            mChunkSize = aChunkSize;
+            mChunksPerSlab = aSlabSize / aChunkSize;
+        }
+
+        void addSlab(final ByteBuffer aSlab) {
+            final int firstChunk = mSlabs.size() * mChunksPerSlab;
+            mSlabs.add(aSlab);
+            if (mFreeChunks.length < mFreeCount + mChunksPerSlab) {
+                mFreeChunks = Arrays.copyOf(mFreeChunks, mFreeCount + mChunksPerSlab);
+            }
+            // pushed in reverse so that chunks are handed out from the start of the slab
+            for (int i = mChunksPerSlab - 1; i >= 0; i--) {
+                mFreeChunks[mFreeCount++] = firstChunk + i;
+            }
+        }
+
+        void free(final int aChunk) {
+            if (mFreeChunks.length == mFreeCount) {
+                mFreeChunks = Arrays.copyOf(mFreeChunks, Math.max(16, mFreeCount * 2));
+            }
+            mFreeChunks[mFreeCount++] = aChunk;
+        }
+    }
+
+    static final class OffHeapEntry<K> {
+        final K mKey;
+        final int mSlabClass;
+        final int mChunk;
+        final int mLength;
+        long mExpiryTime; // 0 if the entry does not expire a fixed time after it was put
+        long mTimeToIdle; // 0 if the entry does not expire once it has not been read for a while
+        long mAccessTime;
+        TimerWheel.Timer<K> mTimer;
+        OffHeapEntry<K> mPrevious;
+        OffHeapEntry<K> mNext;
+
+        OffHeapEntry(final K aKey, final int aSlabClass, final int aChunk, final int aLength) {
+            mKey = aKey;
+            mSlabClass = aSlabClass;
+            mChunk = aChunk;
+            mLength = aLength;
+        }
+
+        boolean isExpiring() {
+            return mExpiryTime != 0 || mTimeToIdle != 0;
+        }
+
+        boolean isExpired(final long aNow) {
+            return (mExpiryTime != 0 && aNow >= mExpiryTime) || (mTimeToIdle != 0 && aNow - mAccessTime >= mTimeToIdle);
+        }
+
+        long getNextExpiryTime() {
+            long expiryTime = mExpiryTime != 0 ? mExpiryTime : Long.MAX_VALUE;
+            if (mTimeToIdle != 0) {
+                expiryTime = Math.min(expiryTime, mAccessTime + mTimeToIdle);
+            }
+            return expiryTime;
+        }
+    }
+
+    static final class EntryDeque<K> {
+        OffHeapEntry<K> mFirst;
+        OffHeapEntry<K> mLast;
+
+        void addFirst(final OffHeapEntry<K> aEntry) {
+            aEntry.mPrevious = null;
+            aEntry.mNext = mFirst;
+            if (mFirst != null) {
+                mFirst.mPrevious = aEntry;
+            }
+            else {
+                mLast = aEntry;
+            }
+            mFirst = aEntry;
+        }
+
+        void remove(final OffHeapEntry<K> aEntry) {
+            if (aEntry.mPrevious != null) {
+                aEntry.mPrevious.mNext = aEntry.mNext;
+            }
+            else {
+                mFirst = aEntry.mNext;
+            }
+            if (aEntry.mNext != null) {
+                aEntry.mNext.mPrevious = aEntry.mPrevious;
+            }
+            else {
+                mLast = aEntry.mPrevious;
+            }
+            aEntry.mPrevious = null;
+            aEntry.mNext = null;
+        }
+
+        void moveToFront(final OffHeapEntry<K> aEntry) {
+            if (mFirst != aEntry) {
+                remove(aEntry);
+                addFirst(aEntry);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.ivanfoong.cache.serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Compact {@link Serializer} for boxed primitives, Strings and byte arrays.
+ *
+ * Every value is written as a one byte type tag followed by its payload, with integers and lengths encoded as
+ * variable length zig-zag integers so small numbers and short strings only take a couple of bytes. Any other type
+ * falls back to Java serialization.
+ */
+public class BinarySerializer<T> implements Serializer<T> {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_BYTES = 2;
+    static final byte TYPE_INTEGER = 3;
+    static final byte TYPE_LONG = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_BYTE = 6;
+    static final byte TYPE_SHORT = 7;
+    static final byte TYPE_CHARACTER = 8;
+    static final byte TYPE_FLOAT = 9;
+    static final byte TYPE_DOUBLE = 10;
+    static final byte TYPE_JAVA = 127;
+
+    public void serialize(final T aObject, final DataOutput aOutput) throws IOException {
+        if (aObject == null) {
+            aOutput.writeByte(TYPE_NULL);
+        }
+        else if (aObject instanceof String) {
+            final byte[] bytes = ((String) aObject).getBytes(UTF_8);
+            aOutput.writeByte(TYPE_STRING);
+            writeVarInt(aOutput, bytes.length);
+            aOutput.write(bytes);
+        }
+        else if (aObject instanceof byte[]) {
+            final byte[] bytes = (byte[]) aObject;
+            aOutput.writeByte(TYPE_BYTES);
+            writeVarInt(aOutput, bytes.length);
+            aOutput.write(bytes);
+        }
+        else if (aObject instanceof Integer) {
+            aOutput.writeByte(TYPE_INTEGER);
+            writeVarLong(aOutput, zigZag((Integer) aObject));
+        }
+        else if (aObject instanceof Long) {
+            aOutput.writeByte(TYPE_LONG);
+            writeVarLong(aOutput, zigZag((Long) aObject));
+        }
+        else if (aObject instanceof Boolean) {
+            aOutput.writeByte(TYPE_BOOLEAN);
+            aOutput.writeBoolean((Boolean) aObject);
+        }
+        else if (aObject instanceof Byte) {
+            aOutput.writeByte(TYPE_BYTE);
+            aOutput.writeByte((Byte) aObject);
+        }
+        else if (aObject instanceof Short) {
+            aOutput.writeByte(TYPE_SHORT);
+            aOutput.writeShort((Short) aObject);
+        }
+        else if (aObject instanceof Character) {
+            aOutput.writeByte(TYPE_CHARACTER);
+            aOutput.writeChar((Character) aObject);
+        }
+        else if (aObject instanceof Float) {
+            aOutput.writeByte(TYPE_FLOAT);
+            aOutput.writeFloat((Float) aObject);
+        }
+        else if (aObject instanceof Double) {
+            aOutput.writeByte(TYPE_DOUBLE);
+            aOutput.writeDouble((Double) aObject);
+        }
+        else {
+            final byte[] bytes = JavaSerializer.toBytes(aObject);
+            aOutput.writeByte(TYPE_JAVA);
+            writeVarInt(aOutput, bytes.length);
+            aOutput.write(bytes);
+        }
+    }
+
+    @SuppressWarnings("unchecked") // reads back what serialize wrote from a T
+    public T deserialize(final DataInput aInput) throws IOException {
+        return (T) readObject(aInput);
+    }
+
+    static Object readObject(final DataInput aInput) throws IOException {
+        final byte type = aInput.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return new String(readBytes(aInput), UTF_8);
+            case TYPE_BYTES:
+                return readBytes(aInput);
+            case TYPE_INTEGER:
+                return Integer.valueOf((int) unZigZag(readVarLong(aInput)));
+            case TYPE_LONG:
+                return Long.valueOf(unZigZag(readVarLong(aInput)));
+            case TYPE_BOOLEAN:
+                return Boolean.valueOf(aInput.readBoolean());
+            case TYPE_BYTE:
+                return Byte.valueOf(aInput.readByte());
+            case TYPE_SHORT:
+                return Short.valueOf(aInput.readShort());
+            case TYPE_CHARACTER:
+                return Character.valueOf(aInput.readChar());
+            case TYPE_FLOAT:
+                return Float.valueOf(aInput.readFloat());
+            case TYPE_DOUBLE:
+                return Double.valueOf(aInput.readDouble());
+            case TYPE_JAVA:
+                return JavaSerializer.fromBytes(readBytes(aInput));
+            default:
+                throw new IOException(String.format("Unknown type tag %d", type));
+        }
+    }
+
+    static byte[] readBytes(final DataInput aInput) throws IOException {
+        final byte[] bytes = new byte[readVarInt(aInput)];
+        aInput.readFully(bytes);
+        return bytes;
+    }
+
+    static long zigZag(final long aValue) {
+        return (aValue << 1) ^ (aValue >> 63);
+    }
+
+    static long unZigZag(final long aValue) {
+        return (aValue >>> 1) ^ -(aValue & 1);
+    }
+
+    public static void writeVarInt(final DataOutput aOutput, final int aValue) throws IOException {
+        writeVarLong(aOutput, aValue & 0xFFFFFFFFL);
+    }
+
+    public static int readVarInt(final DataInput aInput) throws IOException {
+        return (int) readVarLong(aInput);
+    }
+
+    public static void writeVarLong(final DataOutput aOutput, final long aValue) throws IOException {
+        long value = aValue;
+        while ((value & ~0x7FL) != 0) {
+            aOutput.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        aOutput.writeByte((int) value);
+    }
+
+    public static long readVarLong(final DataInput aInput) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = aInput.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+}
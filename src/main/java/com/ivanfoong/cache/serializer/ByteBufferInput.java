@@ -0,0 +1,96 @@
+package com.ivanfoong.cache.serializer;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DataInput} reading straight out of a {@link ByteBuffer}, e.g. a slice of a memory mapped file, without
+ * copying it into a stream first.
+ */
+public class ByteBufferInput implements DataInput {
+
+    final ByteBuffer mBuffer;
+
+    public ByteBufferInput(final ByteBuffer aBuffer) {
+        mBuffer = aBuffer;
+    }
+
+    void require(final int aLength) throws EOFException {
+        if (mBuffer.remaining() < aLength) {
+            throw new EOFException();
+        }
+    }
+
+    public void readFully(final byte[] aBytes) throws IOException {
+        readFully(aBytes, 0, aBytes.length);
+    }
+
+    public void readFully(final byte[] aBytes, final int aOffset, final int aLength) throws IOException {
+        require(aLength);
+        mBuffer.get(aBytes, aOffset, aLength);
+    }
+
+    public int skipBytes(final int aCount) {
+        final int count = Math.max(0, Math.min(aCount, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + count);
+        return count;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        require(1);
+        return mBuffer.get();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    public short readShort() throws IOException {
+        require(2);
+        return mBuffer.getShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    public char readChar() throws IOException {
+        require(2);
+        return mBuffer.getChar();
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        return mBuffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        return mBuffer.getLong();
+    }
+
+    public float readFloat() throws IOException {
+        require(4);
+        return mBuffer.getFloat();
+    }
+
+    public double readDouble() throws IOException {
+        require(8);
+        return mBuffer.getDouble();
+    }
+
+    public String readLine() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -0,0 +1,41 @@
+package com.ivanfoong.cache.serializer;
+
+import java.io.*;
+
+/**
+ * {@link Serializer} using plain Java serialization, written as a length prefixed {@link ObjectOutputStream} payload.
+ */
+public class JavaSerializer<T> implements Serializer<T> {
+
+    public void serialize(final T aObject, final DataOutput aOutput) throws IOException {
+        final byte[] bytes = toBytes(aObject);
+        aOutput.writeInt(bytes.length);
+        aOutput.write(bytes);
+    }
+
+    @SuppressWarnings("unchecked") // reads back what serialize wrote from a T
+    public T deserialize(final DataInput aInput) throws IOException {
+        final byte[] bytes = new byte[aInput.readInt()];
+        aInput.readFully(bytes);
+        return (T) fromBytes(bytes);
+    }
+
+    static byte[] toBytes(final Object aObject) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutput output = new ObjectOutputStream(bytes);
+        output.writeObject(aObject);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    static Object fromBytes(final byte[] aBytes) throws IOException {
+        final ObjectInput input = new ObjectInputStream(new ByteArrayInputStream(aBytes));
+        try {
+            return input.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        } finally {
+            input.close();
+        }
+    }
+}
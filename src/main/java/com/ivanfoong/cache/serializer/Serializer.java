@@ -0,0 +1,16 @@
+package com.ivanfoong.cache.serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts keys or values to and from the bytes stored by the disk tier.
+ *
+ * Implementations must be thread safe, and {@link #deserialize(DataInput)} must consume exactly the bytes written
+ * by {@link #serialize(Object, DataOutput)}.
+ */
+public interface Serializer<T> {
+    void serialize(final T aObject, final DataOutput aOutput) throws IOException;
+    T deserialize(final DataInput aInput) throws IOException;
+}
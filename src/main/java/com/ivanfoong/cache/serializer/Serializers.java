@@ -0,0 +1,24 @@
+package com.ivanfoong.cache.serializer;
+
+import java.io.*;
+
+/**
+ * Helpers for running a {@link Serializer} against byte arrays.
+ */
+public final class Serializers {
+
+    private Serializers() {
+    }
+
+    public static <T> byte[] toBytes(final Serializer<T> aSerializer, final T aObject) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        aSerializer.serialize(aObject, output);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    public static <T> T fromBytes(final Serializer<T> aSerializer, final byte[] aBytes) throws IOException {
+        return aSerializer.deserialize(new DataInputStream(new ByteArrayInputStream(aBytes)));
+    }
+}
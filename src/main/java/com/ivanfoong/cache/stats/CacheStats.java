@@ -0,0 +1,266 @@
+package com.ivanfoong.cache.stats;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a cache and its tiers.
+ *
+ * Recording only ever touches {@link LongAdder}s and atomics, so it is safe and cheap from any number of threads;
+ * read the numbers through {@link #snapshot()}, or over JMX after {@link #registerMBean(String)}.
+ */
+public final class CacheStats implements CacheStatsMXBean {
+
+    public enum Tier { MEMORY, OFF_HEAP, DISK }
+
+    static final String MBEAN_DOMAIN = "com.ivanfoong.cache";
+
+    final LongAdder mHits = new LongAdder();
+    final LongAdder mMisses = new LongAdder();
+    final LongAdder[] mTierHits = newAdders(Tier.values().length);
+    final LongAdder[] mTierMisses = newAdders(Tier.values().length);
+    final LongAdder[] mTierEvictions = newAdders(Tier.values().length);
+    final LatencyHistogram[] mTierLatencies = new LatencyHistogram[Tier.values().length];
+    final LongAdder mDiskReads = new LongAdder();
+    final LongAdder mDiskWrites = new LongAdder();
+    final LongAdder mBytesRead = new LongAdder();
+    final LongAdder mBytesWritten = new LongAdder();
+    final LongAdder mLoads = new LongAdder();
+    final LongAdder mLoadFailures = new LongAdder();
+    final LatencyHistogram mLoadLatency = new LatencyHistogram();
+    volatile ObjectName mObjectName;
+
+    public CacheStats() {
+        for (int i = 0; i < mTierLatencies.length; i++) {
+            mTierLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    static LongAdder[] newAdders(final int aCount) {
+        final LongAdder[] adders = new LongAdder[aCount];
+        for (int i = 0; i < aCount; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Records keys found by the cache as a whole, in whichever tier.
+     */
+    public void recordHits(final int aCount) {
+        if (aCount > 0) {
+            mHits.add(aCount);
+        }
+    }
+
+    /**
+     * Records keys found in none of the tiers.
+     */
+    public void recordMisses(final int aCount) {
+        if (aCount > 0) {
+            mMisses.add(aCount);
+        }
+    }
+
+    public void recordHits(final Tier aTier, final int aCount) {
+        if (aCount > 0) {
+            mTierHits[aTier.ordinal()].add(aCount);
+        }
+    }
+
+    public void recordMisses(final Tier aTier, final int aCount) {
+        if (aCount > 0) {
+            mTierMisses[aTier.ordinal()].add(aCount);
+        }
+    }
+
+    /**
+     * Records entries dropped by a tier to stay within its bounds, or because they expired.
+     */
+    public void recordEvictions(final Tier aTier, final int aCount) {
+        if (aCount > 0) {
+            mTierEvictions[aTier.ordinal()].add(aCount);
+        }
+    }
+
+    /**
+     * Records how long one lookup of a tier took, however many keys it was for.
+     */
+    public void recordLatency(final Tier aTier, final long aNanos) {
+        mTierLatencies[aTier.ordinal()].record(aNanos);
+    }
+
+    public void recordDiskRead(final long aBytes) {
+        mDiskReads.increment();
+        mBytesRead.add(aBytes);
+    }
+
+    public void recordDiskWrites(final int aCount, final long aBytes) {
+        mDiskWrites.add(aCount);
+        mBytesWritten.add(aBytes);
+    }
+
+    /**
+     * Records one call to a cache loader which returned, however many keys it was for.
+     */
+    public void recordLoadSuccess(final long aNanos) {
+        mLoads.increment();
+        mLoadLatency.record(aNanos);
+    }
+
+    /**
+     * Records one call to a cache loader which threw.
+     */
+    public void recordLoadFailure(final long aNanos) {
+        mLoads.increment();
+        mLoadFailures.increment();
+        mLoadLatency.record(aNanos);
+    }
+
+    public CacheStatsSnapshot snapshot() {
+        final int tiers = Tier.values().length;
+        final long[] tierHits = new long[tiers];
+        final long[] tierMisses = new long[tiers];
+        final long[] tierEvictions = new long[tiers];
+        final LatencyHistogram.Snapshot[] tierLatencies = new LatencyHistogram.Snapshot[tiers];
+        for (int i = 0; i < tiers; i++) {
+            tierHits[i] = mTierHits[i].sum();
+            tierMisses[i] = mTierMisses[i].sum();
+            tierEvictions[i] = mTierEvictions[i].sum();
+            tierLatencies[i] = mTierLatencies[i].snapshot();
+        }
+        return new CacheStatsSnapshot(mHits.sum(), mMisses.sum(), tierHits, tierMisses, tierEvictions, tierLatencies,
+                mDiskReads.sum(), mDiskWrites.sum(), mBytesRead.sum(), mBytesWritten.sum(), mLoads.sum(), mLoadFailures.sum(),
+                mLoadLatency.snapshot());
+    }
+
+    /**
+     * Registers these stats with the platform MBean server as com.ivanfoong.cache:type=CacheStats,name=aName,
+     * replacing any stats already registered under that name.
+     */
+    public synchronized ObjectName registerMBean(final String aName) {
+        unregisterMBean();
+        try {
+            final ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=CacheStats,name=" + ObjectName.quote(aName));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            mObjectName = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register cache stats as " + aName, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        final ObjectName objectName = mObjectName;
+        if (objectName == null) {
+            return;
+        }
+        mObjectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override public long getRequestCount() {
+        return getHitCount() + getMissCount();
+    }
+
+    @Override public long getHitCount() {
+        return mHits.sum();
+    }
+
+    @Override public long getMissCount() {
+        return mMisses.sum();
+    }
+
+    @Override public double getHitRate() {
+        final long hits = getHitCount();
+        final long requests = hits + getMissCount();
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    @Override public long getMemoryHitCount() {
+        return mTierHits[Tier.MEMORY.ordinal()].sum();
+    }
+
+    @Override public long getMemoryMissCount() {
+        return mTierMisses[Tier.MEMORY.ordinal()].sum();
+    }
+
+    @Override public long getMemoryEvictionCount() {
+        return mTierEvictions[Tier.MEMORY.ordinal()].sum();
+    }
+
+    @Override public long getOffHeapHitCount() {
+        return mTierHits[Tier.OFF_HEAP.ordinal()].sum();
+    }
+
+    @Override public long getOffHeapMissCount() {
+        return mTierMisses[Tier.OFF_HEAP.ordinal()].sum();
+    }
+
+    @Override public long getOffHeapEvictionCount() {
+        return mTierEvictions[Tier.OFF_HEAP.ordinal()].sum();
+    }
+
+    @Override public long getDiskHitCount() {
+        return mTierHits[Tier.DISK.ordinal()].sum();
+    }
+
+    @Override public long getDiskMissCount() {
+        return mTierMisses[Tier.DISK.ordinal()].sum();
+    }
+
+    @Override public long getDiskEvictionCount() {
+        return mTierEvictions[Tier.DISK.ordinal()].sum();
+    }
+
+    @Override public long getDiskReadCount() {
+        return mDiskReads.sum();
+    }
+
+    @Override public long getDiskWriteCount() {
+        return mDiskWrites.sum();
+    }
+
+    @Override public long getBytesRead() {
+        return mBytesRead.sum();
+    }
+
+    @Override public long getBytesWritten() {
+        return mBytesWritten.sum();
+    }
+
+    @Override public long getLoadCount() {
+        return mLoads.sum();
+    }
+
+    @Override public long getLoadFailureCount() {
+        return mLoadFailures.sum();
+    }
+
+    @Override public LatencyHistogram.Snapshot getLoadLatency() {
+        return mLoadLatency.snapshot();
+    }
+
+    @Override public LatencyHistogram.Snapshot getMemoryLatency() {
+        return mTierLatencies[Tier.MEMORY.ordinal()].snapshot();
+    }
+
+    @Override public LatencyHistogram.Snapshot getOffHeapLatency() {
+        return mTierLatencies[Tier.OFF_HEAP.ordinal()].snapshot();
+    }
+
+    @Override public LatencyHistogram.Snapshot getDiskLatency() {
+        return mTierLatencies[Tier.DISK.ordinal()].snapshot();
+    }
+}
@@ -0,0 +1,53 @@
+package com.ivanfoong.cache.stats;
+
+/**
+ * JMX view of {@link CacheStats}, registered with {@link CacheStats#registerMBean(String)}.
+ */
+public interface CacheStatsMXBean {
+
+    long getRequestCount();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getMemoryHitCount();
+
+    long getMemoryMissCount();
+
+    long getMemoryEvictionCount();
+
+    long getOffHeapHitCount();
+
+    long getOffHeapMissCount();
+
+    long getOffHeapEvictionCount();
+
+    long getDiskHitCount();
+
+    long getDiskMissCount();
+
+    long getDiskEvictionCount();
+
+    long getDiskReadCount();
+
+    long getDiskWriteCount();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getLoadCount();
+
+    long getLoadFailureCount();
+
+    LatencyHistogram.Snapshot getLoadLatency();
+
+    LatencyHistogram.Snapshot getMemoryLatency();
+
+    LatencyHistogram.Snapshot getOffHeapLatency();
+
+    LatencyHistogram.Snapshot getDiskLatency();
+}
@@ -0,0 +1,149 @@
+package com.ivanfoong.cache.stats;
+
+/**
+ * Immutable copy of {@link CacheStats} at one point in time. Two snapshots can be subtracted with
+ * {@link #minus(CacheStatsSnapshot)} to get the counts for the interval between them.
+ */
+public final class CacheStatsSnapshot {
+
+    final long mHitCount;
+    final long mMissCount;
+    final long[] mTierHitCounts;
+    final long[] mTierMissCounts;
+    final long[] mTierEvictionCounts;
+    final LatencyHistogram.Snapshot[] mTierLatencies;
+    final long mDiskReadCount;
+    final long mDiskWriteCount;
+    final long mBytesRead;
+    final long mBytesWritten;
+    final long mLoadCount;
+    final long mLoadFailureCount;
+    final LatencyHistogram.Snapshot mLoadLatency;
+
+    CacheStatsSnapshot(final long aHitCount, final long aMissCount, final long[] aTierHitCounts,
+                       final long[] aTierMissCounts, final long[] aTierEvictionCounts,
+                       final LatencyHistogram.Snapshot[] aTierLatencies, final long aDiskReadCount,
+                       final long aDiskWriteCount, final long aBytesRead, final long aBytesWritten,
+                       final long aLoadCount, final long aLoadFailureCount, final LatencyHistogram.Snapshot aLoadLatency) {
+        mHitCount = aHitCount;
+        mMissCount = aMissCount;
+        mTierHitCounts = aTierHitCounts;
+        mTierMissCounts = aTierMissCounts;
+        mTierEvictionCounts = aTierEvictionCounts;
+        mTierLatencies = aTierLatencies;
+        mDiskReadCount = aDiskReadCount;
+        mDiskWriteCount = aDiskWriteCount;
+        mBytesRead = aBytesRead;
+        mBytesWritten = aBytesWritten;
+        mLoadCount = aLoadCount;
+        mLoadFailureCount = aLoadFailureCount;
+        mLoadLatency = aLoadLatency;
+    }
+
+    public long getRequestCount() {
+        return mHitCount + mMissCount;
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the fraction of requested keys which were found, 1 if nothing was requested
+     */
+    public double getHitRate() {
+        final long requests = getRequestCount();
+        return requests == 0 ? 1.0 : (double) mHitCount / requests;
+    }
+
+    public long getHitCount(final CacheStats.Tier aTier) {
+        return mTierHitCounts[aTier.ordinal()];
+    }
+
+    public long getMissCount(final CacheStats.Tier aTier) {
+        return mTierMissCounts[aTier.ordinal()];
+    }
+
+    public long getEvictionCount(final CacheStats.Tier aTier) {
+        return mTierEvictionCounts[aTier.ordinal()];
+    }
+
+    /**
+     * Latencies are cumulative, {@link #minus(CacheStatsSnapshot)} leaves them as they are.
+     */
+    public LatencyHistogram.Snapshot getLatency(final CacheStats.Tier aTier) {
+        return mTierLatencies[aTier.ordinal()];
+    }
+
+    public long getDiskReadCount() {
+        return mDiskReadCount;
+    }
+
+    public long getDiskWriteCount() {
+        return mDiskWriteCount;
+    }
+
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return the number of calls made to the cache loader, each of which may have been for several keys
+     */
+    public long getLoadCount() {
+        return mLoadCount;
+    }
+
+    public long getLoadFailureCount() {
+        return mLoadFailureCount;
+    }
+
+    public LatencyHistogram.Snapshot getLoadLatency() {
+        return mLoadLatency;
+    }
+
+    /**
+     * @return the counts recorded between aEarlier and this snapshot
+     */
+    public CacheStatsSnapshot minus(final CacheStatsSnapshot aEarlier) {
+        return new CacheStatsSnapshot(mHitCount - aEarlier.mHitCount, mMissCount - aEarlier.mMissCount,
+                minus(mTierHitCounts, aEarlier.mTierHitCounts), minus(mTierMissCounts, aEarlier.mTierMissCounts),
+                minus(mTierEvictionCounts, aEarlier.mTierEvictionCounts), mTierLatencies,
+                mDiskReadCount - aEarlier.mDiskReadCount, mDiskWriteCount - aEarlier.mDiskWriteCount,
+                mBytesRead - aEarlier.mBytesRead, mBytesWritten - aEarlier.mBytesWritten,
+                mLoadCount - aEarlier.mLoadCount, mLoadFailureCount - aEarlier.mLoadFailureCount, mLoadLatency);
+    }
+
+    static long[] minus(final long[] aCounts, final long[] aEarlierCounts) {
+        final long[] counts = new long[aCounts.length];
+        for (int i = 0; i < aCounts.length; i++) {
+            counts[i] = aCounts[i] - aEarlierCounts[i];
+        }
+        return counts;
+    }
+
+    @Override public String toString() {
+        final StringBuilder builder = new StringBuilder("CacheStats{hits=").append(mHitCount)
+                .append(", misses=").append(mMissCount);
+        for (final CacheStats.Tier tier : CacheStats.Tier.values()) {
+            builder.append(", ").append(tier.name().toLowerCase()).append("={hits=").append(getHitCount(tier))
+                    .append(", misses=").append(getMissCount(tier))
+                    .append(", evictions=").append(getEvictionCount(tier))
+                    .append(", p99Nanos=").append(getLatency(tier).getP99Nanos()).append('}');
+        }
+        return builder.append(", diskReads=").append(mDiskReadCount)
+                .append(", diskWrites=").append(mDiskWriteCount)
+                .append(", bytesRead=").append(mBytesRead)
+                .append(", bytesWritten=").append(mBytesWritten)
+                .append(", loads=").append(mLoadCount)
+                .append(", loadFailures=").append(mLoadFailureCount).append('}').toString();
+    }
+}
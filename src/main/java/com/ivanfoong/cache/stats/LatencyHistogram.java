@@ -0,0 +1,134 @@
+package com.ivanfoong.cache.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds.
+ *
+ * Buckets are log-linear: every power of two is split into eight equally wide buckets, so a recorded latency is
+ * known to within 12.5% from a nanosecond up to centuries, in a fixed 488 counters.
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    final LongAdder mCount = new LongAdder();
+    final LongAdder mTotalNanos = new LongAdder();
+    final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(final long aNanos) {
+        final long nanos = Math.max(0, aNanos);
+        mCounts.incrementAndGet(bucketOf(nanos));
+        mCount.increment();
+        mTotalNanos.add(nanos);
+
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts, mCount.sum(), mTotalNanos.sum(), mMaxNanos.get());
+    }
+
+    static int bucketOf(final long aNanos) {
+        if (aNanos < SUB_BUCKETS) {
+            return (int) aNanos;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(aNanos);
+        final int subBucket = (int) (aNanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest latency which falls into aBucket
+     */
+    static long upperBoundOf(final int aBucket) {
+        if (aBucket < SUB_BUCKETS) {
+            return aBucket;
+        }
+        final int exponent = aBucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int subBucket = aBucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Latencies recorded up to the moment it was taken. The counts are read one at a time while recording goes on,
+     * so they may be off by the few latencies recorded meanwhile.
+     */
+    public static final class Snapshot {
+        final long[] mCounts;
+        final long mCount;
+        final long mTotalNanos;
+        final long mMaxNanos;
+
+        Snapshot(final long[] aCounts, final long aCount, final long aTotalNanos, final long aMaxNanos) {
+            mCounts = aCounts;
+            mCount = aCount;
+            mTotalNanos = aTotalNanos;
+            mMaxNanos = aMaxNanos;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getMeanNanos() {
+            return mCount == 0 ? 0 : (double) mTotalNanos / mCount;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * @param aQuantile between 0 and 1, e.g. 0.99 for the 99th percentile
+         * @return the latency at aQuantile, overestimated by at most 12.5%
+         */
+        public long getQuantileNanos(final double aQuantile) {
+            long total = 0;
+            for (final long count : mCounts) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            final long rank = Math.max(1, (long) Math.ceil(aQuantile * total));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), mMaxNanos);
+                }
+            }
+            return mMaxNanos;
+        }
+
+        public long getP50Nanos() {
+            return getQuantileNanos(0.5);
+        }
+
+        public long getP90Nanos() {
+            return getQuantileNanos(0.9);
+        }
+
+        public long getP99Nanos() {
+            return getQuantileNanos(0.99);
+        }
+
+        public long getP999Nanos() {
+            return getQuantileNanos(0.999);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.ivanfoong.cache;
+
+import com.ivanfoong.cache.disk.DiskCache;
+import com.ivanfoong.cache.memory.MemoryCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncCacheTest {
+
+    private TemporaryFolder mTemporaryFolder;
+    private Cache<String, String> mCache;
+    private QueueingExecutor mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mTemporaryFolder = new TemporaryFolder();
+        mTemporaryFolder.create();
+        mCache = new Cache<String, String>(mTemporaryFolder.newFolder("cache"), 1);
+        mExecutor = new QueueingExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.close();
+        mTemporaryFolder.delete();
+    }
+
+    @Test
+    public void testMemoryHitsCompleteInline() throws Exception {
+        final AsyncCache<String, String> asyncCache = new AsyncCache<String, String>(mCache, mExecutor);
+        mCache.put("key", "value");
+        mCache.put("key2", "value2"); // evicts key from memory
+
+        final CompletableFuture<String> memoryHit = asyncCache.getAsync("key2");
+        assertTrue(memoryHit.isDone());
+        assertEquals("value2", memoryHit.get());
+        assertTrue(mExecutor.mTasks.isEmpty());
+
+        // only the disk lookup is handed to the executor
+        final Set<String> keys = new HashSet<String>(Arrays.asList("key", "key2"));
+        final CompletableFuture<HashMap<String, String>> diskHit = asyncCache.getAllAsync(keys);
+        assertFalse(diskHit.isDone());
+        assertEquals(2, keys.size());
+        mExecutor.runAll();
+        assertEquals(2, diskHit.get().size());
+        assertEquals("value", diskHit.get().get("key"));
+        assertEquals(3, mCache.getStats().snapshot().getHitCount());
+    }
+
+    @Test
+    public void testWrites() throws Exception {
+        final AsyncCache<String, String> asyncCache = new AsyncCache<String, String>(mCache, mExecutor);
+        final CompletableFuture<Void> put = asyncCache.putAsync("key", "value");
+        assertFalse(put.isDone());
+        mExecutor.runAll();
+        put.get();
+        assertEquals("value", mCache.mDiskCache.get(Collections.singleton("key")).get("key"));
+
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        entries.put("key2", "value2");
+        asyncCache.putAllAsync(entries);
+        asyncCache.removeAsync(Collections.singleton("key"));
+        mExecutor.runAll();
+        assertEquals(1, mCache.size());
+        assertEquals("value2", asyncCache.getAsync("key2").get());
+    }
+
+    @Test
+    public void testWritesOfSameKeyKeepTheirOrder() throws Exception {
+        final AsyncCache<String, String> asyncCache = new AsyncCache<String, String>(mCache, mExecutor);
+        final CompletableFuture<Void> first = asyncCache.putAsync("key", "first");
+        final CompletableFuture<Void> second = asyncCache.putAsync("key", "second");
+        assertEquals("second", mCache.mMemoryCache.getIfPresent("key")); // memory is written inline
+        asyncCache.putAsync("other", "value");
+        assertEquals(2, mExecutor.mTasks.size()); // the second write of key waits for the first
+
+        // run the queued writes newest first, which must not let the first write land last
+        while (!mExecutor.mTasks.isEmpty()) {
+            mExecutor.mTasks.remove(mExecutor.mTasks.size() - 1).run();
+        }
+        assertTrue(first.isDone());
+        second.get();
+        assertEquals("second", mCache.mDiskCache.getIfPresent("key"));
+
+        asyncCache.putAsync("key", "third");
+        asyncCache.removeAsync(Collections.singleton("key"));
+        assertNull(mCache.mMemoryCache.getIfPresent("key"));
+        mExecutor.runAll();
+        assertNull(mCache.mDiskCache.getIfPresent("key"));
+    }
+
+    @Test
+    public void testConcurrentWritesOfSameKey() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final AsyncCache<String, String> asyncCache = new AsyncCache<String, String>(mCache, executor);
+            CompletableFuture<Void> last = null;
+            for (int i = 0; i < 200; i++) {
+                last = asyncCache.putAsync("key", "value" + i);
+            }
+            last.get(10, TimeUnit.SECONDS);
+            assertEquals("value199", mCache.mDiskCache.getIfPresent("key"));
+            assertEquals("value199", mCache.getIfPresent("key"));
+            assertTrue(asyncCache.mLastWrites.isEmpty());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDefaultExecutor() throws Exception {
+        final DiskCache<String, String> diskCache = new DiskCache<String, String>(mTemporaryFolder.newFolder("disk"));
+        try {
+            final AsyncCache<String, String> asyncCache = new AsyncCache<String, String>(diskCache);
+            asyncCache.putAsync("key", "value").get();
+            assertEquals("value", asyncCache.getAsync("key").get());
+            assertNull(asyncCache.getAsync("absent").get());
+        } finally {
+            diskCache.close();
+        }
+    }
+
+    @Test
+    public void testMemoryCacheNeverUsesExecutor() throws Exception {
+        final AsyncCache<String, String> asyncCache = new AsyncCache<String, String>(new MemoryCache<String, String>(10), mExecutor);
+        assertTrue(asyncCache.putAsync("key", "value").isDone());
+        assertEquals("value", asyncCache.getAsync("key").getNow(null));
+        assertTrue(asyncCache.removeAsync(Collections.singleton("key")).isDone());
+        assertNull(asyncCache.getAsync("key").getNow("pending"));
+        assertTrue(mExecutor.mTasks.isEmpty());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final AsyncCache<String, String> asyncCache = new AsyncCache<String, String>(mCache, mExecutor);
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                throw new Exception("backend unavailable");
+            }
+        });
+
+        final CompletableFuture<String> future = asyncCache.getAsync("key");
+        mExecutor.runAll();
+        try {
+            future.get();
+            fail("expected the load to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    static final class QueueingExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        public void execute(final Runnable aRunnable) {
+            mTasks.add(aRunnable);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.ivanfoong.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class BackgroundRefresherTest {
+
+    private TemporaryFolder mTemporaryFolder;
+    private Cache<String, String> mCache;
+    private final AtomicLong mTime = new AtomicLong(1000);
+    private final AtomicInteger mReloadCount = new AtomicInteger();
+    private final List<Runnable> mTasks = new ArrayList<Runnable>();
+    private final Executor mExecutor = new Executor() {
+        public void execute(final Runnable aTask) {
+            mTasks.add(aTask);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mTemporaryFolder = new TemporaryFolder();
+        mTemporaryFolder.create();
+        mCache = new Cache<String, String>(mTemporaryFolder.newFolder("cache"), 100);
+        mCache.setTicker(CacheTest.newTicker(mTime));
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                return "loaded-" + aKey;
+            }
+
+            @Override public String reload(final String aKey, final String aOldValue) throws Exception {
+                if (aKey.equals("failing")) {
+                    throw new Exception("backend down");
+                }
+                if (aKey.equals("deleted")) {
+                    return null;
+                }
+                return aOldValue + "-" + mReloadCount.incrementAndGet();
+            }
+        });
+        mCache.setRefreshAfterWriteMillis(100, mExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.close();
+        mTemporaryFolder.delete();
+    }
+
+    private void runTasks() {
+        final List<Runnable> tasks = new ArrayList<Runnable>(mTasks);
+        mTasks.clear();
+        for (final Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void testStaleReadReturnsCurrentValueAndReloads() throws Exception {
+        mCache.put("key", "value");
+        mTime.addAndGet(99);
+        assertEquals("value", mCache.getIfPresent("key"));
+        assertTrue(mTasks.isEmpty());
+
+        mTime.addAndGet(1);
+        assertEquals("value", mCache.getIfPresent("key"));
+        assertEquals("value", mCache.get("key"));
+        assertEquals("value", mCache.get(Collections.singleton("key")).get("key"));
+        assertEquals(1, mTasks.size()); // one reload however many reads see the entry stale
+
+        runTasks();
+        assertEquals("value-1", mCache.getIfPresent("key"));
+        assertEquals("value-1", mCache.mMemoryCache.getIfPresent("key"));
+        assertEquals("value-1", mCache.mDiskCache.getIfPresent("key"));
+        assertTrue(mTasks.isEmpty());
+        assertEquals(1, mCache.getStats().snapshot().getLoadCount());
+
+        // the reloaded value is refreshed again once it is stale in turn
+        mTime.addAndGet(100);
+        mCache.getIfPresent("key");
+        runTasks();
+        assertEquals("value-1-2", mCache.getIfPresent("key"));
+    }
+
+    @Test
+    public void testWriteDiscardsReloadInFlight() throws Exception {
+        mCache.put("key", "value");
+        mTime.addAndGet(100);
+        mCache.getIfPresent("key");
+        mCache.put("key", "written");
+        runTasks();
+        assertEquals("written", mCache.getIfPresent("key"));
+
+        mTime.addAndGet(100);
+        mCache.getIfPresent("key");
+        mCache.remove(Collections.singleton("key"));
+        runTasks();
+        assertNull(mCache.getIfPresent("key"));
+        assertEquals(2, mReloadCount.get());
+    }
+
+    @Test
+    public void testPutWhileReloadingSurvives() throws Exception {
+        final CountDownLatch reloading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                return "loaded-" + aKey;
+            }
+
+            @Override public String reload(final String aKey, final String aOldValue) throws Exception {
+                reloading.countDown();
+                release.await();
+                return "reloaded";
+            }
+        });
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            mCache.setRefreshAfterWriteMillis(100, executor);
+            mCache.put("key", "value");
+            mTime.addAndGet(100);
+            assertEquals("value", mCache.getIfPresent("key"));
+            assertTrue(reloading.await(10, TimeUnit.SECONDS));
+
+            mCache.put("key", "written");
+            release.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals("written", mCache.getIfPresent("key"));
+        assertEquals("written", mCache.mDiskCache.getIfPresent("key"));
+    }
+
+    @Test
+    public void testFailedReloadKeepsValue() throws Exception {
+        mCache.put("failing", "value");
+        mTime.addAndGet(100);
+        mCache.getIfPresent("failing");
+        runTasks();
+        assertEquals("value", mCache.getIfPresent("failing"));
+        assertEquals(1, mCache.getStats().snapshot().getLoadFailureCount());
+        assertEquals(1, mTasks.size()); // retried on the next read
+    }
+
+    @Test
+    public void testReloadWithoutValueRemovesEntry() throws Exception {
+        mCache.put("deleted", "value");
+        mTime.addAndGet(100);
+        mCache.getIfPresent("deleted");
+        runTasks();
+        assertNull(mCache.mMemoryCache.getIfPresent("deleted"));
+        assertNull(mCache.mDiskCache.getIfPresent("deleted"));
+    }
+
+    @Test
+    public void testNoRefreshWithoutLoaderOrOnceStopped() throws Exception {
+        mCache.put("key", "value");
+        mTime.addAndGet(100);
+        mCache.setCacheLoader(null);
+        mCache.getIfPresent("key");
+        assertTrue(mTasks.isEmpty());
+
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                return "loaded-" + aKey;
+            }
+        });
+        mCache.setRefreshAfterWriteMillis(0);
+        assertEquals(0, mCache.getRefreshAfterWriteMillis());
+        assertEquals("value", mCache.getIfPresent("key"));
+        assertTrue(mTasks.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() {
+        mCache.setRefreshAfterWriteMillis(-1);
+    }
+}
@@ -1,17 +1,29 @@
 package com.ivanfoong.cache;
 
+import com.ivanfoong.cache.serializer.BinarySerializer;
+import com.ivanfoong.cache.stats.CacheStats;
+import com.ivanfoong.cache.stats.CacheStatsSnapshot;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by ivanfoong on 8/10/15.
@@ -32,6 +44,7 @@ public class CacheTest {
 
     @After
     public void tearDown() throws Exception {
+        cache.close();
         cache = null;
         cacheFolder = null;
         mTemporaryFolder.delete();
@@ -99,6 +112,41 @@ public class CacheTest {
         assertEquals(1, cache.getLastCacheMissedCount());
     }
 
+    @Test
+    public void testGetSingleKey() throws Exception {
+        cache.setMemoryCacheCapacity(1);
+        cache.put("key", "value");
+        cache.put("key2", "value2");
+
+        assertEquals("value2", cache.getIfPresent("key2"));
+        assertEquals(0, cache.getLastCacheMissedCount());
+        assertEquals("value", cache.get("key")); // from disk
+        assertEquals(1, cache.getLastCacheMissedCount());
+        assertEquals("value", cache.getIfPresent("key")); // promoted to memory
+        assertNull(cache.getIfPresent("missing"));
+
+        final CacheStatsSnapshot stats = cache.getStats().snapshot();
+        assertEquals(3, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+    }
+
+    @Test
+    public void testGetLeavesKeysUntouched() throws Exception {
+        cache.setMemoryCacheCapacity(1);
+        cache.put("key", "value");
+        cache.put("key2", "value2");
+
+        final Set<String> keys = new HashSet<String>(Arrays.asList("key", "key2", "missing"));
+        assertEquals(2, cache.get(keys).size());
+        assertEquals(3, keys.size());
+
+        final HashMap<String, String> results = new HashMap<String, String>();
+        cache.getAll(Arrays.asList("key", "key2", "missing"), results);
+        assertEquals(2, results.size());
+        assertEquals("value", results.get("key"));
+        assertEquals("value2", results.get("key2"));
+    }
+
     @Test
     public void testRemove() throws Exception {
         final String key = "key";
@@ -143,6 +191,20 @@ public class CacheTest {
         assertEquals(0, cache.getLastCacheMissedCount());
     }
 
+    @Test
+    public void testPutAll() throws Exception {
+        cache.setMemoryCacheCapacity(1);
+
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        entries.put("key", "value");
+        entries.put("key2", "value2");
+        cache.putAll(entries);
+
+        assertEquals(1, cache.mMemoryCache.size());
+        assertEquals(2, cache.size());
+        assertEquals(entries, cache.all());
+    }
+
     @Test
     public void testSize() throws Exception {
         final int capacity = 2;
@@ -164,4 +226,242 @@ public class CacheTest {
         assertEquals(cache.mDiskCache.size(), cache.size());
         assertEquals(3, cache.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        cache.setMemoryCacheCapacity(2);
+        cache.enableWriteBehind(4, 60000);
+
+        final int count = 20;
+        for (int i = 0; i < count; i++) {
+            cache.put(String.format("key.%d", i), String.format("value.%d", i));
+        }
+
+        final Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            keys.add(String.format("key.%d", i));
+        }
+        final HashMap<String, String> results = cache.get(keys);
+        assertEquals(count, results.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(String.format("value.%d", i), results.get(String.format("key.%d", i)));
+        }
+
+        cache.flush();
+        assertEquals(0, cache.mWriteBehindQueue.getPendingCount());
+        assertEquals(count, cache.mDiskCache.size());
+    }
+
+    @Test
+    public void testWriteBehindRemove() throws Exception {
+        cache.setMemoryCacheCapacity(1);
+        cache.put("key", "value");
+        cache.enableWriteBehind(100, 60000);
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        cache.remove(keys);
+        cache.put("key2", "value2");
+
+        assertEquals(1, cache.mDiskCache.size()); // removal not flushed yet
+        final Set<String> keysToAssert = new HashSet<String>();
+        keysToAssert.add("key");
+        assertEquals(0, cache.get(keysToAssert).size());
+
+        cache.close();
+        assertFalse(cache.mWriteBehindQueue.mFlushThread.isAlive());
+
+        cache = new Cache<String, String>(cacheFolder, 100, true);
+        final Set<String> allKeys = new HashSet<String>();
+        allKeys.add("key");
+        allKeys.add("key2");
+        final HashMap<String, String> results = cache.get(allKeys);
+        assertEquals(1, results.size());
+        assertEquals("value2", results.get("key2"));
+    }
+
+    static Ticker newTicker(final AtomicLong aTime) {
+        return new Ticker() {
+            public long currentTimeMillis() {
+                return aTime.get();
+            }
+        };
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        cache.setTicker(newTicker(time));
+        cache.setExpireAfterWriteMillis(100);
+        cache.put("key", "value");
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        time.addAndGet(100);
+        assertTrue(cache.get(keys).isEmpty());
+
+        cache.cleanUp();
+        assertEquals(0, cache.mMemoryCache.size());
+        assertEquals(0, cache.mDiskCache.size());
+    }
+
+    @Test
+    public void testDiskHitKeepsTimeToLive() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        cache.setTicker(newTicker(time));
+        cache.setMemoryCacheCapacity(1);
+        cache.put("key", "value", 100, 0);
+        cache.put("key2", "value2"); // evicts key from memory
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        time.addAndGet(50);
+        assertEquals("value", cache.get(keys).get("key"));
+
+        // the copy promoted to memory expires along with the one on disk
+        keys.add("key");
+        time.addAndGet(50);
+        assertTrue(cache.get(keys).isEmpty());
+    }
+
+    @Test
+    public void testWriteBehindExpiry() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        cache.setTicker(newTicker(time));
+        cache.enableWriteBehind(100, 60000);
+        cache.put("key", "value", 100, 0);
+
+        cache.flush();
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        assertEquals(1100, cache.mDiskCache.getItems(keys).get("key").getExpiryTime());
+    }
+
+    @Test
+    public void testOffHeapCache() throws Exception {
+        cache.setMemoryCacheCapacity(1);
+        cache.enableOffHeapCache(1 << 20);
+        cache.put("key", "value");
+        cache.put("key2", "value2"); // evicts key from memory
+
+        // served by the off heap tier without reaching the disk
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        cache.mDiskCache.remove(new HashSet<String>(keys));
+        assertEquals("value", cache.get(keys).get("key"));
+
+        // disk hits are copied into the off heap tier
+        cache.mOffHeapCache.clear();
+        keys.add("key2");
+        cache.get(keys);
+        assertEquals(1, cache.mOffHeapCache.size());
+
+        keys.add("key2");
+        cache.remove(keys);
+        assertEquals(0, cache.mOffHeapCache.size());
+    }
+
+    @Test
+    public void testStreamIncludesPendingWrites() throws Exception {
+        cache.enableWriteBehind(100, 60000);
+        cache.put("key", "value");
+        cache.put("key2", "value2");
+
+        assertEquals(2, cache.stream().count());
+        assertEquals(2, cache.parallelStream().count());
+    }
+
+    @Test
+    public void testShardedDiskCache() throws Exception {
+        final File[] folders = new File[] { mTemporaryFolder.newFolder("shards0"), mTemporaryFolder.newFolder("shards1") };
+        final Cache<String, String> shardedCache = new Cache<String, String>(folders, 4, 1, new BinarySerializer<String>(), new BinarySerializer<String>());
+        try {
+            shardedCache.put("key", "value");
+            shardedCache.put("key2", "value2"); // evicts key from memory
+
+            final Set<String> keys = new HashSet<String>();
+            keys.add("key");
+            keys.add("key2");
+            assertEquals(2, shardedCache.get(keys).size());
+            assertEquals(4, shardedCache.mDiskCache.getShardCount());
+            assertEquals(2, shardedCache.size());
+        } finally {
+            shardedCache.close();
+        }
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        cache.setMemoryCacheCapacity(1);
+        cache.put("key", "value");
+        cache.put("key2", "value2"); // evicts key from memory
+
+        final CacheStatsSnapshot before = cache.getStats().snapshot();
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        keys.add("key2");
+        keys.add("key3");
+        cache.get(keys);
+
+        final CacheStatsSnapshot stats = cache.getStats().snapshot().minus(before);
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getHitCount(CacheStats.Tier.MEMORY));
+        assertEquals(2, stats.getMissCount(CacheStats.Tier.MEMORY));
+        assertEquals(1, stats.getHitCount(CacheStats.Tier.DISK));
+        assertEquals(1, stats.getMissCount(CacheStats.Tier.DISK));
+        assertEquals(1, stats.getDiskReadCount());
+        assertTrue(stats.getBytesRead() > 0);
+        assertTrue(stats.getEvictionCount(CacheStats.Tier.MEMORY) >= 1);
+
+        final CacheStatsSnapshot total = cache.getStats().snapshot();
+        assertEquals(2, total.getDiskWriteCount());
+        assertTrue(total.getBytesWritten() > 0);
+        assertEquals(1, total.getLatency(CacheStats.Tier.DISK).getCount());
+    }
+
+    @Test
+    public void testStatsMBean() throws Exception {
+        final ObjectName objectName = cache.registerMBean("test");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(objectName));
+
+        cache.put("key", "value");
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        cache.get(keys);
+        assertEquals(1L, server.getAttribute(objectName, "HitCount"));
+        assertEquals(1L, server.getAttribute(objectName, "MemoryHitCount"));
+        final CompositeData latency = (CompositeData) server.getAttribute(objectName, "MemoryLatency");
+        assertEquals(1L, latency.get("count"));
+
+        cache.close();
+        assertFalse(server.isRegistered(objectName));
+        cache = new Cache<String, String>(cacheFolder, 100, true);
+    }
+
+    @Test
+    public void testWriteBehindConcurrentPut() throws Exception {
+        cache.enableWriteBehind(8, 1);
+
+        final int threadCount = 4;
+        final int count = 500;
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        cache.put(String.format("key.%d.%d", seed, i), String.format("value.%d", i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount * count, cache.size());
+    }
+}
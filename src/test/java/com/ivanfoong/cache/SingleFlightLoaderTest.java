@@ -0,0 +1,202 @@
+package com.ivanfoong.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightLoaderTest {
+
+    private TemporaryFolder mTemporaryFolder;
+    private Cache<String, String> mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mTemporaryFolder = new TemporaryFolder();
+        mTemporaryFolder.create();
+        mCache = new Cache<String, String>(mTemporaryFolder.newFolder("cache"), 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.close();
+        mTemporaryFolder.delete();
+    }
+
+    @Test
+    public void testSingleKeyReadThrough() throws Exception {
+        final AtomicInteger loadCount = new AtomicInteger();
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                loadCount.incrementAndGet();
+                return "loaded-" + aKey;
+            }
+        });
+
+        assertNull(mCache.getIfPresent("key"));
+        assertEquals(0, loadCount.get());
+        assertEquals("loaded-key", mCache.get("key"));
+        assertEquals("loaded-key", mCache.getIfPresent("key"));
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        final List<Set<String>> requests = Collections.synchronizedList(new ArrayList<Set<String>>());
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                throw new AssertionError("misses should be loaded with loadAll");
+            }
+
+            @Override public Map<String, String> loadAll(final Set<String> aKeys) throws Exception {
+                requests.add(new HashSet<String>(aKeys));
+                final HashMap<String, String> values = new HashMap<String, String>();
+                for (final String key : aKeys) {
+                    if (!key.equals("absent")) {
+                        values.put(key, "loaded-" + key);
+                    }
+                }
+                values.put("unrequested", "value"); // ignored
+                return values;
+            }
+        });
+        mCache.put("key", "value");
+
+        final HashMap<String, String> results = mCache.get(new HashSet<String>(Arrays.asList("key", "key2", "key3", "absent")));
+        assertEquals(3, results.size());
+        assertEquals("value", results.get("key"));
+        assertEquals("loaded-key2", results.get("key2"));
+        assertEquals("loaded-key3", results.get("key3"));
+
+        // every miss goes to the loader in one batch, and loaded values are cached
+        assertEquals(1, requests.size());
+        assertEquals(new HashSet<String>(Arrays.asList("key2", "key3", "absent")), requests.get(0));
+        assertEquals("loaded-key2", mCache.mDiskCache.get(Collections.singleton("key2")).get("key2"));
+        assertFalse(mCache.mDiskCache.get(Collections.singleton("unrequested")).containsKey("unrequested"));
+
+        mCache.get(new HashSet<String>(Arrays.asList("key2", "key3")));
+        assertEquals(1, requests.size());
+        assertEquals(1, mCache.getStats().snapshot().getLoadCount());
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLoad = new CountDownLatch(1);
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                loadCount.incrementAndGet();
+                loadStarted.countDown();
+                releaseLoad.await();
+                return "loaded";
+            }
+        });
+
+        final int threadCount = 16;
+        final AtomicInteger loadedCount = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    if ("loaded".equals(mCache.get(new HashSet<String>(Collections.singleton("key"))).get("key"))) {
+                        loadedCount.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        assertTrue(loadStarted.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100); // let the other threads pile up behind the load
+        releaseLoad.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, loadCount.get());
+        assertEquals(threadCount, loadedCount.get());
+        assertTrue(mCache.mLoader.mLoads.isEmpty());
+    }
+
+    @Test
+    public void testLoadFailure() throws Exception {
+        final AtomicInteger loadCount = new AtomicInteger();
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                if (loadCount.incrementAndGet() == 1) {
+                    throw new Exception("backend unavailable");
+                }
+                return "loaded";
+            }
+        });
+
+        try {
+            mCache.get(new HashSet<String>(Collections.singleton("key")));
+            fail("expected the load to fail");
+        } catch (IllegalStateException e) {
+            assertEquals("backend unavailable", e.getCause().getMessage());
+        }
+        assertEquals(1, mCache.getStats().snapshot().getLoadFailureCount());
+
+        // failures are not cached, the next get loads again
+        assertEquals("loaded", mCache.get(new HashSet<String>(Collections.singleton("key"))).get("key"));
+        assertEquals(2, loadCount.get());
+
+        mCache.setCacheLoader(null);
+        assertNull(mCache.getCacheLoader());
+        assertTrue(mCache.get(new HashSet<String>(Collections.singleton("other"))).isEmpty());
+    }
+
+    @Test
+    public void testWritesDuringLoadWin() throws Exception {
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLoad = new CountDownLatch(1);
+        mCache.setCacheLoader(new CacheLoader<String, String>() {
+            @Override public String load(final String aKey) throws Exception {
+                throw new AssertionError("misses should be loaded with loadAll");
+            }
+
+            @Override public Map<String, String> loadAll(final Set<String> aKeys) throws Exception {
+                loadStarted.countDown();
+                releaseLoad.await();
+                final HashMap<String, String> values = new HashMap<String, String>();
+                for (final String key : aKeys) {
+                    values.put(key, "loaded-" + key);
+                }
+                return values;
+            }
+        });
+
+        final Map<String, String> results = new HashMap<String, String>();
+        final Thread reader = new Thread(new Runnable() {
+            public void run() {
+                results.putAll(mCache.get(new HashSet<String>(Arrays.asList("put", "removed", "untouched"))));
+            }
+        });
+        reader.start();
+
+        // writes made while the backend is still loading must not be undone by the load
+        assertTrue(loadStarted.await(10, TimeUnit.SECONDS));
+        mCache.put("put", "newer");
+        mCache.remove(Collections.singleton("removed"));
+        releaseLoad.countDown();
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+
+        assertEquals("loaded-put", results.get("put"));
+        assertEquals("loaded-removed", results.get("removed"));
+        assertEquals("newer", mCache.getIfPresent("put"));
+        assertNull(mCache.getIfPresent("removed"));
+        assertFalse(mCache.mDiskCache.get(Collections.singleton("removed")).containsKey("removed"));
+        assertEquals("loaded-untouched", mCache.getIfPresent("untouched"));
+    }
+}
@@ -0,0 +1,80 @@
+package com.ivanfoong.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testAdvance() throws Exception {
+        final TimerWheel<Integer> timerWheel = new TimerWheel<Integer>(0);
+        timerWheel.schedule(1, 500);
+        timerWheel.schedule(2, 5000);
+
+        assertTrue(timerWheel.advance(499).isEmpty());
+        assertTrue(timerWheel.advance(1100).contains(1));
+        assertTrue(timerWheel.advance(4999).isEmpty());
+        assertTrue(timerWheel.advance(5000).isEmpty()); // still the same tick as 4999, so no bucket is visited
+        assertEquals(2, (int) timerWheel.advance(6200).get(0));
+    }
+
+    @Test
+    public void testExpiresEveryLevel() throws Exception {
+        final long[] delays = { 100, 10000, 5L * 60 * 1000, 3L * 60 * 60 * 1000, 2L * 24 * 60 * 60 * 1000, 30L * 24 * 60 * 60 * 1000 };
+        final TimerWheel<Long> timerWheel = new TimerWheel<Long>(12345);
+        for (final long delay : delays) {
+            timerWheel.schedule(delay, 12345 + delay);
+        }
+
+        final Set<Long> expired = new HashSet<Long>();
+        final long step = 1000;
+        for (long time = 12345; expired.size() < delays.length; time += step) {
+            for (final long delay : timerWheel.advance(time)) {
+                assertTrue(time >= 12345 + delay);
+                assertTrue(time < 12345 + delay + 2 * (1 << TimerWheel.SHIFTS[0]) + step);
+                expired.add(delay);
+            }
+        }
+    }
+
+    @Test
+    public void testAdvanceFarAhead() throws Exception {
+        final TimerWheel<Integer> timerWheel = new TimerWheel<Integer>(0);
+        final List<TimerWheel.Timer<Integer>> timers = new ArrayList<TimerWheel.Timer<Integer>>();
+        for (int i = 0; i < 1000; i++) {
+            timers.add(timerWheel.schedule(i, i * 7919L));
+        }
+
+        assertEquals(1000, timerWheel.advance(Long.MAX_VALUE / 2).size());
+        for (final TimerWheel.Timer<Integer> timer : timers) {
+            assertFalse(timer.isScheduled());
+        }
+    }
+
+    @Test
+    public void testDeschedule() throws Exception {
+        final TimerWheel<Integer> timerWheel = new TimerWheel<Integer>(0);
+        final TimerWheel.Timer<Integer> timer = timerWheel.schedule(1, 500);
+        timerWheel.schedule(2, 500);
+        timerWheel.deschedule(timer);
+
+        final List<Integer> expired = timerWheel.advance(2000);
+        assertEquals(1, expired.size());
+        assertEquals(2, (int) expired.get(0));
+    }
+
+    @Test
+    public void testRescheduleAlreadyDue() throws Exception {
+        final TimerWheel<Integer> timerWheel = new TimerWheel<Integer>(100000);
+        timerWheel.schedule(1, 0);
+        assertEquals(1, timerWheel.advance(100000 + (1 << TimerWheel.SHIFTS[0])).size());
+    }
+}
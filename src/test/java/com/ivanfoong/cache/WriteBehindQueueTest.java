@@ -0,0 +1,106 @@
+package com.ivanfoong.cache;
+
+import com.ivanfoong.cache.disk.DiskCacheItem;
+import com.ivanfoong.cache.disk.ShardedDiskCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindQueueTest {
+
+    private TemporaryFolder mTemporaryFolder;
+    private final AtomicBoolean mFailing = new AtomicBoolean();
+    private ShardedDiskCache<String, String> mDiskCache;
+    private WriteBehindQueue<String, String> mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        mTemporaryFolder = new TemporaryFolder();
+        mTemporaryFolder.create();
+        mDiskCache = new ShardedDiskCache<String, String>(mTemporaryFolder.newFolder("cache")) {
+            @Override
+            public ICache<String, String> putItems(final Map<String, DiskCacheItem<String>> aItems) {
+                if (mFailing.get()) {
+                    // a write racing the failed flush must win over the requeued one
+                    mQueue.put("key", new DiskCacheItem<String>("newer"));
+                    throw new IllegalStateException("disk is full");
+                }
+                return super.putItems(aItems);
+            }
+
+            @Override
+            public ICache<String, String> remove(final Set<String> aKeys) {
+                if (mFailing.get()) {
+                    throw new IllegalStateException("disk is full");
+                }
+                return super.remove(aKeys);
+            }
+        };
+        mQueue = new WriteBehindQueue<String, String>(mDiskCache, 100, 60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFailing.set(false);
+        mQueue.close();
+        mDiskCache.close();
+        mTemporaryFolder.delete();
+    }
+
+    @Test
+    public void testFailedFlushIsRequeued() throws Exception {
+        mDiskCache.put("removed", "value");
+        mQueue.put("key", new DiskCacheItem<String>("older"));
+        mQueue.put("other", new DiskCacheItem<String>("value"));
+        mQueue.remove(Collections.singleton("removed"));
+
+        mFailing.set(true);
+        try {
+            mQueue.flush();
+            fail("the disk cache failure should be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("disk is full", e.getMessage());
+        }
+        assertEquals(3, mQueue.getPendingCount());
+        assertEquals("newer", mQueue.get("key").getValue());
+        assertEquals("value", mQueue.get("other").getValue());
+        assertTrue(mQueue.get("removed").isRemoval());
+        assertNull(mDiskCache.get("other"));
+
+        mFailing.set(false);
+        mQueue.flush();
+        assertEquals(0, mQueue.getPendingCount());
+        assertEquals("newer", mDiskCache.get("key"));
+        assertEquals("value", mDiskCache.get("other"));
+        assertNull(mDiskCache.get("removed"));
+    }
+
+    @Test
+    public void testFailedRemovalIsRequeued() throws Exception {
+        mDiskCache.put("removed", "value");
+        mQueue.remove(Collections.singleton("removed"));
+
+        mFailing.set(true);
+        try {
+            mQueue.close();
+            fail("the disk cache failure should be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("disk is full", e.getMessage());
+        }
+        assertFalse(mQueue.mFlushThread.isAlive());
+        assertTrue(mQueue.get("removed").isRemoval());
+        assertEquals("value", mDiskCache.get("removed"));
+
+        mFailing.set(false);
+        mQueue.flush();
+        assertNull(mDiskCache.get("removed"));
+    }
+}
@@ -0,0 +1,76 @@
+package com.ivanfoong.cache.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CodecTest {
+
+    static final Codec[] CODECS = {Codecs.DEFLATE, Codecs.LZF, new DeflateCodec(1)};
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Random random = new Random(42);
+        final byte[] randomBytes = new byte[10000];
+        random.nextBytes(randomBytes);
+        final byte[] runs = new byte[10000];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = (byte) (i / 700);
+        }
+
+        for (final Codec codec : CODECS) {
+            for (final byte[] bytes : new byte[][] {new byte[0], new byte[] {7}, new byte[] {1, 2, 3}, randomBytes, runs, json(200)}) {
+                assertArrayEquals(codec.getClass().getSimpleName(), bytes, codec.decompress(codec.compress(bytes)));
+            }
+        }
+    }
+
+    @Test
+    public void testCompressesText() throws Exception {
+        final byte[] bytes = json(200);
+        for (final Codec codec : CODECS) {
+            final byte[] compressed = codec.compress(bytes);
+            assertTrue(String.format("%s compressed %d bytes to %d", codec.getClass().getSimpleName(), bytes.length, compressed.length),
+                    compressed.length * 4 < bytes.length);
+        }
+    }
+
+    @Test
+    public void testDamagedValue() throws Exception {
+        for (final Codec codec : CODECS) {
+            final byte[] compressed = codec.compress(json(20));
+            try {
+                codec.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+                fail(codec.getClass().getSimpleName());
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testForId() {
+        assertSame(Codecs.DEFLATE, Codecs.forId(Codecs.DEFLATE.getId()));
+        assertSame(Codecs.LZF, Codecs.forId(Codecs.LZF.getId()));
+        assertNull(Codecs.forId(0));
+        assertNull(Codecs.forId(200));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new DeflateCodec(42);
+    }
+
+    static byte[] json(final int aCount) {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < aCount; i++) {
+            builder.append(String.format("{\"id\":%d,\"name\":\"user %d\",\"active\":%b,\"tags\":[\"a\",\"b\"]},", i, i, i % 2 == 0));
+        }
+        return builder.append("]").toString().getBytes(Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,70 @@
+package com.ivanfoong.cache.disk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DiskCacheBloomFilterTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testNoFalseNegatives() throws Exception {
+        final DiskCacheBloomFilter bloomFilter = new DiskCacheBloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            bloomFilter.add(bytes("key" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(bloomFilter.mightContain(bytes("key" + i)));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() throws Exception {
+        final DiskCacheBloomFilter bloomFilter = new DiskCacheBloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            bloomFilter.add(bytes("key" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (bloomFilter.mightContain(bytes("missing" + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(String.valueOf(falsePositives), falsePositives < 2000);
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final DiskCacheBloomFilter bloomFilter = new DiskCacheBloomFilter(100, 0.05);
+        bloomFilter.add(bytes("key"));
+        final File file = new File(mTemporaryFolder.getRoot(), "index.bloom");
+        bloomFilter.write(file, 1);
+
+        final DiskCacheBloomFilter readBloomFilter = DiskCacheBloomFilter.read(file);
+        assertNotNull(readBloomFilter);
+        assertEquals(1, readBloomFilter.mCheckpointKeyCount);
+        assertEquals(100, readBloomFilter.getExpectedKeys());
+        assertEquals(0.05, readBloomFilter.getFalsePositiveRate(), 0);
+        assertEquals(bloomFilter.mHashCount, readBloomFilter.mHashCount);
+        assertTrue(readBloomFilter.mightContain(bytes("key")));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        assertNull(DiskCacheBloomFilter.read(new File(mTemporaryFolder.getRoot(), "missing.bloom")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFalsePositiveRate() throws Exception {
+        new DiskCacheBloomFilter(100, 1.0);
+    }
+
+    private static byte[] bytes(final String aString) {
+        return aString.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,100 @@
+package com.ivanfoong.cache.disk;
+
+import com.ivanfoong.cache.serializer.BinarySerializer;
+import com.ivanfoong.cache.serializer.Serializer;
+import com.ivanfoong.cache.serializer.Serializers;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class DiskCacheCheckpointTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final Serializer<String> mKeySerializer = new BinarySerializer<String>();
+
+    @Test
+    public void testFind() throws Exception {
+        final File file = new File(mTemporaryFolder.getRoot(), DiskCache.CHECKPOINT_FILENAME);
+        DiskCacheCheckpoint.write(file, fileIndexes(1000), mKeySerializer);
+
+        final DiskCacheCheckpoint checkpoint = DiskCacheCheckpoint.open(file);
+        assertNotNull(checkpoint);
+        assertEquals(1000, checkpoint.getEntryCount());
+        for (int i = 0; i < 1000; i++) {
+            final DiskCacheIndex fileIndex = checkpoint.find(Serializers.toBytes(mKeySerializer, "key" + i));
+            assertNotNull(fileIndex);
+            assertEquals(String.format("%d.log", i % 3), fileIndex.getFilename());
+            assertEquals(i * 100L, fileIndex.getOffset());
+            assertEquals(i, fileIndex.getLength());
+            assertEquals(i + 1, fileIndex.getExpiryTime());
+            assertEquals(i + 2, fileIndex.getTimeToIdle());
+        }
+        assertNull(checkpoint.find(Serializers.toBytes(mKeySerializer, "missing")));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testLoadChunks() throws Exception {
+        final int count = DiskCacheCheckpoint.ENTRIES_PER_BUCKET * DiskCacheCheckpoint.BUCKETS_PER_CHUNK * 2 + 1;
+        final File file = new File(mTemporaryFolder.getRoot(), DiskCache.CHECKPOINT_FILENAME);
+        DiskCacheCheckpoint.write(file, fileIndexes(count), mKeySerializer);
+
+        final DiskCacheCheckpoint checkpoint = DiskCacheCheckpoint.open(file);
+        assertEquals(3, checkpoint.getChunkCount());
+        final HashMap<String, DiskCacheIndex> loaded = new HashMap<String, DiskCacheIndex>();
+        for (int i = 0; i < checkpoint.getChunkCount(); i++) {
+            final HashMap<String, DiskCacheIndex> chunk = new HashMap<String, DiskCacheIndex>();
+            checkpoint.load(i, mKeySerializer, chunk);
+            assertFalse(chunk.isEmpty());
+            loaded.putAll(chunk);
+        }
+        assertEquals(count, loaded.size());
+        assertEquals(42L * 100, loaded.get("key42").getOffset());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final File file = new File(mTemporaryFolder.getRoot(), DiskCache.CHECKPOINT_FILENAME);
+        DiskCacheCheckpoint.write(file, new HashMap<String, DiskCacheIndex>(), mKeySerializer);
+
+        final DiskCacheCheckpoint checkpoint = DiskCacheCheckpoint.open(file);
+        assertEquals(0, checkpoint.getEntryCount());
+        assertNull(checkpoint.find(Serializers.toBytes(mKeySerializer, "key")));
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws Exception {
+        final File file = new File(mTemporaryFolder.getRoot(), DiskCache.CHECKPOINT_FILENAME);
+        final DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+        output.writeInt(DiskCacheCheckpoint.VERSION + 1);
+        output.writeInt(0);
+        output.close();
+
+        try {
+            DiskCacheCheckpoint.open(file);
+            fail("checkpoint of an unknown version was opened");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static HashMap<String, DiskCacheIndex> fileIndexes(final int aCount) {
+        final HashMap<String, DiskCacheIndex> fileIndexes = new HashMap<String, DiskCacheIndex>();
+        for (int i = 0; i < aCount; i++) {
+            final DiskCacheIndex fileIndex = new DiskCacheIndex(String.format("%d.log", i % 3), i * 100L, i, 8);
+            fileIndex.setExpiry(i + 1, i + 2, 0);
+            fileIndexes.put("key" + i, fileIndex);
+        }
+        return fileIndexes;
+    }
+}
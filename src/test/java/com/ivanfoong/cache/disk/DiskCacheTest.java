@@ -1,5 +1,10 @@
 package com.ivanfoong.cache.disk;
 
+import com.ivanfoong.cache.Ticker;
+import com.ivanfoong.cache.codec.Codecs;
+import com.ivanfoong.cache.serializer.BinarySerializer;
+import com.ivanfoong.cache.serializer.JavaSerializer;
+import com.ivanfoong.cache.stats.CacheStats;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -7,9 +12,18 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -32,6 +46,7 @@ public class DiskCacheTest {
 
     @After
     public void tearDown() throws Exception {
+        diskCache.close();
         diskCache = null;
         diskCacheFolder = null;
         mTemporaryFolder.delete();
@@ -95,6 +110,381 @@ public class DiskCacheTest {
         assertEquals(1, diskCache.all().size());
     }
 
+    @Test
+    public void testMissingKey() throws Exception {
+        diskCache.put("key", "value");
+
+        assertTrue(diskCache.get(Collections.singleton("missing")).isEmpty());
+        diskCache.remove(Collections.singleton("missing"));
+        assertEquals(1, diskCache.size());
+    }
+
+    @Test
+    public void testGetIfPresent() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.put("expiring", "value", 1000, 0);
+
+        assertEquals("value", diskCache.getIfPresent("key"));
+        assertEquals("value", diskCache.get("key"));
+        assertNull(diskCache.getIfPresent("missing"));
+        assertEquals(diskCache.mFileIndexes.get("expiring").getExpiryTime(), diskCache.getItem("expiring").getExpiryTime());
+        assertNull(diskCache.getItem("missing"));
+
+        final HashMap<String, String> results = new HashMap<String, String>();
+        diskCache.getAll(Arrays.asList("key", "missing"), results);
+        assertEquals(Collections.singletonMap("key", "value"), results);
+
+        final CacheStats stats = new CacheStats();
+        diskCache.setStats(stats);
+        diskCache.enableBloomFilter(100, 0.01);
+        assertNull(diskCache.getIfPresent("missing"));
+        assertEquals(1, stats.snapshot().getMissCount(CacheStats.Tier.DISK));
+    }
+
+    @Test
+    public void testBloomFilter() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.enableBloomFilter(1000, 0.01);
+        diskCache.put("key2", "value2");
+
+        assertTrue(diskCache.isBloomFilterEnabled());
+        assertTrue(diskCache.mightContain("key"));
+        assertTrue(diskCache.mightContain("key2"));
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (diskCache.mightContain("missing" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 50);
+
+        final Set<String> keys = new HashSet<String>(Arrays.asList("key", "key2", "missing"));
+        final HashMap results = diskCache.get(keys);
+        assertEquals(2, results.size());
+        assertEquals("value2", results.get("key2"));
+        assertEquals(2, diskCache.getStats().snapshot().getHitCount(CacheStats.Tier.DISK));
+        assertEquals(1, diskCache.getStats().snapshot().getMissCount(CacheStats.Tier.DISK));
+
+        diskCache.clear();
+        assertFalse(diskCache.mightContain("key"));
+    }
+
+    @Test
+    public void testBloomFilterPersists() throws Exception {
+        diskCache.enableBloomFilter(1000, 0.01);
+        diskCache.put("key", "value");
+        assertTrue(new File(diskCacheFolder, DiskCache.BLOOM_FILTER_FILENAME).isFile());
+        diskCache.close();
+
+        // key was only journaled, so it has to be added back to the filter written with the checkpoint
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertTrue(diskCache.isBloomFilterEnabled());
+        assertTrue(diskCache.mightContain("key"));
+        assertEquals("value", diskCache.get(Collections.singleton("key")).get("key"));
+
+        diskCache.checkpoint();
+        diskCache.close();
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertTrue(diskCache.mightContain("key"));
+
+        diskCache.disableBloomFilter();
+        diskCache.close();
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertFalse(diskCache.isBloomFilterEnabled());
+    }
+
+    @Test
+    public void testStaleBloomFilterIsRebuilt() throws Exception {
+        diskCache.enableBloomFilter(1000, 0.01);
+        final File bloomFilterFile = new File(diskCacheFolder, DiskCache.BLOOM_FILTER_FILENAME);
+        final File staleFile = new File(diskCacheFolder, "stale.bloom");
+        copy(bloomFilterFile, staleFile);
+        diskCache.put("key", "value");
+        diskCache.checkpoint();
+        diskCache.close();
+
+        // a filter left behind from an older checkpoint must not hide the keys put since
+        assertTrue(bloomFilterFile.delete());
+        assertTrue(staleFile.renameTo(bloomFilterFile));
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertTrue(diskCache.isBloomFilterEnabled());
+        assertTrue(diskCache.mightContain("key"));
+    }
+
+    @Test
+    public void testIndexLoadsInBackground() throws Exception {
+        final int count = DiskCacheCheckpoint.ENTRIES_PER_BUCKET * DiskCacheCheckpoint.BUCKETS_PER_CHUNK * 2;
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        diskCache.putAll(entries);
+        diskCache.checkpoint();
+        diskCache.put("journaled", "value");
+        diskCache.close();
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertEquals("value7", diskCache.get(Collections.singleton("key7")).get("key7"));
+        assertEquals("value", diskCache.get(Collections.singleton("journaled")).get("journaled"));
+        diskCache.remove(new HashSet<String>(Arrays.asList("key1", "key2")));
+        diskCache.put("key3", "updated");
+        assertTrue(diskCache.get(Collections.singleton("missing")).isEmpty());
+
+        diskCache.awaitIndexLoaded();
+        assertTrue(diskCache.isIndexLoaded());
+        assertEquals(count - 1, diskCache.size());
+        assertTrue(diskCache.get(Collections.singleton("key1")).isEmpty());
+        assertEquals("updated", diskCache.get(Collections.singleton("key3")).get("key3"));
+        assertEquals("value" + (count - 1), diskCache.get(Collections.singleton("key" + (count - 1))).get("key" + (count - 1)));
+
+        diskCache.checkpoint();
+        diskCache.close();
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertEquals(count - 1, diskCache.size());
+        assertTrue(diskCache.get(Collections.singleton("key2")).isEmpty());
+        assertEquals("updated", diskCache.get(Collections.singleton("key3")).get("key3"));
+    }
+
+    @Test
+    public void testClearWhileIndexLoads() throws Exception {
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        diskCache.putAll(entries);
+        diskCache.checkpoint();
+        diskCache.close();
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        diskCache.clear();
+        diskCache.awaitIndexLoaded();
+        assertEquals(0, diskCache.size());
+        assertTrue(diskCache.get(Collections.singleton("key1")).isEmpty());
+    }
+
+    @Test
+    public void testDamagedRecordReadsAsMissing() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.put("key2", "value2");
+        final DiskCacheIndex fileIndex = diskCache.mFileIndexes.get("key");
+        flipByte(new File(diskCacheFolder, fileIndex.getFilename()), fileIndex.getOffset() + fileIndex.getLength() - 1);
+
+        assertTrue(diskCache.get(Collections.singleton("key")).isEmpty());
+        assertFalse(diskCache.mFileIndexes.containsKey("key"));
+        assertEquals("value2", diskCache.get(Collections.singleton("key2")).get("key2"));
+    }
+
+    @Test
+    public void testDamagedJournalTailIsDropped() throws Exception {
+        diskCache.put("key", "value");
+        final File journalFile = new File(diskCacheFolder, DiskCacheJournal.JOURNAL_FILENAME);
+        final long validLength = journalFile.length();
+        diskCache.put("key2", "value2");
+        diskCache.close();
+        flipByte(journalFile, journalFile.length() - 1);
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertEquals(validLength, journalFile.length());
+        assertEquals("value", diskCache.get(Collections.singleton("key")).get("key"));
+        assertTrue(diskCache.get(Collections.singleton("key2")).isEmpty());
+    }
+
+    @Test
+    public void testTornSegmentTailIsSkipped() throws Exception {
+        diskCache.put("key", "value");
+        final String filename = diskCache.mFileIndexes.get("key").getFilename();
+        diskCache.close();
+        final RandomAccessFile segmentFile = new RandomAccessFile(new File(diskCacheFolder, filename), "rw");
+        segmentFile.seek(segmentFile.length());
+        segmentFile.write(new byte[] {0, 0, 0, 3, 0, 0}); // a record torn by a crash
+        segmentFile.close();
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        diskCache.put("key2", "value2");
+        assertNotEquals(filename, diskCache.mFileIndexes.get("key2").getFilename());
+
+        final Set<String> keys = new HashSet<String>();
+        diskCache.mLog.scan(filename, new DiskCacheLog.RecordVisitor() {
+            public void visit(final byte[] aKey, final byte[] aValue, final DiskCacheIndex aIndex) {
+                keys.add(new String(aKey));
+            }
+        });
+        assertEquals(1, keys.size());
+        assertEquals("value", diskCache.get(Collections.singleton("key")).get("key"));
+    }
+
+    @Test
+    public void testRecoversFromDamagedCheckpoint() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            diskCache.put("key" + i, "value" + i);
+        }
+        diskCache.checkpoint();
+        diskCache.put("key100", "value100");
+        diskCache.put("key1", "updated");
+        diskCache.remove(Collections.singleton("key5"));
+        diskCache.close();
+        final File checkpointFile = new File(diskCacheFolder, DiskCache.CHECKPOINT_FILENAME);
+        flipByte(checkpointFile, 10);
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertTrue(diskCache.isIndexLoaded());
+        assertEquals(100, diskCache.size());
+        assertEquals("updated", diskCache.get(Collections.singleton("key1")).get("key1"));
+        assertEquals("value100", diskCache.get(Collections.singleton("key100")).get("key100"));
+        assertTrue(diskCache.get(Collections.singleton("key5")).isEmpty());
+        assertNotNull(DiskCacheCheckpoint.open(checkpointFile));
+    }
+
+    @Test
+    public void testFailedWriteKeepsPreviousValue() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.put("other", "value");
+        diskCache.mJournal.close(); // every further journal write fails
+
+        try {
+            diskCache.put("key", "updated");
+            fail("put succeeded without being journaled");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            diskCache.putAll(Collections.singletonMap("new", "value"));
+            fail("putAll succeeded without being journaled");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            diskCache.remove(Collections.singleton("other"));
+            fail("remove succeeded without being journaled");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals("value", diskCache.getIfPresent("key"));
+        assertEquals("value", diskCache.getIfPresent("other"));
+        assertNull(diskCache.getIfPresent("new"));
+        assertEquals(2, diskCache.size());
+    }
+
+    @Test
+    public void testRecoversFromDamagedCheckpointEntry() throws Exception {
+        final int count = DiskCacheCheckpoint.ENTRIES_PER_BUCKET * DiskCacheCheckpoint.BUCKETS_PER_CHUNK * 2;
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        diskCache.putAll(entries);
+        diskCache.checkpoint();
+        diskCache.put("key1", "updated");
+        diskCache.remove(Collections.singleton("key2"));
+        diskCache.close();
+
+        // damage an entry in the last chunk, past the header which is checked when the checkpoint is opened
+        final File checkpointFile = new File(diskCacheFolder, DiskCache.CHECKPOINT_FILENAME);
+        final DiskCacheCheckpoint checkpoint = DiskCacheCheckpoint.open(checkpointFile);
+        final long entryOffset = checkpoint.bucketOffset(checkpoint.mBucketCount - 1);
+        flipByte(checkpointFile, entryOffset + 6);
+        try {
+            checkpoint.load(checkpoint.getChunkCount() - 1, new BinarySerializer<String>(), new HashMap<String, DiskCacheIndex>());
+            fail("damaged chunk was loaded");
+        } catch (IOException e) {
+            // expected
+        }
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        diskCache.awaitIndexLoaded();
+        assertEquals(count - 1, diskCache.size());
+        assertEquals("updated", diskCache.get(Collections.singleton("key1")).get("key1"));
+        assertTrue(diskCache.get(Collections.singleton("key2")).isEmpty());
+        for (int i = 3; i < count; i++) {
+            assertEquals("value" + i, diskCache.getIfPresent("key" + i));
+        }
+
+        // the rebuilt index replaced the damaged checkpoint
+        diskCache.close();
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        diskCache.awaitIndexLoaded();
+        assertEquals(count - 1, diskCache.size());
+        assertEquals("value" + (count - 1), diskCache.getIfPresent("key" + (count - 1)));
+    }
+
+    @Test
+    public void testRemovedKeyStaysRemovedAfterDamagedCheckpoint() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.put("key2", "value2");
+        diskCache.remove(Collections.singleton("key"));
+        diskCache.checkpoint();
+        diskCache.close();
+        flipByte(new File(diskCacheFolder, DiskCache.CHECKPOINT_FILENAME), 10);
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertNull(diskCache.getIfPresent("key"));
+        assertEquals("value2", diskCache.getIfPresent("key2"));
+        assertEquals(1, diskCache.size());
+    }
+
+    @Test
+    public void testTombstoneOutlivesOlderSegment() throws Exception {
+        final File folder = mTemporaryFolder.newFolder("tombstones");
+        final char[] large = new char[2000];
+        Arrays.fill(large, 'x');
+        DiskCache<String, String> smallSegmentDiskCache = new DiskCache<String, String>(folder, 4096);
+        smallSegmentDiskCache.put("kept", new String(large) + new String(large).substring(500));
+        smallSegmentDiskCache.put("removed", "value");
+        smallSegmentDiskCache.put("other", new String(large)); // does not fit, so starts the next segment
+        final String olderSegment = smallSegmentDiskCache.mFileIndexes.get("kept").getFilename();
+        final String tombstoneSegment = smallSegmentDiskCache.mFileIndexes.get("other").getFilename();
+        assertNotEquals(olderSegment, tombstoneSegment);
+
+        // leaves nothing live in the newer segment but its tombstones, which still hide the record in the older one
+        smallSegmentDiskCache.remove(Collections.singleton("removed"));
+        smallSegmentDiskCache.remove(Collections.singleton("other"));
+        assertTrue(smallSegmentDiskCache.mLog.mSegmentSizes.containsKey(olderSegment));
+        assertTrue(smallSegmentDiskCache.mLog.mSegmentSizes.containsKey(tombstoneSegment));
+        smallSegmentDiskCache.checkpoint();
+        smallSegmentDiskCache.close();
+        flipByte(new File(folder, DiskCache.CHECKPOINT_FILENAME), 10);
+
+        smallSegmentDiskCache = new DiskCache<String, String>(folder, 4096);
+        assertNull(smallSegmentDiskCache.getIfPresent("removed"));
+        assertNull(smallSegmentDiskCache.getIfPresent("other"));
+        assertEquals(3500, smallSegmentDiskCache.getIfPresent("kept").length());
+        smallSegmentDiskCache.close();
+    }
+
+    private static void flipByte(final File aFile, final long aPosition) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(aFile, "rw");
+        try {
+            file.seek(aPosition);
+            final int value = file.read();
+            file.seek(aPosition);
+            file.write(value ^ 0xff);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private static void copy(final File aSource, final File aTarget) throws IOException {
+        final InputStream input = new FileInputStream(aSource);
+        try {
+            final OutputStream output = new FileOutputStream(aTarget);
+            try {
+                final byte[] buffer = new byte[4096];
+                int read;
+                while ((read = input.read(buffer)) > 0) {
+                    output.write(buffer, 0, read);
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
     @Test
     public void testPut() throws Exception {
         final String key = "key";
@@ -103,23 +493,555 @@ public class DiskCacheTest {
         final File[] files = diskCacheFolder.listFiles();
         assertEquals(2, files.length);
 
-        final String filename = diskCache.generateFilename(key);
-        assertEquals(filename, files[0].getName());
+        final DiskCacheIndex fileIndex = diskCache.mFileIndexes.get(key);
+        assertNotNull(fileIndex);
+        assertTrue(fileIndex.isSegment());
+        assertTrue(new File(diskCacheFolder, fileIndex.getFilename()).isFile());
+        assertTrue(new File(diskCacheFolder, DiskCacheJournal.JOURNAL_FILENAME).isFile());
 
+        final RandomAccessFile segmentFile = new RandomAccessFile(new File(diskCacheFolder, fileIndex.getFilename()), "r");
         try {
-            InputStream file = new FileInputStream(files[0]);
-            InputStream buffer = new BufferedInputStream(file);
-            ObjectInput input = new ObjectInputStream(buffer);
+            final byte[] bytes = new byte[fileIndex.getLength()];
+            segmentFile.seek(fileIndex.getOffset());
+            segmentFile.readFully(bytes);
+            assertEquals(new DiskCacheItem<String>(value), diskCache.decodeItem(bytes));
+        }
+        finally {
+            segmentFile.close();
+        }
+    }
+
+    @Test
+    public void testPutAppends() throws Exception {
+        final String key = "key";
+        diskCache.put(key, "value");
+        final DiskCacheIndex firstFileIndex = diskCache.mFileIndexes.get(key);
+
+        diskCache.put(key, "value2");
+        final DiskCacheIndex secondFileIndex = diskCache.mFileIndexes.get(key);
+
+        assertEquals(firstFileIndex.getFilename(), secondFileIndex.getFilename());
+        assertTrue(secondFileIndex.getOffset() > firstFileIndex.getOffset());
+        assertEquals(1, diskCache.size());
+        assertEquals("value2", diskCache.all().get(key));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.put("key2", "value2");
+        diskCache.close();
+
+        final DiskCache<String, String> reopenedDiskCache = new DiskCache<String, String>(diskCacheFolder);
+        final HashMap results = reopenedDiskCache.all();
+        assertEquals(2, results.size());
+        assertEquals("value", results.get("key"));
+        assertEquals("value2", results.get("key2"));
+        reopenedDiskCache.close();
+    }
+
+    @Test
+    public void testReopenFromJournal() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.put("key2", "value2");
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key2");
+        diskCache.remove(keys);
+        diskCache.put("key3", "value3");
+        diskCache.close();
 
-            final HashMap result = (HashMap)input.readObject();
+        assertFalse(new File(diskCacheFolder, DiskCache.CHECKPOINT_FILENAME).exists());
 
-            HashMap<String, DiskCacheItem> expectedResult = new HashMap<String, DiskCacheItem>();
-            expectedResult.put(key, new DiskCacheItem(value));
-            assertEquals(expectedResult, result);
-        } catch (Exception e) {
-            e.printStackTrace();
-            assertTrue(false);
+        final DiskCache<String, String> reopenedDiskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertEquals(4, reopenedDiskCache.mJournal.getRecordCount());
+        final HashMap results = reopenedDiskCache.all();
+        assertEquals(2, results.size());
+        assertEquals("value", results.get("key"));
+        assertEquals("value3", results.get("key3"));
+        reopenedDiskCache.close();
+    }
+
+    @Test
+    public void testReopenWithTornJournal() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.put("key2", "value2");
+        diskCache.close();
+
+        final File journalFile = new File(diskCacheFolder, DiskCacheJournal.JOURNAL_FILENAME);
+        final long journalLength = journalFile.length();
+        final FileOutputStream output = new FileOutputStream(journalFile, true);
+        output.write(new byte[] {DiskCacheJournal.RECORD_PUT, 0, 0, 1});
+        output.close();
+
+        final DiskCache<String, String> reopenedDiskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertEquals(journalLength, journalFile.length());
+        assertEquals(2, reopenedDiskCache.all().size());
+
+        reopenedDiskCache.put("key3", "value3");
+        reopenedDiskCache.close();
+
+        final DiskCache<String, String> reopenedAgainDiskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertEquals(3, reopenedAgainDiskCache.all().size());
+        reopenedAgainDiskCache.close();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        for (int i = 0; i < DiskCache.MIN_CHECKPOINT_RECORDS; i++) {
+            diskCache.put(String.format("key.%d", i % 10), String.format("value.%d", i));
+        }
+
+        assertTrue(new File(diskCacheFolder, DiskCache.CHECKPOINT_FILENAME).isFile());
+        assertEquals(0, diskCache.mJournal.getRecordCount());
+
+        diskCache.put("key.0", "value");
+        diskCache.close();
+
+        final DiskCache<String, String> reopenedDiskCache = new DiskCache<String, String>(diskCacheFolder);
+        reopenedDiskCache.awaitIndexLoaded();
+        // the put journaled before closing, then the 10 live values moved out of the segment written before
+        // reopening, which is compacted once the index has loaded as reopening starts a new segment
+        assertEquals(1 + 10, reopenedDiskCache.mJournal.getRecordCount());
+        assertFalse(reopenedDiskCache.mLog.mSegmentSizes.containsKey(reopenedDiskCache.mLog.generateFilename(0)));
+        assertEquals(10, reopenedDiskCache.size());
+        assertEquals("value", reopenedDiskCache.all().get("key.0"));
+        reopenedDiskCache.close();
+    }
+
+    @Test
+    public void testCheckpointSyncsSegments() throws Exception {
+        diskCache.put("key", "value");
+        final String filename = diskCache.mFileIndexes.get("key").getFilename();
+        assertTrue(diskCache.mLog.mUnsyncedSegments.contains(filename));
+
+        diskCache.checkpoint();
+        assertTrue(diskCache.mLog.mUnsyncedSegments.isEmpty());
+        diskCache.put("key2", "value2");
+        assertTrue(diskCache.mLog.mUnsyncedSegments.contains(filename));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final DiskCache<String, String> smallSegmentDiskCache = new DiskCache<String, String>(mTemporaryFolder.newFolder("small_segments"), 512);
+        for (int i = 0; i < 50; i++) {
+            smallSegmentDiskCache.put(String.format("key.%d", i % 5), String.format("value.%d", i));
+        }
+
+        assertEquals(5, smallSegmentDiskCache.size());
+        long segmentBytes = 0;
+        for (final long size : smallSegmentDiskCache.mLog.mSegmentSizes.values()) {
+            segmentBytes += size;
+        }
+        assertTrue(segmentBytes < 512 * 4);
+
+        final HashMap results = smallSegmentDiskCache.all();
+        for (int i = 45; i < 50; i++) {
+            assertEquals(String.format("value.%d", i), results.get(String.format("key.%d", i % 5)));
+        }
+        smallSegmentDiskCache.close();
+    }
+
+    @Test
+    public void testMemoryMappedGet() throws Exception {
+        final DiskCache<String, String> mappedDiskCache = new DiskCache<String, String>(mTemporaryFolder.newFolder("mapped"), 256);
+        mappedDiskCache.setMemoryMapped(true);
+        for (int i = 0; i < 20; i++) {
+            mappedDiskCache.put(String.format("key.%d", i), String.format("value.%d", i));
+        }
+        assertTrue(mappedDiskCache.mLog.mSegmentSizes.size() > 1);
+
+        final HashMap results = mappedDiskCache.all();
+        assertEquals(20, results.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(String.format("value.%d", i), results.get(String.format("key.%d", i)));
+        }
+        assertFalse(mappedDiskCache.mLog.mMappedSegments.isEmpty());
+        assertFalse(mappedDiskCache.mLog.mMappedSegments.containsKey(mappedDiskCache.mLog.mActiveFilename));
+
+        mappedDiskCache.setMemoryMapped(false);
+        assertTrue(mappedDiskCache.mLog.mMappedSegments.isEmpty());
+        assertEquals(results, mappedDiskCache.all());
+        mappedDiskCache.close();
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append(String.format("{\"id\":%d,\"name\":\"user %d\"},", i, i));
+        }
+        final String largeValue = builder.toString();
+
+        diskCache.put("uncompressed", largeValue);
+        diskCache.enableCompression(Codecs.LZF, 256);
+        assertTrue(diskCache.isCompressionEnabled());
+        diskCache.put("small", "value");
+        diskCache.put("large", largeValue);
+        diskCache.enableCompression(Codecs.DEFLATE, 256);
+        diskCache.put("deflated", largeValue);
+
+        final int uncompressedLength = diskCache.mFileIndexes.get("uncompressed").getLength();
+        assertTrue(diskCache.mFileIndexes.get("large").getLength() * 2 < uncompressedLength);
+        assertTrue(diskCache.mFileIndexes.get("deflated").getLength() * 3 < uncompressedLength);
+        assertEquals("value", diskCache.get(Collections.singleton("small")).get("small"));
+
+        diskCache.close();
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertFalse(diskCache.isCompressionEnabled());
+        final HashMap results = diskCache.all();
+        assertEquals(4, results.size());
+        assertEquals(largeValue, results.get("uncompressed"));
+        assertEquals(largeValue, results.get("large"));
+        assertEquals(largeValue, results.get("deflated"));
+        assertEquals("value", results.get("small"));
+    }
+
+    @Test
+    public void testCompressedRecordsAreRecovered() throws Exception {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append("compressible ");
+        }
+        diskCache.enableCompression(Codecs.LZF, 0);
+        diskCache.put("key", builder.toString(), 60000, 0);
+        diskCache.checkpoint();
+        diskCache.close();
+        final File checkpointFile = new File(diskCacheFolder, DiskCache.CHECKPOINT_FILENAME);
+        flipByte(checkpointFile, 10);
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        assertEquals(builder.toString(), diskCache.get(Collections.singleton("key")).get("key"));
+        assertTrue(diskCache.mFileIndexes.get("key").getExpiryTime() > 0);
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        final DiskCache<String, String> smallSegmentDiskCache = new DiskCache<String, String>(mTemporaryFolder.newFolder("put_all"), 1024);
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            entries.put(String.format("key.%d", i), String.format("value.%d", i));
+        }
+        smallSegmentDiskCache.putAll(entries);
+
+        assertEquals(100, smallSegmentDiskCache.size());
+        assertEquals(100, smallSegmentDiskCache.mJournal.getRecordCount());
+        assertTrue(smallSegmentDiskCache.mLog.mSegmentSizes.size() > 1);
+        for (final long size : smallSegmentDiskCache.mLog.mSegmentSizes.values()) {
+            assertTrue(size <= 1024);
+        }
+        assertEquals(entries, smallSegmentDiskCache.all());
+        smallSegmentDiskCache.close();
+
+        final DiskCache<String, String> reopenedDiskCache = new DiskCache<String, String>(smallSegmentDiskCache.getCacheDirectory(), 1024);
+        assertEquals(entries, reopenedDiskCache.all());
+        reopenedDiskCache.close();
+    }
+
+    @Test
+    public void testGetMissingKey() throws Exception {
+        diskCache.put("key", "value");
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("missing");
+        assertEquals(0, diskCache.get(keys).size());
+    }
+
+    @Test
+    public void testMigrateBucketFiles() throws Exception {
+        final File legacyFolder = mTemporaryFolder.newFolder("legacy");
+        final String key = "key";
+        final String bucketFilename = String.format("%d.ser", key.hashCode());
+
+        final HashMap<String, DiskCacheItem<String>> bucket = new HashMap<String, DiskCacheItem<String>>();
+        bucket.put(key, new DiskCacheItem<String>("value"));
+        writeObject(new File(legacyFolder, bucketFilename), bucket);
+
+        final HashMap<String, DiskCacheIndex> fileIndexes = new HashMap<String, DiskCacheIndex>();
+        fileIndexes.put(key, new DiskCacheIndex(bucketFilename, 0, 0, 0));
+        writeObject(new File(legacyFolder, DiskCache.LEGACY_INDEX_FILENAME), fileIndexes);
+
+        final DiskCache<String, String> migratedDiskCache = new DiskCache<String, String>(legacyFolder);
+        assertFalse(new File(legacyFolder, bucketFilename).exists());
+        assertFalse(new File(legacyFolder, DiskCache.LEGACY_INDEX_FILENAME).exists());
+        assertTrue(new File(legacyFolder, DiskCache.CHECKPOINT_FILENAME).isFile());
+        assertTrue(migratedDiskCache.mFileIndexes.get(key).isSegment());
+        assertEquals("value", migratedDiskCache.all().get(key));
+        migratedDiskCache.close();
+    }
+
+    @Test
+    public void testCustomSerializers() throws Exception {
+        final File folder = mTemporaryFolder.newFolder("java_serializer");
+        final DiskCache<String, ComplexObject> complexObjectDiskCache = new DiskCache<String, ComplexObject>(folder,
+                new BinarySerializer<String>(), new JavaSerializer<ComplexObject>());
+        for (int i = 0; i < DiskCache.MIN_CHECKPOINT_RECORDS + 1; i++) {
+            complexObjectDiskCache.put(String.format("key.%d", i % 3), new ComplexObject(i));
+        }
+        complexObjectDiskCache.close();
+
+        final DiskCache<String, ComplexObject> reopenedDiskCache = new DiskCache<String, ComplexObject>(folder,
+                new BinarySerializer<String>(), new JavaSerializer<ComplexObject>());
+        final HashMap<String, ComplexObject> results = reopenedDiskCache.all();
+        assertEquals(3, results.size());
+        assertEquals(DiskCache.MIN_CHECKPOINT_RECORDS, results.get(String.format("key.%d", DiskCache.MIN_CHECKPOINT_RECORDS % 3)).variable1);
+        reopenedDiskCache.close();
+    }
+
+    private static void writeObject(final File aFile, final Object aObject) throws IOException {
+        final ObjectOutput output = new ObjectOutputStream(new FileOutputStream(aFile));
+        output.writeObject(aObject);
+        output.close();
+    }
+
+    static Ticker newTicker(final AtomicLong aTime) {
+        return new Ticker() {
+            public long currentTimeMillis() {
+                return aTime.get();
+            }
+        };
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        diskCache.setTicker(newTicker(time));
+        diskCache.setExpireAfterWriteMillis(100);
+        diskCache.put("key", "value");
+        diskCache.put("key2", "value2", 0, 0);
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        keys.add("key2");
+        time.addAndGet(99);
+        assertEquals(2, diskCache.get(keys).size());
+
+        time.addAndGet(1);
+        final HashMap results = diskCache.get(keys);
+        assertEquals(1, results.size());
+        assertEquals("value2", results.get("key2"));
+        assertEquals(1, diskCache.size());
+    }
+
+    @Test
+    public void testExpireAfterAccess() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        diskCache.setTicker(newTicker(time));
+        diskCache.put("key", "value", 0, 100);
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        for (int i = 0; i < 5; i++) {
+            time.addAndGet(60);
+            assertEquals("value", diskCache.get(keys).get("key"));
+        }
+
+        time.addAndGet(2000);
+        diskCache.cleanUp();
+        assertEquals(0, diskCache.size());
+    }
+
+    @Test
+    public void testCleanUp() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        diskCache.setTicker(newTicker(time));
+        final int count = 100;
+        for (int i = 0; i < count; i++) {
+            diskCache.put(String.format("key%d", i), "value", i % 2 == 0 ? 1000L * (i + 1) : 0, 0);
+        }
+
+        time.addAndGet(1000L * count);
+        diskCache.cleanUp();
+        assertEquals(count / 2, diskCache.size());
+    }
+
+    @Test
+    public void testExpiryReopen() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        diskCache.setTicker(newTicker(time));
+        diskCache.put("key", "value", 100, 0);
+        diskCache.put("key2", "value2");
+        diskCache.checkpoint();
+        diskCache.put("key3", "value3", 100, 0);
+        diskCache.close();
+
+        diskCache = new DiskCache<String, String>(diskCacheFolder);
+        diskCache.setTicker(newTicker(time));
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        keys.add("key3");
+        final HashMap<String, DiskCacheItem<String>> items = diskCache.getItems(keys);
+        assertEquals(2, items.size());
+        assertEquals(1100, items.get("key").getExpiryTime());
+        assertEquals(1100, items.get("key3").getExpiryTime());
+
+        time.addAndGet(100);
+        diskCache.cleanUp();
+        assertEquals(1, diskCache.size());
+        assertNotNull(diskCache.mFileIndexes.get("key2"));
+    }
+
+    @Test
+    public void testMaximumEntriesEvictsLeastRecentlyUsed() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        diskCache.setTicker(newTicker(time));
+        for (int i = 0; i < 10; i++) {
+            time.incrementAndGet();
+            diskCache.put("key" + i, "value" + i);
+        }
+        time.incrementAndGet();
+        diskCache.get(new HashSet<String>(Collections.singleton("key0")));
+
+        diskCache.mMaximumEntries = 5; // set directly to keep eviction on this thread
+        diskCache.evictToQuota();
+        assertEquals(5, diskCache.size());
+        assertEquals(new HashSet<String>(Arrays.asList("key0", "key6", "key7", "key8", "key9")), diskCache.all().keySet());
+        assertEquals(5, diskCache.getStats().getDiskEvictionCount());
+    }
+
+    @Test
+    public void testMaximumEntriesEvictsLeastFrequentlyUsed() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        diskCache.setTicker(newTicker(time));
+        diskCache.setEvictionPolicy(DiskEvictionPolicy.LFU);
+        for (int i = 0; i < 10; i++) {
+            time.incrementAndGet();
+            diskCache.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 3; i++) {
+            diskCache.get(new HashSet<String>(Arrays.asList("key0", "key1")));
         }
+        time.incrementAndGet();
+        diskCache.get(new HashSet<String>(Collections.singleton("key2"))); // most recent, but read only once
+
+        diskCache.mMaximumEntries = 4;
+        diskCache.evictToQuota();
+        assertEquals(0, diskCache.mFileIndexes.get("key2").mAccessCount); // counts have been halved
+        assertEquals(new HashSet<String>(Arrays.asList("key0", "key1", "key2", "key9")), diskCache.all().keySet());
+    }
+
+    @Test
+    public void testMaximumBytes() throws Exception {
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        diskCache.putAll(entries);
+        final long sizeInBytes = diskCache.getSizeInBytes();
+        assertTrue(sizeInBytes > 0);
+
+        diskCache.mMaximumBytes = sizeInBytes / 2;
+        diskCache.evictToQuota();
+        assertTrue(diskCache.getSizeInBytes() <= sizeInBytes / 2 * 0.95);
+        assertTrue(diskCache.size() < 100);
+        assertEquals(diskCache.size(), diskCache.all().size());
+
+        diskCache.clear();
+        assertEquals(0, diskCache.getSizeInBytes());
+    }
+
+    @Test
+    public void testEvictionRunsInBackground() throws Exception {
+        diskCache.setMaximumSize(Long.MAX_VALUE, 10);
+        for (int i = 0; i < 20; i++) {
+            diskCache.put("key" + i, "value" + i);
+        }
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (diskCache.size() > 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(diskCache.size() <= 10);
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        diskCache.close();
+        diskCache = new DiskCache<String, String>(diskCacheFolder, 1024); // many small segments
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 500; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        diskCache.putAll(entries);
+        final HashSet<String> segments = new HashSet<String>();
+        for (final DiskCacheIndex fileIndex : diskCache.mFileIndexes.values()) {
+            segments.add(fileIndex.getFilename());
+        }
+        assertTrue(segments.size() > 1);
+
+        final HashMap<String, String> streamed = new HashMap<String, String>();
+        for (final Map.Entry<String, String> entry : diskCache.stream().collect(Collectors.<Map.Entry<String, String>>toList())) {
+            streamed.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(entries, streamed);
+
+        final Map<String, String> parallelStreamed = diskCache.parallelStream().collect(Collectors.toMap(
+                new Function<Map.Entry<String, String>, String>() {
+                    public String apply(final Map.Entry<String, String> aEntry) {
+                        return aEntry.getKey();
+                    }
+                },
+                new Function<Map.Entry<String, String>, String>() {
+                    public String apply(final Map.Entry<String, String> aEntry) {
+                        return aEntry.getValue();
+                    }
+                }));
+        assertEquals(entries, parallelStreamed);
+    }
+
+    @Test
+    public void testSpliteratorSplitsBySegment() throws Exception {
+        diskCache.close();
+        diskCache = new DiskCache<String, String>(diskCacheFolder, 1024);
+        for (int i = 0; i < 200; i++) {
+            diskCache.put("key" + i, "value" + i);
+        }
+
+        final Spliterator<Map.Entry<String, String>> suffix = diskCache.spliterator();
+        final Spliterator<Map.Entry<String, String>> prefix = suffix.trySplit();
+        assertNotNull(prefix);
+        assertEquals(200, prefix.estimateSize() + suffix.estimateSize());
+
+        // no segment is read by both halves
+        final HashSet<String> prefixSegments = new HashSet<String>();
+        prefix.forEachRemaining(new Consumer<Map.Entry<String, String>>() {
+            public void accept(final Map.Entry<String, String> aEntry) {
+                prefixSegments.add(diskCache.mFileIndexes.get(aEntry.getKey()).getFilename());
+            }
+        });
+        suffix.forEachRemaining(new Consumer<Map.Entry<String, String>>() {
+            public void accept(final Map.Entry<String, String> aEntry) {
+                assertFalse(prefixSegments.contains(diskCache.mFileIndexes.get(aEntry.getKey()).getFilename()));
+            }
+        });
+    }
+
+    @Test
+    public void testForEachSkipsRemovedEntries() throws Exception {
+        diskCache.put("key", "value");
+        diskCache.put("key2", "value2");
+        diskCache.put("key3", "value3");
+
+        final Spliterator<Map.Entry<String, String>> spliterator = diskCache.spliterator();
+        final Set<String> removedKeys = new HashSet<String>();
+        removedKeys.add("key2");
+        diskCache.remove(removedKeys);
+
+        final HashMap<String, String> seen = new HashMap<String, String>();
+        spliterator.forEachRemaining(new Consumer<Map.Entry<String, String>>() {
+            public void accept(final Map.Entry<String, String> aEntry) {
+                seen.put(aEntry.getKey(), aEntry.getValue());
+            }
+        });
+        assertEquals(2, seen.size());
+        assertFalse(seen.containsKey("key2"));
+
+        final HashMap<String, String> forEachSeen = new HashMap<String, String>();
+        diskCache.forEach(new BiConsumer<String, String>() {
+            public void accept(final String aKey, final String aValue) {
+                forEachSeen.put(aKey, aValue);
+            }
+        });
+        assertEquals(seen, forEachSeen);
     }
 
     @Test
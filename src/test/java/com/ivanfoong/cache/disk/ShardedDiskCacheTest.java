@@ -0,0 +1,140 @@
+package com.ivanfoong.cache.disk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ShardedDiskCacheTest {
+
+    private TemporaryFolder mTemporaryFolder;
+    private File[] mCacheFolders;
+    private ShardedDiskCache<String, String> mDiskCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mTemporaryFolder = new TemporaryFolder();
+        mTemporaryFolder.create();
+        mCacheFolders = new File[] { mTemporaryFolder.newFolder("disk0"), mTemporaryFolder.newFolder("disk1") };
+        mDiskCache = new ShardedDiskCache<String, String>(mCacheFolders, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDiskCache.close();
+        mTemporaryFolder.delete();
+    }
+
+    @Test
+    public void testPutAndGetAcrossShards() throws Exception {
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        mDiskCache.putAll(entries);
+        mDiskCache.put("key100", "value100");
+        entries.put("key100", "value100");
+
+        assertEquals(101, mDiskCache.size());
+        assertEquals(entries, mDiskCache.get(new HashSet<String>(entries.keySet())));
+        assertEquals(entries, mDiskCache.all());
+
+        // every shard holds some of the keys, and only the keys routed to it
+        for (final DiskCache<String, String> shard : mDiskCache.mShards) {
+            assertTrue(shard.size() > 0);
+            for (final Object key : shard.all().keySet()) {
+                assertSame(shard, mDiskCache.shardFor((String) key));
+            }
+        }
+
+        final Set<String> removedKeys = new HashSet<String>(Arrays.asList("key1", "key2", "key3"));
+        mDiskCache.remove(removedKeys);
+        assertEquals(98, mDiskCache.size());
+        assertEquals(98, mDiskCache.stream().count());
+        assertEquals(98, mDiskCache.parallelStream().count());
+    }
+
+    @Test
+    public void testLayout() throws Exception {
+        assertEquals(new File(mCacheFolders[0], "shard-0"), mDiskCache.mShards[0].getCacheDirectory());
+        assertEquals(new File(mCacheFolders[1], "shard-1"), mDiskCache.mShards[1].getCacheDirectory());
+        assertEquals(new File(mCacheFolders[0], "shard-2"), mDiskCache.mShards[2].getCacheDirectory());
+
+        mDiskCache.put("key", "value");
+        mDiskCache.close();
+        mDiskCache = new ShardedDiskCache<String, String>(mCacheFolders, 4);
+        assertEquals("value", mDiskCache.get(Collections.singleton("key")).get("key"));
+
+        try {
+            new ShardedDiskCache<String, String>(mCacheFolders, 8);
+            fail("expected the shard count to be checked");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSingleShardOpensPlainDiskCache() throws Exception {
+        final File folder = mTemporaryFolder.newFolder("plain");
+        final DiskCache<String, String> diskCache = new DiskCache<String, String>(folder);
+        diskCache.put("key", "value");
+        diskCache.close();
+
+        final ShardedDiskCache<String, String> shardedDiskCache = new ShardedDiskCache<String, String>(folder);
+        try {
+            assertEquals(folder, shardedDiskCache.mShards[0].getCacheDirectory());
+            assertEquals("value", shardedDiskCache.get(Collections.singleton("key")).get("key"));
+        } finally {
+            shardedDiskCache.close();
+        }
+    }
+
+    @Test
+    public void testMaximumSizeIsSplitBetweenShards() throws Exception {
+        mDiskCache.setMaximumSize(4000, 40);
+        mDiskCache.setEvictionPolicy(DiskEvictionPolicy.LFU);
+        for (final DiskCache<String, String> shard : mDiskCache.mShards) {
+            assertEquals(1000, shard.getMaximumBytes());
+            assertEquals(10, shard.getMaximumEntries());
+            assertEquals(DiskEvictionPolicy.LFU, shard.getEvictionPolicy());
+        }
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final int threadCount = 8;
+        final int putsPerThread = 200;
+        final AtomicInteger failures = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final int thread = i;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < putsPerThread; j++) {
+                            mDiskCache.put(thread + "-" + j, "value" + j);
+                        }
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(threadCount * putsPerThread, mDiskCache.size());
+        assertEquals("value7", mDiskCache.get(Collections.singleton("3-7")).get("3-7"));
+    }
+}
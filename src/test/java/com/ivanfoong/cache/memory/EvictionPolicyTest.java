@@ -0,0 +1,109 @@
+package com.ivanfoong.cache.memory;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EvictionPolicyTest {
+
+    static final int CAPACITY = 100;
+    static final int HOT_KEYS = 50;
+
+    /**
+     * Reads a hot set of keys a few times, then puts a scan of one-off keys ten times larger than the cache.
+     *
+     * @return how many of the hot keys are still cached after the scan
+     */
+    static int hotKeysAfterScan(final MemoryCache<String, String> aMemoryCache) {
+        for (int i = 0; i < HOT_KEYS; i++) {
+            aMemoryCache.put(String.format("hot%d", i), "value");
+        }
+        final Set<String> keys = new HashSet<String>();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < HOT_KEYS; i++) {
+                keys.clear();
+                keys.add(String.format("hot%d", i));
+                aMemoryCache.get(keys);
+            }
+        }
+        for (int i = 0; i < CAPACITY * 10; i++) {
+            aMemoryCache.put(String.format("scan%d", i), "value");
+        }
+
+        int hotKeys = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            if (aMemoryCache.mHashMap.containsKey(String.format("hot%d", i))) {
+                hotKeys++;
+            }
+        }
+        return hotKeys;
+    }
+
+    @Test
+    public void testLruScan() throws Exception {
+        final MemoryCache<String, String> memoryCache = new MemoryCache<String, String>(CAPACITY, new LruPolicy());
+        assertEquals(0, hotKeysAfterScan(memoryCache));
+        assertEquals(CAPACITY, memoryCache.size());
+    }
+
+    @Test
+    public void testTinyLfuScanResistance() throws Exception {
+        final MemoryCache<String, String> memoryCache = new MemoryCache<String, String>(CAPACITY, new TinyLfuPolicy());
+        assertTrue(hotKeysAfterScan(memoryCache) >= HOT_KEYS * 9 / 10);
+        assertEquals(CAPACITY, memoryCache.size());
+    }
+
+    @Test
+    public void testClockSecondChance() throws Exception {
+        final MemoryCache<String, String> memoryCache = new MemoryCache<String, String>(3, new ClockPolicy());
+        memoryCache.put("key", "value");
+        memoryCache.put("key2", "value2");
+        memoryCache.put("key3", "value3");
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        memoryCache.get(keys);
+        memoryCache.put("key4", "value4");
+
+        assertNotNull(memoryCache.mHashMap.get("key"));
+        assertNull(memoryCache.mHashMap.get("key2"));
+        assertEquals(3, memoryCache.size());
+    }
+
+    @Test
+    public void testSetEvictionPolicy() throws Exception {
+        final MemoryCache<String, String> memoryCache = new MemoryCache<String, String>(10);
+        for (int i = 0; i < 10; i++) {
+            memoryCache.put(String.format("key%d", i), "value");
+        }
+
+        memoryCache.setEvictionPolicy(new TinyLfuPolicy());
+        for (int i = 10; i < 20; i++) {
+            memoryCache.put(String.format("key%d", i), "value");
+        }
+        assertEquals(10, memoryCache.size());
+        assertEquals(10, ((TinyLfuPolicy) memoryCache.getEvictionPolicy()).size());
+    }
+
+    @Test
+    public void testFrequencySketch() throws Exception {
+        final FrequencySketch sketch = new FrequencySketch();
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("key");
+        }
+        assertTrue(sketch.frequency("key") >= 5);
+        assertTrue(sketch.frequency("key") <= FrequencySketch.MAXIMUM_FREQUENCY);
+
+        sketch.ensureCapacity(1024);
+        assertTrue(sketch.frequency("key") >= 5);
+
+        sketch.reset();
+        assertTrue(sketch.frequency("key") >= 2);
+    }
+}
@@ -0,0 +1,106 @@
+package com.ivanfoong.cache.memory;
+
+import com.ivanfoong.cache.stats.CacheStats;
+import com.ivanfoong.cache.stats.CacheStatsSnapshot;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntKeyMemoryCacheTest {
+
+    @Test
+    public void testPutAndGet() {
+        final IntKeyMemoryCache<String> cache = new IntKeyMemoryCache<String>(10);
+        cache.put(0, "zero");
+        cache.put(-1, "minus one");
+        cache.put(Integer.MIN_VALUE, "min");
+        cache.put(Integer.MAX_VALUE, "max");
+        cache.put(-1, "updated");
+
+        assertEquals(4, cache.size());
+        assertEquals("zero", cache.get(0));
+        assertEquals("updated", cache.get(-1));
+        assertEquals("min", cache.get(Integer.MIN_VALUE));
+        assertEquals("max", cache.get(Integer.MAX_VALUE));
+        assertNull(cache.get(1));
+
+        final CacheStatsSnapshot stats = cache.getStats().snapshot();
+        assertEquals(4, stats.getHitCount(CacheStats.Tier.MEMORY));
+        assertEquals(1, stats.getMissCount(CacheStats.Tier.MEMORY));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final IntKeyMemoryCache<String> cache = new IntKeyMemoryCache<String>(3);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+        cache.get(1);
+        cache.put(4, "four");
+
+        assertFalse(cache.containsKey(2));
+        assertArrayEquals(new int[] {3, 1, 4}, cache.keys());
+        assertEquals(1, cache.getStats().snapshot().getEvictionCount(CacheStats.Tier.MEMORY));
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        final IntKeyMemoryCache<String> cache = new IntKeyMemoryCache<String>(4);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        assertEquals("one", cache.remove(1));
+        assertNull(cache.remove(1));
+        assertArrayEquals(new int[] {2}, cache.keys());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        for (int i = 0; i < 4; i++) {
+            cache.put(i, "value");
+        }
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testMatchesLinkedHashMap() {
+        final int capacity = 100;
+        final IntKeyMemoryCache<Long> cache = new IntKeyMemoryCache<Long>(capacity);
+        final LinkedHashMap<Integer, Long> expected = new LinkedHashMap<Integer, Long>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Long> aEldest) {
+                return size() > capacity;
+            }
+        };
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final int key = random.nextInt(300) * 1024; // keys sharing low bits, to collide in the table
+            switch (random.nextInt(3)) {
+                case 0:
+                    cache.put(key, (long) i);
+                    expected.put(key, (long) i);
+                    break;
+                case 1:
+                    assertEquals(expected.get(key), cache.get(key));
+                    break;
+                default:
+                    assertEquals(expected.remove(key), cache.remove(key));
+                    break;
+            }
+        }
+
+        assertEquals(expected.size(), cache.size());
+        final int[] keys = cache.keys();
+        int index = 0;
+        for (final Integer key : expected.keySet()) {
+            assertEquals(key.intValue(), keys[index++]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValue() {
+        new IntKeyMemoryCache<String>(1).put(1, null);
+    }
+}
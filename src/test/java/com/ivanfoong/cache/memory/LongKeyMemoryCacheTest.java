@@ -0,0 +1,106 @@
+package com.ivanfoong.cache.memory;
+
+import com.ivanfoong.cache.stats.CacheStats;
+import com.ivanfoong.cache.stats.CacheStatsSnapshot;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongKeyMemoryCacheTest {
+
+    @Test
+    public void testPutAndGet() {
+        final LongKeyMemoryCache<String> cache = new LongKeyMemoryCache<String>(10);
+        cache.put(0L, "zero");
+        cache.put(-1L, "minus one");
+        cache.put(Long.MIN_VALUE, "min");
+        cache.put(Long.MAX_VALUE, "max");
+        cache.put(-1L, "updated");
+
+        assertEquals(4, cache.size());
+        assertEquals("zero", cache.get(0L));
+        assertEquals("updated", cache.get(-1L));
+        assertEquals("min", cache.get(Long.MIN_VALUE));
+        assertEquals("max", cache.get(Long.MAX_VALUE));
+        assertNull(cache.get(1L));
+
+        final CacheStatsSnapshot stats = cache.getStats().snapshot();
+        assertEquals(4, stats.getHitCount(CacheStats.Tier.MEMORY));
+        assertEquals(1, stats.getMissCount(CacheStats.Tier.MEMORY));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final LongKeyMemoryCache<String> cache = new LongKeyMemoryCache<String>(3);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        cache.put(3L, "three");
+        cache.get(1L);
+        cache.put(4L, "four");
+
+        assertFalse(cache.containsKey(2L));
+        assertArrayEquals(new long[] {3L, 1L, 4L}, cache.keys());
+        assertEquals(1, cache.getStats().snapshot().getEvictionCount(CacheStats.Tier.MEMORY));
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        final LongKeyMemoryCache<String> cache = new LongKeyMemoryCache<String>(4);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        assertEquals("one", cache.remove(1L));
+        assertNull(cache.remove(1L));
+        assertArrayEquals(new long[] {2L}, cache.keys());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        for (long i = 0; i < 4; i++) {
+            cache.put(i, "value");
+        }
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testMatchesLinkedHashMap() {
+        final int capacity = 100;
+        final LongKeyMemoryCache<Long> cache = new LongKeyMemoryCache<Long>(capacity);
+        final LinkedHashMap<Long, Long> expected = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<Long, Long> aEldest) {
+                return size() > capacity;
+            }
+        };
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final long key = random.nextInt(300) * 1024L; // keys sharing low bits, to collide in the table
+            switch (random.nextInt(3)) {
+                case 0:
+                    cache.put(key, (long) i);
+                    expected.put(key, (long) i);
+                    break;
+                case 1:
+                    assertEquals(expected.get(key), cache.get(key));
+                    break;
+                default:
+                    assertEquals(expected.remove(key), cache.remove(key));
+                    break;
+            }
+        }
+
+        assertEquals(expected.size(), cache.size());
+        final long[] keys = cache.keys();
+        int index = 0;
+        for (final Long key : expected.keySet()) {
+            assertEquals(key.longValue(), keys[index++]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValue() {
+        new LongKeyMemoryCache<String>(1).put(1L, null);
+    }
+}
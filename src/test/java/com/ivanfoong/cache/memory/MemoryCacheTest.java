@@ -1,13 +1,19 @@
 package com.ivanfoong.cache.memory;
 
+import com.ivanfoong.cache.Ticker;
+import com.ivanfoong.cache.stats.CacheStats;
 import junit.framework.TestCase;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by ivanfoong on 8/10/15.
@@ -55,6 +61,23 @@ public class MemoryCacheTest extends TestCase {
         assertEquals(value, results.get(key));
     }
 
+    @Test
+    public void testGetIfPresent() throws Exception {
+        mMemoryCache.put("key", "value");
+
+        assertEquals("value", mMemoryCache.getIfPresent("key"));
+        assertEquals("value", mMemoryCache.get("key"));
+        assertNull(mMemoryCache.getIfPresent("missing"));
+        assertEquals(2, mMemoryCache.getStats().snapshot().getHitCount(CacheStats.Tier.MEMORY));
+        assertEquals(1, mMemoryCache.getStats().snapshot().getMissCount(CacheStats.Tier.MEMORY));
+
+        final HashMap<String, String> results = new HashMap<String, String>();
+        results.put("other", "other value");
+        assertSame(results, mMemoryCache.getAll(Arrays.asList("key", "missing"), results));
+        assertEquals(2, results.size());
+        assertEquals("value", results.get("key"));
+    }
+
     @Test
     public void testRemove() throws Exception {
         final String key = "key";
@@ -125,6 +148,20 @@ public class MemoryCacheTest extends TestCase {
         assertEquals(value3, mMemoryCache.mHashMap.get(key3).mValue);
     }
 
+    @Test
+    public void testPutAll() throws Exception {
+        final int capacity = 2;
+        mMemoryCache.setCapacity(capacity);
+
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        entries.put("key", "value");
+        entries.put("key2", "value2");
+        entries.put("key3", "value3");
+        mMemoryCache.putAll(entries);
+
+        assertEquals(capacity, mMemoryCache.size());
+    }
+
     @Test
      public void testSize() throws Exception {
         final String key = "key";
@@ -162,6 +199,116 @@ public class MemoryCacheTest extends TestCase {
         assertEquals(Math.min(capacity, 3), mMemoryCache.size());
     }
 
+    @Test
+    public void testPutOverflowAfterConcurrentReads() throws Exception {
+        final int capacity = 2;
+        mMemoryCache.setCapacity(capacity);
+        mMemoryCache.put("key", "value");
+        mMemoryCache.put("key2", "value2");
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        for (int i = 0; i < ReadBuffer.STRIPE_SIZE * 4; i++) {
+            mMemoryCache.get(keys); // overflows the read buffer, dropped reads must not corrupt the LRU list
+        }
+
+        mMemoryCache.put("key3", "value3");
+
+        assertEquals(capacity, mMemoryCache.size());
+        assertNotNull(mMemoryCache.mHashMap.get("key"));
+        assertNull(mMemoryCache.mHashMap.get("key2"));
+        assertNotNull(mMemoryCache.mHashMap.get("key3"));
+    }
+
+    @Test
+    public void testConcurrentGetAndPut() throws Exception {
+        final int threadCount = 8;
+        final int operationCount = 10000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startLatch.await();
+                        final Set<String> keys = new HashSet<String>();
+                        for (int i = 0; i < operationCount; i++) {
+                            final String key = String.format("key.%d", (i * 31 + seed) % (DEFAULT_MEMORY_SIZE * 3));
+                            if (i % 4 == 0) {
+                                mMemoryCache.put(key, key);
+                            }
+                            else {
+                                keys.clear();
+                                keys.add(key);
+                                final HashMap<String, String> results = mMemoryCache.get(keys);
+                                if (results.containsKey(key) && !key.equals(results.get(key))) {
+                                    throw new AssertionError("unexpected value for " + key);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        startLatch.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertTrue(mMemoryCache.size() <= DEFAULT_MEMORY_SIZE);
+
+        mMemoryCache.mEvictionLock.lock();
+        try {
+            int linkedCount = 0;
+            for (EvictionPolicy.Node node = ((LruPolicy) mMemoryCache.mEvictionPolicy).mDeque.peekFirst(); node != null; node = node.getNext()) {
+                linkedCount++;
+            }
+            assertEquals(mMemoryCache.size(), linkedCount);
+        }
+        finally {
+            mMemoryCache.mEvictionLock.unlock();
+        }
+    }
+
+    @Test
+    public void testReplaceNeverMisses() throws Exception {
+        mMemoryCache.put("key", "value0");
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        final Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                public void run() {
+                    final Set<String> keys = new HashSet<String>(Arrays.asList("key"));
+                    while (doneLatch.getCount() > 0) {
+                        if (!mMemoryCache.get(keys).containsKey("key")) {
+                            failure.compareAndSet(null, new AssertionError("key missed while it was replaced"));
+                            return;
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (int i = 1; i <= 100000 && failure.get() == null; i++) {
+            mMemoryCache.put("key", "value" + i);
+        }
+        doneLatch.countDown();
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(1, mMemoryCache.size());
+    }
+
 //    @Test
 //    public void testGetNode() throws Exception {
 //        assertTrue(false);
@@ -182,6 +329,147 @@ public class MemoryCacheTest extends TestCase {
 //        assertTrue(false);
 //    }
 
+    static final Weigher<String, String> LENGTH_WEIGHER = new Weigher<String, String>() {
+        public int weigh(final String aKey, final String aValue) {
+            return aValue.length();
+        }
+    };
+
+    @Test
+    public void testPutOverWeight() throws Exception {
+        final MemoryCache<String, String> weightedMemoryCache = new MemoryCache<String, String>(10, LENGTH_WEIGHER);
+        weightedMemoryCache.put("key", "aaaa");
+        weightedMemoryCache.put("key2", "bbbb");
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        weightedMemoryCache.get(keys);
+
+        weightedMemoryCache.put("key3", "cccccc");
+
+        assertEquals(2, weightedMemoryCache.size());
+        assertEquals(10, weightedMemoryCache.getTotalWeight());
+        assertNotNull(weightedMemoryCache.mHashMap.get("key"));
+        assertNull(weightedMemoryCache.mHashMap.get("key2"));
+
+        weightedMemoryCache.put("key4", "ddddddddddd"); // heavier than the whole cache
+        assertNull(weightedMemoryCache.mHashMap.get("key4"));
+        assertEquals(2, weightedMemoryCache.size());
+
+        weightedMemoryCache.put("key", "a");
+        assertEquals(7, weightedMemoryCache.getTotalWeight());
+
+        final Set<String> keysToRemove = new HashSet<String>();
+        keysToRemove.add("key3");
+        weightedMemoryCache.remove(keysToRemove);
+        assertEquals(1, weightedMemoryCache.getTotalWeight());
+    }
+
+    @Test
+    public void testSetWeigher() throws Exception {
+        mMemoryCache.put("key", "aaaa");
+        mMemoryCache.put("key2", "bbbb");
+        mMemoryCache.put("key3", "cccc");
+
+        mMemoryCache.setWeigher(LENGTH_WEIGHER, 8);
+        assertEquals(2, mMemoryCache.size());
+        assertEquals(8, mMemoryCache.getTotalWeight());
+        assertNull(mMemoryCache.mHashMap.get("key"));
+
+        mMemoryCache.setWeigher(null, 0);
+        assertEquals(Long.MAX_VALUE, mMemoryCache.getMaximumWeight());
+        mMemoryCache.put("key", "aaaa");
+        assertEquals(3, mMemoryCache.size());
+    }
+
+    @Test
+    public void testSetCapacityShrinks() throws Exception {
+        mMemoryCache.put("key", "value");
+        mMemoryCache.put("key2", "value2");
+        mMemoryCache.put("key3", "value3");
+
+        mMemoryCache.setCapacity(1);
+        assertEquals(1, mMemoryCache.size());
+        assertNotNull(mMemoryCache.mHashMap.get("key3"));
+    }
+
+    static Ticker newTicker(final AtomicLong aTime) {
+        return new Ticker() {
+            public long currentTimeMillis() {
+                return aTime.get();
+            }
+        };
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        mMemoryCache.setTicker(newTicker(time));
+        mMemoryCache.setExpireAfterWriteMillis(100);
+        mMemoryCache.put("key", "value");
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        time.addAndGet(99);
+        assertEquals("value", mMemoryCache.get(keys).get("key"));
+
+        time.addAndGet(1);
+        assertTrue(mMemoryCache.get(keys).isEmpty());
+        assertTrue(mMemoryCache.all().isEmpty());
+
+        mMemoryCache.cleanUp();
+        assertEquals(0, mMemoryCache.size());
+    }
+
+    @Test
+    public void testExpireAfterAccess() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        mMemoryCache.setTicker(newTicker(time));
+        mMemoryCache.setExpireAfterAccessMillis(100);
+        mMemoryCache.put("key", "value");
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        for (int i = 0; i < 5; i++) {
+            time.addAndGet(60);
+            assertEquals("value", mMemoryCache.get(keys).get("key"));
+        }
+
+        // reads have pushed the expiry past the time the entry was first scheduled for
+        time.addAndGet(2000);
+        mMemoryCache.cleanUp();
+        assertEquals(0, mMemoryCache.size());
+    }
+
+    @Test
+    public void testPutWithTimeToLive() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        mMemoryCache.setTicker(newTicker(time));
+        mMemoryCache.put("key", "value", 5000, 0);
+        mMemoryCache.put("key2", "value2");
+
+        time.addAndGet(4000);
+        mMemoryCache.cleanUp();
+        assertEquals(2, mMemoryCache.size());
+
+        time.addAndGet(2000);
+        mMemoryCache.cleanUp();
+        assertEquals(1, mMemoryCache.size());
+        assertNotNull(mMemoryCache.mHashMap.get("key2"));
+    }
+
+    @Test
+    public void testPutReplacesExpiry() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        mMemoryCache.setTicker(newTicker(time));
+        mMemoryCache.put("key", "value", 100, 0);
+        mMemoryCache.put("key", "value2");
+
+        time.addAndGet(5000);
+        mMemoryCache.cleanUp();
+        assertEquals(1, mMemoryCache.size());
+    }
+
     @Test
     public void testGetCapacity() throws Exception {
         assertEquals(mMemoryCache.mCapacity, mMemoryCache.getCapacity());
@@ -0,0 +1,143 @@
+package com.ivanfoong.cache.offheap;
+
+import com.ivanfoong.cache.Ticker;
+import com.ivanfoong.cache.serializer.BinarySerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class OffHeapCacheTest {
+
+    static final int SLAB_SIZE = 1024;
+    static final int MAXIMUM_BYTES = 4 * SLAB_SIZE;
+
+    private OffHeapCache<String, String> offHeapCache;
+
+    @Before
+    public void setUp() throws Exception {
+        offHeapCache = new OffHeapCache<String, String>(MAXIMUM_BYTES, SLAB_SIZE, new BinarySerializer<String>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        offHeapCache.close();
+        offHeapCache = null;
+    }
+
+    static String repeat(final char aCharacter, final int aCount) {
+        final StringBuilder builder = new StringBuilder(aCount);
+        for (int i = 0; i < aCount; i++) {
+            builder.append(aCharacter);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        offHeapCache.put("key", "value");
+        offHeapCache.put("key2", "value2");
+        offHeapCache.put("key", "value3");
+
+        final HashMap<String, String> results = offHeapCache.all();
+        assertEquals(2, results.size());
+        assertEquals("value3", results.get("key"));
+        assertEquals("value2", results.get("key2"));
+        assertEquals(SLAB_SIZE, offHeapCache.getAllocatedBytes());
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        offHeapCache.put("key", "value");
+        offHeapCache.put("key2", "value2");
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key");
+        offHeapCache.remove(keys);
+
+        assertEquals(1, offHeapCache.size());
+        assertTrue(offHeapCache.get(keys).isEmpty());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        offHeapCache.put("key", "value");
+        offHeapCache.clear();
+
+        assertEquals(0, offHeapCache.size());
+        assertEquals(0, offHeapCache.getAllocatedBytes());
+        assertEquals(0, offHeapCache.getUsedBytes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final int count = 500;
+        for (int i = 0; i < count; i++) {
+            offHeapCache.put(String.format("key%d", i), String.format("value%d", i));
+
+            // keep the first key in use
+            final Set<String> keys = new HashSet<String>();
+            keys.add("key0");
+            assertEquals("value0", offHeapCache.get(keys).get("key0"));
+        }
+
+        assertTrue(offHeapCache.size() < count);
+        assertTrue(offHeapCache.getAllocatedBytes() <= MAXIMUM_BYTES);
+        final Set<String> keys = new HashSet<String>();
+        keys.add(String.format("key%d", count - 1));
+        keys.add("key1");
+        final HashMap<String, String> results = offHeapCache.get(keys);
+        assertEquals(1, results.size());
+        assertEquals(String.format("value%d", count - 1), results.get(String.format("key%d", count - 1)));
+    }
+
+    @Test
+    public void testReassignSlab() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            offHeapCache.put(String.format("key%d", i), "value");
+        }
+        assertEquals(MAXIMUM_BYTES, offHeapCache.getAllocatedBytes());
+
+        // every slab belongs to the smallest class by now, a larger value needs one of them handed over
+        final String largeValue = repeat('a', 600);
+        offHeapCache.put("large", largeValue);
+
+        final Set<String> keys = new HashSet<String>();
+        keys.add("large");
+        assertEquals(largeValue, offHeapCache.get(keys).get("large"));
+        assertEquals(MAXIMUM_BYTES, offHeapCache.getAllocatedBytes());
+    }
+
+    @Test
+    public void testValueLargerThanSlab() throws Exception {
+        offHeapCache.put("key", repeat('a', SLAB_SIZE * 2));
+        assertEquals(0, offHeapCache.size());
+        assertEquals(0, offHeapCache.getUsedBytes());
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        offHeapCache.setTicker(new Ticker() {
+            public long currentTimeMillis() {
+                return time.get();
+            }
+        });
+        offHeapCache.setExpireAfterWriteMillis(100);
+        offHeapCache.put("key", "value");
+        offHeapCache.put("key2", "value2", 0, 0);
+
+        time.addAndGet(100);
+        offHeapCache.cleanUp();
+        assertEquals(1, offHeapCache.size());
+        final Set<String> keys = new HashSet<String>();
+        keys.add("key2");
+        assertEquals("value2", offHeapCache.get(keys).get("key2"));
+    }
+}
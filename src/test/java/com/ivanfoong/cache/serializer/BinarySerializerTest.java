@@ -0,0 +1,54 @@
+package com.ivanfoong.cache.serializer;
+
+import com.ivanfoong.cache.disk.ComplexObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by ivanfoong on 8/10/15.
+ */
+public class BinarySerializerTest {
+
+    private final BinarySerializer<Object> mSerializer = new BinarySerializer<Object>();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Object[] values = new Object[] {
+                null, "", "value", "é中😀", 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                0L, Long.MAX_VALUE, Long.MIN_VALUE, true, false, (byte) -3, (short) 1234, 'c', 1.5f, -2.25d
+        };
+        for (final Object value : values) {
+            assertEquals(value, roundTrip(value));
+        }
+    }
+
+    @Test
+    public void testBytesRoundTrip() throws Exception {
+        final byte[] value = new byte[] {1, 2, 3, -1};
+        assertArrayEquals(value, (byte[]) roundTrip(value));
+    }
+
+    @Test
+    public void testJavaSerializationFallback() throws Exception {
+        final ArrayList<String> value = new ArrayList<String>();
+        value.add("value");
+        assertEquals(value, roundTrip(value));
+
+        assertTrue(roundTrip(new ComplexObject(1)) instanceof ComplexObject);
+    }
+
+    @Test
+    public void testCompactEncoding() throws Exception {
+        assertEquals(2, Serializers.toBytes(mSerializer, 1).length);
+        assertEquals(2, Serializers.toBytes(mSerializer, -1L).length);
+        assertEquals(7, Serializers.toBytes(mSerializer, "value").length);
+        assertTrue(Serializers.toBytes(mSerializer, "value").length < Serializers.toBytes(new JavaSerializer<Object>(), "value").length);
+    }
+
+    private Object roundTrip(final Object aValue) throws Exception {
+        return Serializers.fromBytes(mSerializer, Serializers.toBytes(mSerializer, aValue));
+    }
+}
@@ -0,0 +1,71 @@
+package com.ivanfoong.cache.stats;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CacheStatsTest {
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final CacheStats stats = new CacheStats();
+        assertEquals(1.0, stats.snapshot().getHitRate(), 0);
+
+        stats.recordHits(3);
+        stats.recordMisses(1);
+        stats.recordHits(CacheStats.Tier.MEMORY, 2);
+        stats.recordMisses(CacheStats.Tier.DISK, 1);
+        stats.recordEvictions(CacheStats.Tier.OFF_HEAP, 4);
+        stats.recordDiskRead(100);
+        stats.recordDiskWrites(2, 300);
+        stats.recordLatency(CacheStats.Tier.DISK, 1000);
+
+        final CacheStatsSnapshot snapshot = stats.snapshot();
+        assertEquals(4, snapshot.getRequestCount());
+        assertEquals(0.75, snapshot.getHitRate(), 0);
+        assertEquals(2, snapshot.getHitCount(CacheStats.Tier.MEMORY));
+        assertEquals(0, snapshot.getHitCount(CacheStats.Tier.DISK));
+        assertEquals(1, snapshot.getMissCount(CacheStats.Tier.DISK));
+        assertEquals(4, snapshot.getEvictionCount(CacheStats.Tier.OFF_HEAP));
+        assertEquals(1, snapshot.getDiskReadCount());
+        assertEquals(100, snapshot.getBytesRead());
+        assertEquals(2, snapshot.getDiskWriteCount());
+        assertEquals(300, snapshot.getBytesWritten());
+        assertEquals(1, snapshot.getLatency(CacheStats.Tier.DISK).getCount());
+        assertEquals(0, snapshot.getLatency(CacheStats.Tier.MEMORY).getCount());
+
+        stats.recordHits(1);
+        final CacheStatsSnapshot delta = stats.snapshot().minus(snapshot);
+        assertEquals(1, delta.getHitCount());
+        assertEquals(0, delta.getMissCount());
+        assertEquals(0, delta.getBytesWritten());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final CacheStats stats = new CacheStats();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        stats.recordHits(CacheStats.Tier.MEMORY, 1);
+                        stats.recordLatency(CacheStats.Tier.MEMORY, j);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, stats.getMemoryHitCount());
+        assertEquals(40000, stats.getMemoryLatency().getCount());
+        assertEquals(9999, stats.getMemoryLatency().getMaxNanos());
+    }
+}
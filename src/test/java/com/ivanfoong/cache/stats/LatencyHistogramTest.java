@@ -0,0 +1,47 @@
+package com.ivanfoong.cache.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() throws Exception {
+        // every value falls into a bucket whose upper bound is at least the value and at most 12.5% above it
+        long value = 0;
+        while (value >= 0 && value < Long.MAX_VALUE / 2) {
+            final int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket < LatencyHistogram.BUCKETS);
+            final long upperBound = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound - value <= value / 8);
+            value = value < 100 ? value + 1 : value * 3 / 2 + 7;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void testQuantiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getP99Nanos());
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500.0, snapshot.getMeanNanos(), 0.001);
+        assertEquals(1000000, snapshot.getMaxNanos());
+        assertWithin(500000, snapshot.getP50Nanos());
+        assertWithin(990000, snapshot.getP99Nanos());
+        assertEquals(1000000, snapshot.getQuantileNanos(1.0));
+    }
+
+    static void assertWithin(final long aExpected, final long aActual) {
+        assertTrue(aActual >= aExpected);
+        assertTrue(aActual <= aExpected + aExpected / 8);
+    }
+}